@@ -17,9 +17,6 @@
  */
 package ca.uqac.lif.spreadsheet;
 
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 import ca.uqac.lif.petitpoucet.ComposedPart;
 import ca.uqac.lif.petitpoucet.Part;
 
@@ -37,11 +34,6 @@ import ca.uqac.lif.petitpoucet.Part;
  */
 public class Cell implements Part
 {
-	/**
-	 * The regex pattern to decompose a string designating a cell.
-	 */
-	protected static final Pattern s_coordinatePattern = Pattern.compile("([A-Za-z]+):{0,1}(\\d+)");
-	
 	/**
 	 * The row corresponding to the cell.
 	 */
@@ -66,20 +58,15 @@ public class Cell implements Part
 	/**
 	 * Gets a cell instance from an Excel-like cell name. Following conventions,
 	 * column indices use letter sequences (e.g. A, B, AF, etc.) and row indices
-	 * are expressed as numbers, starting at 1.
+	 * are expressed as numbers, starting at 1. Names in R1C1 notation (e.g.
+	 * "R3C2") are also accepted. The name is read by {@link CellAddress},
+	 * which caches the cells of recently used names.
 	 * @param name The cell name
 	 * @return The cell instance
 	 */
 	/*@ non_null @*/ public static Cell get(String name)
 	{
-		Matcher mat = s_coordinatePattern.matcher(name);
-		if (!mat.find())
-		{
-			throw new SpreadsheetCellNameException("Invalid cell name");
-		}
-		String col = mat.group(1);
-		String row = mat.group(2);
-		return get(col, row);
+		return CellAddress.parse(name);
 	}
 	
 	/*@ non_null @*/ public static Cell get(String col, String row)
@@ -239,14 +226,6 @@ public class Cell implements Part
 	 */
 	protected static int getColumnNumber(String s)
 	{
-		int value = 0;
-		int pow = 0;
-		for (int i = s.length() - 1; i >= 0; i--)
-		{
-			char letter = s.charAt(i);
-			value += ((int) letter - 64) * Math.pow(26, pow);
-			pow++;
-		}
-		return value - 1;
+		return CellAddress.getColumnNumber(s, 0, s.length());
 	}
 }
@@ -0,0 +1,405 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet;
+
+/**
+ * Converts cell addresses from and to their textual form. Two notations are
+ * supported:
+ * <ul>
+ * <li>the A1 notation used by Excel or LibreOffice, where the column is a
+ * sequence of letters and the row is a number starting at 1 (e.g. "B3",
+ * "$AB$1234"); the dollar signs marking absolute references are accepted
+ * and ignored;</li>
+ * <li>the R1C1 notation, where the row and the column are both numbers
+ * starting at 1 (e.g. "R3C2").</li>
+ * </ul>
+ * Ranges are written as two addresses separated by a colon (e.g. "A1:C10").
+ * <p>
+ * Contrary to a regular expression, the parser reads the characters of the
+ * address directly and computes the coordinates with integer arithmetic,
+ * without creating any intermediate object. In addition, the cells obtained
+ * for the most recently parsed addresses are kept in a small cache, so that
+ * code referring repeatedly to the same cells by their name does not parse
+ * them again. The cache is a fixed array indexed by the hash code of the
+ * address; its entries are immutable, which makes it safe to share between
+ * threads without locking.
+ * 
+ * @author Sylvain Hallé
+ */
+public class CellAddress
+{
+	/**
+	 * The number of entries of the cache of parsed addresses. Must be a power
+	 * of 2.
+	 */
+	public static final int CACHE_SIZE = 1024;
+	
+	/**
+	 * The cache of parsed addresses.
+	 */
+	/*@ non_null @*/ protected static final CacheEntry[] s_cache = new CacheEntry[CACHE_SIZE];
+	
+	/**
+	 * Parses the address of a cell, using the cache of recent addresses.
+	 * @param address The address, in A1 or R1C1 notation
+	 * @return The cell
+	 * @throws SpreadsheetCellNameException If the address is invalid
+	 */
+	/*@ non_null @*/ public static Cell parse(/*@ non_null @*/ String address)
+	{
+		int slot = (address.hashCode() ^ (address.hashCode() >>> 16)) & (CACHE_SIZE - 1);
+		CacheEntry e = s_cache[slot];
+		if (e != null && e.m_address.equals(address))
+		{
+			return e.m_cell;
+		}
+		Cell c = parse(address, 0, address.length());
+		s_cache[slot] = new CacheEntry(address, c);
+		return c;
+	}
+	
+	/**
+	 * Parses the address of a cell located in a portion of a character
+	 * sequence. Leading and trailing spaces are ignored.
+	 * @param s The character sequence
+	 * @param from The position of the first character of the address
+	 * @param to The position after the last character of the address
+	 * @return The cell
+	 * @throws SpreadsheetCellNameException If the address is invalid
+	 */
+	/*@ non_null @*/ public static Cell parse(/*@ non_null @*/ CharSequence s, int from, int to)
+	{
+		while (from < to && s.charAt(from) == ' ')
+		{
+			from++;
+		}
+		while (to > from && s.charAt(to - 1) == ' ')
+		{
+			to--;
+		}
+		if (isR1C1(s, from, to))
+		{
+			return parseR1C1(s, from, to);
+		}
+		int i = from;
+		if (i < to && s.charAt(i) == '$')
+		{
+			i++;
+		}
+		int letters_start = i;
+		while (i < to && isLetter(s.charAt(i)))
+		{
+			i++;
+		}
+		int letters_end = i;
+		if (i < to && (s.charAt(i) == '$' || s.charAt(i) == ':'))
+		{
+			i++;
+		}
+		int row = parseNumber(s, i, to);
+		if (letters_start == letters_end || row < 1)
+		{
+			throw invalid(s, from, to);
+		}
+		return Cell.get(getColumnNumber(s, letters_start, letters_end), row - 1);
+	}
+	
+	/**
+	 * Parses a range of cells. A single address designates a range made of
+	 * this cell only.
+	 * @param range The range, made of two addresses separated by a colon
+	 * @return The range
+	 * @throws SpreadsheetCellNameException If the range is invalid
+	 */
+	/*@ non_null @*/ public static CellRange parseRange(/*@ non_null @*/ String range)
+	{
+		int sep = -1;
+		for (int i = 1; i < range.length(); i++)
+		{
+			// A colon directly between letters and digits belongs to the address
+			if (range.charAt(i) == ':' && !(isLetter(range.charAt(i - 1)) && i + 1 < range.length() && isDigit(range.charAt(i + 1))))
+			{
+				sep = i;
+				break;
+			}
+		}
+		if (sep < 0)
+		{
+			Cell c = parse(range, 0, range.length());
+			return new CellRange(c.getColumn(), c.getRow(), c.getColumn(), c.getRow());
+		}
+		Cell c1 = parse(range, 0, sep);
+		Cell c2 = parse(range, sep + 1, range.length());
+		return new CellRange(c1.getColumn(), c1.getRow(), c2.getColumn(), c2.getRow());
+	}
+	
+	/**
+	 * Gets the column number designated by a sequence of letters. Letters A to
+	 * Z stand for digits 1 to 26 in base 26, and 1 is subtracted from the
+	 * result since column numbers start at 0. Upper and lower case letters
+	 * are equivalent.
+	 * @param s The character sequence
+	 * @param from The position of the first letter
+	 * @param to The position after the last letter
+	 * @return The column number
+	 */
+	public static int getColumnNumber(/*@ non_null @*/ CharSequence s, int from, int to)
+	{
+		int value = 0;
+		for (int i = from; i < to; i++)
+		{
+			char c = s.charAt(i);
+			if (!isLetter(c))
+			{
+				throw invalid(s, from, to);
+			}
+			value = value * 26 + (Character.toUpperCase(c) - 'A' + 1);
+			if (value < 0)
+			{
+				throw invalid(s, from, to);
+			}
+		}
+		return value - 1;
+	}
+	
+	/**
+	 * Gets the letters designating a column.
+	 * @param col The column number, starting at 0
+	 * @return The letters
+	 */
+	/*@ non_null @*/ public static String formatColumn(int col)
+	{
+		StringBuilder out = new StringBuilder(4);
+		appendColumn(out, col);
+		return out.toString();
+	}
+	
+	/**
+	 * Gets the address of a cell in A1 notation.
+	 * @param col The column of the cell
+	 * @param row The row of the cell
+	 * @return The address
+	 */
+	/*@ non_null @*/ public static String format(int col, int row)
+	{
+		StringBuilder out = new StringBuilder(8);
+		appendColumn(out, col);
+		out.append(row + 1);
+		return out.toString();
+	}
+	
+	/**
+	 * Gets the address of a cell in A1 notation.
+	 * @param c The cell
+	 * @return The address
+	 */
+	/*@ non_null @*/ public static String format(/*@ non_null @*/ Cell c)
+	{
+		return format(c.getColumn(), c.getRow());
+	}
+	
+	/**
+	 * Gets the address of a range in A1 notation.
+	 * @param r The range
+	 * @return The address, made of the top-left and the bottom-right cells of
+	 * the range
+	 */
+	/*@ non_null @*/ public static String format(/*@ non_null @*/ CellRange r)
+	{
+		return format(r.getFirstColumn(), r.getFirstRow()) + ":" + format(r.getLastColumn(), r.getLastRow());
+	}
+	
+	/**
+	 * Gets the address of a cell in R1C1 notation.
+	 * @param col The column of the cell
+	 * @param row The row of the cell
+	 * @return The address
+	 */
+	/*@ non_null @*/ public static String formatR1C1(int col, int row)
+	{
+		return "R" + (row + 1) + "C" + (col + 1);
+	}
+	
+	/**
+	 * Empties the cache of parsed addresses.
+	 */
+	public static void clearCache()
+	{
+		for (int i = 0; i < CACHE_SIZE; i++)
+		{
+			s_cache[i] = null;
+		}
+	}
+	
+	/**
+	 * Appends to a string builder the letters designating a column.
+	 * @param out The string builder
+	 * @param col The column number, starting at 0
+	 */
+	protected static void appendColumn(StringBuilder out, int col)
+	{
+		if (col < 0)
+		{
+			throw new SpreadsheetCellNameException("Invalid column " + col);
+		}
+		int start = out.length();
+		int n = col + 1;
+		while (n > 0)
+		{
+			n--;
+			out.insert(start, (char) ('A' + n % 26));
+			n /= 26;
+		}
+	}
+	
+	/**
+	 * Determines if a portion of a character sequence is an address in R1C1
+	 * notation.
+	 * @param s The character sequence
+	 * @param from The start of the portion
+	 * @param to The end of the portion
+	 * @return <tt>true</tt> if the portion has the form R<i>n</i>C<i>n</i>
+	 */
+	protected static boolean isR1C1(CharSequence s, int from, int to)
+	{
+		if (to - from < 4 || Character.toUpperCase(s.charAt(from)) != 'R' || !isDigit(s.charAt(from + 1)))
+		{
+			return false;
+		}
+		int i = from + 1;
+		while (i < to && isDigit(s.charAt(i)))
+		{
+			i++;
+		}
+		return i < to - 1 && Character.toUpperCase(s.charAt(i)) == 'C';
+	}
+	
+	/**
+	 * Parses an address in R1C1 notation.
+	 * @param s The character sequence
+	 * @param from The start of the address
+	 * @param to The end of the address
+	 * @return The cell
+	 */
+	protected static Cell parseR1C1(CharSequence s, int from, int to)
+	{
+		int i = from + 1;
+		while (isDigit(s.charAt(i)))
+		{
+			i++;
+		}
+		int row = parseNumber(s, from + 1, i);
+		int col = parseNumber(s, i + 1, to);
+		if (row < 1 || col < 1)
+		{
+			throw invalid(s, from, to);
+		}
+		return Cell.get(col - 1, row - 1);
+	}
+	
+	/**
+	 * Parses a positive integer.
+	 * @param s The character sequence
+	 * @param from The position of the first digit
+	 * @param to The position after the last digit
+	 * @return The integer, or -1 if the portion is empty, contains anything
+	 * else than digits, or overflows
+	 */
+	protected static int parseNumber(CharSequence s, int from, int to)
+	{
+		if (from >= to)
+		{
+			return -1;
+		}
+		long value = 0;
+		for (int i = from; i < to; i++)
+		{
+			char c = s.charAt(i);
+			if (!isDigit(c))
+			{
+				return -1;
+			}
+			value = value * 10 + (c - '0');
+			if (value > Integer.MAX_VALUE)
+			{
+				return -1;
+			}
+		}
+		return (int) value;
+	}
+	
+	/**
+	 * Determines if a character is an ASCII letter.
+	 * @param c The character
+	 * @return <tt>true</tt> if the character is a letter
+	 */
+	protected static boolean isLetter(char c)
+	{
+		return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z');
+	}
+	
+	/**
+	 * Determines if a character is a decimal digit.
+	 * @param c The character
+	 * @return <tt>true</tt> if the character is a digit
+	 */
+	protected static boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+	
+	/**
+	 * Creates the exception thrown for an invalid address.
+	 * @param s The character sequence
+	 * @param from The start of the address
+	 * @param to The end of the address
+	 * @return The exception
+	 */
+	protected static SpreadsheetCellNameException invalid(CharSequence s, int from, int to)
+	{
+		return new SpreadsheetCellNameException("Invalid cell name " + s.subSequence(from, to));
+	}
+	
+	/**
+	 * An entry of the cache of parsed addresses.
+	 */
+	protected static class CacheEntry
+	{
+		/**
+		 * The address.
+		 */
+		/*@ non_null @*/ protected final String m_address;
+		
+		/**
+		 * The cell designated by the address.
+		 */
+		/*@ non_null @*/ protected final Cell m_cell;
+		
+		/**
+		 * Creates a new cache entry.
+		 * @param address The address
+		 * @param cell The cell designated by the address
+		 */
+		public CacheEntry(String address, Cell cell)
+		{
+			super();
+			m_address = address;
+			m_cell = cell;
+		}
+	}
+}
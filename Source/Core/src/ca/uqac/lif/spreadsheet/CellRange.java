@@ -17,12 +17,302 @@
  */
 package ca.uqac.lif.spreadsheet;
 
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.Part;
+
 /**
- * Utility class for manipulating cell ranges.
+ * A rectangular range of cells. Besides static methods producing the array
+ * of cells of a range, the class can be instantiated to represent a range by
+ * its corners only; the cells of such a range can then be enumerated by
+ * their coordinates with {@link #forEach(Visitor)}, without creating any
+ * {@link Cell} object.
+ * <p>
+ * A range is also a {@link Part} of a spreadsheet, similar to a
+ * {@link Cell}. Explanations can therefore designate a whole block of cells
+ * with a single node, instead of one node per cell.
  * @author Sylvain Hallé
  */
-public class CellRange
+public class CellRange implements Part, Iterable<Cell>
 {
+	/**
+	 * The column of the top-left cell of the range.
+	 */
+	protected final int m_col1;
+	
+	/**
+	 * The row of the top-left cell of the range.
+	 */
+	protected final int m_row1;
+	
+	/**
+	 * The column of the bottom-right cell of the range.
+	 */
+	protected final int m_col2;
+	
+	/**
+	 * The row of the bottom-right cell of the range.
+	 */
+	protected final int m_row2;
+	
+	/**
+	 * Creates a new range of cells. The corners can be given in any order.
+	 * @param col1 The column of a corner of the range
+	 * @param row1 The row of a corner of the range
+	 * @param col2 The column of the opposite corner of the range
+	 * @param row2 The row of the opposite corner of the range
+	 */
+	public CellRange(int col1, int row1, int col2, int row2)
+	{
+		super();
+		m_col1 = Math.min(col1, col2);
+		m_row1 = Math.min(row1, row2);
+		m_col2 = Math.max(col1, col2);
+		m_row2 = Math.max(row1, row2);
+	}
+	
+	/**
+	 * Gets the column of the top-left cell of the range.
+	 * @return The column
+	 */
+	/*@ pure @*/ public int getFirstColumn()
+	{
+		return m_col1;
+	}
+	
+	/**
+	 * Gets the row of the top-left cell of the range.
+	 * @return The row
+	 */
+	/*@ pure @*/ public int getFirstRow()
+	{
+		return m_row1;
+	}
+	
+	/**
+	 * Gets the column of the bottom-right cell of the range.
+	 * @return The column
+	 */
+	/*@ pure @*/ public int getLastColumn()
+	{
+		return m_col2;
+	}
+	
+	/**
+	 * Gets the row of the bottom-right cell of the range.
+	 * @return The row
+	 */
+	/*@ pure @*/ public int getLastRow()
+	{
+		return m_row2;
+	}
+	
+	/**
+	 * Gets the number of cells in the range. This number is a <tt>long</tt>,
+	 * as a range spanning many columns and rows can hold more cells than an
+	 * <tt>int</tt> can count.
+	 * @return The number of cells
+	 */
+	/*@ pure @*/ public long size()
+	{
+		return ((long) m_col2 - m_col1 + 1) * ((long) m_row2 - m_row1 + 1);
+	}
+	
+	/**
+	 * Determines if a cell is inside the range.
+	 * @param col The column of the cell
+	 * @param row The row of the cell
+	 * @return <tt>true</tt> if the cell is inside the range, <tt>false</tt>
+	 * otherwise
+	 */
+	/*@ pure @*/ public boolean contains(int col, int row)
+	{
+		return col >= m_col1 && col <= m_col2 && row >= m_row1 && row <= m_row2;
+	}
+	
+	/**
+	 * Determines if another range is entirely inside this range.
+	 * @param r The other range
+	 * @return <tt>true</tt> if all the cells of <tt>r</tt> are inside the
+	 * range, <tt>false</tt> otherwise
+	 */
+	/*@ pure @*/ public boolean contains(/*@ non_null @*/ CellRange r)
+	{
+		return r.m_col1 >= m_col1 && r.m_col2 <= m_col2 && r.m_row1 >= m_row1 && r.m_row2 <= m_row2;
+	}
+	
+	/**
+	 * Computes the intersection of this range with another one.
+	 * @param r The other range
+	 * @return The range of cells common to both ranges, or <tt>null</tt> if
+	 * the ranges do not overlap
+	 */
+	/*@ pure null @*/ public CellRange intersect(/*@ non_null @*/ CellRange r)
+	{
+		int col1 = Math.max(m_col1, r.m_col1), col2 = Math.min(m_col2, r.m_col2);
+		int row1 = Math.max(m_row1, r.m_row1), row2 = Math.min(m_row2, r.m_row2);
+		if (col1 > col2 || row1 > row2)
+		{
+			return null;
+		}
+		return new CellRange(col1, row1, col2, row2);
+	}
+	
+	/**
+	 * Gets a cell of the range. Cells are numbered column by column, in the
+	 * same order as in the array produced by {@link #get(int, int, int, int)}.
+	 * @param index The index of the cell
+	 * @return The cell
+	 */
+	/*@ non_null @*/ public Cell getCell(long index)
+	{
+		long height = (long) m_row2 - m_row1 + 1;
+		return Cell.get(m_col1 + (int) (index / height), m_row1 + (int) (index % height));
+	}
+	
+	/**
+	 * Creates an array of the cells of this range.
+	 * @return The array of cells
+	 */
+	/*@ non_null @*/ public Cell[] getCells()
+	{
+		return get(m_col1, m_row1, m_col2, m_row2);
+	}
+	
+	/**
+	 * Visits the cells of the range column by column, without creating any
+	 * object.
+	 * @param v The visitor called on each cell
+	 */
+	public void forEach(/*@ non_null @*/ Visitor v)
+	{
+		for (int col = m_col1; col <= m_col2; col++)
+		{
+			for (int row = m_row1; row <= m_row2; row++)
+			{
+				v.visit(col, row);
+			}
+		}
+	}
+	
+	@Override
+	public Iterator<Cell> iterator()
+	{
+		return new RangeIterator();
+	}
+	
+	@Override
+	public boolean appliesTo(Object o)
+	{
+		return o instanceof Spreadsheet;
+	}
+
+	@Override
+	public Part head()
+	{
+		return this;
+	}
+
+	@Override
+	public Part tail()
+	{
+		return null;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return m_col1 + 31 * m_row1 + 17 * m_col2 + 7 * m_row2;
+	}
+	
+	@Override
+	public boolean equals(Object o)
+	{
+		if (!(o instanceof CellRange))
+		{
+			return false;
+		}
+		CellRange r = (CellRange) o;
+		return m_col1 == r.m_col1 && m_row1 == r.m_row1 && m_col2 == r.m_col2 && m_row2 == r.m_row2;
+	}
+	
+	@Override
+	public String toString()
+	{
+		return "Range " + m_col1 + ":" + m_row1 + "-" + m_col2 + ":" + m_row2;
+	}
+	
+	/**
+	 * Retrieves the range of cells mentioned in a designator. A single
+	 * {@link Cell} is considered as a range containing only this cell.
+	 * @param d The designator
+	 * @return The range, or {@code null} if no cell or range is mentioned
+	 */
+	/*@ null @*/ public static CellRange mentionedRange(Part d)
+	{
+		if (d instanceof CellRange)
+		{
+			return (CellRange) d;
+		}
+		if (d instanceof Cell)
+		{
+			Cell c = (Cell) d;
+			return new CellRange(c.getColumn(), c.getRow(), c.getColumn(), c.getRow());
+		}
+		if (d instanceof ComposedPart)
+		{
+			ComposedPart cd = (ComposedPart) d;
+			for (int i = 0; i < cd.size(); i++)
+			{
+				Part p = cd.get(i);
+				if (p instanceof CellRange || p instanceof Cell)
+				{
+					return mentionedRange(p);
+				}
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Replaces the first range or cell mentioned in a designator by another
+	 * part.
+	 * @param d The designator
+	 * @param replacement The part to replace with
+	 * @return A new designator with the range replaced, or <tt>null</tt> if
+	 * no cell or range is mentioned
+	 */
+	/*@ null @*/ public static Part replaceRangeBy(Part d, /*@ non_null @*/ Part replacement)
+	{
+		if (d instanceof CellRange || d instanceof Cell)
+		{
+			return replacement;
+		}
+		if (d instanceof ComposedPart)
+		{
+			ComposedPart cd = (ComposedPart) d;
+			ComposedPart new_cd = new ComposedPart();
+			boolean replaced = false;
+			for (int i = 0; i < cd.size(); i++)
+			{
+				Part p = cd.get(i);
+				if (!replaced && (p instanceof CellRange || p instanceof Cell))
+				{
+					new_cd.add(replacement);
+					replaced = true;
+				}
+				else
+				{
+					new_cd.add(p);
+				}
+			}
+			return replaced ? new_cd : null;
+		}
+		return null;
+	}
+	
 	/**
 	 * Creates an array of cells corresponding to a range of cells.
 	 * @param col1 The column of the top-left cell in the range
@@ -31,10 +321,12 @@ public class CellRange
 	 * @param row2 The row of the bottom-right cell in the range
 	 * @return An array of {@link Cell} objects corresponding to all the cells
 	 * comprised in the specified range
+	 * @throws ArithmeticException If the range contains more cells than an
+	 * array can hold
 	 */
 	public static Cell[] get(int col1, int row1, int col2, int row2)
 	{
-		Cell[] out = new Cell[(col2 - col1 + 1) * (row2 - row1 + 1)];
+		Cell[] out = new Cell[Math.toIntExact(((long) col2 - col1 + 1) * ((long) row2 - row1 + 1))];
 		int index = 0;
 		for (int col = col1; col <= col2; col++)
 		{
@@ -73,4 +365,46 @@ public class CellRange
 	{
 		return get(col, row1, col, row2);
 	}
+	
+	/**
+	 * A computation applied to each cell of a range by
+	 * {@link CellRange#forEach(Visitor)}.
+	 */
+	public interface Visitor
+	{
+		/**
+		 * Visits a cell.
+		 * @param col The column of the cell
+		 * @param row The row of the cell
+		 */
+		public void visit(int col, int row);
+	}
+	
+	/**
+	 * An iterator over the cells of the range, in the same order as
+	 * {@link CellRange#forEach(Visitor)}.
+	 */
+	protected class RangeIterator implements Iterator<Cell>
+	{
+		/**
+		 * The index of the next cell to return.
+		 */
+		protected long m_index = 0;
+		
+		@Override
+		public boolean hasNext()
+		{
+			return m_index < size();
+		}
+
+		@Override
+		public Cell next()
+		{
+			if (!hasNext())
+			{
+				throw new NoSuchElementException();
+			}
+			return getCell(m_index++);
+		}
+	}
 }
@@ -108,6 +108,33 @@ public class DataFormatter
 		return null;
 	}
 	
+	/**
+	 * Attempts to convert an object into a double. Contrary to
+	 * {@link #readFloat(Object)}, this method does not box its result, and
+	 * does not lose precision on numbers that are not floats.
+	 * @param o The object
+	 * @return A double, or NaN if {@code o} is not a number
+	 */
+	public static final double readDouble(Object o)
+	{
+		if (o instanceof Number)
+		{
+			return ((Number) o).doubleValue();
+		}
+		if (o instanceof String)
+		{
+			try
+			{
+				return Double.parseDouble((String) o);
+			}
+			catch (NumberFormatException e)
+			{
+				return Double.NaN;
+			}
+		}
+		return Double.NaN;
+	}
+	
 	/**
 	 * Rounds number num to n significant figures.
 	 * Found from <a href="http://stackoverflow.com/a/1581007">StackOverflow</a>
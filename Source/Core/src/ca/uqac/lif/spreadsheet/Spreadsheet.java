@@ -61,6 +61,13 @@ public class Spreadsheet implements Duplicable, Comparable<Spreadsheet>
 	 * A spreadsheet printer used by the method {@link #toString()}.
 	 */
 	/*@ non_null @*/ protected static final AnsiSpreadsheetPrinter s_printer = new AnsiSpreadsheetPrinter();
+
+	/**
+	 * The side of the square blocks of cells copied at a time by
+	 * {@link #transpose()}. A block of references of this size fits in the
+	 * L1 cache of most processors.
+	 */
+	public static final int BLOCK_SIZE = 64;
 	
 	/**
 	 * The rows contained in the spreadsheet.
@@ -282,13 +289,22 @@ public class Spreadsheet implements Duplicable, Comparable<Spreadsheet>
 		m_entries = new Object[height][width];
 		for (int i = 0; i < height; i++)
 		{
-			for (int j = 0; j < width; j++)
-			{
-				m_entries[i][j] = s.m_entries[i][j];
-			}
+			// Goes through getRow so that views can be copied as well
+			System.arraycopy(s.getRow(i), 0, m_entries[i], 0, width);
 		}
 	}
 
+	/**
+	 * Creates a spreadsheet that does not store its own cells. This
+	 * constructor is only meant for views such as {@link TransposedView},
+	 * which override the methods accessing the contents of cells.
+	 */
+	protected Spreadsheet()
+	{
+		super();
+		m_entries = new Object[0][];
+	}
+
 	/**
 	 * Gets the number of rows of the spreadsheet.
 	 * @return The number of rows
@@ -493,6 +509,51 @@ public class Spreadsheet implements Duplicable, Comparable<Spreadsheet>
 		}
 	}
 
+	/**
+	 * Creates a new spreadsheet containing the transposition of this one: the
+	 * cell at column <i>c</i> and row <i>r</i> of this spreadsheet becomes the
+	 * cell at column <i>r</i> and row <i>c</i> of the new one. Cells are copied
+	 * by square blocks of {@link #BLOCK_SIZE} cells of side, so that the rows
+	 * read and the rows written by each block all stay in the cache of the
+	 * processor.
+	 * @return The transposed spreadsheet
+	 * @see #transposedView()
+	 */
+	/*@ non_null @*/ public Spreadsheet transpose()
+	{
+		int width = getWidth(), height = getHeight();
+		Spreadsheet out = new Spreadsheet(height, width);
+		Object[][] out_entries = out.m_entries;
+		for (int row0 = 0; row0 < height; row0 += BLOCK_SIZE)
+		{
+			int row1 = Math.min(height, row0 + BLOCK_SIZE);
+			for (int col0 = 0; col0 < width; col0 += BLOCK_SIZE)
+			{
+				int col1 = Math.min(width, col0 + BLOCK_SIZE);
+				for (int row = row0; row < row1; row++)
+				{
+					Object[] in_row = m_entries[row];
+					for (int col = col0; col < col1; col++)
+					{
+						out_entries[col][row] = in_row[col];
+					}
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Gets a read-only view of the transposition of this spreadsheet. Contrary
+	 * to {@link #transpose()}, no cell is copied; the view reads the cells of
+	 * this spreadsheet, and therefore reflects any later change made to it.
+	 * @return The view
+	 */
+	/*@ non_null @*/ public Spreadsheet transposedView()
+	{
+		return new TransposedView(this);
+	}
+
 	@Override
 	public final Spreadsheet duplicate()
 	{
@@ -0,0 +1,116 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2022 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet;
+
+import java.util.Arrays;
+
+/**
+ * A read-only view of the transposition of a spreadsheet. The view does not
+ * copy any cell: reading the cell at column <i>c</i> and row <i>r</i> of the
+ * view reads the cell at column <i>r</i> and row <i>c</i> of the underlying
+ * spreadsheet. This makes it suitable for consumers that only read the
+ * contents of a spreadsheet, such as chart renderers, when the spreadsheet to
+ * read is large.
+ * <p>
+ * Since the cells are not copied, the view reflects any change made to the
+ * underlying spreadsheet after its creation. The view itself cannot be
+ * modified; a modifiable copy can be obtained with {@link #duplicate()}.
+ * Views are usually obtained by calling {@link Spreadsheet#transposedView()}.
+ *
+ * @author Sylvain Hallé
+ */
+public class TransposedView extends Spreadsheet
+{
+	/**
+	 * The spreadsheet read by this view.
+	 */
+	/*@ non_null @*/ protected final Spreadsheet m_source;
+
+	/**
+	 * Creates a new transposed view of a spreadsheet.
+	 * @param source The spreadsheet read by this view
+	 */
+	public TransposedView(/*@ non_null @*/ Spreadsheet source)
+	{
+		super();
+		m_source = source;
+	}
+
+	/**
+	 * Gets the spreadsheet read by this view.
+	 * @return The spreadsheet
+	 */
+	/*@ pure non_null @*/ public Spreadsheet getSource()
+	{
+		return m_source;
+	}
+
+	@Override
+	public int getHeight()
+	{
+		return m_source.getWidth();
+	}
+
+	@Override
+	public int getWidth()
+	{
+		return m_source.getHeight();
+	}
+
+	@Override
+	/*@ null @*/ public Object get(int col, int row) throws SpreadsheetOutOfBoundsException
+	{
+		return m_source.get(row, col);
+	}
+
+	@Override
+	/*@ pure non_null @*/ public Object[] getRow(int row) throws SpreadsheetOutOfBoundsException
+	{
+		return m_source.getColumn(row);
+	}
+
+	@Override
+	/*@ non_null @*/ public Object[] getColumn(int column) throws SpreadsheetOutOfBoundsException
+	{
+		// Copied, since the row of the source can be modified by the caller
+		Object[] row = m_source.getRow(column);
+		return Arrays.copyOf(row, row.length);
+	}
+
+	/**
+	 * Throws an exception, since a view cannot be modified.
+	 * @throws UnsupportedOperationException Always
+	 */
+	@Override
+	public Spreadsheet set(int col, int row, /*@ null @*/ Object value)
+	{
+		throw new UnsupportedOperationException("A transposed view cannot be modified");
+	}
+
+	@Override
+	/*@ non_null @*/ public Spreadsheet transpose()
+	{
+		return m_source.duplicate();
+	}
+
+	@Override
+	public Spreadsheet duplicate(boolean with_state)
+	{
+		return m_source.transpose();
+	}
+}
@@ -17,11 +17,21 @@
  */
 package ca.uqac.lif.spreadsheet.functions;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
 
+import ca.uqac.lif.dag.LabelledNode;
 import ca.uqac.lif.dag.NestedNode;
 import ca.uqac.lif.dag.NodeConnector;
 import ca.uqac.lif.petitpoucet.ComposedPart;
@@ -32,12 +42,14 @@ import ca.uqac.lif.petitpoucet.function.Circuit;
 import ca.uqac.lif.petitpoucet.function.ExplanationQueryable;
 import ca.uqac.lif.petitpoucet.function.Fork;
 import ca.uqac.lif.petitpoucet.function.Function;
+import ca.uqac.lif.petitpoucet.function.FunctionException;
 import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
 import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
 import ca.uqac.lif.petitpoucet.function.NthInput;
 import ca.uqac.lif.petitpoucet.function.NthOutput;
 import ca.uqac.lif.petitpoucet.function.RelationNodeFactory;
 import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
 
 /**
@@ -77,15 +89,41 @@ import ca.uqac.lif.spreadsheet.Spreadsheet;
  * a single instance of {@link ApplyFormula} (through multiple calls to
  * <tt>add()</tt>).
  * <p>
- * <strong>Caveat emptor:</strong> the function does not check for eventual
- * circular dependencies between cells. If such dependencies are present in the
- * set of formulas to apply, a call to {@link #evaluate(Object...)} will result
- * in an infinite loop.
+ * Formulas are not applied in the order they are added, but in an order
+ * where each formula comes after the formulas computing the cells it reads.
+ * This order is obtained from the {@link ValueOf} functions of each formula
+ * (see {@link CellFormula#getDependencies()}); a formula whose cells cannot
+ * be determined this way is considered to read all the cells of the
+ * spreadsheet. If the formulas have circular dependencies, the evaluation
+ * throws a {@link FunctionException}.
+ * <p>
+ * Once a spreadsheet has been computed, the method
+ * {@link #update(Spreadsheet, Collection, Object...) update()} recomputes it
+ * after a change of some of its input cells, by only evaluating the formulas
+ * that depend on these cells.
+ * <p>
+ * The formulas can also be evaluated by multiple threads, with
+ * {@link #setThreads(int)}. The formulas are then grouped into levels, where
+ * each formula only depends on formulas of the previous levels; the
+ * formulas of a level are evaluated concurrently, and their values are then
+ * written to the spreadsheet by the calling thread. Since functions may be
+ * stateful, a function shared by several formulas is duplicated for each
+ * thread.
+ * <p>
+ * Unless disabled with {@link #setCompiled(boolean)}, the function of each
+ * formula is turned by the {@link FormulaCompiler} into an evaluator that
+ * bypasses the generic evaluation of circuits.
  * 
  * @author Sylvain Hallé
  */
-public class ApplyFormula extends AtomicFunction
+public class ApplyFormula extends AtomicFunction implements CommonSubexpressions.Configured
 {
+	/**
+	 * The minimum number of formulas evaluated by each thread. Levels with
+	 * fewer formulas are evaluated by the calling thread only.
+	 */
+	public static final int MIN_FORMULAS_PER_SLICE = 256;
+	
 	/**
 	 * The list of cell formulas to be applied to the input spreadsheet.
 	 */
@@ -97,6 +135,60 @@ public class ApplyFormula extends AtomicFunction
 	 */
 	/*@ non_null @*/ protected final Set<Cell> m_computedCells;
 	
+	/**
+	 * The indices of the formulas in {@link #m_formulas}, sorted so that each
+	 * formula comes after the formulas it depends on. This field is
+	 * <tt>null</tt> when the order must be computed again.
+	 */
+	/*@ null @*/ protected int[] m_order;
+	
+	/**
+	 * An index associating the cells of the first spreadsheet with the
+	 * indices of the formulas that read them.
+	 */
+	/*@ null @*/ protected Readers m_readers;
+	
+	/**
+	 * The formulas whose dependencies cannot be determined. These formulas are
+	 * considered to read all the cells of the spreadsheet.
+	 */
+	/*@ null @*/ protected List<Integer> m_volatile;
+	
+	/**
+	 * For each input spreadsheet other than the first, an index associating
+	 * its cells to the indices of the formulas that read them. These indices
+	 * are computed on the first update caused by a change of the
+	 * corresponding input.
+	 */
+	/*@ non_null @*/ protected final Map<Integer,Readers> m_inputReaders = new HashMap<Integer,Readers>();
+	
+	/**
+	 * For each input spreadsheet other than the first, the indices of the
+	 * formulas whose cells read in this spreadsheet cannot be determined.
+	 */
+	/*@ non_null @*/ protected final Map<Integer,List<Integer>> m_inputVolatile = new HashMap<Integer,List<Integer>>();
+	
+	/**
+	 * The position in {@link #m_order} where each level of formulas starts.
+	 * The formulas of a level only depend on formulas of the previous levels.
+	 */
+	/*@ null @*/ protected int[] m_levels;
+	
+	/**
+	 * The functions used by more than one formula.
+	 */
+	/*@ null @*/ protected Set<Function> m_shared;
+	
+	/**
+	 * The number of threads used to evaluate the formulas.
+	 */
+	protected int m_numThreads = 1;
+	
+	/**
+	 * Whether the formulas are compiled before being evaluated.
+	 */
+	protected boolean m_compile = true;
+	
 	/**
 	 * Creates a new instance of the function.
 	 * @param in_arity The input arity of the function
@@ -107,7 +199,11 @@ public class ApplyFormula extends AtomicFunction
 	public ApplyFormula(int in_arity, CellFormula ... formulas)
 	{
 		super(in_arity, 1);
-		m_formulas = sort(formulas);
+		m_formulas = new ArrayList<CellFormula>(formulas.length);
+		for (CellFormula cf : formulas)
+		{
+			m_formulas.add(cf);
+		}
 		m_computedCells = new HashSet<Cell>();
 		for (CellFormula cf : formulas)
 		{
@@ -136,9 +232,8 @@ public class ApplyFormula extends AtomicFunction
 	public ApplyFormula(int in_arity, List<CellFormula> formulas)
 	{
 		super(in_arity, 1);
-		List<CellFormula> forms = new ArrayList<CellFormula>(formulas.size());
-		forms.addAll(formulas);
-		m_formulas = sort(forms);
+		m_formulas = new ArrayList<CellFormula>(formulas.size());
+		m_formulas.addAll(formulas);
 		m_computedCells = new HashSet<Cell>();
 		for (CellFormula cf : formulas)
 		{
@@ -153,8 +248,15 @@ public class ApplyFormula extends AtomicFunction
 	 */
 	public ApplyFormula add(CellFormula formula)
 	{
+		if (!m_compile)
+		{
+			formula.setCompiled(false);
+		}
 		m_formulas.add(formula);
 		m_computedCells.add(formula.getTarget());
+		m_order = null;
+		m_inputReaders.clear();
+		m_inputVolatile.clear();
 		return this;
 	}
 	
@@ -166,8 +268,52 @@ public class ApplyFormula extends AtomicFunction
 	 */
 	public ApplyFormula add(Cell target, Function f)
 	{
-		m_formulas.add(new CellFormula(target, f));
-		m_computedCells.add(target);
+		return add(new CellFormula(target, f));
+	}
+	
+	/**
+	 * Adds a formula written in the syntax of {@link Formula} to the list of
+	 * formulas to apply in the spreadsheet. The references of the formula
+	 * are relative to the target cell; formulas of the same shape written in
+	 * different cells share the same parsed formula.
+	 * @param target The cell where the result of the formula is written
+	 * @param formula The text of the formula, such as
+	 * <tt>=SUM(A2:A100)/B1</tt>
+	 * @return This function
+	 * @throws FormulaSyntaxException If the text is not a valid formula
+	 */
+	public ApplyFormula add(Cell target, String formula)
+	{
+		return add(target, new FormulaFunction(formula, target));
+	}
+	
+	/**
+	 * Sets the number of threads used to evaluate the formulas.
+	 * @param num_threads The number of threads
+	 * @return This function
+	 */
+	/*@ non_null @*/ public ApplyFormula setThreads(int num_threads)
+	{
+		m_numThreads = Math.max(1, num_threads);
+		return this;
+	}
+	
+	/**
+	 * Sets whether the functions of the formulas are compiled by the
+	 * {@link FormulaCompiler} before being evaluated. The setting applies to
+	 * the formulas already added and to those added afterwards.
+	 * @param b Set to <tt>true</tt> to compile the functions, <tt>false</tt>
+	 * to always evaluate them as is
+	 * @return This function
+	 * @see CellFormula#setCompiled(boolean)
+	 */
+	/*@ non_null @*/ public ApplyFormula setCompiled(boolean b)
+	{
+		m_compile = b;
+		for (CellFormula cf : m_formulas)
+		{
+			cf.setCompiled(b);
+		}
 		return this;
 	}
 	
@@ -231,6 +377,297 @@ public class ApplyFormula extends AtomicFunction
 	
 	@Override
 	protected Object[] getValue(Object... inputs) throws InvalidNumberOfArgumentsException
+	{
+		Spreadsheet[] ins = getSpreadsheets(inputs);
+		// Replace first spreadsheet by a copy of itself
+		ins[0] = ins[0].duplicate();
+		evaluateFormulas(ins, null);
+		return new Object[] {ins[0]};
+	}
+	
+	/**
+	 * Recomputes the output of the function after a change of some cells of
+	 * its first input. Only the formulas that read one of these cells, and
+	 * the formulas that depend on them, are evaluated again; the other cells
+	 * keep the value they have in the previous output. The other inputs are
+	 * assumed to be unchanged since the computation of the previous output.
+	 * @param previous The output previously produced by this function, which
+	 * is left unchanged
+	 * @param changed The cells of the first input whose value has changed
+	 * @param inputs The new inputs of the function
+	 * @return The new output
+	 * @throws FunctionException If the formulas have circular dependencies
+	 */
+	/*@ non_null @*/ public Spreadsheet update(/*@ non_null @*/ Spreadsheet previous, /*@ non_null @*/ Collection<Cell> changed, Object ... inputs)
+	{
+		return recompute(previous, 0, changed, true, inputs);
+	}
+	
+	/**
+	 * Recomputes the output of the function after a change of some cells of
+	 * one of its inputs. This method behaves like
+	 * {@link #update(Spreadsheet, Collection, Object...)}, except that the
+	 * changed cells can belong to any input; for an input other than the
+	 * first, only the formulas reading these cells (and the formulas that
+	 * depend on them) are evaluated again. If no formula reads these cells,
+	 * the previous output is returned as is.
+	 * @param previous The output previously produced by this function, which
+	 * is left unchanged
+	 * @param index The index of the input whose cells have changed
+	 * @param changed The cells of this input whose value has changed
+	 * @param inputs The new inputs of the function
+	 * @return The new output
+	 * @throws FunctionException If the formulas have circular dependencies
+	 */
+	/*@ non_null @*/ public Spreadsheet update(/*@ non_null @*/ Spreadsheet previous, int index, /*@ non_null @*/ Collection<Cell> changed, Object ... inputs)
+	{
+		return recompute(previous, index, changed, true, inputs);
+	}
+	
+	/**
+	 * Recomputes the output of the function after a change of some cells of
+	 * one of its inputs, like
+	 * {@link #update(Spreadsheet, int, Collection, Object...) update()}, but
+	 * by modifying the previous output instead of a copy of it. This avoids
+	 * copying the whole output for each change, when the caller does not need
+	 * to keep the previous output.
+	 * @param output The output previously produced by this function, which
+	 * is modified
+	 * @param index The index of the input whose cells have changed
+	 * @param changed The cells of this input whose value has changed
+	 * @param inputs The new inputs of the function
+	 * @return The output
+	 * @throws FunctionException If the formulas have circular dependencies
+	 */
+	/*@ non_null @*/ public Spreadsheet updateInPlace(/*@ non_null @*/ Spreadsheet output, int index, /*@ non_null @*/ Collection<Cell> changed, Object ... inputs)
+	{
+		return recompute(output, index, changed, false, inputs);
+	}
+	
+	/**
+	 * Recomputes the output of the function after a change of some cells of
+	 * one of its inputs.
+	 * @param previous The output previously produced by this function
+	 * @param index The index of the input whose cells have changed
+	 * @param changed The cells of this input whose value has changed
+	 * @param copy Set to <tt>true</tt> to leave the previous output unchanged
+	 * and compute the new output in a copy of it, <tt>false</tt> to modify
+	 * the previous output
+	 * @param inputs The new inputs of the function
+	 * @return The new output
+	 * @throws FunctionException If the formulas have circular dependencies
+	 */
+	/*@ non_null @*/ protected Spreadsheet recompute(/*@ non_null @*/ Spreadsheet previous, int index, /*@ non_null @*/ Collection<Cell> changed, boolean copy, Object[] inputs)
+	{
+		if (inputs.length != getInputArity())
+		{
+			throw new InvalidNumberOfArgumentsException("Expected " + getInputArity() + " arguments");
+		}
+		Spreadsheet[] ins = getSpreadsheets(inputs);
+		getOrder();
+		Deque<Integer> to_visit;
+		if (index == 0)
+		{
+			ins[0] = copy ? previous.duplicate() : previous;
+			Spreadsheet new_input = (Spreadsheet) inputs[0];
+			// Formulas whose dependencies are unknown are always evaluated again
+			to_visit = new ArrayDeque<Integer>(m_volatile);
+			for (Cell c : changed)
+			{
+				ins[0].set(c.getColumn(), c.getRow(), new_input.get(c.getColumn(), c.getRow()));
+				addReaders(c, to_visit);
+			}
+			Set<Cell> changed_set = new HashSet<Cell>(changed);
+			for (int i = 0; i < m_formulas.size(); i++)
+			{
+				if (changed_set.contains(m_formulas.get(i).getTarget()))
+				{
+					// The value written in the input must be replaced again
+					to_visit.add(i);
+				}
+			}
+		}
+		else
+		{
+			to_visit = new ArrayDeque<Integer>();
+			Readers readers = getInputReaders(index, to_visit);
+			for (Cell c : changed)
+			{
+				readers.addReaders(c, to_visit);
+			}
+			if (to_visit.isEmpty())
+			{
+				return previous;
+			}
+			ins[0] = copy ? previous.duplicate() : previous;
+		}
+		propagate(ins, to_visit);
+		return ins[0];
+	}
+	
+	/**
+	 * Gets the formulas reading each cell of an input other than the first,
+	 * computing them if necessary.
+	 * @param index The index of the input
+	 * @param volatiles A collection to which are added the indices of the
+	 * formulas whose cells read in this input cannot be determined
+	 * @return An index associating cells of the input to the indices of the
+	 * formulas that read them
+	 */
+	/*@ non_null @*/ protected synchronized Readers getInputReaders(int index, Collection<Integer> volatiles)
+	{
+		Readers readers = m_inputReaders.get(index);
+		if (readers == null)
+		{
+			readers = new Readers();
+			List<Integer> vol = new ArrayList<Integer>();
+			for (int i = 0; i < m_formulas.size(); i++)
+			{
+				Set<CellRange> reads = m_formulas.get(i).getReadRanges(index);
+				if (reads == null)
+				{
+					vol.add(i);
+					continue;
+				}
+				for (CellRange r : reads)
+				{
+					readers.add(r, i);
+				}
+			}
+			m_inputReaders.put(index, readers);
+			m_inputVolatile.put(index, vol);
+		}
+		volatiles.addAll(m_inputVolatile.get(index));
+		return readers;
+	}
+	
+	/**
+	 * Evaluates again a set of formulas, and all the formulas that depend on
+	 * them.
+	 * @param ins The spreadsheets that serve as the arguments of the
+	 * formulas, the first of which is the output being updated
+	 * @param to_visit The indices of the formulas to evaluate again
+	 */
+	protected void propagate(Spreadsheet[] ins, Deque<Integer> to_visit)
+	{
+		boolean[] dirty = new boolean[m_formulas.size()];
+		boolean any_dirty = false;
+		while (!to_visit.isEmpty())
+		{
+			int i = to_visit.remove();
+			if (!dirty[i])
+			{
+				dirty[i] = true;
+				if (!any_dirty)
+				{
+					// Formulas whose dependencies are unknown may read any of the cells
+					// evaluated again
+					any_dirty = true;
+					to_visit.addAll(m_volatile);
+				}
+				addReaders(m_formulas.get(i).getTarget(), to_visit);
+			}
+		}
+		evaluateFormulas(ins, dirty);
+	}
+	
+	/**
+	 * Evaluates formulas level by level, and writes their values to the first
+	 * spreadsheet.
+	 * @param ins The spreadsheets that serve as the arguments of the formulas
+	 * @param dirty An array indicating which formulas to evaluate, or
+	 * <tt>null</tt> to evaluate all the formulas
+	 */
+	protected void evaluateFormulas(final Spreadsheet[] ins, /*@ null @*/ boolean[] dirty)
+	{
+		int[] order = getOrder();
+		int[] selected = new int[order.length];
+		for (int level = 0; level < m_levels.length - 1; level++)
+		{
+			int count = 0;
+			for (int k = m_levels[level]; k < m_levels[level + 1]; k++)
+			{
+				if (dirty == null || dirty[order[k]])
+				{
+					selected[count++] = order[k];
+				}
+			}
+			int num_slices = Math.max(1, Math.min(m_numThreads, count / MIN_FORMULAS_PER_SLICE));
+			if (num_slices == 1)
+			{
+				for (int k = 0; k < count; k++)
+				{
+					m_formulas.get(selected[k]).evaluate(ins);
+				}
+			}
+			else
+			{
+				evaluateLevel(ins, selected, count, num_slices);
+			}
+		}
+	}
+	
+	/**
+	 * Evaluates formulas that do not depend on each other using multiple
+	 * threads. Each thread computes the values of a slice of the formulas;
+	 * the values are then written to the first spreadsheet by the calling
+	 * thread, in the order of the formulas.
+	 * @param ins The spreadsheets that serve as the arguments of the formulas
+	 * @param formulas The indices of the formulas to evaluate
+	 * @param count The number of formulas to evaluate
+	 * @param num_slices The number of slices
+	 */
+	protected void evaluateLevel(final Spreadsheet[] ins, final int[] formulas, int count, int num_slices)
+	{
+		final Object[] values = new Object[count];
+		ParallelSlices.run(num_slices, count, new ParallelSlices.SliceTask()
+		{
+			@Override
+			public void run(int slice, int from, int to)
+			{
+				// Copies of the shared functions, for the exclusive use of this slice
+				Map<Function,Function> copies = new IdentityHashMap<Function,Function>();
+				for (int k = from; k < to; k++)
+				{
+					CellFormula cf = m_formulas.get(formulas[k]);
+					Function f = cf.getFunction();
+					if (m_shared.contains(f))
+					{
+						Function copy = copies.get(f);
+						if (copy == null)
+						{
+							copy = f.duplicate();
+							copies.put(f, copy);
+						}
+						f = copy;
+					}
+					values[k] = cf.compute(f, ins);
+				}
+			}
+		});
+		for (int k = 0; k < count; k++)
+		{
+			Cell target = m_formulas.get(formulas[k]).getTarget();
+			ins[0].set(target.getColumn(), target.getRow(), values[k]);
+		}
+	}
+	
+	/**
+	 * Adds the formulas reading a cell to a list of formulas to visit.
+	 * @param c The cell
+	 * @param to_visit The list of formulas to visit
+	 */
+	protected void addReaders(Cell c, Deque<Integer> to_visit)
+	{
+		m_readers.addReaders(c, to_visit);
+	}
+	
+	/**
+	 * Checks that the inputs of the function are spreadsheets.
+	 * @param inputs The inputs
+	 * @return The inputs, as an array of spreadsheets
+	 */
+	protected static Spreadsheet[] getSpreadsheets(Object ... inputs)
 	{
 		Spreadsheet[] ins = new Spreadsheet[inputs.length];
 		for (int i = 0; i < inputs.length; i++)
@@ -241,13 +678,85 @@ public class ApplyFormula extends AtomicFunction
 			}
 			ins[i] = (Spreadsheet) inputs[i];
 		}
-		// Replace first spreadsheet by a copy of itself
-		ins[0] = ins[0].duplicate();
-		for (CellFormula formula : m_formulas)
+		return ins;
+	}
+	
+	/**
+	 * Gets the order in which the formulas must be evaluated, computing it if
+	 * the formulas have changed since the last call.
+	 * @return The indices of the formulas in {@link #m_formulas}, sorted so
+	 * that each formula comes after the formulas it depends on
+	 * @throws FunctionException If the formulas have circular dependencies
+	 */
+	/*@ non_null @*/ protected synchronized int[] getOrder()
+	{
+		if (m_order == null)
 		{
-			formula.evaluate(ins);
+			m_readers = new Readers();
+			m_volatile = new ArrayList<Integer>();
+			m_shared = Collections.newSetFromMap(new IdentityHashMap<Function,Boolean>());
+			Set<Function> seen = Collections.newSetFromMap(new IdentityHashMap<Function,Boolean>());
+			for (int i = 0; i < m_formulas.size(); i++)
+			{
+				CellFormula cf = m_formulas.get(i);
+				if (!seen.add(cf.getFunction()))
+				{
+					m_shared.add(cf.getFunction());
+				}
+				Set<CellRange> reads = cf.getReadRanges(0);
+				if (reads == null)
+				{
+					m_volatile.add(i);
+					continue;
+				}
+				for (CellRange r : reads)
+				{
+					m_readers.add(r, i);
+				}
+			}
+			int[] levels = new int[m_formulas.size()];
+			int[] order = sort(m_formulas, m_readers, m_volatile, levels);
+			// Group the formulas by level, keeping their relative order
+			int num_levels = 0;
+			for (int level : levels)
+			{
+				num_levels = Math.max(num_levels, level + 1);
+			}
+			m_levels = new int[num_levels + 1];
+			for (int level : levels)
+			{
+				m_levels[level + 1]++;
+			}
+			for (int level = 0; level < num_levels; level++)
+			{
+				m_levels[level + 1] += m_levels[level];
+			}
+			int[] position = new int[num_levels];
+			m_order = new int[order.length];
+			for (int i : order)
+			{
+				m_order[m_levels[levels[i]] + position[levels[i]]++] = i;
+			}
 		}
-		return new Object[] {ins[0]};
+		return m_order;
+	}
+	
+	/**
+	 * Gets the list associated to a cell in a map, creating it if it does not
+	 * exist.
+	 * @param map The map
+	 * @param c The cell
+	 * @return The list
+	 */
+	protected static List<Integer> getList(Map<Cell,List<Integer>> map, Cell c)
+	{
+		List<Integer> list = map.get(c);
+		if (list == null)
+		{
+			list = new ArrayList<Integer>(1);
+			map.put(c, list);
+		}
+		return list;
 	}
 	
 	@Override
@@ -265,32 +774,49 @@ public class ApplyFormula extends AtomicFunction
 				PartNode root = factory.getPartNode(part, this);
 				RelationNodeFactory sub_factory = factory.getFactory(part, this);
 				Part sub_part = ComposedPart.compose(part.tail().tail(), NthOutput.FIRST); // we remove nth-output + cell
-				PartNode sub_root = ((ExplanationQueryable) formula.m_formula).getExplanation(sub_part, sub_factory);
+				PartNode sub_root = ((ExplanationQueryable) formula.getExplainedFunction()).getExplanation(sub_part, sub_factory);
 				NestedNode nn = NestedNode.createFromTree(sub_root);
 				NodeConnector.connect(root, 0, nn, 0);
 				for (int i = 0; i < nn.getOutputArity(); i++)
 				{
 					PartNode pn = (PartNode) nn.getAssociatedOutput(i).getNode();
 					Part inner_part = pn.getPart();
-					Cell exp_c = Cell.mentionedCell(inner_part);
 					int input_index = NthInput.mentionedInput(inner_part);
-					if (m_computedCells.contains(exp_c))
+					Integer spreadsheet_index = formula.m_arguments.get(input_index);
+					CellRange range = CellRange.mentionedRange(inner_part);
+					List<Cell> computed = new ArrayList<Cell>();
+					List<Part> remaining = new ArrayList<Part>();
+					if (range == null || (spreadsheet_index != null && spreadsheet_index != 0))
+					{
+						remaining.add(inner_part);
+					}
+					else
+					{
+						splitRange(range, computed, remaining);
+					}
+					LabelledNode parent = null;
+					if (computed.size() + remaining.size() > 1)
+					{
+						parent = factory.getAndNode();
+						NodeConnector.connect(nn, i, parent, 0);
+					}
+					for (Cell exp_c : computed)
 					{
 						// If the formula refers to other cells of the same spreadsheet,
 						// we refer to the output spreadsheet and not the input one
-						Part new_part = NthInput.replaceInBy(inner_part, NthOutput.FIRST);
+						Part new_part = NthInput.replaceInBy(CellRange.replaceRangeBy(inner_part, exp_c), NthOutput.FIRST);
 						PartNode to_connect = factory.getPartNode(new_part, this);
-						NodeConnector.connect(nn, i, to_connect, 0);
+						connect(nn, i, parent, to_connect);
 						// And restart the explanation on that node, since we are not done
 						PartNode other = getExplanation(new_part, factory);
 						NodeConnector.connect(to_connect, 0, other, 0);
 					}
-					else
+					for (Part r : remaining)
 					{
 						// Re-plug input of inner function to input of function
-						int spreadsheet_index = formula.m_arguments.get(input_index);
-						PartNode to_connect = factory.getPartNode(NthInput.replaceInBy(inner_part, new NthInput(spreadsheet_index)), this);
-						NodeConnector.connect(nn, i, to_connect, 0);
+						Part new_part = r == inner_part ? inner_part : CellRange.replaceRangeBy(inner_part, r);
+						PartNode to_connect = factory.getPartNode(NthInput.replaceInBy(new_part, new NthInput(spreadsheet_index)), this);
+						connect(nn, i, parent, to_connect);
 					}
 				}
 				return root;
@@ -299,11 +825,113 @@ public class ApplyFormula extends AtomicFunction
 		return super.getExplanation(part, factory);
 	}
 	
+	/**
+	 * Separates the cells of a range read by a formula into the cells computed
+	 * by other formulas and the cells that come from the input. The latter are
+	 * grouped into vertical ranges of consecutive cells.
+	 * @param r The range
+	 * @param computed A list to which the computed cells are added
+	 * @param remaining A list to which the ranges (or single cells) of input
+	 * cells are added
+	 */
+	protected void splitRange(/*@ non_null @*/ CellRange r, /*@ non_null @*/ List<Cell> computed, /*@ non_null @*/ List<Part> remaining)
+	{
+		boolean any = false;
+		if (r.size() > m_computedCells.size())
+		{
+			for (Cell c : m_computedCells)
+			{
+				if (r.contains(c.getColumn(), c.getRow()))
+				{
+					any = true;
+					break;
+				}
+			}
+		}
+		else
+		{
+			for (Cell c : r)
+			{
+				if (m_computedCells.contains(c))
+				{
+					any = true;
+					break;
+				}
+			}
+		}
+		if (!any)
+		{
+			remaining.add(r.size() == 1 ? r.getCell(0) : r);
+			return;
+		}
+		for (int col = r.getFirstColumn(); col <= r.getLastColumn(); col++)
+		{
+			int start = -1;
+			for (int row = r.getFirstRow(); row <= r.getLastRow(); row++)
+			{
+				Cell c = Cell.get(col, row);
+				if (!m_computedCells.contains(c))
+				{
+					if (start < 0)
+					{
+						start = row;
+					}
+					continue;
+				}
+				computed.add(c);
+				if (start >= 0)
+				{
+					remaining.add(start == row - 1 ? Cell.get(col, start) : new CellRange(col, start, col, row - 1));
+					start = -1;
+				}
+			}
+			if (start >= 0)
+			{
+				remaining.add(start == r.getLastRow() ? Cell.get(col, start) : new CellRange(col, start, col, r.getLastRow()));
+			}
+		}
+	}
+	
+	/**
+	 * Connects an output of the nested node of a formula's explanation to a
+	 * node, either directly or through a parent node.
+	 * @param nn The nested node
+	 * @param index The index of the output of the nested node
+	 * @param parent The parent node, or <tt>null</tt> to connect the node
+	 * directly
+	 * @param n The node to connect
+	 */
+	protected static void connect(/*@ non_null @*/ NestedNode nn, int index, /*@ null @*/ LabelledNode parent, /*@ non_null @*/ PartNode n)
+	{
+		if (parent == null)
+		{
+			NodeConnector.connect(nn, index, n, 0);
+		}
+		else
+		{
+			parent.addChild(n);
+		}
+	}
+	
+	@Override
+	public Object getConfiguration()
+	{
+		// Cell formulas are compared by identity
+		List<Object> config = new ArrayList<Object>(m_formulas.size() + 3);
+		config.add(getInputArity());
+		config.add(m_numThreads);
+		config.add(m_compile);
+		config.addAll(m_formulas);
+		return config;
+	}
+	
 	@Override
 	public ApplyFormula duplicate(boolean with_state)
 	{
 		ApplyFormula af = new ApplyFormula(getInputArity(), m_formulas);
 		af.m_computedCells.addAll(m_computedCells);
+		af.m_numThreads = m_numThreads;
+		af.m_compile = m_compile;
 		return af;
 	}
 	
@@ -313,18 +941,158 @@ public class ApplyFormula extends AtomicFunction
 		return "Apply formulas";
 	}
 	
-	/*@ non_null @*/ protected static List<CellFormula> sort(/*@ non_null @*/ CellFormula[] formulas)
+	/**
+	 * Sorts formulas so that each formula comes after the formulas computing
+	 * the cells it reads. Among the formulas that can be evaluated at a given
+	 * point, the one added first comes first.
+	 * @param formulas The formulas
+	 * @param readers An index associating each cell with the indices of the
+	 * formulas reading it
+	 * @param volatiles The indices of the formulas that read all the cells,
+	 * in increasing order. They come after all the other formulas, and in
+	 * this order among themselves.
+	 * @param levels An array where the level of each formula is written. A
+	 * formula that depends on no other formula is at level 0, and the others
+	 * are one level above the highest level of the formulas they depend on.
+	 * @return The indices of the formulas, in the order they must be evaluated
+	 * @throws FunctionException If the formulas have circular dependencies
+	 */
+	/*@ non_null @*/ protected static int[] sort(/*@ non_null @*/ List<CellFormula> formulas, Readers readers, List<Integer> volatiles, int[] levels)
 	{
-		List<CellFormula> out = new ArrayList<CellFormula>(formulas.length);
-		for (int i = 0; i < formulas.length; i++)
+		int n = formulas.size();
+		// The position of each volatile formula among the volatile formulas,
+		// or -1 for the others
+		int[] volatile_rank = new int[n];
+		Arrays.fill(volatile_rank, -1);
+		for (int k = 0; k < volatiles.size(); k++)
 		{
-			out.add(formulas[i]);
+			volatile_rank[volatiles.get(k)] = k;
 		}
-		return out;
+		// The formulas depending on each formula
+		List<List<Integer>> successors = new ArrayList<List<Integer>>(n);
+		int[] in_degree = new int[n];
+		for (int i = 0; i < n; i++)
+		{
+			List<Integer> succ = new ArrayList<Integer>();
+			readers.addReaders(formulas.get(i).getTarget(), succ);
+			if (volatile_rank[i] < 0)
+			{
+				succ.addAll(volatiles);
+			}
+			else if (volatile_rank[i] + 1 < volatiles.size())
+			{
+				// Volatile formulas are evaluated in the order they were added
+				succ.add(volatiles.get(volatile_rank[i] + 1));
+			}
+			for (int j : succ)
+			{
+				in_degree[j]++;
+			}
+			successors.add(succ);
+		}
+		int[] order = new int[n];
+		int count = 0;
+		PriorityQueue<Integer> ready = new PriorityQueue<Integer>();
+		for (int i = 0; i < n; i++)
+		{
+			if (in_degree[i] == 0)
+			{
+				ready.add(i);
+			}
+		}
+		while (!ready.isEmpty())
+		{
+			int i = ready.remove();
+			order[count++] = i;
+			for (int j : successors.get(i))
+			{
+				levels[j] = Math.max(levels[j], levels[i] + 1);
+				if (--in_degree[j] == 0)
+				{
+					ready.add(j);
+				}
+			}
+		}
+		if (count < n)
+		{
+			StringBuilder cells = new StringBuilder();
+			for (int i = 0; i < n; i++)
+			{
+				if (in_degree[i] > 0)
+				{
+					if (cells.length() > 0)
+					{
+						cells.append(", ");
+					}
+					cells.append(formulas.get(i).getTarget());
+				}
+			}
+			throw new FunctionException("Circular dependency between cells " + cells);
+		}
+		return order;
 	}
 	
-	/*@ non_null @*/ protected static List<CellFormula> sort(/*@ non_null @*/ List<CellFormula> formulas)
+	/**
+	 * An index associating cells to the indices of the formulas that read
+	 * them. Single cells are looked up in a map, while ranges of more than one
+	 * cell are kept as is and checked one by one, so that a formula reading a
+	 * large range does not require one entry per cell of this range.
+	 */
+	protected static class Readers
 	{
-		return formulas;
+		/**
+		 * A map associating single cells to the indices of the formulas that
+		 * read them.
+		 */
+		/*@ non_null @*/ protected final Map<Cell,List<Integer>> m_cells = new HashMap<Cell,List<Integer>>();
+		
+		/**
+		 * The ranges of more than one cell read by the formulas.
+		 */
+		/*@ non_null @*/ protected final List<CellRange> m_ranges = new ArrayList<CellRange>();
+		
+		/**
+		 * The index of the formula reading each range of {@link #m_ranges}.
+		 */
+		/*@ non_null @*/ protected final List<Integer> m_rangeReaders = new ArrayList<Integer>();
+		
+		/**
+		 * Records that a formula reads a range of cells.
+		 * @param r The range
+		 * @param formula The index of the formula
+		 */
+		public void add(/*@ non_null @*/ CellRange r, int formula)
+		{
+			if (r.size() == 1)
+			{
+				getList(m_cells, r.getCell(0)).add(formula);
+			}
+			else
+			{
+				m_ranges.add(r);
+				m_rangeReaders.add(formula);
+			}
+		}
+		
+		/**
+		 * Adds the indices of the formulas reading a cell to a collection.
+		 * @param c The cell
+		 * @param readers The collection to which the indices are added
+		 */
+		public void addReaders(/*@ non_null @*/ Cell c, /*@ non_null @*/ Collection<Integer> readers)
+		{
+			List<Integer> list = m_cells.get(c);
+			if (list != null)
+			{
+				readers.addAll(list);
+			}
+			for (int i = 0; i < m_ranges.size(); i++)
+			{
+				if (m_ranges.get(i).contains(c.getColumn(), c.getRow()))
+				{
+					readers.add(m_rangeReaders.get(i));
+				}
+			}
+		}
 	}
 }
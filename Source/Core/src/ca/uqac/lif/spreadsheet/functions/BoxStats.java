@@ -134,7 +134,12 @@ public class BoxStats extends SpreadsheetFunction
 		}
 		Spreadsheet table = (Spreadsheet) inputs[0];
 		Spreadsheet new_table = new Spreadsheet(7, table.getWidth() + 1);
-		m_mapping = new InputCell[table.getWidth() + 1][7][];
+		CellMapping.Explicit mapping = null;
+		if (startLineage(inputs))
+		{
+			mapping = new CellMapping.Explicit(7, table.getWidth() + 1);
+		}
+		m_mapping = mapping;
 		new_table.set(0, 0, m_captionX);
 		new_table.set(1, 0, m_captionMin);
 		new_table.set(2, 0, m_captionQ1);
@@ -145,7 +150,7 @@ public class BoxStats extends SpreadsheetFunction
 		for (int col = 0; col < table.getWidth(); col++)
 		{
 			Object[] col_vs = table.getColumn(col);
-			List<Float> values = new ArrayList<Float>(), sorted_values = new ArrayList<Float>();
+			List<Float> values = new ArrayList<Float>(), sorted_values = values;
 			for (int i = 1; i < col_vs.length; i++) // 1 since first line is col name
 			{
 				if (col_vs[i] instanceof Number)
@@ -153,11 +158,16 @@ public class BoxStats extends SpreadsheetFunction
 					values.add(((Number) col_vs[i]).floatValue());
 				}
 			}
-			sorted_values.addAll(values);
+			if (mapping != null)
+			{
+				// The unsorted values are needed to find the row of each statistic
+				sorted_values = new ArrayList<Float>(values);
+			}
 			Collections.sort(sorted_values);
 			if (values.isEmpty())
 			{
 				// Nothing to do
+				endLineage();
 				return new Object[] {new_table};
 			}
 			float v;
@@ -168,25 +178,43 @@ public class BoxStats extends SpreadsheetFunction
 			int q3_index = Math.max(0, (int)(num_values * 0.75) - 1);
 			int max_index = Math.max(0, (int) num_values - 1);
 			new_table.set(0, col + 1, col);
-			m_mapping[col + 1][0] = null;
 			v = sorted_values.get(min_index);
 			new_table.set(1, col + 1, v);
-			m_mapping[col + 1][1] = new InputCell[] {InputCell.get(col, values.indexOf(v) + 1)};
+			if (mapping != null)
+			{
+				mapping.set(1, col + 1, InputCell.get(col, values.indexOf(v) + 1));
+			}
 			v = sorted_values.get(q1_index);
 			new_table.set(2, col + 1, v);
-			m_mapping[col + 1][2] = new InputCell[] {InputCell.get(col, values.indexOf(v) + 1)};
+			if (mapping != null)
+			{
+				mapping.set(2, col + 1, InputCell.get(col, values.indexOf(v) + 1));
+			}
 			v = sorted_values.get(q2_index);
 			new_table.set(3, col + 1, v);
-			m_mapping[col + 1][3] = new InputCell[] {InputCell.get(col, values.indexOf(v) + 1)};
+			if (mapping != null)
+			{
+				mapping.set(3, col + 1, InputCell.get(col, values.indexOf(v) + 1));
+			}
 			v = sorted_values.get(q3_index);
 			new_table.set(4, col + 1, v);
-			m_mapping[col + 1][4] = new InputCell[] {InputCell.get(col, values.indexOf(v) + 1)};
+			if (mapping != null)
+			{
+				mapping.set(4, col + 1, InputCell.get(col, values.indexOf(v) + 1));
+			}
 			v = sorted_values.get(max_index);
 			new_table.set(5, col + 1, v);
-			m_mapping[col + 1][5] = new InputCell[] {InputCell.get(col, values.indexOf(v) + 1)};
+			if (mapping != null)
+			{
+				mapping.set(5, col + 1, InputCell.get(col, values.indexOf(v) + 1));
+			}
 			new_table.set(6, col + 1, table.get(col, 0));
-			m_mapping[col + 1][6] = new InputCell[] {InputCell.get(col, 0)};
+			if (mapping != null)
+			{
+				mapping.set(6, col + 1, InputCell.get(col, 0));
+			}
 		}
+		endLineage();
 		return new Object[] {new_table};
 	}
 	
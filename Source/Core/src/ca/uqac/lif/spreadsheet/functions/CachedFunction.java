@@ -0,0 +1,266 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import ca.uqac.lif.dag.Pin;
+import ca.uqac.lif.petitpoucet.Part;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.AtomicFunction;
+import ca.uqac.lif.petitpoucet.function.ExplanationQueryable;
+import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
+import ca.uqac.lif.petitpoucet.function.RelationNodeFactory;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * A wrapper around an atomic function that remembers its results in a
+ * {@link ResultCache}. When the function is evaluated on inputs whose
+ * contents are identical to those of a previous evaluation still in the
+ * cache, the result is returned without evaluating the wrapped function.
+ * <p>
+ * A result is indexed by a <em>configuration key</em> and by the
+ * fingerprints of the inputs; the checksums of the inputs are stored along
+ * with it and verified when it is found again, so that a collision of
+ * fingerprints does not return the result of other inputs. The configuration key stands for the
+ * parameters of the wrapped function; by default, it is an object created
+ * along with the wrapper, so that a result is only reused by the wrapper
+ * that produced it and by its duplicates. Wrappers around distinct but
+ * identically configured functions can share their results by being given
+ * the same key. If the wrapped function is reconfigured, the wrapper must
+ * be given a new key with {@link #setKey(Object)}.
+ * <p>
+ * Along with its outputs, each result keeps a copy of the wrapped function
+ * taken right after the evaluation. Explanations are delegated to the copy
+ * associated to the last result returned, so that a cached result remains
+ * explained in the same way as when it was computed. The outputs of a
+ * cached result are shared between all the evaluations that return it, and
+ * must not be modified.
+ * <p>
+ * With {@link #setDiskCache(DiskCache, boolean)}, results not found in
+ * memory are also looked up in a {@link DiskCache}, where they are stored
+ * after being computed. Since a result on disk must be found again by
+ * another run of the program, this only applies when the configuration key
+ * is a string, and when the wrapped function produces a single
+ * spreadsheet.
+ *
+ * @author Sylvain Hallé
+ */
+public class CachedFunction extends AtomicFunction
+{
+	/**
+	 * The function whose results are cached.
+	 */
+	/*@ non_null @*/ protected final AtomicFunction m_function;
+
+	/**
+	 * The cache where results are kept.
+	 */
+	/*@ non_null @*/ protected final ResultCache m_cache;
+
+	/**
+	 * The object standing for the configuration of the wrapped function.
+	 */
+	/*@ non_null @*/ protected Object m_key;
+
+	/**
+	 * The copy of the wrapped function that produced the last result, or
+	 * <tt>null</tt> if the function has not been evaluated.
+	 */
+	/*@ null @*/ protected AtomicFunction m_state;
+
+	/**
+	 * The cache where results are stored on disk, or <tt>null</tt> to keep
+	 * results in memory only.
+	 */
+	/*@ null @*/ protected DiskCache m_disk;
+
+	/**
+	 * A flag indicating that the lineage of the results is stored on disk
+	 * along with them.
+	 */
+	protected boolean m_diskLineage = false;
+
+	/**
+	 * Creates a new cached function with its own configuration key.
+	 * @param f The function whose results are cached
+	 * @param cache The cache where results are kept
+	 */
+	public CachedFunction(/*@ non_null @*/ AtomicFunction f, /*@ non_null @*/ ResultCache cache)
+	{
+		this(f, cache, new Object());
+	}
+
+	/**
+	 * Creates a new cached function.
+	 * @param f The function whose results are cached
+	 * @param cache The cache where results are kept
+	 * @param key The object standing for the configuration of the function;
+	 * it must implement <tt>equals</tt> and <tt>hashCode</tt> consistently
+	 */
+	public CachedFunction(/*@ non_null @*/ AtomicFunction f, /*@ non_null @*/ ResultCache cache, /*@ non_null @*/ Object key)
+	{
+		super(f.getInputArity(), f.getOutputArity());
+		m_function = f;
+		m_cache = cache;
+		m_key = key;
+	}
+
+	/**
+	 * Sets the object standing for the configuration of the wrapped
+	 * function. Results computed under a different key are no longer
+	 * returned by this function.
+	 * @param key The key
+	 * @return This function
+	 */
+	/*@ non_null @*/ public CachedFunction setKey(/*@ non_null @*/ Object key)
+	{
+		m_key = key;
+		return this;
+	}
+
+	/**
+	 * Sets the cache where results are stored on disk.
+	 * @param disk The cache, or <tt>null</tt> to keep results in memory only
+	 * @param with_lineage Set to <tt>true</tt> to store the lineage of each
+	 * cell of a result, when the wrapped function is a
+	 * {@link SpreadsheetFunction}; otherwise, the cells of a result read from
+	 * disk are explained as unknown
+	 * @return This function
+	 */
+	/*@ non_null @*/ public CachedFunction setDiskCache(/*@ null @*/ DiskCache disk, boolean with_lineage)
+	{
+		m_disk = disk;
+		m_diskLineage = with_lineage;
+		return this;
+	}
+
+	/**
+	 * Gets the function whose results are cached.
+	 * @return The function
+	 */
+	/*@ pure non_null @*/ public AtomicFunction getFunction()
+	{
+		return m_function;
+	}
+
+	/**
+	 * Gets the cache where results are kept.
+	 * @return The cache
+	 */
+	/*@ pure non_null @*/ public ResultCache getCache()
+	{
+		return m_cache;
+	}
+
+	@Override
+	protected Object[] getValue(Object ... inputs) throws InvalidNumberOfArgumentsException
+	{
+		long[] fingerprints = new long[inputs.length];
+		long[] checksums = new long[inputs.length];
+		for (int i = 0; i < inputs.length; i++)
+		{
+			fingerprints[i] = ResultCache.fingerprint(inputs[i]);
+			checksums[i] = ResultCache.checksum(inputs[i]);
+		}
+		ResultCache.Entry e = m_cache.get(m_key, fingerprints, checksums);
+		if (e != null)
+		{
+			m_state = e.getState();
+			return e.getOutputs();
+		}
+		boolean on_disk = m_disk != null && m_key instanceof String && getOutputArity() == 1;
+		if (on_disk)
+		{
+			DiskCache.Result r = m_disk.get((String) m_key, fingerprints, checksums);
+			if (r != null)
+			{
+				Object[] outputs = new Object[] {r.getOutput()};
+				m_state = r.getLineage();
+				m_cache.put(m_key, fingerprints, checksums, outputs, m_state);
+				return outputs;
+			}
+		}
+		Object[] outputs = m_function.evaluate(inputs);
+		m_state = m_function.duplicate(true);
+		m_cache.put(m_key, fingerprints, checksums, outputs, m_state);
+		if (on_disk && outputs[0] instanceof Spreadsheet)
+		{
+			m_disk.put((String) m_key, fingerprints, checksums, (Spreadsheet) outputs[0], getLineage(m_state));
+		}
+		return outputs;
+	}
+
+	/**
+	 * Gets the lineage to store on disk along with a result.
+	 * @param state The copy of the function that produced the result
+	 * @return The lineage, or <tt>null</tt> if it is not to be stored or is
+	 * not available
+	 */
+	/*@ null @*/ protected CellMapping getLineage(AtomicFunction state)
+	{
+		if (!m_diskLineage || !(state instanceof SpreadsheetFunction))
+		{
+			return null;
+		}
+		SpreadsheetFunction sf = (SpreadsheetFunction) state;
+		return sf.hasLineage() ? sf.m_mapping : null;
+	}
+
+	@Override
+	public PartNode getExplanation(Part part, RelationNodeFactory factory)
+	{
+		if (m_state == null)
+		{
+			return super.getExplanation(part, factory);
+		}
+		PartNode root = factory.getPartNode(part, this);
+		PartNode sub_root = ((ExplanationQueryable) m_state).getExplanation(part, factory);
+		for (Pin<?> p : sub_root.getOutputLinks(0))
+		{
+			root.addChild(p.getNode());
+		}
+		return root;
+	}
+
+	@Override
+	public void reset()
+	{
+		super.reset();
+		m_function.reset();
+		m_state = null;
+	}
+
+	@Override
+	public CachedFunction duplicate(boolean with_state)
+	{
+		CachedFunction cf = new CachedFunction(m_function.duplicate(with_state), m_cache, m_key);
+		copyInto(cf, with_state);
+		if (with_state)
+		{
+			cf.m_state = m_state;
+		}
+		cf.m_disk = m_disk;
+		cf.m_diskLineage = m_diskLineage;
+		return cf;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Cached " + m_function;
+	}
+}
@@ -18,11 +18,18 @@
 package ca.uqac.lif.spreadsheet.functions;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
+import ca.uqac.lif.dag.NestedNode;
+import ca.uqac.lif.dag.Node;
+import ca.uqac.lif.dag.Pin;
+import ca.uqac.lif.petitpoucet.function.Fork;
 import ca.uqac.lif.petitpoucet.function.Function;
 import ca.uqac.lif.petitpoucet.function.FunctionException;
 import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
 
 public class CellFormula
@@ -42,6 +49,41 @@ public class CellFormula
 	 */
 	/*@ non_null @*/ protected final Map<Integer,Integer> m_arguments;
 	
+	/**
+	 * Whether the function is compiled by the {@link FormulaCompiler} before
+	 * being evaluated.
+	 */
+	protected boolean m_compile = true;
+	
+	/**
+	 * Whether the compilation of the function has already been attempted.
+	 */
+	protected boolean m_compiled = false;
+	
+	/**
+	 * The evaluator produced by the compilation of the function, or
+	 * <tt>null</tt> if the function could not be compiled.
+	 */
+	/*@ null @*/ protected FormulaCompiler.Evaluator m_evaluator;
+	
+	/**
+	 * For each input argument of the function, the ranges of cells read from
+	 * it, or <tt>null</tt> if they cannot be determined. This array is
+	 * computed along with the evaluator.
+	 */
+	/*@ null @*/ protected CellRange[][] m_argumentRanges;
+	
+	/**
+	 * Snapshots of the arguments of the last evaluation made by the compiled
+	 * evaluator, or <tt>null</tt> if none is needed. Snapshots are only taken
+	 * when the evaluator calls functions that defer the recording of their
+	 * lineage; the function itself is then evaluated on copies restored from
+	 * these snapshots before being asked for an explanation, as the
+	 * spreadsheets passed to the evaluation may be modified by the caller
+	 * afterwards.
+	 */
+	/*@ null @*/ protected Snapshot[] m_replayArguments;
+	
 	/**
 	 * Creates a new cell formula.
 	 * @param target The cell where the output of the formula is to be written
@@ -65,7 +107,24 @@ public class CellFormula
 	 */
 	/*@ non_null @*/ public CellFormula associate(int spreadsheet, int index)
 	{
-		m_arguments.put(index, spreadsheet);
+		synchronized (this)
+		{
+			m_arguments.put(index, spreadsheet);
+			m_argumentRanges = null;
+		}
+		return this;
+	}
+	
+	/**
+	 * Sets whether the function is compiled by the {@link FormulaCompiler}
+	 * before being evaluated. Compilation is enabled by default.
+	 * @param b Set to <tt>true</tt> to compile the function, <tt>false</tt>
+	 * to always evaluate it as is
+	 * @return This cell formula object
+	 */
+	/*@ non_null @*/ public CellFormula setCompiled(boolean b)
+	{
+		m_compile = b;
 		return this;
 	}
 	
@@ -78,6 +137,186 @@ public class CellFormula
 		return m_target;
 	}
 	
+	/**
+	 * Gets the function applied by this formula.
+	 * @return The function
+	 */
+	/*@ non_null @*/ public Function getFunction()
+	{
+		return m_formula;
+	}
+	
+	/**
+	 * Gets the function applied by this formula, in the state it has after
+	 * the last evaluation of the formula. If this evaluation has been made
+	 * by the compiled evaluator and has called functions that defer the
+	 * recording of their lineage, the function is first evaluated again on
+	 * the same arguments, so that it produces the same explanation as if it
+	 * had been evaluated itself.
+	 * @return The function
+	 */
+	/*@ non_null @*/ public synchronized Function getExplainedFunction()
+	{
+		if (m_replayArguments != null)
+		{
+			Object[] in_args = new Object[m_replayArguments.length];
+			for (int i = 0; i < in_args.length; i++)
+			{
+				in_args[i] = m_replayArguments[i].restore();
+			}
+			m_replayArguments = null;
+			m_formula.reset();
+			m_formula.evaluate(in_args);
+		}
+		return m_formula;
+	}
+	
+	/**
+	 * Gets the evaluator produced by the compilation of the function,
+	 * compiling it on the first call.
+	 * @return The evaluator, or <tt>null</tt> if the function cannot be
+	 * compiled
+	 */
+	/*@ null @*/ protected synchronized FormulaCompiler.Evaluator getEvaluator()
+	{
+		if (!m_compiled)
+		{
+			m_evaluator = FormulaCompiler.compile(m_formula);
+			m_compiled = true;
+		}
+		if (m_evaluator != null && m_argumentRanges == null)
+		{
+			CellRange[][] ranges = new CellRange[m_formula.getInputArity()][];
+			for (int i = 0; i < ranges.length; i++)
+			{
+				Set<CellRange> reads = m_arguments.containsKey(i) ? getReadRanges(m_arguments.get(i)) : null;
+				ranges[i] = reads == null ? null : reads.toArray(new CellRange[reads.size()]);
+			}
+			m_argumentRanges = ranges;
+		}
+		return m_evaluator;
+	}
+	
+	/**
+	 * Gets the cells of the first spreadsheet read by the formula. These cells
+	 * are found by following the connections of each input of the formula
+	 * associated to the first spreadsheet, through {@link Fork}s and nested
+	 * circuits, up to the {@link ValueOf} and {@link FormulaFunction}
+	 * functions that receive it.
+	 * @return The set of cells, or <tt>null</tt> if the spreadsheet is passed
+	 * to any other function, in which case the cells read by the formula
+	 * cannot be determined
+	 */
+	/*@ pure null @*/ public Set<Cell> getDependencies()
+	{
+		return getDependencies(0);
+	}
+	
+	/**
+	 * Gets the cells of a spreadsheet read by the formula.
+	 * @param spreadsheet The index of the spreadsheet
+	 * @return The set of cells, or <tt>null</tt> if the cells read by the
+	 * formula cannot be determined
+	 * @see #getDependencies()
+	 */
+	/*@ pure null @*/ public Set<Cell> getDependencies(int spreadsheet)
+	{
+		Set<CellRange> ranges = getReadRanges(spreadsheet);
+		if (ranges == null)
+		{
+			return null;
+		}
+		Set<Cell> cells = new HashSet<Cell>();
+		for (CellRange r : ranges)
+		{
+			for (Cell c : r)
+			{
+				cells.add(c);
+			}
+		}
+		return cells;
+	}
+	
+	/**
+	 * Gets the ranges of cells of a spreadsheet read by the formula. Contrary
+	 * to {@link #getDependencies(int)}, this method does not create one
+	 * object per cell read, and should be preferred when the formula may
+	 * refer to large ranges.
+	 * @param spreadsheet The index of the spreadsheet
+	 * @return The set of ranges, or <tt>null</tt> if the cells read by the
+	 * formula cannot be determined
+	 */
+	/*@ pure null @*/ public Set<CellRange> getReadRanges(int spreadsheet)
+	{
+		Set<CellRange> ranges = new HashSet<CellRange>();
+		if (!(m_formula instanceof Node))
+		{
+			return null;
+		}
+		for (Map.Entry<Integer,Integer> e : m_arguments.entrySet())
+		{
+			if (e.getValue() != spreadsheet || e.getKey() >= m_formula.getInputArity())
+			{
+				continue;
+			}
+			if (!collectReads(new Pin<Node>((Node) m_formula, e.getKey()), ranges, new HashSet<Node>()))
+			{
+				return null;
+			}
+		}
+		return ranges;
+	}
+	
+	/**
+	 * Collects the ranges of cells read from a spreadsheet received on an
+	 * input pin.
+	 * @param pin The input pin
+	 * @param ranges The set where the ranges are added
+	 * @param visited The forks already visited
+	 * @return <tt>true</tt> if the cells read from the spreadsheet could be
+	 * determined, <tt>false</tt> otherwise
+	 */
+	protected static boolean collectReads(Pin<? extends Node> pin, Set<CellRange> ranges, Set<Node> visited)
+	{
+		Node n = pin.getNode();
+		if (n instanceof ValueOf)
+		{
+			Cell c = ((ValueOf) n).getCell();
+			ranges.add(new CellRange(c.getColumn(), c.getRow(), c.getColumn(), c.getRow()));
+			return true;
+		}
+		if (n instanceof FormulaFunction)
+		{
+			ranges.addAll(((FormulaFunction) n).getRanges());
+			return true;
+		}
+		if (n instanceof NestedNode)
+		{
+			Pin<? extends Node> inner = ((NestedNode) n).getAssociatedInput(pin.getIndex());
+			// An input that is not associated to anything is not read
+			return inner == null || collectReads(inner, ranges, visited);
+		}
+		if (n instanceof Fork)
+		{
+			if (!visited.add(n))
+			{
+				return true;
+			}
+			for (int i = 0; i < n.getOutputArity(); i++)
+			{
+				for (Pin<? extends Node> p : n.getOutputLinks(i))
+				{
+					if (!collectReads(p, ranges, visited))
+					{
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+		return false;
+	}
+	
 	/**
 	 * Evaluates the function.
 	 * @param args The spreadsheet(s) that serve as the arguments of the formula
@@ -86,8 +325,24 @@ public class CellFormula
 	 */
 	public void evaluate(Spreadsheet ... args) throws FunctionException
 	{
-		m_formula.reset();
-		Object[] in_args = new Spreadsheet[m_formula.getInputArity()];
+		Object o = compute(m_formula, args);
+		args[0].set(m_target.getColumn(), m_target.getRow(), o);
+	}
+	
+	/**
+	 * Computes the value of the formula without writing it to the target
+	 * cell. If the function of the formula can be compiled, the value is
+	 * computed by the compiled evaluator.
+	 * @param f The function to evaluate, which is either the function of this
+	 * formula or a copy of it
+	 * @param args The spreadsheet(s) that serve as the arguments of the formula
+	 * @return The value
+	 * @throws FunctionException Thrown if the formula refers to a spreadsheet
+	 * index that is not present in the arguments
+	 */
+	/*@ null @*/ public Object compute(/*@ non_null @*/ Function f, Spreadsheet ... args) throws FunctionException
+	{
+		Object[] in_args = new Spreadsheet[f.getInputArity()];
 		for (int i = 0; i < in_args.length; i++)
 		{
 			if (!m_arguments.containsKey(i))
@@ -97,8 +352,143 @@ public class CellFormula
 			int index = m_arguments.get(i);
 			in_args[i] = args[index];
 		}
-		Object o = m_formula.evaluate(in_args)[0];
-		args[0].set(m_target.getColumn(), m_target.getRow(), o);
+		if (f == m_formula && m_compile)
+		{
+			FormulaCompiler.Evaluator e = getEvaluator();
+			if (e != null)
+			{
+				Object o = e.evaluate(in_args);
+				Snapshot[] snapshots = null;
+				if (e.defersLineage())
+				{
+					// The functions called keep a reference to values that the
+					// caller may modify before an explanation is requested
+					CellRange[][] ranges = m_argumentRanges;
+					snapshots = new Snapshot[in_args.length];
+					for (int i = 0; i < snapshots.length; i++)
+					{
+						snapshots[i] = new Snapshot((Spreadsheet) in_args[i], ranges[i]);
+					}
+				}
+				m_replayArguments = snapshots;
+				return o;
+			}
+		}
+		m_replayArguments = null;
+		f.reset();
+		return f.evaluate(in_args)[0];
 	}
 	
+	/**
+	 * A copy of the contents of a spreadsheet that is sufficient to evaluate
+	 * the formula again. When the ranges of cells read by the formula are
+	 * known, only these cells are copied; otherwise, the whole spreadsheet is
+	 * duplicated.
+	 */
+	protected static final class Snapshot
+	{
+		/**
+		 * The width of the spreadsheet.
+		 */
+		protected final int m_width;
+		
+		/**
+		 * The height of the spreadsheet.
+		 */
+		protected final int m_height;
+		
+		/**
+		 * The ranges of cells that are copied, or <tt>null</tt> if the whole
+		 * spreadsheet is duplicated. Each range is restricted to the cells
+		 * inside the spreadsheet, and is <tt>null</tt> if it has none.
+		 */
+		/*@ null @*/ protected final CellRange[] m_ranges;
+		
+		/**
+		 * The values of the cells of each range, column by column.
+		 */
+		/*@ null @*/ protected final Object[][] m_values;
+		
+		/**
+		 * A duplicate of the whole spreadsheet, or <tt>null</tt> if only
+		 * ranges are copied.
+		 */
+		/*@ null @*/ protected final Spreadsheet m_copy;
+		
+		/**
+		 * Takes a snapshot of a spreadsheet.
+		 * @param s The spreadsheet
+		 * @param ranges The ranges of cells to copy, or <tt>null</tt> to
+		 * duplicate the whole spreadsheet
+		 */
+		public Snapshot(/*@ null @*/ Spreadsheet s, /*@ null @*/ CellRange[] ranges)
+		{
+			super();
+			if (s == null || ranges == null)
+			{
+				m_width = 0;
+				m_height = 0;
+				m_ranges = null;
+				m_values = null;
+				m_copy = s == null ? null : s.duplicate();
+				return;
+			}
+			m_width = s.getWidth();
+			m_height = s.getHeight();
+			// Only the cells inside the spreadsheet are copied
+			CellRange bounds = m_width == 0 || m_height == 0 ? null : new CellRange(0, 0, m_width - 1, m_height - 1);
+			m_ranges = new CellRange[ranges.length];
+			m_values = new Object[ranges.length][];
+			for (int i = 0; i < ranges.length; i++)
+			{
+				CellRange r = bounds == null ? null : ranges[i].intersect(bounds);
+				m_ranges[i] = r;
+				if (r == null)
+				{
+					continue;
+				}
+				m_values[i] = new Object[Math.toIntExact(r.size())];
+				int j = 0;
+				for (int col = r.getFirstColumn(); col <= r.getLastColumn(); col++)
+				{
+					for (int row = r.getFirstRow(); row <= r.getLastRow(); row++, j++)
+					{
+						m_values[i][j] = s.get(col, row);
+					}
+				}
+			}
+			m_copy = null;
+		}
+		
+		/**
+		 * Produces a spreadsheet with the same dimensions as the original, and
+		 * with the same contents in the cells that have been copied.
+		 * @return The spreadsheet
+		 */
+		/*@ null @*/ public Spreadsheet restore()
+		{
+			if (m_ranges == null)
+			{
+				return m_copy;
+			}
+			Spreadsheet s = new Spreadsheet(m_width, m_height);
+			for (int i = 0; i < m_ranges.length; i++)
+			{
+				CellRange r = m_ranges[i];
+				if (r == null)
+				{
+					continue;
+				}
+				int j = 0;
+				for (int col = r.getFirstColumn(); col <= r.getLastColumn(); col++)
+				{
+					for (int row = r.getFirstRow(); row <= r.getLastRow(); row++, j++)
+					{
+						s.set(col, row, m_values[i][j]);
+					}
+				}
+			}
+			return s;
+		}
+	}
 }
@@ -0,0 +1,1127 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.functions.SpreadsheetFunction.InputCell;
+
+/**
+ * Correspondence between the cells of the output spreadsheet produced by a
+ * {@link SpreadsheetFunction} and the cells of its input spreadsheet(s).
+ * <p>
+ * The simplest way to represent this correspondence is to store the input
+ * cells associated to each output cell, which is what {@link Explicit} does.
+ * However, for many functions, the correspondence is a simple arithmetic
+ * transformation of the coordinates of a cell (a permutation of the rows, a
+ * shift, a swap of rows and columns). The other implementations of this
+ * class only store the parameters of such a transformation, and compute the
+ * input cells on demand when a provenance query is made.
+ * <p>
+ * A mapping can also be queried in the opposite direction, to obtain the
+ * output cells that depend on an input cell. Implicit mappings invert their
+ * transformation; the others build an {@link Inverse} index the first time
+ * such a query is made.
+ * <p>
+ * A mapping is not modified once the function that produced it has finished
+ * its computation. It can therefore be shared between copies of a function.
+ *
+ * @author Sylvain Hallé
+ */
+public abstract class CellMapping
+{
+	/**
+	 * Gets the cells of the input spreadsheet(s) associated to a cell of the
+	 * output spreadsheet.
+	 * @param col The column of the output cell
+	 * @param row The row of the output cell
+	 * @return The input cells, or <tt>null</tt> if the output cell is not
+	 * associated to any input cell (or does not exist)
+	 */
+	/*@ pure null @*/ public abstract InputCell[] getInputCells(int col, int row);
+
+	/**
+	 * Gets the cells of the output spreadsheet associated to a cell of one of
+	 * the input spreadsheets.
+	 * @param index The index of the input spreadsheet
+	 * @param col The column of the input cell
+	 * @param row The row of the input cell
+	 * @return The output cells, in row-major order; the array is empty if no
+	 * output cell depends on the input cell
+	 */
+	/*@ pure non_null @*/ public abstract Cell[] getOutputCells(int index, int col, int row);
+
+	/**
+	 * Gets the height of the output spreadsheet this mapping applies to.
+	 * @return The height
+	 */
+	/*@ pure @*/ public abstract int getHeight();
+
+	/**
+	 * Gets an estimate of the memory occupied by this mapping. The estimate
+	 * only takes into account the objects created by the mapping itself, and
+	 * is meant to compare mappings with each other, not to be exact.
+	 * @return The size, in bytes
+	 */
+	/*@ pure @*/ public abstract long getSize();
+
+	/**
+	 * A mapping that explicitly stores the input cells associated to each
+	 * output cell.
+	 */
+	public static class Explicit extends CellMapping
+	{
+		/**
+		 * The input cells associated to each output cell, indexed by row and then
+		 * by column.
+		 */
+		/*@ non_null @*/ protected final InputCell[][][] m_cells;
+
+		/**
+		 * The inverted index of this mapping, built on the first query on the
+		 * output cells of an input cell.
+		 */
+		/*@ null @*/ protected Inverse m_inverse;
+
+		/**
+		 * Creates a new empty explicit mapping.
+		 * @param width The width of the output spreadsheet
+		 * @param height The height of the output spreadsheet
+		 */
+		public Explicit(int width, int height)
+		{
+			super();
+			m_cells = new InputCell[height][width][];
+		}
+
+		/**
+		 * Associates an output cell to input cells.
+		 * @param col The column of the output cell
+		 * @param row The row of the output cell
+		 * @param cells The input cells
+		 */
+		public void set(int col, int row, /*@ null @*/ InputCell ... cells)
+		{
+			m_cells[row][col] = cells;
+		}
+
+		@Override
+		public InputCell[] getInputCells(int col, int row)
+		{
+			if (row < 0 || row >= m_cells.length || col < 0 || col >= m_cells[row].length)
+			{
+				return null;
+			}
+			return m_cells[row][col];
+		}
+
+		@Override
+		public Cell[] getOutputCells(int index, int col, int row)
+		{
+			int width = m_cells.length == 0 ? 0 : m_cells[0].length;
+			return getInverse().getCells(InputCell.encode(col, row, index), width);
+		}
+
+		/**
+		 * Gets the inverted index of this mapping, building it if necessary.
+		 * @return The index
+		 */
+		/*@ non_null @*/ protected synchronized Inverse getInverse()
+		{
+			if (m_inverse == null)
+			{
+				int width = m_cells.length == 0 ? 0 : m_cells[0].length;
+				int num_cells = width * m_cells.length;
+				int[] offsets = new int[num_cells + 1];
+				for (int cell = 0; cell < num_cells; cell++)
+				{
+					InputCell[] cells = m_cells[cell / width][cell % width];
+					offsets[cell + 1] = offsets[cell] + (cells == null ? 0 : cells.length);
+				}
+				long[] keys = new long[offsets[num_cells]];
+				for (int cell = 0; cell < num_cells; cell++)
+				{
+					InputCell[] cells = m_cells[cell / width][cell % width];
+					for (int i = 0; cells != null && i < cells.length; i++)
+					{
+						keys[offsets[cell] + i] = InputCell.encode(cells[i].getColumn(), cells[i].getRow(), cells[i].m_index);
+					}
+				}
+				m_inverse = new Inverse(offsets, keys, num_cells);
+			}
+			return m_inverse;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return m_cells.length;
+		}
+
+		@Override
+		public long getSize()
+		{
+			long size = 16;
+			for (InputCell[][] row : m_cells)
+			{
+				size += 24 + 8 * row.length;
+				for (InputCell[] cells : row)
+				{
+					if (cells != null)
+					{
+						size += 16 + 40 * cells.length;
+					}
+				}
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * A mapping that stores the input cells associated to each output cell in
+	 * primitive arrays. Each input cell is encoded as a single <tt>long</tt>
+	 * (see {@link InputCell#encode(int, int, int)}), and the references of all
+	 * the output cells are laid out one after the other in a single array; a
+	 * second array gives the position where the references of each output
+	 * cell start. This layout avoids creating one object per input cell and
+	 * one array per output cell, which matters for functions where many
+	 * output cells each depend on many input cells. Input cells are only
+	 * decoded into objects when a provenance query is made.
+	 * <p>
+	 * Output cells must be added in row-major order, that is, by increasing
+	 * row and, within a row, by increasing column. A mapping can also be
+	 * restricted to a window of rows: the rows between the header and the
+	 * start of the window then have no lineage, and take no space.
+	 */
+	public static class Packed extends CellMapping
+	{
+		/**
+		 * The width of the output spreadsheet.
+		 */
+		protected final int m_width;
+
+		/**
+		 * The height of the output spreadsheet.
+		 */
+		protected final int m_height;
+
+		/**
+		 * The number of rows after the first one that are outside of the window
+		 * of the mapping, and are therefore not stored.
+		 */
+		protected final int m_skipped;
+
+		/**
+		 * The position in {@link #m_references} where the references of each
+		 * stored output cell start, indexed by <i>row</i> &times; <i>width</i> +
+		 * <i>col</i>, where <i>row</i> does not count the rows that are not
+		 * stored. The references of a cell end where those of the next cell
+		 * start; the references of the last cell that has been added end at
+		 * {@link #m_size}.
+		 */
+		/*@ non_null @*/ protected final int[] m_offsets;
+
+		/**
+		 * The encoded input cells associated to each output cell.
+		 */
+		/*@ non_null @*/ protected long[] m_references;
+
+		/**
+		 * The number of references actually used in {@link #m_references}.
+		 */
+		protected int m_size;
+
+		/**
+		 * The index of the last output cell that has been added.
+		 */
+		protected int m_lastCell;
+
+		/**
+		 * The inverted index of this mapping, built on the first query on the
+		 * output cells of an input cell.
+		 */
+		/*@ null @*/ protected Inverse m_inverse;
+
+		/**
+		 * Creates a new empty packed mapping.
+		 * @param width The width of the output spreadsheet
+		 * @param height The height of the output spreadsheet
+		 */
+		public Packed(int width, int height)
+		{
+			this(width, height, 0);
+		}
+
+		/**
+		 * Creates a new empty packed mapping that only stores the lineage of the
+		 * first row and of the rows starting at a given index.
+		 * @param width The width of the output spreadsheet
+		 * @param height The height of the output spreadsheet
+		 * @param window_start The first row after the first one whose lineage is
+		 * stored, or 0 to store all the rows
+		 */
+		public Packed(int width, int height, int window_start)
+		{
+			super();
+			m_width = width;
+			m_height = height;
+			m_skipped = Math.max(0, Math.min(height, window_start) - 1);
+			int stored = width * (height - m_skipped);
+			m_offsets = new int[stored + 1];
+			m_references = new long[Math.max(16, stored)];
+			m_size = 0;
+			m_lastCell = -1;
+		}
+
+		/**
+		 * Gets the index of an output cell among the cells stored by this
+		 * mapping.
+		 * @param col The column of the output cell
+		 * @param row The row of the output cell
+		 * @return The index, or -1 if the row is outside of the window of the
+		 * mapping
+		 */
+		/*@ pure @*/ protected int getIndex(int col, int row)
+		{
+			if (row == 0)
+			{
+				return col;
+			}
+			if (row <= m_skipped)
+			{
+				return -1;
+			}
+			return (row - m_skipped) * m_width + col;
+		}
+
+		/**
+		 * Associates an output cell to input cells.
+		 * @param col The column of the output cell
+		 * @param row The row of the output cell
+		 * @param references The input cells, each encoded with
+		 * {@link InputCell#encode(int, int, int)}
+		 * @throws IllegalArgumentException If the output cell is not after the
+		 * last one that has been added, or is outside of the window of the
+		 * mapping
+		 */
+		public void add(int col, int row, /*@ non_null @*/ long ... references)
+		{
+			int cell = getIndex(col, row);
+			if (cell < 0)
+			{
+				throw new IllegalArgumentException("Row " + row + " is outside of the window of the mapping");
+			}
+			if (cell <= m_lastCell)
+			{
+				throw new IllegalArgumentException("Cells must be added in row-major order");
+			}
+			// Cells skipped since the last call have no references
+			for (int i = m_lastCell + 1; i <= cell; i++)
+			{
+				m_offsets[i] = m_size;
+			}
+			if (m_size + references.length > m_references.length)
+			{
+				long[] new_references = new long[Math.max(m_size + references.length, m_references.length * 2)];
+				System.arraycopy(m_references, 0, new_references, 0, m_size);
+				m_references = new_references;
+			}
+			System.arraycopy(references, 0, m_references, m_size, references.length);
+			m_size += references.length;
+			m_lastCell = cell;
+		}
+
+		/**
+		 * Trims the array of references to the number of references it actually
+		 * contains. This method is meant to be called once all the output cells
+		 * have been added.
+		 */
+		public void compact()
+		{
+			if (m_references.length > m_size)
+			{
+				long[] new_references = new long[m_size];
+				System.arraycopy(m_references, 0, new_references, 0, m_size);
+				m_references = new_references;
+			}
+		}
+
+		/**
+		 * Gets the number of input cell references stored in this mapping.
+		 * @return The number of references
+		 */
+		/*@ pure @*/ public int getReferenceCount()
+		{
+			return m_size;
+		}
+
+		@Override
+		public InputCell[] getInputCells(int col, int row)
+		{
+			if (row < 0 || row >= m_height || col < 0 || col >= m_width)
+			{
+				return null;
+			}
+			int cell = getIndex(col, row);
+			if (cell < 0 || cell > m_lastCell)
+			{
+				return null;
+			}
+			int from = m_offsets[cell], to = cell < m_lastCell ? m_offsets[cell + 1] : m_size;
+			if (from == to)
+			{
+				return null;
+			}
+			InputCell[] cells = new InputCell[to - from];
+			for (int i = from; i < to; i++)
+			{
+				cells[i - from] = InputCell.decode(m_references[i]);
+			}
+			return cells;
+		}
+
+		@Override
+		public Cell[] getOutputCells(int index, int col, int row)
+		{
+			Cell[] cells = getInverse().getCells(InputCell.encode(col, row, index), m_width);
+			if (m_skipped > 0)
+			{
+				// Rows of the index do not count the rows that are not stored
+				for (int i = 0; i < cells.length; i++)
+				{
+					if (cells[i].getRow() > 0)
+					{
+						cells[i] = Cell.get(cells[i].getColumn(), cells[i].getRow() + m_skipped);
+					}
+				}
+			}
+			return cells;
+		}
+
+		/**
+		 * Gets the inverted index of this mapping, building it if necessary.
+		 * @return The index
+		 */
+		/*@ non_null @*/ protected synchronized Inverse getInverse()
+		{
+			if (m_inverse == null)
+			{
+				// Cells after the last one that has been added have no references
+				int[] offsets = new int[m_offsets.length];
+				System.arraycopy(m_offsets, 0, offsets, 0, m_lastCell + 1);
+				for (int i = m_lastCell + 1; i < offsets.length; i++)
+				{
+					offsets[i] = m_size;
+				}
+				m_inverse = new Inverse(offsets, m_references, offsets.length - 1);
+			}
+			return m_inverse;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return m_height;
+		}
+
+		@Override
+		public long getSize()
+		{
+			long size = 48 + 4L * m_offsets.length + 8L * m_references.length;
+			if (m_inverse != null)
+			{
+				size += m_inverse.getSize();
+			}
+			return size;
+		}
+	}
+
+	/**
+	 * A mapping where each output cell corresponds to the cell at the same
+	 * position in the first input spreadsheet.
+	 */
+	public static class Identity extends CellMapping
+	{
+		/**
+		 * The width of the output spreadsheet.
+		 */
+		protected final int m_width;
+
+		/**
+		 * The height of the output spreadsheet.
+		 */
+		protected final int m_height;
+
+		/**
+		 * Creates a new identity mapping.
+		 * @param width The width of the output spreadsheet
+		 * @param height The height of the output spreadsheet
+		 */
+		public Identity(int width, int height)
+		{
+			super();
+			m_width = width;
+			m_height = height;
+		}
+
+		@Override
+		public InputCell[] getInputCells(int col, int row)
+		{
+			if (row < 0 || row >= m_height || col < 0 || col >= m_width)
+			{
+				return null;
+			}
+			return new InputCell[] {InputCell.get(col, row)};
+		}
+
+		@Override
+		public Cell[] getOutputCells(int index, int col, int row)
+		{
+			if (index != 0 || row < 0 || row >= m_height || col < 0 || col >= m_width)
+			{
+				return new Cell[0];
+			}
+			return new Cell[] {Cell.get(col, row)};
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return m_height;
+		}
+
+		@Override
+		public long getSize()
+		{
+			return 24;
+		}
+	}
+
+	/**
+	 * A mapping where the output spreadsheet is the transposition of the
+	 * first input spreadsheet: output cell (<i>c</i>,<i>r</i>) corresponds to
+	 * input cell (<i>r</i>,<i>c</i>).
+	 */
+	public static class Transposition extends CellMapping
+	{
+		/**
+		 * The width of the output spreadsheet.
+		 */
+		protected final int m_width;
+
+		/**
+		 * The height of the output spreadsheet.
+		 */
+		protected final int m_height;
+
+		/**
+		 * Creates a new transposition mapping.
+		 * @param width The width of the output spreadsheet
+		 * @param height The height of the output spreadsheet
+		 */
+		public Transposition(int width, int height)
+		{
+			super();
+			m_width = width;
+			m_height = height;
+		}
+
+		@Override
+		public InputCell[] getInputCells(int col, int row)
+		{
+			if (row < 0 || row >= m_height || col < 0 || col >= m_width)
+			{
+				return null;
+			}
+			return new InputCell[] {InputCell.get(row, col)};
+		}
+
+		@Override
+		public Cell[] getOutputCells(int index, int col, int row)
+		{
+			if (index != 0 || col < 0 || col >= m_height || row < 0 || row >= m_width)
+			{
+				return new Cell[0];
+			}
+			return new Cell[] {Cell.get(row, col)};
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return m_height;
+		}
+
+		@Override
+		public long getSize()
+		{
+			return 24;
+		}
+	}
+
+	/**
+	 * A mapping where each row of the output spreadsheet is a row of the
+	 * first input spreadsheet, in a different order.
+	 */
+	public static class RowPermutation extends CellMapping
+	{
+		/**
+		 * The input row corresponding to each output row.
+		 */
+		/*@ non_null @*/ protected final int[] m_rows;
+
+		/**
+		 * The width of the output spreadsheet.
+		 */
+		protected final int m_width;
+
+		/**
+		 * The output row corresponding to each input row, or -1 for input rows
+		 * that do not appear in the output. This array is computed on the first
+		 * query on the output cells of an input cell.
+		 */
+		/*@ null @*/ protected int[] m_inverse;
+
+		/**
+		 * Creates a new row permutation.
+		 * @param rows The index of the input row corresponding to each output
+		 * row
+		 * @param width The width of the output spreadsheet
+		 */
+		public RowPermutation(/*@ non_null @*/ int[] rows, int width)
+		{
+			super();
+			m_rows = rows;
+			m_width = width;
+		}
+
+		@Override
+		public InputCell[] getInputCells(int col, int row)
+		{
+			if (row < 0 || row >= m_rows.length || col < 0 || col >= m_width)
+			{
+				return null;
+			}
+			return new InputCell[] {InputCell.get(col, m_rows[row])};
+		}
+
+		@Override
+		public Cell[] getOutputCells(int index, int col, int row)
+		{
+			int[] inverse = getInverse();
+			if (index != 0 || row < 0 || row >= inverse.length || inverse[row] < 0 || col < 0 || col >= m_width)
+			{
+				return new Cell[0];
+			}
+			return new Cell[] {Cell.get(col, inverse[row])};
+		}
+
+		/**
+		 * Gets the output row corresponding to each input row, computing it if
+		 * necessary.
+		 * @return The array of output rows
+		 */
+		/*@ non_null @*/ protected synchronized int[] getInverse()
+		{
+			if (m_inverse == null)
+			{
+				int max = -1;
+				for (int r : m_rows)
+				{
+					max = Math.max(max, r);
+				}
+				m_inverse = new int[max + 1];
+				for (int i = 0; i < m_inverse.length; i++)
+				{
+					m_inverse[i] = -1;
+				}
+				for (int i = 0; i < m_rows.length; i++)
+				{
+					m_inverse[m_rows[i]] = i;
+				}
+			}
+			return m_inverse;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return m_rows.length;
+		}
+
+		@Override
+		public long getSize()
+		{
+			return 40 + 4L * m_rows.length + (m_inverse == null ? 0 : 16 + 4L * m_inverse.length);
+		}
+	}
+
+	/**
+	 * A mapping where the output spreadsheet is made of the rows of each input
+	 * spreadsheet, placed one after the other. Optionally, the first row of
+	 * the output is the header row of one of the inputs, and the header rows
+	 * of all the inputs are skipped.
+	 */
+	public static class RowOffsets extends CellMapping
+	{
+		/**
+		 * The output row where the rows of each input start.
+		 */
+		/*@ non_null @*/ protected final int[] m_starts;
+
+		/**
+		 * The number of rows of each input.
+		 */
+		/*@ non_null @*/ protected final int[] m_heights;
+
+		/**
+		 * The number of columns of each input.
+		 */
+		/*@ non_null @*/ protected final int[] m_widths;
+
+		/**
+		 * Whether the first row of each input is a header row.
+		 */
+		protected final boolean m_excludeFirst;
+
+		/**
+		 * The index of the input whose header row is copied to the output.
+		 */
+		protected final int m_labelInput;
+
+		/**
+		 * Creates a new row offset mapping.
+		 * @param heights The number of rows of each input
+		 * @param widths The number of columns of each input
+		 * @param exclude_first Whether the first row of each input is a header
+		 * row
+		 * @param label_input The index of the input whose header row is copied
+		 * to the output
+		 */
+		public RowOffsets(/*@ non_null @*/ int[] heights, /*@ non_null @*/ int[] widths, boolean exclude_first, int label_input)
+		{
+			super();
+			m_heights = heights;
+			m_widths = widths;
+			m_excludeFirst = exclude_first;
+			m_labelInput = label_input;
+			m_starts = new int[heights.length];
+			int start = exclude_first ? 1 : 0;
+			for (int i = 0; i < heights.length; i++)
+			{
+				m_starts[i] = start;
+				start += getRowCount(i);
+			}
+		}
+
+		@Override
+		public InputCell[] getInputCells(int col, int row)
+		{
+			if (col < 0 || row < 0)
+			{
+				return null;
+			}
+			if (m_excludeFirst && row == 0)
+			{
+				if (m_labelInput >= m_widths.length || col >= m_widths[m_labelInput])
+				{
+					return null;
+				}
+				return new InputCell[] {InputCell.get(col, 0, m_labelInput)};
+			}
+			// Find the last input whose rows start before the queried row
+			int lo = 0, hi = m_starts.length - 1, i = -1;
+			while (lo <= hi)
+			{
+				int mid = (lo + hi) >>> 1;
+				if (m_starts[mid] <= row)
+				{
+					i = mid;
+					lo = mid + 1;
+				}
+				else
+				{
+					hi = mid - 1;
+				}
+			}
+			if (i < 0 || row >= m_starts[i] + getRowCount(i) || col >= m_widths[i])
+			{
+				return null;
+			}
+			int in_row = row - m_starts[i] + (m_excludeFirst ? 1 : 0);
+			return new InputCell[] {InputCell.get(col, in_row, i)};
+		}
+
+		@Override
+		public Cell[] getOutputCells(int index, int col, int row)
+		{
+			if (index < 0 || index >= m_heights.length || col < 0 || col >= m_widths[index] || row < 0 || row >= m_heights[index])
+			{
+				return new Cell[0];
+			}
+			if (m_excludeFirst && row == 0)
+			{
+				if (index != m_labelInput)
+				{
+					return new Cell[0];
+				}
+				return new Cell[] {Cell.get(col, 0)};
+			}
+			return new Cell[] {Cell.get(col, m_starts[index] + row - (m_excludeFirst ? 1 : 0))};
+		}
+
+		@Override
+		public int getHeight()
+		{
+			int height = m_excludeFirst ? 1 : 0;
+			for (int i = 0; i < m_heights.length; i++)
+			{
+				height += getRowCount(i);
+			}
+			return height;
+		}
+
+		@Override
+		public long getSize()
+		{
+			return 88 + 12L * m_heights.length;
+		}
+
+		/**
+		 * Gets the number of rows an input contributes to the output.
+		 * @param i The index of the input
+		 * @return The number of rows
+		 */
+		protected int getRowCount(int i)
+		{
+			return Math.max(0, m_excludeFirst ? m_heights[i] - 1 : m_heights[i]);
+		}
+	}
+
+	/**
+	 * A mapping where the cells of a range of rows in one column are computed
+	 * from cells at fixed relative positions in the same row of the first
+	 * input spreadsheet, and all the other cells are copied from the input.
+	 * Output cell (<i>t</i>,<i>r</i>), where <i>t</i> is the target column,
+	 * corresponds to input cells (<i>c</i><sub>k</sub>,<i>r</i>+<i>o</i><sub>k</sub>)
+	 * for each reference (<i>c</i><sub>k</sub>,<i>o</i><sub>k</sub>). Only the
+	 * references are stored, regardless of the number of rows.
+	 */
+	public static class Stencil extends CellMapping
+	{
+		/**
+		 * The width of the input spreadsheet.
+		 */
+		protected final int m_width;
+
+		/**
+		 * The height of the output spreadsheet, which is also the height of the
+		 * input spreadsheet.
+		 */
+		protected final int m_height;
+
+		/**
+		 * The column of the output spreadsheet computed from the references.
+		 */
+		protected final int m_target;
+
+		/**
+		 * The first row of the target column computed from the references.
+		 */
+		protected final int m_from;
+
+		/**
+		 * The row after the last row of the target column computed from the
+		 * references.
+		 */
+		protected final int m_to;
+
+		/**
+		 * The column of each reference.
+		 */
+		/*@ non_null @*/ protected final int[] m_columns;
+
+		/**
+		 * The row offset of each reference.
+		 */
+		/*@ non_null @*/ protected final int[] m_offsets;
+
+		/**
+		 * Creates a new stencil mapping.
+		 * @param width The width of the input spreadsheet
+		 * @param height The height of the input spreadsheet
+		 * @param target The column computed from the references
+		 * @param from The first row of the target column computed from the
+		 * references
+		 * @param to The row after the last row of the target column computed
+		 * from the references
+		 * @param columns The column of each reference
+		 * @param offsets The row offset of each reference
+		 * @throws IllegalArgumentException If the target column or the column
+		 * of a reference is negative
+		 */
+		public Stencil(int width, int height, int target, int from, int to, /*@ non_null @*/ int[] columns, /*@ non_null @*/ int[] offsets)
+		{
+			super();
+			if (target < 0)
+			{
+				throw new IllegalArgumentException("Negative target column " + target);
+			}
+			for (int col : columns)
+			{
+				if (col < 0)
+				{
+					throw new IllegalArgumentException("Negative column reference " + col);
+				}
+			}
+			m_width = width;
+			m_height = height;
+			m_target = target;
+			m_from = from;
+			m_to = to;
+			m_columns = columns;
+			m_offsets = offsets;
+		}
+
+		@Override
+		public InputCell[] getInputCells(int col, int row)
+		{
+			if (row < 0 || row >= m_height || col < 0)
+			{
+				return null;
+			}
+			if (col != m_target || row < m_from || row >= m_to)
+			{
+				if (col >= m_width)
+				{
+					return null;
+				}
+				return new InputCell[] {InputCell.get(col, row)};
+			}
+			List<InputCell> cells = new ArrayList<InputCell>(m_columns.length);
+			for (int i = 0; i < m_columns.length; i++)
+			{
+				int in_row = row + m_offsets[i];
+				if (in_row >= 0 && in_row < m_height && m_columns[i] < m_width)
+				{
+					InputCell ic = InputCell.get(m_columns[i], in_row);
+					if (!cells.contains(ic))
+					{
+						cells.add(ic);
+					}
+				}
+			}
+			return cells.toArray(new InputCell[cells.size()]);
+		}
+
+		@Override
+		public Cell[] getOutputCells(int index, int col, int row)
+		{
+			if (index != 0 || row < 0 || row >= m_height || col < 0 || col >= m_width)
+			{
+				return new Cell[0];
+			}
+			// Output cells are encoded as row << 32 | col, so that sorting the
+			// keys puts them in row-major order
+			long[] keys = new long[m_columns.length + 1];
+			int count = 0;
+			if (col != m_target || row < m_from || row >= m_to)
+			{
+				keys[count++] = ((long) row << 32) | col;
+			}
+			for (int i = 0; i < m_columns.length; i++)
+			{
+				int out_row = row - m_offsets[i];
+				if (m_columns[i] == col && out_row >= m_from && out_row < m_to)
+				{
+					keys[count++] = ((long) out_row << 32) | m_target;
+				}
+			}
+			Arrays.sort(keys, 0, count);
+			List<Cell> cells = new ArrayList<Cell>(count);
+			for (int i = 0; i < count; i++)
+			{
+				if (i == 0 || keys[i] != keys[i - 1])
+				{
+					cells.add(Cell.get((int) keys[i], (int) (keys[i] >>> 32)));
+				}
+			}
+			return cells.toArray(new Cell[cells.size()]);
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return m_height;
+		}
+
+		@Override
+		public long getSize()
+		{
+			return 80 + 8L * m_columns.length;
+		}
+	}
+
+	/**
+	 * An inverted index associating references to input cells with the output
+	 * cells that depend on them. The index is built in two passes over the
+	 * references of a mapping: the first assigns a number to each distinct
+	 * reference and counts the output cells of each, and the second lays out
+	 * the output cells of all the references one after the other in a single
+	 * array. A query therefore takes a time proportional to the number of
+	 * output cells it returns.
+	 * <p>
+	 * References are arbitrary <tt>long</tt> keys; output cells are numbered
+	 * <i>row</i> &times; <i>width</i> + <i>col</i>.
+	 */
+	public static class Inverse
+	{
+		/**
+		 * The number given to each distinct reference.
+		 */
+		/*@ non_null @*/ protected final Map<Long,Integer> m_ids;
+
+		/**
+		 * The position in {@link #m_cells} where the output cells of each
+		 * reference start.
+		 */
+		/*@ non_null @*/ protected final int[] m_offsets;
+
+		/**
+		 * The output cells of all the references, in ascending order for each
+		 * reference.
+		 */
+		/*@ non_null @*/ protected final int[] m_cells;
+
+		/**
+		 * Creates a new inverted index.
+		 * @param offsets The position in <tt>keys</tt> where the references of
+		 * each output cell start; the array has one more element than the
+		 * number of output cells, and its last element is the number of
+		 * references
+		 * @param keys The references of all the output cells
+		 * @param num_cells The number of output cells
+		 */
+		public Inverse(/*@ non_null @*/ int[] offsets, /*@ non_null @*/ long[] keys, int num_cells)
+		{
+			super();
+			m_ids = new HashMap<Long,Integer>();
+			int[] ids = new int[offsets[num_cells]];
+			int[] counts = new int[16];
+			for (int cell = 0; cell < num_cells; cell++)
+			{
+				for (int i = offsets[cell]; i < offsets[cell + 1]; i++)
+				{
+					Integer id = m_ids.get(keys[i]);
+					if (id == null)
+					{
+						id = m_ids.size();
+						m_ids.put(keys[i], id);
+						if (id >= counts.length)
+						{
+							int[] new_counts = new int[counts.length * 2];
+							System.arraycopy(counts, 0, new_counts, 0, counts.length);
+							counts = new_counts;
+						}
+					}
+					ids[i] = id;
+					counts[id]++;
+				}
+			}
+			m_offsets = new int[m_ids.size() + 1];
+			for (int id = 0; id < m_ids.size(); id++)
+			{
+				m_offsets[id + 1] = m_offsets[id] + counts[id];
+			}
+			m_cells = new int[ids.length];
+			int[] position = new int[m_ids.size()];
+			for (int cell = 0; cell < num_cells; cell++)
+			{
+				for (int i = offsets[cell]; i < offsets[cell + 1]; i++)
+				{
+					int id = ids[i];
+					m_cells[m_offsets[id] + position[id]++] = cell;
+				}
+			}
+		}
+
+		/**
+		 * Gets the output cells that depend on a reference.
+		 * @param key The reference
+		 * @return The numbers of the output cells, in ascending order and
+		 * possibly with repetitions
+		 */
+		/*@ pure non_null @*/ public int[] get(long key)
+		{
+			Integer id = m_ids.get(key);
+			if (id == null)
+			{
+				return new int[0];
+			}
+			int[] cells = new int[m_offsets[id + 1] - m_offsets[id]];
+			System.arraycopy(m_cells, m_offsets[id], cells, 0, cells.length);
+			return cells;
+		}
+
+		/**
+		 * Gets the output cells that depend on a reference.
+		 * @param key The reference
+		 * @param width The width of the output spreadsheet
+		 * @return The output cells, in row-major order and without repetitions
+		 */
+		/*@ pure non_null @*/ public Cell[] getCells(long key, int width)
+		{
+			Integer id = m_ids.get(key);
+			if (id == null)
+			{
+				return new Cell[0];
+			}
+			int from = m_offsets[id], to = m_offsets[id + 1], count = 0;
+			Cell[] cells = new Cell[to - from];
+			for (int i = from; i < to; i++)
+			{
+				// An output cell may refer to the same input cell more than once
+				if (i == from || m_cells[i] != m_cells[i - 1])
+				{
+					cells[count++] = Cell.get(m_cells[i] % width, m_cells[i] / width);
+				}
+			}
+			if (count < cells.length)
+			{
+				Cell[] trimmed = new Cell[count];
+				System.arraycopy(cells, 0, trimmed, 0, count);
+				return trimmed;
+			}
+			return cells;
+		}
+
+		/**
+		 * Gets an estimate of the memory occupied by this index.
+		 * @return The size, in bytes
+		 */
+		/*@ pure @*/ public long getSize()
+		{
+			return 64 + 64L * m_ids.size() + 4L * m_offsets.length + 4L * m_cells.length;
+		}
+	}
+}
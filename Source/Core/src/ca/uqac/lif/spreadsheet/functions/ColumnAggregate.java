@@ -0,0 +1,498 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ca.uqac.lif.dag.LabelledNode;
+import ca.uqac.lif.petitpoucet.AndNode;
+import ca.uqac.lif.petitpoucet.Part;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
+import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.petitpoucet.function.RelationNodeFactory;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Computes one or more aggregate values on each column of a spreadsheet.
+ * The first row of the input is interpreted as column headers, and is copied
+ * as is in the output; the output then contains one row for each aggregate
+ * passed to the function, in the order they are given. For example, given
+ * the following table:
+ * <p>
+ * <table border="1">
+ * <tr><th>A</th><th>B</th></tr>
+ * <tr><td>3</td><td>1</td></tr>
+ * <tr><td>1</td><td></td></tr>
+ * <tr><td>5</td><td>9</td></tr>
+ * </table>
+ * <p>
+ * the function {@code new ColumnAggregate(Aggregate.SUM, Aggregate.MAX, Aggregate.NULL_COUNT)}
+ * produces the following result:
+ * <p>
+ * <table border="1">
+ * <tr><th>A</th><th>B</th></tr>
+ * <tr><td>9</td><td>10</td></tr>
+ * <tr><td>5</td><td>9</td></tr>
+ * <tr><td>0</td><td>1</td></tr>
+ * </table>
+ * <p>
+ * Cells that are not numbers are ignored by all the aggregates, except
+ * {@link Aggregate#NULL_COUNT NULL_COUNT}, which counts the empty cells of
+ * each column. The spreadsheet is read in a single pass, row by row; for
+ * very tall spreadsheets, the rows can be divided among multiple threads
+ * with {@link #setThreads(int)}.
+ * <p>
+ * An aggregate is explained by the whole range of data cells of its column,
+ * except the minimum and the maximum, which are explained by the cell where
+ * the extremum was found. This correspondence is not stored, but computed
+ * when an explanation is requested. By default, the range of data cells is
+ * designated by a single {@link CellRange}, so that the size of an
+ * explanation does not grow with the height of the input; with
+ * {@code compactRanges(false)}, it is instead made of one part for each
+ * cell of the range.
+ *
+ * @author Sylvain Hallé
+ */
+public class ColumnAggregate extends SpreadsheetFunction
+{
+	/**
+	 * The aggregates that can be computed on a column.
+	 */
+	public enum Aggregate
+	{
+		/**
+		 * The sum of the values.
+		 */
+		SUM,
+
+		/**
+		 * The smallest value.
+		 */
+		MIN,
+
+		/**
+		 * The largest value.
+		 */
+		MAX,
+
+		/**
+		 * The arithmetic mean of the values.
+		 */
+		MEAN,
+
+		/**
+		 * The number of values, as a {@link Long}.
+		 */
+		COUNT,
+
+		/**
+		 * The sample variance of the values.
+		 */
+		VARIANCE,
+
+		/**
+		 * The number of empty cells, as a {@link Long}.
+		 */
+		NULL_COUNT
+	}
+
+	/**
+	 * The aggregates computed by this function.
+	 */
+	/*@ non_null @*/ protected final Aggregate[] m_aggregates;
+
+	/**
+	 * The number of threads used to read the spreadsheet.
+	 */
+	protected int m_numThreads = 1;
+
+	/**
+	 * The height of the last spreadsheet given to the function.
+	 */
+	protected int m_inputHeight = -1;
+
+	/**
+	 * The accumulator of each column of the last spreadsheet given to the
+	 * function.
+	 */
+	/*@ null @*/ protected Accumulator[] m_accumulators;
+
+	/**
+	 * Creates a new column aggregate function.
+	 * @param aggregates The aggregates to compute on each column
+	 */
+	public ColumnAggregate(/*@ non_null @*/ Aggregate ... aggregates)
+	{
+		super(1);
+		m_aggregates = aggregates;
+		m_compactRanges = true;
+	}
+
+	/**
+	 * Sets the number of threads used to read the spreadsheet. When more than
+	 * one thread is used, each thread aggregates a slice of the rows, and the
+	 * partial aggregates are then merged together.
+	 * @param num_threads The number of threads
+	 * @return This function
+	 */
+	/*@ non_null @*/ public ColumnAggregate setThreads(int num_threads)
+	{
+		m_numThreads = Math.max(1, num_threads);
+		return this;
+	}
+
+	@Override
+	protected Object[] getValue(Object... inputs) throws InvalidNumberOfArgumentsException
+	{
+		if (!(inputs[0] instanceof Spreadsheet))
+		{
+			throw new InvalidArgumentTypeException("Argument is not a spreadsheet");
+		}
+		startLineage(inputs);
+		// Nothing needs to be replayed: the accumulators computed below are
+		// enough to explain the output
+		m_replayInputs = null;
+		final Spreadsheet s = (Spreadsheet) inputs[0];
+		final int width = s.getWidth(), num_rows = Math.max(0, s.getHeight() - 1);
+		final int num_slices = ParallelSlices.getSliceCount(m_numThreads, num_rows);
+		final Accumulator[][] partial = new Accumulator[num_slices][width];
+		ParallelSlices.run(num_slices, num_rows, new ParallelSlices.SliceTask()
+		{
+			@Override
+			public void run(int slice, int from, int to)
+			{
+				Accumulator[] accs = partial[slice];
+				for (int col = 0; col < width; col++)
+				{
+					accs[col] = new Accumulator();
+				}
+				for (int row = from + 1; row <= to; row++) // + 1 since first line is col name
+				{
+					Object[] contents = s.getRow(row);
+					for (int col = 0; col < width; col++)
+					{
+						Object o = contents[col];
+						if (o instanceof Number)
+						{
+							accs[col].add(((Number) o).doubleValue(), row);
+						}
+						else if (o == null)
+						{
+							accs[col].addNull();
+						}
+					}
+				}
+			}
+		});
+		for (int slice = 1; slice < num_slices; slice++)
+		{
+			for (int col = 0; col < width; col++)
+			{
+				partial[0][col].merge(partial[slice][col]);
+			}
+		}
+		m_accumulators = partial[0];
+		m_inputHeight = s.getHeight();
+		Spreadsheet out = new Spreadsheet(width, m_aggregates.length + 1);
+		for (int col = 0; col < width; col++)
+		{
+			out.set(col, 0, s.getHeight() > 0 ? s.get(col, 0) : null);
+			for (int i = 0; i < m_aggregates.length; i++)
+			{
+				out.set(col, i + 1, m_accumulators[col].get(m_aggregates[i]));
+			}
+		}
+		endLineage();
+		return new Object[] {out};
+	}
+
+	@Override
+	public PartNode getExplanation(Part part, RelationNodeFactory factory)
+	{
+		int output_nb = NthOutput.mentionedOutput(part);
+		Cell c = Cell.mentionedCell(part);
+		if (output_nb != 0 || c == null)
+		{
+			return super.getExplanation(part, factory);
+		}
+		if (!hasLineage())
+		{
+			return getUnrecordedExplanation(part, factory);
+		}
+		PartNode root = factory.getPartNode(part, this);
+		int row = c.getRow(), col = c.getColumn();
+		if (m_accumulators == null || col < 0 || col >= m_accumulators.length || row < 0 || row > m_aggregates.length)
+		{
+			return root;
+		}
+		if (row == 0)
+		{
+			root.addChild(factory.getPartNode(InputCell.get(col, 0).getPart(), this));
+			return root;
+		}
+		Aggregate a = m_aggregates[row - 1];
+		Accumulator acc = m_accumulators[col];
+		if ((a == Aggregate.MIN || a == Aggregate.MAX) && acc.m_count > 0)
+		{
+			int arg_row = a == Aggregate.MIN ? acc.m_minRow : acc.m_maxRow;
+			root.addChild(factory.getPartNode(InputCell.get(col, arg_row).getPart(), this));
+			return root;
+		}
+		LabelledNode to_add = root;
+		if (m_inputHeight > 2 && !m_compactRanges)
+		{
+			AndNode and = factory.getAndNode();
+			root.addChild(and);
+			to_add = and;
+		}
+		addInputColumn(to_add, col, 1, m_inputHeight - 1, factory);
+		return root;
+	}
+
+	@Override
+	public Cell[] dependents(int index, Cell c)
+	{
+		int row = c.getRow(), col = c.getColumn();
+		if (index != 0 || !hasLineage() || m_accumulators == null || col < 0 || col >= m_accumulators.length || row < 0 || row >= m_inputHeight)
+		{
+			return new Cell[0];
+		}
+		if (row == 0)
+		{
+			return new Cell[] {Cell.get(col, 0)};
+		}
+		Accumulator acc = m_accumulators[col];
+		List<Cell> cells = new ArrayList<Cell>(m_aggregates.length);
+		for (int i = 0; i < m_aggregates.length; i++)
+		{
+			Aggregate a = m_aggregates[i];
+			if ((a == Aggregate.MIN || a == Aggregate.MAX) && acc.m_count > 0)
+			{
+				// Only the row where the extremum is found is involved
+				if (row != (a == Aggregate.MIN ? acc.m_minRow : acc.m_maxRow))
+				{
+					continue;
+				}
+			}
+			cells.add(Cell.get(col, i + 1));
+		}
+		return cells.toArray(new Cell[cells.size()]);
+	}
+
+	@Override
+	public synchronized long getLineageSize()
+	{
+		// An accumulator holds two longs, five doubles and two ints
+		return m_accumulators == null ? 0 : 16 + 80L * m_accumulators.length;
+	}
+
+	@Override
+	public synchronized void expireLineage()
+	{
+		super.expireLineage();
+		m_accumulators = null;
+	}
+
+	@Override
+	public void reset()
+	{
+		super.reset();
+		m_accumulators = null;
+		m_inputHeight = -1;
+	}
+
+	@Override
+	public ColumnAggregate duplicate(boolean with_state)
+	{
+		ColumnAggregate ca = new ColumnAggregate(m_aggregates);
+		copyInto(ca, with_state);
+		return ca;
+	}
+
+	protected void copyInto(ColumnAggregate ca, boolean with_state)
+	{
+		super.copyInto(ca, with_state);
+		ca.m_numThreads = m_numThreads;
+		if (with_state)
+		{
+			ca.m_inputHeight = m_inputHeight;
+			if (m_accumulators != null)
+			{
+				// Accumulators are never modified once computed, and can be shared
+				ca.m_accumulators = Arrays.copyOf(m_accumulators, m_accumulators.length);
+			}
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Aggregate " + Arrays.toString(m_aggregates);
+	}
+
+	/**
+	 * Computes all the supported aggregates of a sequence of values in a
+	 * single pass. The mean and the variance are updated incrementally using
+	 * Welford's method, which avoids the loss of precision of the naive
+	 * "sum of squares" formula. Two accumulators computed on disjoint parts of
+	 * a sequence can be merged into one.
+	 */
+	public static class Accumulator
+	{
+		/**
+		 * The number of values.
+		 */
+		protected long m_count = 0;
+
+		/**
+		 * The number of empty cells.
+		 */
+		protected long m_nullCount = 0;
+
+		/**
+		 * The sum of the values.
+		 */
+		protected double m_sum = 0;
+
+		/**
+		 * The running mean of the values.
+		 */
+		protected double m_mean = 0;
+
+		/**
+		 * The sum of squared differences from the mean.
+		 */
+		protected double m_m2 = 0;
+
+		/**
+		 * The smallest value.
+		 */
+		protected double m_min = Double.POSITIVE_INFINITY;
+
+		/**
+		 * The largest value.
+		 */
+		protected double m_max = Double.NEGATIVE_INFINITY;
+
+		/**
+		 * The row where the smallest value was first seen.
+		 */
+		protected int m_minRow = -1;
+
+		/**
+		 * The row where the largest value was first seen.
+		 */
+		protected int m_maxRow = -1;
+
+		/**
+		 * Adds a value to the accumulator.
+		 * @param x The value
+		 * @param row The row where the value is found
+		 */
+		public void add(double x, int row)
+		{
+			m_count++;
+			m_sum += x;
+			double delta = x - m_mean;
+			m_mean += delta / m_count;
+			m_m2 += delta * (x - m_mean);
+			if (x < m_min)
+			{
+				m_min = x;
+				m_minRow = row;
+			}
+			if (x > m_max)
+			{
+				m_max = x;
+				m_maxRow = row;
+			}
+		}
+
+		/**
+		 * Signals an empty cell to the accumulator.
+		 */
+		public void addNull()
+		{
+			m_nullCount++;
+		}
+
+		/**
+		 * Merges the contents of another accumulator into this one. The values
+		 * of the other accumulator are assumed to come after those of this one.
+		 * @param other The other accumulator
+		 */
+		public void merge(/*@ non_null @*/ Accumulator other)
+		{
+			if (other.m_count > 0)
+			{
+				long n = m_count + other.m_count;
+				double delta = other.m_mean - m_mean;
+				m_mean += delta * other.m_count / n;
+				m_m2 += other.m_m2 + delta * delta * ((double) m_count * other.m_count / n);
+				m_count = n;
+				m_sum += other.m_sum;
+				if (other.m_min < m_min)
+				{
+					m_min = other.m_min;
+					m_minRow = other.m_minRow;
+				}
+				if (other.m_max > m_max)
+				{
+					m_max = other.m_max;
+					m_maxRow = other.m_maxRow;
+				}
+			}
+			m_nullCount += other.m_nullCount;
+		}
+
+		/**
+		 * Gets the value of an aggregate.
+		 * @param a The aggregate
+		 * @return The value, or <tt>null</tt> if the aggregate is undefined
+		 * (such as the mean of an empty sequence)
+		 */
+		/*@ null @*/ public Number get(/*@ non_null @*/ Aggregate a)
+		{
+			switch (a)
+			{
+			case SUM:
+				return m_sum;
+			case MIN:
+				return m_count == 0 ? null : m_min;
+			case MAX:
+				return m_count == 0 ? null : m_max;
+			case MEAN:
+				return m_count == 0 ? null : m_mean;
+			case COUNT:
+				return m_count;
+			case VARIANCE:
+				return m_count < 2 ? null : m_m2 / (m_count - 1);
+			case NULL_COUNT:
+				return m_nullCount;
+			default:
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,748 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ca.uqac.lif.petitpoucet.function.Function;
+import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
+import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Fills a column of a spreadsheet by applying the same formula to every row
+ * of a range, in the way a spreadsheet user would "fill down" a formula such
+ * as <tt>C[i] = A[i] / B[i]</tt>. The formula is defined once, as a tree of
+ * {@link Term}s whose cell references are relative to the current row, and
+ * is applied to all the rows in a single loop. This avoids creating one
+ * {@link CellFormula} with its own chain of functions for each row, as
+ * {@link ApplyFormula} would require.
+ * <p>
+ * When a formula is only made of arithmetic operations on references and
+ * numerical constants, it is computed on blocks of rows using arrays of
+ * primitive values, and only the final result of each row is boxed. Rows
+ * where one of the referenced cells does not contain a number (or where
+ * the result is not a number) are computed again one by one; the output is
+ * therefore the same as if the whole formula had been evaluated on
+ * objects. Arithmetic operations produce {@link Double} values, and
+ * produce <tt>null</tt> when one of their operands is not a number.
+ * <p>
+ * All the references are read from the input spreadsheet; the output is a
+ * copy of the input where the target column (which is added if needed) is
+ * replaced by the values of the formula. The lineage of the output is a
+ * {@link CellMapping.Stencil}, which only records the relative references of
+ * the formula instead of the input cells of every row.
+ *
+ * @author Sylvain Hallé
+ */
+public class ColumnFormula extends SpreadsheetFunction
+{
+	/**
+	 * The number of rows computed at once when a formula is evaluated on
+	 * primitive values.
+	 */
+	public static final int BLOCK_SIZE = 1024;
+
+	/**
+	 * The column whose values are computed by the formula.
+	 */
+	protected final int m_target;
+
+	/**
+	 * The formula applied to each row.
+	 */
+	/*@ non_null @*/ protected final Term m_formula;
+
+	/**
+	 * The first row to which the formula is applied.
+	 */
+	protected int m_from = 1;
+
+	/**
+	 * The row after the last row to which the formula is applied, or -1 to
+	 * apply it up to the end of the spreadsheet.
+	 */
+	protected int m_to = -1;
+
+	/**
+	 * Creates a new column formula. By default, the formula is applied to
+	 * all the rows except the first, which is assumed to contain the column
+	 * headers.
+	 * @param target The column whose values are computed by the formula
+	 * @param formula The formula applied to each row
+	 */
+	public ColumnFormula(int target, /*@ non_null @*/ Term formula)
+	{
+		super(1);
+		m_target = target;
+		m_formula = formula;
+	}
+
+	/**
+	 * Sets the range of rows to which the formula is applied.
+	 * @param from The first row
+	 * @param to The row after the last row, or -1 to apply the formula up to
+	 * the end of the spreadsheet
+	 * @return This function
+	 */
+	/*@ non_null @*/ public ColumnFormula setRows(int from, int to)
+	{
+		m_from = Math.max(0, from);
+		m_to = to;
+		return this;
+	}
+
+	@Override
+	protected Object[] getValue(Object ... inputs) throws InvalidNumberOfArgumentsException
+	{
+		if (!(inputs[0] instanceof Spreadsheet))
+		{
+			throw new InvalidArgumentTypeException("Argument is not a spreadsheet");
+		}
+		Spreadsheet s = (Spreadsheet) inputs[0];
+		boolean track = startLineage(inputs);
+		int width = s.getWidth(), height = s.getHeight();
+		int from = Math.min(m_from, height), to = m_to < 0 ? height : Math.max(from, Math.min(m_to, height));
+		Spreadsheet out;
+		if (m_target < width)
+		{
+			out = s.duplicate();
+		}
+		else
+		{
+			out = new Spreadsheet(m_target + 1, height);
+			for (int row = 0; row < height; row++)
+			{
+				for (int col = 0; col < width; col++)
+				{
+					out.set(col, row, s.get(col, row));
+				}
+			}
+		}
+		if (m_formula.isNumeric())
+		{
+			double[] values = new double[BLOCK_SIZE];
+			for (int start = from; start < to; start += BLOCK_SIZE)
+			{
+				int end = Math.min(to, start + BLOCK_SIZE);
+				m_formula.evaluate(s, start, end, values);
+				for (int row = start; row < end; row++)
+				{
+					double v = values[row - start];
+					out.set(m_target, row, Double.isNaN(v) ? m_formula.evaluate(s, row) : (Object) v);
+				}
+			}
+		}
+		else
+		{
+			for (int row = from; row < to; row++)
+			{
+				out.set(m_target, row, m_formula.evaluate(s, row));
+			}
+		}
+		if (track)
+		{
+			List<Ref> refs = new ArrayList<Ref>();
+			m_formula.getReferences(refs);
+			int[] columns = new int[refs.size()], offsets = new int[refs.size()];
+			for (int i = 0; i < refs.size(); i++)
+			{
+				columns[i] = refs.get(i).m_column;
+				offsets[i] = refs.get(i).m_offset;
+			}
+			m_mapping = new CellMapping.Stencil(width, height, m_target, from, to, columns, offsets);
+		}
+		endLineage();
+		return new Object[] {out};
+	}
+
+	@Override
+	public ColumnFormula duplicate(boolean with_state)
+	{
+		ColumnFormula cf = new ColumnFormula(m_target, m_formula.duplicate());
+		cf.m_from = m_from;
+		cf.m_to = m_to;
+		copyInto(cf, with_state);
+		return cf;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Column formula " + m_formula;
+	}
+
+	/**
+	 * Creates a reference to the cell of a column in the current row.
+	 * @param col The column
+	 * @return The reference
+	 */
+	/*@ non_null @*/ public static Ref ref(int col)
+	{
+		return new Ref(col, 0);
+	}
+
+	/**
+	 * Creates a reference to the cell of a column in a row relative to the
+	 * current row.
+	 * @param col The column
+	 * @param offset The offset of the row; for example, -1 designates the
+	 * previous row
+	 * @return The reference
+	 */
+	/*@ non_null @*/ public static Ref ref(int col, int offset)
+	{
+		return new Ref(col, offset);
+	}
+
+	/**
+	 * Creates a constant term.
+	 * @param value The value of the constant
+	 * @return The term
+	 */
+	/*@ non_null @*/ public static Term constant(/*@ null @*/ Object value)
+	{
+		return new Constant(value);
+	}
+
+	/**
+	 * Creates a term adding two terms.
+	 * @param left The left operand
+	 * @param right The right operand
+	 * @return The term
+	 */
+	/*@ non_null @*/ public static Term add(/*@ non_null @*/ Term left, /*@ non_null @*/ Term right)
+	{
+		return new Arithmetic(Operator.ADD, left, right);
+	}
+
+	/**
+	 * Creates a term subtracting a term from another.
+	 * @param left The left operand
+	 * @param right The right operand
+	 * @return The term
+	 */
+	/*@ non_null @*/ public static Term subtract(/*@ non_null @*/ Term left, /*@ non_null @*/ Term right)
+	{
+		return new Arithmetic(Operator.SUBTRACT, left, right);
+	}
+
+	/**
+	 * Creates a term multiplying two terms.
+	 * @param left The left operand
+	 * @param right The right operand
+	 * @return The term
+	 */
+	/*@ non_null @*/ public static Term multiply(/*@ non_null @*/ Term left, /*@ non_null @*/ Term right)
+	{
+		return new Arithmetic(Operator.MULTIPLY, left, right);
+	}
+
+	/**
+	 * Creates a term dividing a term by another.
+	 * @param left The left operand
+	 * @param right The right operand
+	 * @return The term
+	 */
+	/*@ non_null @*/ public static Term divide(/*@ non_null @*/ Term left, /*@ non_null @*/ Term right)
+	{
+		return new Arithmetic(Operator.DIVIDE, left, right);
+	}
+
+	/**
+	 * Creates a term applying an arbitrary function to other terms.
+	 * @param f The function, whose output arity must be 1
+	 * @param arguments The terms giving the arguments of the function
+	 * @return The term
+	 */
+	/*@ non_null @*/ public static Term apply(/*@ non_null @*/ Function f, /*@ non_null @*/ Term ... arguments)
+	{
+		return new Apply(f, arguments);
+	}
+
+	/**
+	 * An element of a formula, whose value is computed for a given row.
+	 */
+	public abstract static class Term
+	{
+		/**
+		 * Computes the value of the term for a row.
+		 * @param s The spreadsheet the references of the term refer to
+		 * @param row The row
+		 * @return The value
+		 */
+		/*@ null @*/ public abstract Object evaluate(/*@ non_null @*/ Spreadsheet s, int row);
+
+		/**
+		 * Determines if the term can be computed on primitive values with
+		 * {@link #evaluate(Spreadsheet, int, int, double[])}.
+		 * @return <tt>true</tt> if the term can be computed on primitive values,
+		 * <tt>false</tt> otherwise
+		 */
+		/*@ pure @*/ public boolean isNumeric()
+		{
+			return false;
+		}
+
+		/**
+		 * Computes the value of the term for a range of rows, as primitive
+		 * values. Rows where the term does not have a numerical value are given
+		 * the value {@link Double#NaN}.
+		 * @param s The spreadsheet the references of the term refer to
+		 * @param from The first row
+		 * @param to The row after the last row
+		 * @param out The array where the value of each row is written, starting
+		 * at index 0
+		 */
+		public void evaluate(/*@ non_null @*/ Spreadsheet s, int from, int to, /*@ non_null @*/ double[] out)
+		{
+			for (int row = from; row < to; row++)
+			{
+				Object o = evaluate(s, row);
+				out[row - from] = o instanceof Number ? ((Number) o).doubleValue() : Double.NaN;
+			}
+		}
+
+		/**
+		 * Adds the cell references occurring in this term to a list.
+		 * @param refs The list
+		 */
+		public abstract void getReferences(/*@ non_null @*/ List<Ref> refs);
+
+		/**
+		 * Creates a copy of this term.
+		 * @return The copy
+		 */
+		/*@ non_null @*/ public abstract Term duplicate();
+	}
+
+	/**
+	 * A reference to a cell, relative to the current row.
+	 */
+	public static class Ref extends Term
+	{
+		/**
+		 * The column of the cell.
+		 */
+		protected final int m_column;
+
+		/**
+		 * The offset of the row of the cell, relative to the current row.
+		 */
+		protected final int m_offset;
+
+		/**
+		 * Creates a new reference.
+		 * @param col The column of the cell
+		 * @param offset The offset of the row of the cell, relative to the
+		 * current row
+		 * @throws IllegalArgumentException If the column is negative
+		 */
+		public Ref(int col, int offset)
+		{
+			super();
+			if (col < 0)
+			{
+				throw new IllegalArgumentException("Negative column " + col);
+			}
+			m_column = col;
+			m_offset = offset;
+		}
+
+		/**
+		 * Gets the column of the cell.
+		 * @return The column
+		 */
+		/*@ pure @*/ public int getColumn()
+		{
+			return m_column;
+		}
+
+		/**
+		 * Gets the offset of the row of the cell.
+		 * @return The offset
+		 */
+		/*@ pure @*/ public int getOffset()
+		{
+			return m_offset;
+		}
+
+		@Override
+		public Object evaluate(Spreadsheet s, int row)
+		{
+			int r = row + m_offset;
+			if (r < 0 || r >= s.getHeight() || m_column >= s.getWidth())
+			{
+				return null;
+			}
+			return s.get(m_column, r);
+		}
+
+		@Override
+		public boolean isNumeric()
+		{
+			return true;
+		}
+
+		@Override
+		public void evaluate(Spreadsheet s, int from, int to, double[] out)
+		{
+			// Rows outside of the spreadsheet are left to NaN
+			int first = Math.max(from, -m_offset), last = Math.min(to, s.getHeight() - m_offset);
+			if (m_column >= s.getWidth() || first >= last)
+			{
+				Arrays.fill(out, 0, to - from, Double.NaN);
+				return;
+			}
+			Arrays.fill(out, 0, first - from, Double.NaN);
+			Arrays.fill(out, last - from, to - from, Double.NaN);
+			for (int row = first; row < last; row++)
+			{
+				Object o = s.get(m_column, row + m_offset);
+				out[row - from] = o instanceof Number ? ((Number) o).doubleValue() : Double.NaN;
+			}
+		}
+
+		@Override
+		public void getReferences(List<Ref> refs)
+		{
+			refs.add(this);
+		}
+
+		@Override
+		public Ref duplicate()
+		{
+			return this;
+		}
+
+		@Override
+		public String toString()
+		{
+			if (m_offset == 0)
+			{
+				return "C" + m_column + "[i]";
+			}
+			return "C" + m_column + "[i" + (m_offset > 0 ? "+" : "") + m_offset + "]";
+		}
+	}
+
+	/**
+	 * A term whose value is the same for every row.
+	 */
+	public static class Constant extends Term
+	{
+		/**
+		 * The value of the constant.
+		 */
+		/*@ null @*/ protected final Object m_value;
+
+		/**
+		 * Creates a new constant.
+		 * @param value The value of the constant
+		 */
+		public Constant(/*@ null @*/ Object value)
+		{
+			super();
+			m_value = value;
+		}
+
+		@Override
+		public Object evaluate(Spreadsheet s, int row)
+		{
+			return m_value;
+		}
+
+		@Override
+		public boolean isNumeric()
+		{
+			return m_value instanceof Number;
+		}
+
+		@Override
+		public void evaluate(Spreadsheet s, int from, int to, double[] out)
+		{
+			double v = m_value instanceof Number ? ((Number) m_value).doubleValue() : Double.NaN;
+			for (int i = 0; i < to - from; i++)
+			{
+				out[i] = v;
+			}
+		}
+
+		@Override
+		public void getReferences(List<Ref> refs)
+		{
+			// Nothing to do
+		}
+
+		@Override
+		public Constant duplicate()
+		{
+			return this;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.valueOf(m_value);
+		}
+	}
+
+	/**
+	 * The arithmetic operators that can be computed on primitive values.
+	 */
+	public enum Operator
+	{
+		ADD("+"), SUBTRACT("-"), MULTIPLY("*"), DIVIDE("/");
+
+		/**
+		 * The symbol of the operator.
+		 */
+		private final String m_symbol;
+
+		private Operator(String symbol)
+		{
+			m_symbol = symbol;
+		}
+
+		/**
+		 * Applies the operator to two values.
+		 * @param x The left operand
+		 * @param y The right operand
+		 * @return The result
+		 */
+		public double apply(double x, double y)
+		{
+			switch (this)
+			{
+			case ADD:
+				return x + y;
+			case SUBTRACT:
+				return x - y;
+			case MULTIPLY:
+				return x * y;
+			default:
+				return x / y;
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return m_symbol;
+		}
+	}
+
+	/**
+	 * A term applying an arithmetic operator to two other terms.
+	 */
+	public static class Arithmetic extends Term
+	{
+		/**
+		 * The operator.
+		 */
+		/*@ non_null @*/ protected final Operator m_operator;
+
+		/**
+		 * The left operand.
+		 */
+		/*@ non_null @*/ protected final Term m_left;
+
+		/**
+		 * The right operand.
+		 */
+		/*@ non_null @*/ protected final Term m_right;
+
+		/**
+		 * The buffer receiving the values of the right operand when the term is
+		 * computed on primitive values. It is reused from one block of rows to
+		 * the next, so that a term, like the function it belongs to, must not
+		 * be evaluated by several threads at the same time.
+		 */
+		/*@ null @*/ protected double[] m_scratch;
+
+		/**
+		 * Creates a new arithmetic term.
+		 * @param op The operator
+		 * @param left The left operand
+		 * @param right The right operand
+		 */
+		public Arithmetic(/*@ non_null @*/ Operator op, /*@ non_null @*/ Term left, /*@ non_null @*/ Term right)
+		{
+			super();
+			m_operator = op;
+			m_left = left;
+			m_right = right;
+		}
+
+		@Override
+		public Object evaluate(Spreadsheet s, int row)
+		{
+			Object x = m_left.evaluate(s, row);
+			Object y = m_right.evaluate(s, row);
+			if (!(x instanceof Number) || !(y instanceof Number))
+			{
+				return null;
+			}
+			return m_operator.apply(((Number) x).doubleValue(), ((Number) y).doubleValue());
+		}
+
+		@Override
+		public boolean isNumeric()
+		{
+			return m_left.isNumeric() && m_right.isNumeric();
+		}
+
+		@Override
+		public void evaluate(Spreadsheet s, int from, int to, double[] out)
+		{
+			int len = to - from;
+			if (m_scratch == null || m_scratch.length < len)
+			{
+				m_scratch = new double[len];
+			}
+			double[] right = m_scratch;
+			m_left.evaluate(s, from, to, out);
+			m_right.evaluate(s, from, to, right);
+			switch (m_operator)
+			{
+			case ADD:
+				for (int i = 0; i < len; i++)
+				{
+					out[i] += right[i];
+				}
+				break;
+			case SUBTRACT:
+				for (int i = 0; i < len; i++)
+				{
+					out[i] -= right[i];
+				}
+				break;
+			case MULTIPLY:
+				for (int i = 0; i < len; i++)
+				{
+					out[i] *= right[i];
+				}
+				break;
+			default:
+				for (int i = 0; i < len; i++)
+				{
+					out[i] /= right[i];
+				}
+			}
+		}
+
+		@Override
+		public void getReferences(List<Ref> refs)
+		{
+			m_left.getReferences(refs);
+			m_right.getReferences(refs);
+		}
+
+		@Override
+		public Arithmetic duplicate()
+		{
+			return new Arithmetic(m_operator, m_left.duplicate(), m_right.duplicate());
+		}
+
+		@Override
+		public String toString()
+		{
+			return "(" + m_left + " " + m_operator + " " + m_right + ")";
+		}
+	}
+
+	/**
+	 * A term applying a function to the values of other terms. Such a term is
+	 * always computed on objects.
+	 */
+	public static class Apply extends Term
+	{
+		/**
+		 * The function to apply.
+		 */
+		/*@ non_null @*/ protected final Function m_function;
+
+		/**
+		 * The terms giving the arguments of the function.
+		 */
+		/*@ non_null @*/ protected final Term[] m_arguments;
+
+		/**
+		 * Creates a new function application.
+		 * @param f The function, whose output arity must be 1
+		 * @param arguments The terms giving the arguments of the function
+		 */
+		public Apply(/*@ non_null @*/ Function f, /*@ non_null @*/ Term ... arguments)
+		{
+			super();
+			m_function = f;
+			m_arguments = arguments;
+		}
+
+		@Override
+		public Object evaluate(Spreadsheet s, int row)
+		{
+			Object[] args = new Object[m_arguments.length];
+			for (int i = 0; i < args.length; i++)
+			{
+				args[i] = m_arguments[i].evaluate(s, row);
+			}
+			m_function.reset();
+			return m_function.evaluate(args)[0];
+		}
+
+		@Override
+		public void getReferences(List<Ref> refs)
+		{
+			for (Term t : m_arguments)
+			{
+				t.getReferences(refs);
+			}
+		}
+
+		@Override
+		public Apply duplicate()
+		{
+			Term[] args = new Term[m_arguments.length];
+			for (int i = 0; i < args.length; i++)
+			{
+				args[i] = m_arguments[i].duplicate();
+			}
+			return new Apply(m_function.duplicate(), args);
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder out = new StringBuilder();
+			out.append(m_function).append("(");
+			for (int i = 0; i < m_arguments.length; i++)
+			{
+				if (i > 0)
+				{
+					out.append(", ");
+				}
+				out.append(m_arguments[i]);
+			}
+			out.append(")");
+			return out.toString();
+		}
+	}
+}
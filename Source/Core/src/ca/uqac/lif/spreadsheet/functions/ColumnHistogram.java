@@ -0,0 +1,584 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import ca.uqac.lif.dag.LabelledNode;
+import ca.uqac.lif.petitpoucet.AndNode;
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.Part;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
+import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.petitpoucet.function.RelationNodeFactory;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Computes a one-dimensional histogram of the numerical values found in a
+ * column of a spreadsheet. The first row of the input is interpreted as
+ * column headers. For example, given the following table:
+ * <p>
+ * <table border="1">
+ * <tr><th>A</th><th>B</th></tr>
+ * <tr><td>3</td><td>x</td></tr>
+ * <tr><td>1</td><td>y</td></tr>
+ * <tr><td>7</td><td>z</td></tr>
+ * <tr><td>2</td><td>t</td></tr>
+ * </table>
+ * <p>
+ * a histogram of column 0 with 4 buckets spanning the range [0-8] produces
+ * the following result:
+ * <p>
+ * <table border="1">
+ * <tr><th>x</th><th>A</th></tr>
+ * <tr><td>0</td><td>1</td></tr>
+ * <tr><td>2</td><td>2</td></tr>
+ * <tr><td>4</td><td>0</td></tr>
+ * <tr><td>6</td><td>1</td></tr>
+ * </table>
+ * <p>
+ * The first column contains the lower bound of each bucket, and the second
+ * column the number of values that fall within each bucket. This layout can
+ * be passed directly to a {@link ca.uqac.lif.spreadsheet.chart.Histogram
+ * Histogram}.
+ * <p>
+ * The buckets can be specified in three ways:
+ * <ul>
+ * <li>a fixed number of buckets of equal width spanning a given range;</li>
+ * <li>buckets whose width is computed from the data itself, using the
+ * Freedman&ndash;Diaconis rule;</li>
+ * <li>in both cases, the buckets can be of equal width on a logarithmic
+ * scale, with {@link #logScale()}.</li>
+ * </ul>
+ * Values outside of the range are ignored. The last bucket includes its
+ * upper bound.
+ * <p>
+ * Each count is explained by the cells of the input column whose value falls
+ * in the corresponding bucket. These cells are stored as ranges of
+ * consecutive rows, which is much more compact than one reference per cell
+ * when the input is sorted or clustered. With
+ * {@link #compactRanges(boolean)}, the explanation itself contains one
+ * {@link CellRange} per range instead of one node per cell.
+ *
+ * @author Sylvain Hallé
+ */
+public class ColumnHistogram extends SpreadsheetFunction
+{
+	/**
+	 * The maximum number of buckets produced by the Freedman&ndash;Diaconis
+	 * rule.
+	 */
+	public static final int MAX_AUTO_BUCKETS = 1000;
+
+	/**
+	 * The index of the column to process.
+	 */
+	protected final int m_column;
+
+	/**
+	 * A flag indicating whether the buckets are computed from the data.
+	 */
+	protected final boolean m_auto;
+
+	/**
+	 * The lower bound of the first bucket, when the buckets are fixed.
+	 */
+	protected final double m_min;
+
+	/**
+	 * The upper bound of the last bucket, when the buckets are fixed.
+	 */
+	protected final double m_max;
+
+	/**
+	 * The number of buckets, when the buckets are fixed.
+	 */
+	protected final int m_numBuckets;
+
+	/**
+	 * A flag indicating whether the buckets are of equal width on a
+	 * logarithmic scale.
+	 */
+	protected boolean m_log = false;
+
+	/**
+	 * The caption given to the first column of the output spreadsheet.
+	 */
+	protected String m_captionX = "x";
+
+	/**
+	 * The number of threads used to count the values.
+	 */
+	protected int m_numThreads = 1;
+
+	/**
+	 * For each bucket, the position in {@link #m_rangeStarts} of the first
+	 * range of rows whose values fall in this bucket.
+	 */
+	/*@ null @*/ protected int[] m_offsets;
+
+	/**
+	 * The first row of each range of rows.
+	 */
+	/*@ null @*/ protected int[] m_rangeStarts;
+
+	/**
+	 * The last row (inclusive) of each range of rows.
+	 */
+	/*@ null @*/ protected int[] m_rangeEnds;
+
+	/**
+	 * Creates a new histogram function whose buckets are computed from the
+	 * data using the Freedman&ndash;Diaconis rule.
+	 * @param column The index of the column to process
+	 */
+	public ColumnHistogram(int column)
+	{
+		this(column, true, 0, 0, 0);
+	}
+
+	/**
+	 * Creates a new histogram function with a fixed set of buckets.
+	 * @param column The index of the column to process
+	 * @param min The lower bound of the first bucket
+	 * @param max The upper bound of the last bucket
+	 * @param num_buckets The number of buckets
+	 * @throws IllegalArgumentException If the number of buckets is not
+	 * strictly positive, or if the lower bound is not strictly less than the
+	 * upper bound
+	 */
+	public ColumnHistogram(int column, double min, double max, int num_buckets)
+	{
+		this(column, false, min, max, num_buckets);
+		if (num_buckets <= 0)
+		{
+			throw new IllegalArgumentException("The number of buckets must be strictly positive");
+		}
+		if (!(min < max))
+		{
+			throw new IllegalArgumentException("The lower bound " + min + " must be less than the upper bound " + max);
+		}
+	}
+
+	protected ColumnHistogram(int column, boolean auto, double min, double max, int num_buckets)
+	{
+		super(1);
+		m_column = column;
+		m_auto = auto;
+		m_min = min;
+		m_max = max;
+		m_numBuckets = num_buckets;
+	}
+
+	/**
+	 * Sets the buckets to be of equal width on a logarithmic scale. In this
+	 * mode, values that are not strictly positive are ignored.
+	 * @return This function
+	 * @throws IllegalArgumentException If the buckets span a fixed range whose
+	 * lower bound is not strictly positive
+	 */
+	/*@ non_null @*/ public ColumnHistogram logScale()
+	{
+		if (!m_auto && m_min <= 0)
+		{
+			throw new IllegalArgumentException("The lower bound of a logarithmic scale must be strictly positive");
+		}
+		m_log = true;
+		return this;
+	}
+
+	/**
+	 * Sets the caption given to the first column of the output spreadsheet.
+	 * @param caption The caption
+	 * @return This function
+	 */
+	/*@ non_null @*/ public ColumnHistogram setCaption(String caption)
+	{
+		m_captionX = caption;
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads used to count the values. When more than one
+	 * thread is used, each thread counts a slice of the column, and the partial
+	 * counts are then summed together.
+	 * @param num_threads The number of threads
+	 * @return This function
+	 */
+	/*@ non_null @*/ public ColumnHistogram setThreads(int num_threads)
+	{
+		m_numThreads = Math.max(1, num_threads);
+		return this;
+	}
+
+	@Override
+	protected Object[] getValue(Object... inputs) throws InvalidNumberOfArgumentsException
+	{
+		if (!(inputs[0] instanceof Spreadsheet))
+		{
+			throw new InvalidArgumentTypeException("Argument is not a spreadsheet");
+		}
+		Spreadsheet s = (Spreadsheet) inputs[0];
+		// Single scan of the column, keeping the values and their row
+		int height = s.getHeight();
+		boolean track = startLineage(inputs);
+		final double[] values = new double[Math.max(0, height - 1)];
+		int[] rows = track ? new int[values.length] : null;
+		int num_values = 0;
+		for (int row = 1; row < height; row++)
+		{
+			Object o = s.get(m_column, row);
+			if (o instanceof Number)
+			{
+				double v = ((Number) o).doubleValue();
+				if (m_log)
+				{
+					if (v <= 0)
+					{
+						continue;
+					}
+					v = Math.log(v);
+				}
+				if (!Double.isNaN(v))
+				{
+					values[num_values] = v;
+					if (rows != null)
+					{
+						rows[num_values] = row;
+					}
+					num_values++;
+				}
+			}
+		}
+		// Determine the buckets
+		double min = m_log && !m_auto ? Math.log(m_min) : m_min;
+		double max = m_log && !m_auto ? Math.log(m_max) : m_max;
+		int num_buckets = m_numBuckets;
+		if (m_auto && num_values == 0)
+		{
+			min = 0;
+			max = 0;
+			num_buckets = 1;
+		}
+		else if (m_auto)
+		{
+			QuantileSketch qs = new QuantileSketch();
+			for (int i = 0; i < num_values; i++)
+			{
+				qs.add(values[i]);
+			}
+			min = qs.getMin();
+			max = qs.getMax();
+			num_buckets = getAutoBucketCount(num_values, qs.quantile(0.75) - qs.quantile(0.25), max - min);
+		}
+		// Count the values
+		final int n_b = num_buckets;
+		final double lo = min, hi = max;
+		final int num_slices = ParallelSlices.getSliceCount(m_numThreads, num_values);
+		final int[][] counts = new int[num_slices][n_b];
+		final int[] bins = track ? new int[num_values] : null;
+		ParallelSlices.run(num_slices, num_values, new ParallelSlices.SliceTask()
+		{
+			@Override
+			public void run(int slice, int from, int to)
+			{
+				int[] count = counts[slice];
+				for (int i = from; i < to; i++)
+				{
+					int b = getBucket(values[i], lo, hi, n_b);
+					if (bins != null)
+					{
+						bins[i] = b;
+					}
+					if (b >= 0)
+					{
+						count[b]++;
+					}
+				}
+			}
+		});
+		int[] count = counts[0];
+		if (num_slices > 1)
+		{
+			count = new int[n_b];
+			for (int slice = 0; slice < num_slices; slice++)
+			{
+				for (int b = 0; b < n_b; b++)
+				{
+					count[b] += counts[slice][b];
+				}
+			}
+		}
+		if (track)
+		{
+			computeRanges(bins, rows, num_values, n_b);
+		}
+		else
+		{
+			m_offsets = null;
+			m_rangeStarts = null;
+			m_rangeEnds = null;
+		}
+		// Produce the table
+		Spreadsheet out = new Spreadsheet(2, n_b + 1);
+		out.set(0, 0, m_captionX);
+		out.set(1, 0, s.get(m_column, 0));
+		double width = (max - min) / n_b;
+		for (int b = 0; b < n_b; b++)
+		{
+			double bound = min + b * width;
+			out.set(0, b + 1, m_log ? Math.exp(bound) : bound);
+			out.set(1, b + 1, count[b]);
+		}
+		endLineage();
+		return new Object[] {out};
+	}
+
+	/**
+	 * Groups the rows whose values fall in each bucket into ranges of
+	 * consecutive rows.
+	 * @param bins The bucket of each value, or -1 if the value is out of range
+	 * @param rows The row of each value, in ascending order
+	 * @param num_values The number of values
+	 * @param num_buckets The number of buckets
+	 */
+	protected void computeRanges(int[] bins, int[] rows, int num_values, int num_buckets)
+	{
+		int[] last_row = new int[num_buckets];
+		int[] num_ranges = new int[num_buckets];
+		for (int i = 0; i < num_values; i++)
+		{
+			int b = bins[i];
+			if (b >= 0)
+			{
+				if (num_ranges[b] == 0 || last_row[b] != rows[i] - 1)
+				{
+					num_ranges[b]++;
+				}
+				last_row[b] = rows[i];
+			}
+		}
+		m_offsets = new int[num_buckets + 1];
+		for (int b = 0; b < num_buckets; b++)
+		{
+			m_offsets[b + 1] = m_offsets[b] + num_ranges[b];
+		}
+		m_rangeStarts = new int[m_offsets[num_buckets]];
+		m_rangeEnds = new int[m_rangeStarts.length];
+		int[] position = new int[num_buckets];
+		for (int i = 0; i < num_values; i++)
+		{
+			int b = bins[i];
+			if (b >= 0)
+			{
+				int p = m_offsets[b] + position[b];
+				if (position[b] > 0 && m_rangeEnds[p - 1] == rows[i] - 1)
+				{
+					m_rangeEnds[p - 1] = rows[i];
+				}
+				else
+				{
+					m_rangeStarts[p] = rows[i];
+					m_rangeEnds[p] = rows[i];
+					position[b]++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the bucket in which a value falls.
+	 * @param v The value
+	 * @param min The lower bound of the first bucket
+	 * @param max The upper bound of the last bucket
+	 * @param num_buckets The number of buckets
+	 * @return The bucket, or -1 if the value is out of range
+	 */
+	protected static int getBucket(double v, double min, double max, int num_buckets)
+	{
+		if (v < min || v > max)
+		{
+			return -1;
+		}
+		if (max == min)
+		{
+			return 0;
+		}
+		int b = (int) ((v - min) / (max - min) * num_buckets);
+		return Math.min(b, num_buckets - 1);
+	}
+
+	/**
+	 * Computes the number of buckets using the Freedman&ndash;Diaconis rule.
+	 * When the interquartile range is null, Sturges' rule is used instead.
+	 * @param n The number of values
+	 * @param iqr The interquartile range of the values
+	 * @param range The difference between the largest and the smallest value
+	 * @return The number of buckets
+	 */
+	protected static int getAutoBucketCount(int n, double iqr, double range)
+	{
+		if (n == 0 || !(range > 0))
+		{
+			return 1;
+		}
+		double width = 2 * iqr / Math.cbrt(n);
+		if (!(width > 0))
+		{
+			return (int) Math.ceil(Math.log(n) / Math.log(2)) + 1;
+		}
+		return (int) Math.max(1, Math.min(MAX_AUTO_BUCKETS, Math.ceil(range / width)));
+	}
+
+	@Override
+	public PartNode getExplanation(Part part, RelationNodeFactory factory)
+	{
+		int output_nb = NthOutput.mentionedOutput(part);
+		Cell c = Cell.mentionedCell(part);
+		if (output_nb != 0 || c == null)
+		{
+			return super.getExplanation(part, factory);
+		}
+		if (!hasLineage())
+		{
+			return getUnrecordedExplanation(part, factory);
+		}
+		PartNode root = factory.getPartNode(part, this);
+		int row = c.getRow(), col = c.getColumn();
+		if (m_offsets == null || col != 1 || row < 0 || row >= m_offsets.length)
+		{
+			return root;
+		}
+		if (row == 0)
+		{
+			root.addChild(factory.getPartNode(InputCell.get(m_column, 0).getPart(), this));
+			return root;
+		}
+		int from = m_offsets[row - 1], to = m_offsets[row];
+		if (from == to)
+		{
+			root.addChild(factory.getPartNode(ComposedPart.compose(Part.nothing, NthInput.FIRST), this));
+			return root;
+		}
+		LabelledNode to_add = root;
+		if (to - from > 1 || (m_rangeStarts[from] != m_rangeEnds[from] && !m_compactRanges))
+		{
+			AndNode and = factory.getAndNode();
+			root.addChild(and);
+			to_add = and;
+		}
+		for (int i = from; i < to; i++)
+		{
+			addInputColumn(to_add, m_column, m_rangeStarts[i], m_rangeEnds[i], factory);
+		}
+		return root;
+	}
+
+	@Override
+	public Cell[] dependents(int index, Cell c)
+	{
+		int row = c.getRow();
+		if (index != 0 || c.getColumn() != m_column || row < 0 || !hasLineage() || m_offsets == null)
+		{
+			return new Cell[0];
+		}
+		if (row == 0)
+		{
+			return new Cell[] {Cell.get(1, 0)};
+		}
+		for (int b = 0; b < m_offsets.length - 1; b++)
+		{
+			// The ranges of each bucket are sorted; find the last one starting
+			// at or before the row
+			int lo = m_offsets[b], hi = m_offsets[b + 1] - 1, found = -1;
+			while (lo <= hi)
+			{
+				int mid = (lo + hi) >>> 1;
+				if (m_rangeStarts[mid] <= row)
+				{
+					found = mid;
+					lo = mid + 1;
+				}
+				else
+				{
+					hi = mid - 1;
+				}
+			}
+			if (found >= 0 && m_rangeEnds[found] >= row)
+			{
+				return new Cell[] {Cell.get(1, b + 1)};
+			}
+		}
+		return new Cell[0];
+	}
+
+	@Override
+	public synchronized long getLineageSize()
+	{
+		if (m_offsets == null)
+		{
+			return 0;
+		}
+		return 48 + 4L * (m_offsets.length + m_rangeStarts.length + m_rangeEnds.length);
+	}
+
+	@Override
+	public synchronized void expireLineage()
+	{
+		super.expireLineage();
+		m_offsets = null;
+		m_rangeStarts = null;
+		m_rangeEnds = null;
+	}
+
+	@Override
+	public void reset()
+	{
+		super.reset();
+		m_offsets = null;
+		m_rangeStarts = null;
+		m_rangeEnds = null;
+	}
+
+	@Override
+	public ColumnHistogram duplicate(boolean with_state)
+	{
+		ColumnHistogram ch = new ColumnHistogram(m_column, m_auto, m_min, m_max, m_numBuckets);
+		super.copyInto(ch, with_state);
+		ch.m_log = m_log;
+		ch.m_captionX = m_captionX;
+		ch.m_numThreads = m_numThreads;
+		if (with_state)
+		{
+			// The arrays are never modified once computed, and can be shared
+			ch.m_offsets = m_offsets;
+			ch.m_rangeStarts = m_rangeStarts;
+			ch.m_rangeEnds = m_rangeEnds;
+		}
+		return ch;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Histogram of column " + m_column;
+	}
+}
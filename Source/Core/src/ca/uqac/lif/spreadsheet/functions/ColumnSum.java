@@ -17,62 +17,30 @@
  */
 package ca.uqac.lif.spreadsheet.functions;
 
-import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
-import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
-import ca.uqac.lif.spreadsheet.Spreadsheet;
-
 /**
- * Computes the sum of each column.
+ * Computes the sum of each column. This is a special case of
+ * {@link ColumnAggregate} computing only the {@link ColumnAggregate.Aggregate#SUM
+ * SUM} aggregate.
  * @author Sylvain Hallé
  */
-public class ColumnSum extends SpreadsheetFunction
+public class ColumnSum extends ColumnAggregate
 {
 	public ColumnSum()
 	{
-		super(1);
-	}
-
-	@Override
-	protected Object[] getValue(Object... inputs) throws InvalidNumberOfArgumentsException
-	{
-		if (!(inputs[0] instanceof Spreadsheet))
-		{
-			throw new InvalidArgumentTypeException("Argument is not a spreadsheet");
-		}
-		Spreadsheet s = (Spreadsheet) inputs[0];
-		Spreadsheet out = new Spreadsheet(s.getWidth(), 2);
-		double[] totals = new double[s.getWidth()];
-		m_mapping = new InputCell[2][s.getWidth()][];
-		for (int col = 0; col < totals.length; col++)
-		{
-			out.set(col, 0, s.get(col, 0));
-			m_mapping[0][col] = new InputCell[] {InputCell.get(col, 0)};
-			m_mapping[1][col] = new InputCell[s.getHeight() - 1];
-		}
-		for (int row = 1; row < s.getHeight(); row++)
-		{
-			for (int col = 0; col < totals.length; col++)
-			{
-				Double n = s.getNumerical(col, row);
-				if (n != null)
-				{
-					totals[col] += n;
-				}
-				m_mapping[1][col][row - 1] = InputCell.get(col, row);
-			}
-		}
-		for (int col = 0; col < totals.length; col++)
-		{
-			out.set(col, 1, totals[col]);
-		}
-		return new Object[] {out};
+		super(Aggregate.SUM);
 	}
 	
 	@Override
 	public ColumnSum duplicate(boolean with_state)
 	{
 		ColumnSum cs = new ColumnSum();
-		super.copyInto(cs, with_state);
+		copyInto(cs, with_state);
 		return cs;
 	}
+	
+	@Override
+	public String toString()
+	{
+		return "Column sum";
+	}
 }
@@ -0,0 +1,305 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uqac.lif.dag.Node;
+import ca.uqac.lif.dag.Pin;
+import ca.uqac.lif.petitpoucet.function.Circuit;
+import ca.uqac.lif.petitpoucet.function.Fork;
+
+import static ca.uqac.lif.dag.NodeConnector.connect;
+
+/**
+ * Optimization pass that removes redundant evaluations from a circuit. Two
+ * functions of a circuit are <em>equivalent</em> when they are instances of
+ * the same class, have the same configuration, and receive the same values
+ * on each of their inputs. A function receives the same value as another one
+ * on an input when both are connected to the same output of the same
+ * function (possibly through a {@link Fork}), or to the same input of the
+ * circuit.
+ * <p>
+ * Only functions implementing {@link Configured} are compared; the others are
+ * always considered distinct. The pass keeps the first of each group of
+ * equivalent functions, connects the downstream functions of the others to
+ * its outputs, and disconnects the others from the circuit. Since the
+ * functions are visited from the inputs of the circuit to its outputs,
+ * merging two functions can make their downstream functions equivalent in
+ * turn, and these are merged as well.
+ * <p>
+ * The explanation of an output cell of the circuit is not changed by the
+ * pass: the cells of the inputs it points to are the same, only the path
+ * through the circuit goes through a single copy of each shared function.
+ *
+ * @author Sylvain Hallé
+ */
+public class CommonSubexpressions
+{
+	/**
+	 * Interface implemented by functions whose output only depends on their
+	 * inputs and on a configuration that can be compared with that of other
+	 * instances.
+	 */
+	public interface Configured
+	{
+		/**
+		 * Gets an object standing for the configuration of this function. Two
+		 * instances of the same class whose configurations are equal must
+		 * produce the same outputs when given the same inputs.
+		 * @return The configuration, which must implement {@code equals} and
+		 * {@code hashCode}
+		 */
+		/*@ pure non_null @*/ public Object getConfiguration();
+	}
+
+	/**
+	 * Removes the redundant functions of a circuit. The circuit is modified in
+	 * place.
+	 * @param c The circuit
+	 * @return The number of functions that are no longer evaluated, which is
+	 * also the number of evaluations saved each time the circuit is evaluated
+	 */
+	public static int eliminate(/*@ non_null @*/ Circuit c)
+	{
+		Map<List<Object>,Integer> circuit_inputs = new HashMap<List<Object>,Integer>();
+		for (int i = 0; i < c.getInputArity(); i++)
+		{
+			Pin<? extends Node> p = c.getAssociatedInput(i);
+			if (p != null)
+			{
+				circuit_inputs.put(Arrays.<Object>asList(p.getNode(), p.getIndex()), i);
+			}
+		}
+		List<Node> order = new ArrayList<Node>();
+		Set<Node> visited = new HashSet<Node>();
+		for (int i = 0; i < c.getOutputArity(); i++)
+		{
+			Pin<? extends Node> p = c.getAssociatedOutput(i);
+			if (p != null)
+			{
+				sort(p.getNode(), circuit_inputs, visited, order);
+			}
+		}
+		Map<List<Object>,Node> representatives = new HashMap<List<Object>,Node>();
+		int saved = 0;
+		for (Node n : order)
+		{
+			if (!(n instanceof Configured))
+			{
+				continue;
+			}
+			List<Object> key = getKey(n, circuit_inputs);
+			if (key == null)
+			{
+				continue;
+			}
+			Node rep = representatives.get(key);
+			if (rep == null)
+			{
+				representatives.put(key, n);
+				continue;
+			}
+			merge(c, n, rep);
+			saved++;
+		}
+		return saved;
+	}
+
+	/**
+	 * Computes the key identifying a function and the values it receives.
+	 * @param n The function
+	 * @param circuit_inputs The input of the circuit associated to each input
+	 * pin, given as a list containing a node and the index of the pin
+	 * @return The key, or <tt>null</tt> if one of the inputs of the function
+	 * is not connected
+	 */
+	/*@ null @*/ protected static List<Object> getKey(/*@ non_null @*/ Node n, /*@ non_null @*/ Map<List<Object>,Integer> circuit_inputs)
+	{
+		List<Object> key = new ArrayList<Object>(n.getInputArity() + 4);
+		key.add(n.getClass());
+		key.add(((Configured) n).getConfiguration());
+		if (n instanceof ProvenanceMode.Configurable)
+		{
+			key.add(((ProvenanceMode.Configurable) n).getProvenance());
+		}
+		if (n instanceof ProvenanceRetention.Retainer)
+		{
+			key.add(((ProvenanceRetention.Retainer) n).getRetention());
+		}
+		for (int i = 0; i < n.getInputArity(); i++)
+		{
+			Object source = getSource(n, i, circuit_inputs);
+			if (source == null)
+			{
+				return null;
+			}
+			key.add(source);
+		}
+		return key;
+	}
+
+	/**
+	 * Gets an object identifying the value received on an input of a function.
+	 * Values coming out of a {@link Fork} are identified by the value received
+	 * by the fork.
+	 * @param n The function
+	 * @param index The index of the input
+	 * @param circuit_inputs The input of the circuit associated to each input
+	 * pin, given as a list containing a node and the index of the pin
+	 * @return An object identifying the value, or <tt>null</tt> if the input
+	 * is not connected
+	 */
+	/*@ null @*/ protected static Object getSource(/*@ non_null @*/ Node n, int index, /*@ non_null @*/ Map<List<Object>,Integer> circuit_inputs)
+	{
+		while (true)
+		{
+			Integer in = circuit_inputs.get(Arrays.<Object>asList(n, index));
+			if (in != null)
+			{
+				// A list of size 1, to be distinct from an output of a function
+				return Arrays.asList(in);
+			}
+			List<Pin<? extends Node>> links = n.getInputLinks(index);
+			if (links.isEmpty())
+			{
+				return null;
+			}
+			Pin<? extends Node> up = links.get(0);
+			if (!(up.getNode() instanceof Fork))
+			{
+				return Arrays.<Object>asList(up.getNode(), up.getIndex());
+			}
+			n = up.getNode();
+			index = 0;
+		}
+	}
+
+	/**
+	 * Connects the downstream functions of a function to the outputs of an
+	 * equivalent function, and disconnects the first function from the
+	 * circuit.
+	 * @param c The circuit
+	 * @param n The function to remove
+	 * @param rep The function that replaces it
+	 */
+	protected static void merge(/*@ non_null @*/ Circuit c, /*@ non_null @*/ Node n, /*@ non_null @*/ Node rep)
+	{
+		// Detach the function from its upstream functions
+		for (int i = 0; i < n.getInputArity(); i++)
+		{
+			for (Pin<? extends Node> up : n.getInputLinks(i))
+			{
+				removeLink(up.getNode().getOutputLinks(up.getIndex()), n, i);
+			}
+			n.getInputLinks(i).clear();
+		}
+		for (int j = 0; j < n.getOutputArity(); j++)
+		{
+			List<Pin<? extends Node>> consumers = new ArrayList<Pin<? extends Node>>(rep.getOutputLinks(j));
+			consumers.addAll(n.getOutputLinks(j));
+			for (int k = 0; k < c.getOutputArity(); k++)
+			{
+				Pin<? extends Node> p = c.getAssociatedOutput(k);
+				if (p != null && p.getNode() == n && p.getIndex() == j)
+				{
+					c.associateOutput(k, rep.getOutputPin(j));
+				}
+			}
+			if (consumers.size() == rep.getOutputLinks(j).size())
+			{
+				// Nothing is connected to this output of the removed function
+				continue;
+			}
+			for (Pin<? extends Node> down : consumers)
+			{
+				down.getNode().getInputLinks(down.getIndex()).clear();
+			}
+			rep.getOutputLinks(j).clear();
+			n.getOutputLinks(j).clear();
+			if (consumers.size() == 1)
+			{
+				Pin<? extends Node> down = consumers.get(0);
+				connect(rep, j, down.getNode(), down.getIndex());
+				continue;
+			}
+			// The shared output is sent to all the consumers through a fork
+			Fork f = new Fork(consumers.size());
+			connect(rep, j, f, 0);
+			for (int k = 0; k < consumers.size(); k++)
+			{
+				Pin<? extends Node> down = consumers.get(k);
+				connect(f, k, down.getNode(), down.getIndex());
+			}
+			c.addNodes(f);
+		}
+	}
+
+	/**
+	 * Removes from a list of links the ones pointing to a given pin.
+	 * @param links The list of links
+	 * @param n The node of the pin
+	 * @param index The index of the pin
+	 */
+	protected static void removeLink(/*@ non_null @*/ List<Pin<? extends Node>> links, /*@ non_null @*/ Node n, int index)
+	{
+		for (int i = links.size() - 1; i >= 0; i--)
+		{
+			Pin<? extends Node> p = links.get(i);
+			if (p.getNode() == n && p.getIndex() == index)
+			{
+				links.remove(i);
+			}
+		}
+	}
+
+	/**
+	 * Lists the functions upstream of a function, each function appearing
+	 * after all the functions it receives values from.
+	 * @param n The function
+	 * @param circuit_inputs The input of the circuit associated to each input
+	 * pin, given as a list containing a node and the index of the pin
+	 * @param visited The functions already listed
+	 * @param order The list of functions
+	 */
+	protected static void sort(/*@ non_null @*/ Node n, /*@ non_null @*/ Map<List<Object>,Integer> circuit_inputs, /*@ non_null @*/ Set<Node> visited, /*@ non_null @*/ List<Node> order)
+	{
+		if (!visited.add(n))
+		{
+			return;
+		}
+		for (int i = 0; i < n.getInputArity(); i++)
+		{
+			if (circuit_inputs.containsKey(Arrays.<Object>asList(n, i)))
+			{
+				continue;
+			}
+			for (Pin<? extends Node> up : n.getInputLinks(i))
+			{
+				sort(up.getNode(), circuit_inputs, visited, order);
+			}
+		}
+		order.add(n);
+	}
+}
@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.spreadsheet.functions;
 
+import java.util.Arrays;
+
 import ca.uqac.lif.petitpoucet.Part;
 import ca.uqac.lif.petitpoucet.PartNode;
 import ca.uqac.lif.petitpoucet.function.AtomicFunction;
@@ -35,7 +37,7 @@ import ca.uqac.lif.spreadsheet.SpreadsheetOutOfBoundsException;
  * @author Sylvain Hallé
  *
  */
-public class CopyFrom extends AtomicFunction
+public class CopyFrom extends AtomicFunction implements CommonSubexpressions.Configured
 {
 	/**
 	 * The top left cell of the region to copy from.
@@ -153,6 +155,12 @@ public class CopyFrom extends AtomicFunction
 		return root;
 	}
 	
+	@Override
+	public Object getConfiguration()
+	{
+		return Arrays.asList(m_topLeft, m_bottomRight);
+	}
+
 	@Override
 	public CopyFrom duplicate(boolean with_state)
 	{
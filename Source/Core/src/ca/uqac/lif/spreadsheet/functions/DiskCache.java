@@ -0,0 +1,888 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import ca.uqac.lif.petitpoucet.function.FunctionException;
+import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * A cache of spreadsheets stored as files in a directory, so that results
+ * computed by one run of a program can be reused by the next ones. Like a
+ * {@link ResultCache}, the cache is indexed by a description of the function
+ * that produced a result and by the fingerprints of its inputs; since the
+ * description must designate the same configuration from one run to the
+ * next, it is given as a character string.
+ * <p>
+ * Each result is stored in a file whose name is the SHA-256 digest of its
+ * key, made of the description, the fingerprints and, optionally, the
+ * checksums of the inputs (see {@link ResultCache#checksum(Object)}). The
+ * file contains the key itself, the output spreadsheet and,
+ * optionally, the lineage of each of its cells, followed by a CRC-32
+ * checksum of its contents. A file is first written under a temporary name
+ * and then moved to its final name, so that other processes reading the
+ * cache never see a partially written file. A file whose checksum or key
+ * does not match is considered corrupted and deleted.
+ * <p>
+ * When the files of the cache exceed a given total size, the least recently
+ * used ones are deleted. The last use of a file is given by its modification
+ * time, which is updated each time the file is read. The total size of the
+ * files is computed when the cache is opened and then kept up to date by the
+ * cache itself; the directory is only listed again when this size exceeds the
+ * maximum.
+ * <p>
+ * Storing a result is best-effort: a file that cannot be written is logged
+ * and counted (see {@link #getWriteErrors()}), and the result is simply not
+ * cached. Temporary files left behind by a process that stopped while
+ * writing are deleted when the cache is opened.
+ * <p>
+ * Only spreadsheets whose cells contain <tt>null</tt>, numbers, strings or
+ * Booleans can be stored; other results are simply not cached.
+ *
+ * @author Sylvain Hallé
+ */
+public class DiskCache
+{
+	/**
+	 * The extension of the files of the cache.
+	 */
+	public static final String EXTENSION = ".sheet";
+
+	/**
+	 * The number identifying the files of the cache, followed by the version
+	 * of their format.
+	 */
+	protected static final int MAGIC = 0x50534332;
+
+	/**
+	 * The extension of the temporary files written before being moved to
+	 * their final name.
+	 */
+	protected static final String TEMP_EXTENSION = ".tmp";
+
+	/**
+	 * The age, in milliseconds, after which a temporary file is considered to
+	 * have been left behind, rather than being written by another process.
+	 */
+	protected static final long STALE_TEMP_AGE = 60 * 60 * 1000;
+
+	/**
+	 * The logger where the errors of the cache are reported.
+	 */
+	/*@ non_null @*/ protected static final Logger s_logger = Logger.getLogger(DiskCache.class.getName());
+
+	/**
+	 * The directory where the files of the cache are stored.
+	 */
+	/*@ non_null @*/ protected final File m_directory;
+
+	/**
+	 * The maximum total size of the files of the cache, in bytes.
+	 */
+	protected final long m_maxBytes;
+
+	/**
+	 * The total size of the files of the cache, in bytes.
+	 */
+	protected long m_size = 0;
+
+	/**
+	 * The number of lookups that found a result.
+	 */
+	protected long m_hits = 0;
+
+	/**
+	 * The number of lookups that found no result.
+	 */
+	protected long m_misses = 0;
+
+	/**
+	 * The number of files deleted to keep the cache under its maximum size.
+	 */
+	protected long m_evictions = 0;
+
+	/**
+	 * The number of corrupted files found.
+	 */
+	protected long m_corrupted = 0;
+
+	/**
+	 * The number of results that could not be written.
+	 */
+	protected long m_writeErrors = 0;
+
+	/**
+	 * Creates a new disk cache. The directory is created if it does not
+	 * exist; otherwise, the temporary files left behind in it are deleted.
+	 * @param directory The directory where the files of the cache are stored
+	 * @param max_bytes The maximum total size of the files of the cache, in
+	 * bytes
+	 */
+	public DiskCache(/*@ non_null @*/ File directory, long max_bytes)
+	{
+		super();
+		m_directory = directory;
+		m_maxBytes = max_bytes;
+		m_directory.mkdirs();
+		deleteStaleFiles();
+		m_size = computeSize();
+	}
+
+	/**
+	 * Looks up a result in the cache.
+	 * @param description The description of the function
+	 * @param fingerprints The fingerprints of the inputs of the function
+	 * @return The result, or <tt>null</tt> if the result is not in the cache
+	 * or its file is corrupted
+	 */
+	/*@ null @*/ public Result get(/*@ non_null @*/ String description, /*@ non_null @*/ long[] fingerprints)
+	{
+		return get(description, fingerprints, null);
+	}
+
+	/**
+	 * Looks up a result in the cache, stored along with the checksums of the
+	 * inputs of the function.
+	 * @param description The description of the function
+	 * @param fingerprints The fingerprints of the inputs of the function
+	 * @param checksums The checksums of the inputs of the function, or
+	 * <tt>null</tt> if the result has been stored without checksums
+	 * @return The result, or <tt>null</tt> if the result is not in the cache
+	 * or its file is corrupted
+	 */
+	/*@ null @*/ public synchronized Result get(/*@ non_null @*/ String description, /*@ non_null @*/ long[] fingerprints, /*@ null @*/ long[] checksums)
+	{
+		File f = getFile(description, fingerprints, checksums);
+		byte[] contents;
+		try
+		{
+			contents = Files.readAllBytes(f.toPath());
+		}
+		catch (IOException e)
+		{
+			m_misses++;
+			return null;
+		}
+		Result r = null;
+		try
+		{
+			r = decode(contents, description, fingerprints, checksums);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			// Treated as a corrupted file below
+		}
+		if (r == null)
+		{
+			m_corrupted++;
+			m_misses++;
+			delete(f);
+			return null;
+		}
+		m_hits++;
+		f.setLastModified(System.currentTimeMillis());
+		return r;
+	}
+
+	/**
+	 * Stores a result in the cache.
+	 * @param description The description of the function
+	 * @param fingerprints The fingerprints of the inputs of the function
+	 * @param output The spreadsheet produced by the function
+	 * @param lineage The lineage of each cell of the output, or <tt>null</tt>
+	 * to store the output alone
+	 * @return <tt>true</tt> if the result has been stored, <tt>false</tt> if
+	 * the output cannot be serialized or its file cannot be written
+	 */
+	public boolean put(/*@ non_null @*/ String description, /*@ non_null @*/ long[] fingerprints, /*@ non_null @*/ Spreadsheet output, /*@ null @*/ CellMapping lineage)
+	{
+		return put(description, fingerprints, null, output, lineage);
+	}
+
+	/**
+	 * Stores a result in the cache, along with the checksums of the inputs of
+	 * the function. The result is only found again by a lookup giving the
+	 * same checksums.
+	 * @param description The description of the function
+	 * @param fingerprints The fingerprints of the inputs of the function
+	 * @param checksums The checksums of the inputs of the function, or
+	 * <tt>null</tt>
+	 * @param output The spreadsheet produced by the function
+	 * @param lineage The lineage of each cell of the output, or <tt>null</tt>
+	 * to store the output alone
+	 * @return <tt>true</tt> if the result has been stored, <tt>false</tt> if
+	 * the output cannot be serialized or its file cannot be written
+	 */
+	public synchronized boolean put(/*@ non_null @*/ String description, /*@ non_null @*/ long[] fingerprints, /*@ null @*/ long[] checksums, /*@ non_null @*/ Spreadsheet output, /*@ null @*/ CellMapping lineage)
+	{
+		byte[] contents;
+		try
+		{
+			contents = encode(description, fingerprints, checksums, output, lineage);
+		}
+		catch (IOException e)
+		{
+			// Some cell cannot be serialized
+			return false;
+		}
+		File f = getFile(description, fingerprints, checksums);
+		long previous = f.length();
+		try
+		{
+			Path tmp = Files.createTempFile(m_directory.toPath(), f.getName(), TEMP_EXTENSION);
+			try
+			{
+				Files.write(tmp, contents);
+				try
+				{
+					Files.move(tmp, f.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+				}
+				catch (AtomicMoveNotSupportedException e)
+				{
+					Files.move(tmp, f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+			finally
+			{
+				Files.deleteIfExists(tmp);
+			}
+			Files.setLastModifiedTime(f.toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+		}
+		catch (IOException e)
+		{
+			m_writeErrors++;
+			s_logger.log(Level.WARNING, "Cannot write " + f, e);
+			return false;
+		}
+		m_size += contents.length - previous;
+		if (m_size > m_maxBytes)
+		{
+			evict();
+		}
+		return true;
+	}
+
+	/**
+	 * Deletes all the files of the cache. The statistics of the cache are
+	 * kept.
+	 */
+	public synchronized void clear()
+	{
+		for (File f : getFiles())
+		{
+			f.delete();
+		}
+		m_size = computeSize();
+	}
+
+	/**
+	 * Gets the total size of the files of the cache.
+	 * @return The size, in bytes
+	 */
+	public synchronized long getSize()
+	{
+		return m_size;
+	}
+
+	/**
+	 * Gets the number of lookups that found a result.
+	 * @return The number of hits
+	 */
+	public synchronized long getHits()
+	{
+		return m_hits;
+	}
+
+	/**
+	 * Gets the number of lookups that found no result.
+	 * @return The number of misses
+	 */
+	public synchronized long getMisses()
+	{
+		return m_misses;
+	}
+
+	/**
+	 * Gets the number of files deleted to keep the cache under its maximum
+	 * size.
+	 * @return The number of evictions
+	 */
+	public synchronized long getEvictions()
+	{
+		return m_evictions;
+	}
+
+	/**
+	 * Gets the number of corrupted files found and deleted.
+	 * @return The number of corrupted files
+	 */
+	public synchronized long getCorrupted()
+	{
+		return m_corrupted;
+	}
+
+	/**
+	 * Gets the number of results that could not be written to the cache.
+	 * @return The number of write errors
+	 */
+	public synchronized long getWriteErrors()
+	{
+		return m_writeErrors;
+	}
+
+	/**
+	 * Gets the file associated to a key of the cache.
+	 * @param description The description of the function
+	 * @param fingerprints The fingerprints of the inputs of the function
+	 * @param checksums The checksums of the inputs of the function, or
+	 * <tt>null</tt>
+	 * @return The file
+	 */
+	/*@ non_null @*/ protected File getFile(String description, long[] fingerprints, long[] checksums)
+	{
+		MessageDigest md;
+		try
+		{
+			md = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			// Every Java platform is required to support SHA-256
+			throw new FunctionException(e);
+		}
+		md.update(description.getBytes(StandardCharsets.UTF_8));
+		for (long fp : fingerprints)
+		{
+			for (int i = 0; i < 8; i++)
+			{
+				md.update((byte) (fp >>> (8 * i)));
+			}
+		}
+		if (checksums != null)
+		{
+			// Separates the checksums from the fingerprints
+			md.update((byte) 0x43);
+			for (long cs : checksums)
+			{
+				for (int i = 0; i < 8; i++)
+				{
+					md.update((byte) (cs >>> (8 * i)));
+				}
+			}
+		}
+		StringBuilder name = new StringBuilder();
+		for (byte b : md.digest())
+		{
+			name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return new File(m_directory, name.append(EXTENSION).toString());
+	}
+
+	/**
+	 * Gets the files of the cache.
+	 * @return The files
+	 */
+	/*@ non_null @*/ protected List<File> getFiles()
+	{
+		File[] files = m_directory.listFiles();
+		List<File> list = new ArrayList<File>();
+		if (files != null)
+		{
+			for (File f : files)
+			{
+				if (f.getName().endsWith(EXTENSION))
+				{
+					list.add(f);
+				}
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Computes the total size of the files of the cache by listing its
+	 * directory.
+	 * @return The size, in bytes
+	 */
+	protected long computeSize()
+	{
+		long size = 0;
+		for (File f : getFiles())
+		{
+			size += f.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Deletes a file of the cache, and subtracts its length from the total
+	 * size of the cache.
+	 * @param f The file
+	 */
+	protected void delete(File f)
+	{
+		long length = f.length();
+		if (f.delete())
+		{
+			m_size = Math.max(0, m_size - length);
+		}
+	}
+
+	/**
+	 * Deletes the temporary files of the directory that are older than
+	 * {@link #STALE_TEMP_AGE}. Newer files may still be written by another
+	 * process using the same directory.
+	 */
+	protected void deleteStaleFiles()
+	{
+		File[] files = m_directory.listFiles();
+		if (files == null)
+		{
+			return;
+		}
+		long limit = System.currentTimeMillis() - STALE_TEMP_AGE;
+		for (File f : files)
+		{
+			String name = f.getName();
+			if (name.endsWith(TEMP_EXTENSION) && name.contains(EXTENSION) && f.lastModified() < limit)
+			{
+				f.delete();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the least recently used files until the total size of the
+	 * cache is below its maximum. The directory is listed again, so that the
+	 * files written or deleted by other processes are taken into account.
+	 */
+	protected void evict()
+	{
+		List<File> files = getFiles();
+		final long[] times = new long[files.size()];
+		Integer[] order = new Integer[files.size()];
+		long size = 0;
+		for (int i = 0; i < order.length; i++)
+		{
+			// Read the times once, since they may change while sorting
+			times[i] = files.get(i).lastModified();
+			order[i] = i;
+			size += files.get(i).length();
+		}
+		m_size = size;
+		if (size <= m_maxBytes)
+		{
+			return;
+		}
+		Arrays.sort(order, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer i1, Integer i2)
+			{
+				return Long.compare(times[i1], times[i2]);
+			}
+		});
+		for (int i = 0; i < order.length && size > m_maxBytes; i++)
+		{
+			File f = files.get(order[i]);
+			long length = f.length();
+			if (f.delete())
+			{
+				size -= length;
+				m_evictions++;
+			}
+		}
+		m_size = size;
+	}
+
+	/**
+	 * Serializes a result.
+	 * @param description The description of the function
+	 * @param fingerprints The fingerprints of the inputs of the function
+	 * @param checksums The checksums of the inputs of the function, or
+	 * <tt>null</tt>
+	 * @param output The spreadsheet produced by the function
+	 * @param lineage The lineage of each cell of the output, or <tt>null</tt>
+	 * @return The contents of the file
+	 * @throws IOException If a cell of the spreadsheet cannot be serialized
+	 */
+	protected static byte[] encode(String description, long[] fingerprints, long[] checksums, Spreadsheet output, CellMapping lineage) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		writeString(out, description);
+		out.writeInt(fingerprints.length);
+		for (long fp : fingerprints)
+		{
+			out.writeLong(fp);
+		}
+		out.writeInt(checksums == null ? -1 : checksums.length);
+		if (checksums != null)
+		{
+			for (long cs : checksums)
+			{
+				out.writeLong(cs);
+			}
+		}
+		int width = output.getWidth(), height = output.getHeight();
+		out.writeInt(width);
+		out.writeInt(height);
+		for (int row = 0; row < height; row++)
+		{
+			for (int col = 0; col < width; col++)
+			{
+				writeValue(out, output.get(col, row));
+			}
+		}
+		out.writeBoolean(lineage != null);
+		if (lineage != null)
+		{
+			for (int row = 0; row < height; row++)
+			{
+				for (int col = 0; col < width; col++)
+				{
+					SpreadsheetFunction.InputCell[] cells = lineage.getInputCells(col, row);
+					if (cells == null)
+					{
+						out.writeInt(0);
+						continue;
+					}
+					out.writeInt(cells.length);
+					for (SpreadsheetFunction.InputCell c : cells)
+					{
+						out.writeLong(SpreadsheetFunction.InputCell.encode(c.getColumn(), c.getRow(), c.m_index));
+					}
+				}
+			}
+		}
+		out.flush();
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads a serialized result.
+	 * @param contents The contents of the file
+	 * @param description The description of the function expected in the
+	 * file
+	 * @param fingerprints The fingerprints expected in the file
+	 * @param checksums The checksums expected in the file, or <tt>null</tt>
+	 * if the file is expected not to contain checksums
+	 * @return The result, or <tt>null</tt> if the file is corrupted or does
+	 * not correspond to the expected key
+	 * @throws IOException If the file is truncated
+	 */
+	/*@ null @*/ protected static Result decode(byte[] contents, String description, long[] fingerprints, long[] checksums) throws IOException
+	{
+		if (contents.length < 12)
+		{
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(contents, 0, contents.length - 8);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+		in.skipBytes(contents.length - 8);
+		if (in.readLong() != crc.getValue())
+		{
+			return null;
+		}
+		in = new DataInputStream(new ByteArrayInputStream(contents, 0, contents.length - 8));
+		if (in.readInt() != MAGIC || !description.equals(readString(in)))
+		{
+			return null;
+		}
+		long[] fps = new long[in.readInt()];
+		for (int i = 0; i < fps.length; i++)
+		{
+			fps[i] = in.readLong();
+		}
+		if (!Arrays.equals(fps, fingerprints))
+		{
+			return null;
+		}
+		int num_checksums = in.readInt();
+		long[] css = num_checksums < 0 ? null : new long[num_checksums];
+		for (int i = 0; css != null && i < css.length; i++)
+		{
+			css[i] = in.readLong();
+		}
+		if (!Arrays.equals(css, checksums))
+		{
+			return null;
+		}
+		int width = in.readInt(), height = in.readInt();
+		Spreadsheet s = new Spreadsheet(width, height);
+		for (int row = 0; row < height; row++)
+		{
+			for (int col = 0; col < width; col++)
+			{
+				s.set(col, row, readValue(in));
+			}
+		}
+		CellMapping.Packed lineage = null;
+		if (in.readBoolean())
+		{
+			lineage = new CellMapping.Packed(width, height);
+			for (int row = 0; row < height; row++)
+			{
+				for (int col = 0; col < width; col++)
+				{
+					long[] refs = new long[in.readInt()];
+					for (int i = 0; i < refs.length; i++)
+					{
+						refs[i] = in.readLong();
+					}
+					if (refs.length > 0)
+					{
+						lineage.add(col, row, refs);
+					}
+				}
+			}
+			lineage.compact();
+		}
+		return new Result(s, lineage, fingerprints.length);
+	}
+
+	/**
+	 * Writes a character string.
+	 * @param out The stream to write to
+	 * @param s The string
+	 * @throws IOException If the string cannot be written
+	 */
+	protected static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] b = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	/**
+	 * Reads a character string.
+	 * @param in The stream to read from
+	 * @return The string
+	 * @throws IOException If the string cannot be read
+	 */
+	protected static String readString(DataInputStream in) throws IOException
+	{
+		byte[] b = new byte[in.readInt()];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes the value of a cell, preceded by a byte indicating its type.
+	 * @param out The stream to write to
+	 * @param o The value
+	 * @throws IOException If the value cannot be serialized
+	 */
+	protected static void writeValue(DataOutputStream out, Object o) throws IOException
+	{
+		if (o == null)
+		{
+			out.writeByte(0);
+		}
+		else if (o instanceof Integer)
+		{
+			out.writeByte(1);
+			out.writeInt((Integer) o);
+		}
+		else if (o instanceof Long)
+		{
+			out.writeByte(2);
+			out.writeLong((Long) o);
+		}
+		else if (o instanceof Float)
+		{
+			out.writeByte(3);
+			out.writeFloat((Float) o);
+		}
+		else if (o instanceof Double)
+		{
+			out.writeByte(4);
+			out.writeDouble((Double) o);
+		}
+		else if (o instanceof String)
+		{
+			out.writeByte(5);
+			writeString(out, (String) o);
+		}
+		else if (o instanceof Boolean)
+		{
+			out.writeByte(6);
+			out.writeBoolean((Boolean) o);
+		}
+		else
+		{
+			throw new IOException("Cannot serialize " + o.getClass().getName());
+		}
+	}
+
+	/**
+	 * Reads the value of a cell.
+	 * @param in The stream to read from
+	 * @return The value
+	 * @throws IOException If the value cannot be read
+	 */
+	protected static Object readValue(DataInputStream in) throws IOException
+	{
+		byte type = in.readByte();
+		switch (type)
+		{
+		case 0:
+			return null;
+		case 1:
+			return in.readInt();
+		case 2:
+			return in.readLong();
+		case 3:
+			return in.readFloat();
+		case 4:
+			return in.readDouble();
+		case 5:
+			return readString(in);
+		case 6:
+			return in.readBoolean();
+		default:
+			throw new IOException("Unknown type " + type);
+		}
+	}
+
+	/**
+	 * A result read from the cache.
+	 */
+	public static class Result
+	{
+		/**
+		 * The spreadsheet produced by the function.
+		 */
+		/*@ non_null @*/ protected final Spreadsheet m_output;
+
+		/**
+		 * The lineage of each cell of the output, or <tt>null</tt> if it has
+		 * not been stored.
+		 */
+		/*@ null @*/ protected final CellMapping m_lineage;
+
+		/**
+		 * The number of inputs of the function.
+		 */
+		protected final int m_arity;
+
+		/**
+		 * Creates a new result.
+		 * @param output The spreadsheet produced by the function
+		 * @param lineage The lineage of each cell of the output, or
+		 * <tt>null</tt>
+		 * @param arity The number of inputs of the function
+		 */
+		protected Result(Spreadsheet output, CellMapping lineage, int arity)
+		{
+			super();
+			m_output = output;
+			m_lineage = lineage;
+			m_arity = arity;
+		}
+
+		/**
+		 * Gets the spreadsheet produced by the function.
+		 * @return The spreadsheet
+		 */
+		/*@ pure non_null @*/ public Spreadsheet getOutput()
+		{
+			return m_output;
+		}
+
+		/**
+		 * Gets a function explaining the cells of the output with the stored
+		 * lineage. If no lineage was stored, the function explains every
+		 * cell as unknown.
+		 * @return The function
+		 */
+		/*@ non_null @*/ public StoredLineage getLineage()
+		{
+			return new StoredLineage(m_arity, m_lineage);
+		}
+	}
+
+	/**
+	 * A function that cannot be evaluated, and only answers explanations
+	 * about a result read from the cache, using the lineage stored along with
+	 * it.
+	 */
+	public static class StoredLineage extends SpreadsheetFunction
+	{
+		/**
+		 * Creates a new stored lineage.
+		 * @param in_arity The number of inputs of the function that produced
+		 * the result
+		 * @param mapping The lineage of the cells of the result, or
+		 * <tt>null</tt> if no lineage was stored
+		 */
+		public StoredLineage(int in_arity, /*@ null @*/ CellMapping mapping)
+		{
+			super(in_arity);
+			m_mapping = mapping;
+			m_lineage = mapping == null ? ProvenanceMode.NONE : ProvenanceMode.FULL;
+		}
+
+		@Override
+		protected Object[] getValue(Object ... inputs) throws InvalidNumberOfArgumentsException
+		{
+			throw new FunctionException("A stored lineage cannot be evaluated");
+		}
+
+		@Override
+		public StoredLineage duplicate(boolean with_state)
+		{
+			StoredLineage sl = new StoredLineage(getInputArity(), m_mapping);
+			super.copyInto(sl, with_state);
+			return sl;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Stored lineage";
+		}
+	}
+}
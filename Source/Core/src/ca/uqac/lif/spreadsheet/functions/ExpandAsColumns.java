@@ -18,7 +18,6 @@
 package ca.uqac.lif.spreadsheet.functions;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
@@ -82,6 +81,7 @@ public class ExpandAsColumns extends SpreadsheetFunction
 			throw new InvalidArgumentTypeException("Argument is not a spreadsheet");
 		}
 		Spreadsheet s = (Spreadsheet) inputs[0];
+		boolean track = startLineage(inputs);
 		if (m_headerCaption != null)
 		{
 			m_headerColumn = s.getColumnIndex(m_headerCaption);
@@ -98,7 +98,7 @@ public class ExpandAsColumns extends SpreadsheetFunction
 			{
 				if (i != m_headerColumn && i != m_valueColumn)
 				{
-					new_headers.add(new TrackedCell(first_row[i], InputCell.get(i, 0)));
+					new_headers.add(new TrackedCell(first_row[i], InputCell.encode(i, 0)));
 				}
 			}
 		}
@@ -110,11 +110,11 @@ public class ExpandAsColumns extends SpreadsheetFunction
 			Object key = original_row[m_headerColumn];
 			if (!containsHeader(new_headers, key))
 			{
-				new_headers.add(new TrackedCell(key, InputCell.get(m_headerColumn, row_index)));
+				new_headers.add(new TrackedCell(key, InputCell.encode(m_headerColumn, row_index)));
 			}
 			ExpandedRow r = findExpandedRow(original_row, row_index, new_rows);
-			r.add(original_row[m_headerColumn],
-					new TrackedCell(original_row[m_valueColumn], InputCell.get(m_headerColumn, row_index), InputCell.get(m_valueColumn, row_index)));
+			r.add(original_row[m_headerColumn], original_row[m_valueColumn],
+					track ? new long[] {InputCell.encode(m_headerColumn, row_index), InputCell.encode(m_valueColumn, row_index)} : null);
 		}
 		return new Object[] {fillSpreadsheet(s, new_rows, new_headers)};
 	}
@@ -151,33 +151,7 @@ public class ExpandAsColumns extends SpreadsheetFunction
 	
 	protected Spreadsheet fillSpreadsheet(Spreadsheet original, List<Row> new_rows, List<TrackedCell> new_headers)
 	{
-		Spreadsheet out = new Spreadsheet(new_headers.size(), new_rows.size() + 1);
-		m_mapping = new InputCell[new_rows.size() + 1][new_headers.size()][];
-		for (int col = 0; col < new_headers.size(); col++)
-		{
-			out.set(col, 0, new_headers.get(col).getValue());
-			m_mapping[0][col] = new_headers.get(col).getOrigin();
-		}
-		for (int row = 0; row < new_rows.size(); row++)
-		{
-			Row r = new_rows.get(row);
-			for (int col = 0; col < r.m_staticColumns.length; col++)
-			{
-				out.set(col, row + 1, r.m_staticColumns[col].getValue());
-				m_mapping[row + 1][col] = r.m_staticColumns[col].getOrigin();
-			}
-			for (int col = r.m_staticColumns.length; col < new_headers.size(); col++)
-			{
-				Object key = new_headers.get(col).getValue();
-				TrackedCell tc = r.m_otherValues.get(key);
-				if (tc != null)
-				{
-					out.set(col, row + 1, tc.getValue());
-					m_mapping[row + 1][col] = tc.getOrigin();
-				}
-			}
-		}
-		return out;
+		return fillSpreadsheet(new_rows, new_headers);
 	}
 	
 	protected class ExpandedRow extends Row
@@ -185,16 +159,23 @@ public class ExpandAsColumns extends SpreadsheetFunction
 		public ExpandedRow(/*@ non_null @*/ Object[] row, int row_index)
 		{
 			super();
-			m_staticColumns = new TrackedCell[row.length - 2];
+			m_staticValues = new Object[row.length - 2];
+			if (tracksProvenance())
+			{
+				m_staticOrigins = new long[m_staticValues.length];
+			}
 			int index = 0;
 			for (int i = 0; i < row.length; i++)
 			{
 				if (i != m_headerColumn && i != m_valueColumn)
 				{
-					m_staticColumns[index++] = new TrackedCell(row[i], InputCell.get(i, row_index));
+					if (m_staticOrigins != null)
+					{
+						m_staticOrigins[index] = InputCell.encode(i, row_index);
+					}
+					m_staticValues[index++] = row[i];
 				}
 			}
-			m_otherValues = new HashMap<Object,TrackedCell>();
 		}
 		
 		@Override
@@ -205,12 +186,11 @@ public class ExpandAsColumns extends SpreadsheetFunction
 			{
 				if (i != m_headerColumn && i != m_valueColumn)
 				{
-					Object tv = m_staticColumns[index++].getValue();
+					Object tv = m_staticValues[index++];
 					if (!Spreadsheet.same(tv, row[i]))
 					{
 						return false;
 					}
-					index++;
 				}
 			}
 			return true;
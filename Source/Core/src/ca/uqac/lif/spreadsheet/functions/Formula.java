@@ -0,0 +1,1277 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.uqac.lif.spreadsheet.CellAddress;
+import ca.uqac.lif.spreadsheet.CellRange;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.SpreadsheetCellNameException;
+
+/**
+ * A formula written in a syntax similar to that of spreadsheet software,
+ * such as <tt>=SUM(A2:A100)/B1</tt>. The language supports:
+ * <ul>
+ * <li>numbers, strings between double quotes, <tt>TRUE</tt> and
+ * <tt>FALSE</tt></li>
+ * <li>cell references such as <tt>B1</tt>, where a <tt>$</tt> before the
+ * column or the row makes it absolute (<tt>$B$1</tt>), and ranges such as
+ * <tt>A2:A100</tt>, which can only be arguments of the aggregation
+ * functions</li>
+ * <li>the operators <tt>+</tt>, <tt>-</tt>, <tt>*</tt>, <tt>/</tt>,
+ * <tt>^</tt>, and the comparisons <tt>=</tt>, <tt>&lt;&gt;</tt>,
+ * <tt>&lt;</tt>, <tt>&lt;=</tt>, <tt>&gt;</tt>, <tt>&gt;=</tt></li>
+ * <li>the functions <tt>SUM</tt>, <tt>AVERAGE</tt>, <tt>MIN</tt>,
+ * <tt>MAX</tt>, <tt>COUNT</tt> and <tt>IF</tt></li>
+ * </ul>
+ * As in the rest of the library, the cell named <tt>A1</tt> is the cell at
+ * column 0 and row 0. Arithmetic operations produce {@link Double} values,
+ * and produce <tt>null</tt> when one of their operands is not a number (or
+ * when their result is not a number). Aggregation functions ignore the
+ * cells that do not contain a number; ranges are traversed by their
+ * coordinates, without creating the cells they contain.
+ * <p>
+ * Cell references that are not absolute are stored relative to the
+ * <em>anchor</em> of the formula, which is the cell where the formula is
+ * written. The formulas <tt>=A1+B1</tt> written in C1 and <tt>=A2+B2</tt>
+ * written in C2 therefore have the same <em>shape</em>. The method
+ * {@link #parse(String, int, int)} keeps the formulas it produces in a
+ * cache indexed by their shape, so that all the cells sharing a formula
+ * share a single parsed object; the anchor is then passed to
+ * {@link #evaluate(Spreadsheet, int, int)}. Formula objects are immutable
+ * and can be evaluated by multiple threads.
+ *
+ * @author Sylvain Hallé
+ */
+public class Formula
+{
+	/**
+	 * The maximum number of formulas kept in the cache.
+	 */
+	public static final int CACHE_SIZE = 4096;
+
+	/**
+	 * The formulas already parsed, indexed by their shape.
+	 */
+	/*@ non_null @*/ protected static final Map<String,Formula> s_cache = new LinkedHashMap<String,Formula>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String,Formula> e)
+		{
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * The root of the expression tree of the formula.
+	 */
+	/*@ non_null @*/ protected final Expression m_root;
+
+	/**
+	 * The shape of the formula, in which references that are not absolute
+	 * are written relative to the anchor.
+	 */
+	/*@ non_null @*/ protected final String m_shape;
+
+	/**
+	 * Creates a new formula.
+	 * @param root The root of the expression tree of the formula
+	 * @param shape The shape of the formula
+	 */
+	protected Formula(/*@ non_null @*/ Expression root, /*@ non_null @*/ String shape)
+	{
+		super();
+		m_root = root;
+		m_shape = shape;
+	}
+
+	/**
+	 * Parses a formula, or retrieves it from the cache if a formula with the
+	 * same shape has already been parsed.
+	 * @param text The text of the formula, optionally starting with
+	 * <tt>=</tt>
+	 * @param col The column of the anchor of the formula
+	 * @param row The row of the anchor of the formula
+	 * @return The formula
+	 * @throws FormulaSyntaxException If the text is not a valid formula
+	 */
+	/*@ non_null @*/ public static Formula parse(/*@ non_null @*/ String text, int col, int row)
+	{
+		List<Token> tokens = tokenize(text, col, row);
+		StringBuilder shape = new StringBuilder();
+		for (Token t : tokens)
+		{
+			shape.append(t).append(' ');
+		}
+		String key = shape.toString();
+		synchronized (s_cache)
+		{
+			Formula f = s_cache.get(key);
+			if (f != null)
+			{
+				return f;
+			}
+		}
+		Formula f = new Formula(new Parser(tokens).parse(), key);
+		synchronized (s_cache)
+		{
+			Formula cached = s_cache.get(key);
+			if (cached != null)
+			{
+				return cached;
+			}
+			s_cache.put(key, f);
+		}
+		return f;
+	}
+
+	/**
+	 * Removes all the formulas from the cache.
+	 */
+	public static void clearCache()
+	{
+		synchronized (s_cache)
+		{
+			s_cache.clear();
+		}
+	}
+
+	/**
+	 * Gets the number of formulas in the cache.
+	 * @return The number of formulas
+	 */
+	public static int getCacheSize()
+	{
+		synchronized (s_cache)
+		{
+			return s_cache.size();
+		}
+	}
+
+	/**
+	 * Evaluates the formula.
+	 * @param s The spreadsheet the references of the formula refer to
+	 * @param col The column of the anchor of the formula
+	 * @param row The row of the anchor of the formula
+	 * @return The value of the formula
+	 */
+	/*@ null @*/ public Object evaluate(/*@ non_null @*/ Spreadsheet s, int col, int row)
+	{
+		return m_root.evaluate(s, col, row);
+	}
+
+	/**
+	 * Gets the ranges of cells referenced by the formula. A reference to a
+	 * single cell produces a range containing only this cell.
+	 * @param col The column of the anchor of the formula
+	 * @param row The row of the anchor of the formula
+	 * @return The list of ranges, in the order they appear in the formula
+	 */
+	/*@ non_null @*/ public List<CellRange> getRanges(int col, int row)
+	{
+		List<CellRange> ranges = new ArrayList<CellRange>();
+		m_root.getRanges(col, row, ranges);
+		return ranges;
+	}
+
+	/**
+	 * Gets the shape of the formula, in which references that are not
+	 * absolute are written relative to the anchor.
+	 * @return The shape
+	 */
+	/*@ pure non_null @*/ public String getShape()
+	{
+		return m_shape;
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_shape;
+	}
+
+	/**
+	 * Splits the text of a formula into tokens.
+	 * @param text The text of the formula
+	 * @param col The column of the anchor of the formula
+	 * @param row The row of the anchor of the formula
+	 * @return The list of tokens
+	 */
+	/*@ non_null @*/ protected static List<Token> tokenize(/*@ non_null @*/ String text, int col, int row)
+	{
+		List<Token> tokens = new ArrayList<Token>();
+		int i = 0, len = text.length();
+		while (i < len && Character.isWhitespace(text.charAt(i)))
+		{
+			i++;
+		}
+		if (i < len && text.charAt(i) == '=')
+		{
+			i++;
+		}
+		while (i < len)
+		{
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c))
+			{
+				i++;
+			}
+			else if (Character.isDigit(c) || c == '.')
+			{
+				int start = i;
+				while (i < len && (Character.isDigit(text.charAt(i)) || text.charAt(i) == '.'))
+				{
+					i++;
+				}
+				if (i < len && (text.charAt(i) == 'e' || text.charAt(i) == 'E'))
+				{
+					i++;
+					if (i < len && (text.charAt(i) == '+' || text.charAt(i) == '-'))
+					{
+						i++;
+					}
+					while (i < len && Character.isDigit(text.charAt(i)))
+					{
+						i++;
+					}
+				}
+				try
+				{
+					tokens.add(new Token(Token.NUMBER, Double.parseDouble(text.substring(start, i))));
+				}
+				catch (NumberFormatException e)
+				{
+					throw new FormulaSyntaxException("Invalid number " + text.substring(start, i));
+				}
+			}
+			else if (c == '"')
+			{
+				int end = text.indexOf('"', i + 1);
+				if (end < 0)
+				{
+					throw new FormulaSyntaxException("Unterminated string");
+				}
+				tokens.add(new Token(Token.STRING, text.substring(i + 1, end)));
+				i = end + 1;
+			}
+			else if (c == '$' || Character.isLetter(c))
+			{
+				i = scanName(text, i, col, row, tokens);
+			}
+			else if ((c == '<' || c == '>') && i + 1 < len && (text.charAt(i + 1) == '=' || (c == '<' && text.charAt(i + 1) == '>')))
+			{
+				tokens.add(new Token(Token.OPERATOR, text.substring(i, i + 2)));
+				i += 2;
+			}
+			else if ("+-*/^(),:=<>".indexOf(c) >= 0)
+			{
+				tokens.add(new Token(Token.OPERATOR, String.valueOf(c)));
+				i++;
+			}
+			else
+			{
+				throw new FormulaSyntaxException("Unexpected character " + c);
+			}
+		}
+		return tokens;
+	}
+
+	/**
+	 * Reads a cell reference or a name from the text of a formula.
+	 * @param text The text of the formula
+	 * @param i The position where the reference or the name starts
+	 * @param col The column of the anchor of the formula
+	 * @param row The row of the anchor of the formula
+	 * @param tokens The list where the token is added
+	 * @return The position after the reference or the name
+	 */
+	protected static int scanName(String text, int i, int col, int row, List<Token> tokens)
+	{
+		int len = text.length(), start = i;
+		boolean abs_col = false, abs_row = false;
+		if (text.charAt(i) == '$')
+		{
+			abs_col = true;
+			i++;
+		}
+		int letters_start = i;
+		while (i < len && Character.isLetter(text.charAt(i)))
+		{
+			i++;
+		}
+		String letters = text.substring(letters_start, i).toUpperCase();
+		if (i < len && text.charAt(i) == '$')
+		{
+			abs_row = true;
+			i++;
+		}
+		int digits_start = i;
+		while (i < len && Character.isDigit(text.charAt(i)))
+		{
+			i++;
+		}
+		if (digits_start == i)
+		{
+			// Not a reference: a function name or a keyword
+			if (abs_col || abs_row || letters.isEmpty())
+			{
+				throw new FormulaSyntaxException("Invalid reference " + text.substring(start, i));
+			}
+			tokens.add(new Token(Token.NAME, letters));
+			return i;
+		}
+		if (letters.isEmpty())
+		{
+			throw new FormulaSyntaxException("Invalid reference " + text.substring(start, i));
+		}
+		int ref_col;
+		try
+		{
+			ref_col = CellAddress.getColumnNumber(letters, 0, letters.length());
+		}
+		catch (SpreadsheetCellNameException e)
+		{
+			throw new FormulaSyntaxException("Invalid reference " + text.substring(start, i));
+		}
+		long number = 0;
+		for (int j = digits_start; j < i && number <= Integer.MAX_VALUE; j++)
+		{
+			number = number * 10 + (text.charAt(j) - '0');
+		}
+		if (number < 1 || number > Integer.MAX_VALUE)
+		{
+			// Rows are numbered from 1
+			throw new FormulaSyntaxException("Invalid reference " + text.substring(start, i));
+		}
+		int ref_row = (int) number - 1;
+		tokens.add(new Token(Token.REFERENCE, new Reference(abs_col, abs_col ? ref_col : ref_col - col, abs_row, abs_row ? ref_row : ref_row - row)));
+		return i;
+	}
+
+	/**
+	 * An element of the text of a formula.
+	 */
+	protected static class Token
+	{
+		/**
+		 * Type of a token that is a number.
+		 */
+		public static final int NUMBER = 0;
+
+		/**
+		 * Type of a token that is a string.
+		 */
+		public static final int STRING = 1;
+
+		/**
+		 * Type of a token that is a cell reference.
+		 */
+		public static final int REFERENCE = 2;
+
+		/**
+		 * Type of a token that is a function name or a keyword.
+		 */
+		public static final int NAME = 3;
+
+		/**
+		 * Type of a token that is an operator or a punctuation sign.
+		 */
+		public static final int OPERATOR = 4;
+
+		/**
+		 * The type of the token.
+		 */
+		protected final int m_type;
+
+		/**
+		 * The value of the token.
+		 */
+		/*@ non_null @*/ protected final Object m_value;
+
+		/**
+		 * Creates a new token.
+		 * @param type The type of the token
+		 * @param value The value of the token
+		 */
+		public Token(int type, /*@ non_null @*/ Object value)
+		{
+			super();
+			m_type = type;
+			m_value = value;
+		}
+
+		/**
+		 * Determines if this token is a specific operator.
+		 * @param op The operator
+		 * @return <tt>true</tt> if the token is this operator, <tt>false</tt>
+		 * otherwise
+		 */
+		/*@ pure @*/ public boolean is(String op)
+		{
+			return m_type == OPERATOR && m_value.equals(op);
+		}
+
+		@Override
+		public String toString()
+		{
+			if (m_type == STRING)
+			{
+				return "\"" + m_value + "\"";
+			}
+			return m_value.toString();
+		}
+	}
+
+	/**
+	 * A cell reference, whose column and row are either absolute or relative
+	 * to the anchor of the formula.
+	 */
+	protected static class Reference
+	{
+		/**
+		 * Whether the column is absolute.
+		 */
+		protected final boolean m_absColumn;
+
+		/**
+		 * The column, or the offset of the column from the anchor.
+		 */
+		protected final int m_column;
+
+		/**
+		 * Whether the row is absolute.
+		 */
+		protected final boolean m_absRow;
+
+		/**
+		 * The row, or the offset of the row from the anchor.
+		 */
+		protected final int m_row;
+
+		/**
+		 * Creates a new reference.
+		 * @param abs_col Whether the column is absolute
+		 * @param col The column, or the offset of the column from the anchor
+		 * @param abs_row Whether the row is absolute
+		 * @param row The row, or the offset of the row from the anchor
+		 */
+		public Reference(boolean abs_col, int col, boolean abs_row, int row)
+		{
+			super();
+			m_absColumn = abs_col;
+			m_column = col;
+			m_absRow = abs_row;
+			m_row = row;
+		}
+
+		/**
+		 * Gets the column of the referenced cell.
+		 * @param col The column of the anchor
+		 * @return The column
+		 */
+		/*@ pure @*/ public int getColumn(int col)
+		{
+			return m_absColumn ? m_column : col + m_column;
+		}
+
+		/**
+		 * Gets the row of the referenced cell.
+		 * @param row The row of the anchor
+		 * @return The row
+		 */
+		/*@ pure @*/ public int getRow(int row)
+		{
+			return m_absRow ? m_row : row + m_row;
+		}
+
+		@Override
+		public String toString()
+		{
+			// Written in the R1C1 notation, with 1-based absolute indices
+			return "R" + (m_absRow ? Integer.toString(m_row + 1) : "[" + m_row + "]")
+					+ "C" + (m_absColumn ? Integer.toString(m_column + 1) : "[" + m_column + "]");
+		}
+	}
+
+	/**
+	 * Recursive descent parser producing the expression tree of a formula
+	 * from its tokens.
+	 */
+	protected static class Parser
+	{
+		/**
+		 * The tokens of the formula.
+		 */
+		/*@ non_null @*/ protected final List<Token> m_tokens;
+
+		/**
+		 * The position of the next token to read.
+		 */
+		protected int m_position = 0;
+
+		/**
+		 * Creates a new parser.
+		 * @param tokens The tokens of the formula
+		 */
+		public Parser(/*@ non_null @*/ List<Token> tokens)
+		{
+			super();
+			m_tokens = tokens;
+		}
+
+		/**
+		 * Parses the whole formula.
+		 * @return The root of the expression tree
+		 */
+		/*@ non_null @*/ public Expression parse()
+		{
+			Expression e = value(parseComparison());
+			if (m_position < m_tokens.size())
+			{
+				throw new FormulaSyntaxException("Unexpected token " + m_tokens.get(m_position));
+			}
+			return e;
+		}
+
+		/**
+		 * Parses a comparison, or an expression without comparison.
+		 * @return The expression
+		 */
+		/*@ non_null @*/ protected Expression parseComparison()
+		{
+			Expression left = parseAdditive();
+			Token t = peek();
+			if (t != null && (t.is("=") || t.is("<>") || t.is("<") || t.is("<=") || t.is(">") || t.is(">=")))
+			{
+				m_position++;
+				return new Comparison(t.m_value.toString(), value(left), value(parseAdditive()));
+			}
+			return left;
+		}
+
+		/**
+		 * Parses a sequence of additions and subtractions.
+		 * @return The expression
+		 */
+		/*@ non_null @*/ protected Expression parseAdditive()
+		{
+			Expression left = parseMultiplicative();
+			while (peekIs("+") || peekIs("-"))
+			{
+				char op = next().m_value.toString().charAt(0);
+				left = new Arithmetic(op, value(left), value(parseMultiplicative()));
+			}
+			return left;
+		}
+
+		/**
+		 * Parses a sequence of multiplications and divisions.
+		 * @return The expression
+		 */
+		/*@ non_null @*/ protected Expression parseMultiplicative()
+		{
+			Expression left = parseUnary();
+			while (peekIs("*") || peekIs("/"))
+			{
+				char op = next().m_value.toString().charAt(0);
+				left = new Arithmetic(op, value(left), value(parseUnary()));
+			}
+			return left;
+		}
+
+		/**
+		 * Parses a signed expression or an exponentiation.
+		 * @return The expression
+		 */
+		/*@ non_null @*/ protected Expression parseUnary()
+		{
+			if (peekIs("-"))
+			{
+				m_position++;
+				return new Arithmetic('-', new Literal(0d), value(parseUnary()));
+			}
+			if (peekIs("+"))
+			{
+				m_position++;
+				return parseUnary();
+			}
+			Expression base = parsePrimary();
+			if (peekIs("^"))
+			{
+				m_position++;
+				return new Arithmetic('^', value(base), value(parseUnary()));
+			}
+			return base;
+		}
+
+		/**
+		 * Parses a literal, a reference, a range, a function call or an
+		 * expression between parentheses.
+		 * @return The expression
+		 */
+		/*@ non_null @*/ protected Expression parsePrimary()
+		{
+			Token t = next();
+			if (t == null)
+			{
+				throw new FormulaSyntaxException("Unexpected end of formula");
+			}
+			switch (t.m_type)
+			{
+			case Token.NUMBER:
+			case Token.STRING:
+				return new Literal(t.m_value);
+			case Token.REFERENCE:
+				if (peekIs(":"))
+				{
+					m_position++;
+					Token end = next();
+					if (end == null || end.m_type != Token.REFERENCE)
+					{
+						throw new FormulaSyntaxException("Invalid range");
+					}
+					return new Range((Reference) t.m_value, (Reference) end.m_value);
+				}
+				return new Ref((Reference) t.m_value);
+			case Token.NAME:
+				return parseName(t.m_value.toString());
+			default:
+				if (t.is("("))
+				{
+					Expression e = parseComparison();
+					expect(")");
+					return e;
+				}
+				throw new FormulaSyntaxException("Unexpected token " + t);
+			}
+		}
+
+		/**
+		 * Parses a keyword or a function call, whose name has already been
+		 * read.
+		 * @param name The name
+		 * @return The expression
+		 */
+		/*@ non_null @*/ protected Expression parseName(String name)
+		{
+			if (!peekIs("("))
+			{
+				if (name.equals("TRUE") || name.equals("FALSE"))
+				{
+					return new Literal(Boolean.valueOf(name.equals("TRUE")));
+				}
+				throw new FormulaSyntaxException("Unknown name " + name);
+			}
+			m_position++;
+			List<Expression> args = new ArrayList<Expression>();
+			if (!peekIs(")"))
+			{
+				args.add(parseComparison());
+				while (peekIs(","))
+				{
+					m_position++;
+					args.add(parseComparison());
+				}
+			}
+			expect(")");
+			Expression[] arguments = args.toArray(new Expression[args.size()]);
+			if (name.equals("IF"))
+			{
+				if (arguments.length < 2 || arguments.length > 3)
+				{
+					throw new FormulaSyntaxException("IF expects 2 or 3 arguments");
+				}
+				for (Expression e : arguments)
+				{
+					value(e);
+				}
+				return new If(arguments);
+			}
+			for (Aggregate.Kind k : Aggregate.Kind.values())
+			{
+				if (k.name().equals(name))
+				{
+					return new Aggregate(k, arguments);
+				}
+			}
+			throw new FormulaSyntaxException("Unknown function " + name);
+		}
+
+		/**
+		 * Checks that an expression produces a single value. A range of cells
+		 * only has a meaning as an argument of an aggregate function, and is
+		 * rejected anywhere else.
+		 * @param e The expression
+		 * @return The expression
+		 * @throws FormulaSyntaxException If the expression is a range
+		 */
+		/*@ non_null @*/ protected static Expression value(/*@ non_null @*/ Expression e)
+		{
+			if (e instanceof Range)
+			{
+				throw new FormulaSyntaxException("A range can only be an argument of SUM, AVERAGE, MIN, MAX or COUNT");
+			}
+			return e;
+		}
+
+		/**
+		 * Gets the next token without consuming it.
+		 * @return The token, or <tt>null</tt> at the end of the formula
+		 */
+		/*@ null @*/ protected Token peek()
+		{
+			return m_position < m_tokens.size() ? m_tokens.get(m_position) : null;
+		}
+
+		/**
+		 * Determines if the next token is a specific operator.
+		 * @param op The operator
+		 * @return <tt>true</tt> if the next token is this operator,
+		 * <tt>false</tt> otherwise
+		 */
+		protected boolean peekIs(String op)
+		{
+			Token t = peek();
+			return t != null && t.is(op);
+		}
+
+		/**
+		 * Consumes the next token.
+		 * @return The token, or <tt>null</tt> at the end of the formula
+		 */
+		/*@ null @*/ protected Token next()
+		{
+			return m_position < m_tokens.size() ? m_tokens.get(m_position++) : null;
+		}
+
+		/**
+		 * Consumes the next token, which must be a specific operator.
+		 * @param op The operator
+		 * @throws FormulaSyntaxException If the next token is not this operator
+		 */
+		protected void expect(String op)
+		{
+			Token t = next();
+			if (t == null || !t.is(op))
+			{
+				throw new FormulaSyntaxException("Expected " + op);
+			}
+		}
+	}
+
+	/**
+	 * A node of the expression tree of a formula.
+	 */
+	protected abstract static class Expression
+	{
+		/**
+		 * Computes the value of the expression.
+		 * @param s The spreadsheet the references refer to
+		 * @param col The column of the anchor of the formula
+		 * @param row The row of the anchor of the formula
+		 * @return The value
+		 */
+		/*@ null @*/ public abstract Object evaluate(Spreadsheet s, int col, int row);
+
+		/**
+		 * Computes the value of the expression as a primitive number.
+		 * @param s The spreadsheet the references refer to
+		 * @param col The column of the anchor of the formula
+		 * @param row The row of the anchor of the formula
+		 * @return The value, or {@link Double#NaN} if the value is not a number
+		 */
+		public double evaluateNumber(Spreadsheet s, int col, int row)
+		{
+			return toNumber(evaluate(s, col, row));
+		}
+
+		/**
+		 * Adds the ranges of cells referenced by the expression to a list.
+		 * @param col The column of the anchor of the formula
+		 * @param row The row of the anchor of the formula
+		 * @param ranges The list
+		 */
+		public void getRanges(int col, int row, List<CellRange> ranges)
+		{
+			// Nothing to do by default
+		}
+	}
+
+	/**
+	 * Converts a value to a primitive number.
+	 * @param o The value
+	 * @return The number, or {@link Double#NaN} if the value is not a number
+	 */
+	protected static double toNumber(/*@ null @*/ Object o)
+	{
+		return o instanceof Number ? ((Number) o).doubleValue() : Double.NaN;
+	}
+
+	/**
+	 * A literal value.
+	 */
+	protected static class Literal extends Expression
+	{
+		/**
+		 * The value.
+		 */
+		/*@ non_null @*/ protected final Object m_value;
+
+		/**
+		 * The value as a primitive number.
+		 */
+		protected final double m_number;
+
+		/**
+		 * Creates a new literal.
+		 * @param value The value
+		 */
+		public Literal(/*@ non_null @*/ Object value)
+		{
+			super();
+			m_value = value;
+			m_number = toNumber(value);
+		}
+
+		@Override
+		public Object evaluate(Spreadsheet s, int col, int row)
+		{
+			return m_value;
+		}
+
+		@Override
+		public double evaluateNumber(Spreadsheet s, int col, int row)
+		{
+			return m_number;
+		}
+	}
+
+	/**
+	 * A reference to a single cell.
+	 */
+	protected static class Ref extends Expression
+	{
+		/**
+		 * The reference.
+		 */
+		/*@ non_null @*/ protected final Reference m_reference;
+
+		/**
+		 * Creates a new reference to a single cell.
+		 * @param r The reference
+		 */
+		public Ref(/*@ non_null @*/ Reference r)
+		{
+			super();
+			m_reference = r;
+		}
+
+		@Override
+		public Object evaluate(Spreadsheet s, int col, int row)
+		{
+			int c = m_reference.getColumn(col), r = m_reference.getRow(row);
+			if (c < 0 || r < 0 || c >= s.getWidth() || r >= s.getHeight())
+			{
+				return null;
+			}
+			return s.get(c, r);
+		}
+
+		@Override
+		public void getRanges(int col, int row, List<CellRange> ranges)
+		{
+			int c = m_reference.getColumn(col), r = m_reference.getRow(row);
+			ranges.add(new CellRange(c, r, c, r));
+		}
+	}
+
+	/**
+	 * A range of cells. A range only has a value when passed to an
+	 * aggregation function.
+	 */
+	protected static class Range extends Expression
+	{
+		/**
+		 * The reference to a corner of the range.
+		 */
+		/*@ non_null @*/ protected final Reference m_from;
+
+		/**
+		 * The reference to the opposite corner of the range.
+		 */
+		/*@ non_null @*/ protected final Reference m_to;
+
+		/**
+		 * Creates a new range.
+		 * @param from The reference to a corner of the range
+		 * @param to The reference to the opposite corner of the range
+		 */
+		public Range(/*@ non_null @*/ Reference from, /*@ non_null @*/ Reference to)
+		{
+			super();
+			m_from = from;
+			m_to = to;
+		}
+
+		/**
+		 * Gets the range of cells designated by this expression.
+		 * @param col The column of the anchor of the formula
+		 * @param row The row of the anchor of the formula
+		 * @return The range
+		 */
+		/*@ non_null @*/ public CellRange resolve(int col, int row)
+		{
+			return new CellRange(m_from.getColumn(col), m_from.getRow(row), m_to.getColumn(col), m_to.getRow(row));
+		}
+
+		@Override
+		public Object evaluate(Spreadsheet s, int col, int row)
+		{
+			return null;
+		}
+
+		@Override
+		public void getRanges(int col, int row, List<CellRange> ranges)
+		{
+			ranges.add(resolve(col, row));
+		}
+	}
+
+	/**
+	 * An arithmetic operation on two expressions, computed on primitive
+	 * numbers.
+	 */
+	protected static class Arithmetic extends Expression
+	{
+		/**
+		 * The operator.
+		 */
+		protected final char m_operator;
+
+		/**
+		 * The left operand.
+		 */
+		/*@ non_null @*/ protected final Expression m_left;
+
+		/**
+		 * The right operand.
+		 */
+		/*@ non_null @*/ protected final Expression m_right;
+
+		/**
+		 * Creates a new arithmetic operation.
+		 * @param op The operator
+		 * @param left The left operand
+		 * @param right The right operand
+		 */
+		public Arithmetic(char op, /*@ non_null @*/ Expression left, /*@ non_null @*/ Expression right)
+		{
+			super();
+			m_operator = op;
+			m_left = left;
+			m_right = right;
+		}
+
+		@Override
+		public Object evaluate(Spreadsheet s, int col, int row)
+		{
+			double v = evaluateNumber(s, col, row);
+			return Double.isNaN(v) ? null : (Object) v;
+		}
+
+		@Override
+		public double evaluateNumber(Spreadsheet s, int col, int row)
+		{
+			double x = m_left.evaluateNumber(s, col, row);
+			double y = m_right.evaluateNumber(s, col, row);
+			switch (m_operator)
+			{
+			case '+':
+				return x + y;
+			case '-':
+				return x - y;
+			case '*':
+				return x * y;
+			case '/':
+				return x / y;
+			default:
+				return Math.pow(x, y);
+			}
+		}
+
+		@Override
+		public void getRanges(int col, int row, List<CellRange> ranges)
+		{
+			m_left.getRanges(col, row, ranges);
+			m_right.getRanges(col, row, ranges);
+		}
+	}
+
+	/**
+	 * A comparison between two expressions. Numbers are compared by their
+	 * value, and other objects with {@link Spreadsheet#same(Object, Object)}
+	 * and {@link Spreadsheet#compare(Object, Object)}.
+	 */
+	protected static class Comparison extends Expression
+	{
+		/**
+		 * The operator.
+		 */
+		/*@ non_null @*/ protected final String m_operator;
+
+		/**
+		 * The left operand.
+		 */
+		/*@ non_null @*/ protected final Expression m_left;
+
+		/**
+		 * The right operand.
+		 */
+		/*@ non_null @*/ protected final Expression m_right;
+
+		/**
+		 * Creates a new comparison.
+		 * @param op The operator
+		 * @param left The left operand
+		 * @param right The right operand
+		 */
+		public Comparison(/*@ non_null @*/ String op, /*@ non_null @*/ Expression left, /*@ non_null @*/ Expression right)
+		{
+			super();
+			m_operator = op;
+			m_left = left;
+			m_right = right;
+		}
+
+		@Override
+		public Object evaluate(Spreadsheet s, int col, int row)
+		{
+			Object x = m_left.evaluate(s, col, row);
+			Object y = m_right.evaluate(s, col, row);
+			int cmp;
+			if (x instanceof Number && y instanceof Number)
+			{
+				cmp = Double.compare(((Number) x).doubleValue(), ((Number) y).doubleValue());
+			}
+			else if (m_operator.equals("=") || m_operator.equals("<>"))
+			{
+				cmp = Spreadsheet.same(x, y) ? 0 : 1;
+			}
+			else
+			{
+				cmp = Spreadsheet.compare(x, y);
+			}
+			switch (m_operator)
+			{
+			case "=":
+				return cmp == 0;
+			case "<>":
+				return cmp != 0;
+			case "<":
+				return cmp < 0;
+			case "<=":
+				return cmp <= 0;
+			case ">":
+				return cmp > 0;
+			default:
+				return cmp >= 0;
+			}
+		}
+
+		@Override
+		public void getRanges(int col, int row, List<CellRange> ranges)
+		{
+			m_left.getRanges(col, row, ranges);
+			m_right.getRanges(col, row, ranges);
+		}
+	}
+
+	/**
+	 * A conditional expression.
+	 */
+	protected static class If extends Expression
+	{
+		/**
+		 * The condition, the value if true and the optional value if false.
+		 */
+		/*@ non_null @*/ protected final Expression[] m_arguments;
+
+		/**
+		 * Creates a new conditional expression.
+		 * @param arguments The condition, the value if true and the optional
+		 * value if false
+		 */
+		public If(/*@ non_null @*/ Expression[] arguments)
+		{
+			super();
+			m_arguments = arguments;
+		}
+
+		/**
+		 * Gets the branch selected by the condition.
+		 * @param s The spreadsheet the references refer to
+		 * @param col The column of the anchor of the formula
+		 * @param row The row of the anchor of the formula
+		 * @return The branch, or <tt>null</tt> if the condition is false and
+		 * there is no value if false
+		 */
+		/*@ null @*/ protected Expression select(Spreadsheet s, int col, int row)
+		{
+			Object cond = m_arguments[0].evaluate(s, col, row);
+			boolean b = Boolean.TRUE.equals(cond) || (cond instanceof Number && ((Number) cond).doubleValue() != 0);
+			if (b)
+			{
+				return m_arguments[1];
+			}
+			return m_arguments.length > 2 ? m_arguments[2] : null;
+		}
+
+		@Override
+		public Object evaluate(Spreadsheet s, int col, int row)
+		{
+			Expression e = select(s, col, row);
+			return e == null ? null : e.evaluate(s, col, row);
+		}
+
+		@Override
+		public double evaluateNumber(Spreadsheet s, int col, int row)
+		{
+			Expression e = select(s, col, row);
+			return e == null ? Double.NaN : e.evaluateNumber(s, col, row);
+		}
+
+		@Override
+		public void getRanges(int col, int row, List<CellRange> ranges)
+		{
+			for (Expression e : m_arguments)
+			{
+				e.getRanges(col, row, ranges);
+			}
+		}
+	}
+
+	/**
+	 * An aggregation function over values and ranges of cells.
+	 */
+	protected static class Aggregate extends Expression
+	{
+		/**
+		 * The aggregation functions.
+		 */
+		protected enum Kind {SUM, AVERAGE, MIN, MAX, COUNT}
+
+		/**
+		 * The aggregation function.
+		 */
+		/*@ non_null @*/ protected final Kind m_kind;
+
+		/**
+		 * The arguments of the function.
+		 */
+		/*@ non_null @*/ protected final Expression[] m_arguments;
+
+		/**
+		 * Creates a new aggregation.
+		 * @param kind The aggregation function
+		 * @param arguments The arguments of the function
+		 */
+		public Aggregate(/*@ non_null @*/ Kind kind, /*@ non_null @*/ Expression[] arguments)
+		{
+			super();
+			m_kind = kind;
+			m_arguments = arguments;
+		}
+
+		@Override
+		public Object evaluate(Spreadsheet s, int col, int row)
+		{
+			double v = evaluateNumber(s, col, row);
+			return Double.isNaN(v) ? null : (Object) v;
+		}
+
+		@Override
+		public double evaluateNumber(Spreadsheet s, int col, int row)
+		{
+			double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+			int count = 0;
+			for (Expression e : m_arguments)
+			{
+				if (e instanceof Range)
+				{
+					CellRange r = ((Range) e).resolve(col, row);
+					int last_col = Math.min(r.getLastColumn(), s.getWidth() - 1);
+					int last_row = Math.min(r.getLastRow(), s.getHeight() - 1);
+					for (int c = Math.max(0, r.getFirstColumn()); c <= last_col; c++)
+					{
+						for (int w = Math.max(0, r.getFirstRow()); w <= last_row; w++)
+						{
+							Object o = s.get(c, w);
+							if (o instanceof Number)
+							{
+								double v = ((Number) o).doubleValue();
+								sum += v;
+								min = Math.min(min, v);
+								max = Math.max(max, v);
+								count++;
+							}
+						}
+					}
+				}
+				else
+				{
+					double v = e.evaluateNumber(s, col, row);
+					if (!Double.isNaN(v))
+					{
+						sum += v;
+						min = Math.min(min, v);
+						max = Math.max(max, v);
+						count++;
+					}
+				}
+			}
+			switch (m_kind)
+			{
+			case SUM:
+				return sum;
+			case COUNT:
+				return count;
+			case AVERAGE:
+				return count == 0 ? Double.NaN : sum / count;
+			case MIN:
+				return count == 0 ? Double.NaN : min;
+			default:
+				return count == 0 ? Double.NaN : max;
+			}
+		}
+
+		@Override
+		public void getRanges(int col, int row, List<CellRange> ranges)
+		{
+			for (Expression e : m_arguments)
+			{
+				e.getRanges(col, row, ranges);
+			}
+		}
+	}
+}
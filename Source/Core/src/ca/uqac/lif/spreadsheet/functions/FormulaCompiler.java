@@ -0,0 +1,636 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.uqac.lif.dag.Node;
+import ca.uqac.lif.dag.Pin;
+import ca.uqac.lif.petitpoucet.function.Circuit;
+import ca.uqac.lif.petitpoucet.function.Constant;
+import ca.uqac.lif.petitpoucet.function.Fork;
+import ca.uqac.lif.petitpoucet.function.Function;
+import ca.uqac.lif.petitpoucet.function.FunctionException;
+import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
+import ca.uqac.lif.petitpoucet.function.number.Addition;
+import ca.uqac.lif.petitpoucet.function.number.Division;
+import ca.uqac.lif.petitpoucet.function.number.IsGreaterThan;
+import ca.uqac.lif.petitpoucet.function.number.IsLessThan;
+import ca.uqac.lif.petitpoucet.function.number.Multiplication;
+import ca.uqac.lif.petitpoucet.function.number.Subtraction;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.SpreadsheetOutOfBoundsException;
+
+/**
+ * Turns the function of a {@link CellFormula} into a tree of
+ * {@link Evaluator}s that computes the same value without going through the
+ * generic evaluation of a {@link Circuit}. The compiler follows the
+ * connections of the circuit (and of the circuits nested in it) from its
+ * output back to its inputs, and replaces:
+ * <ul>
+ * <li>{@link Fork}s by a direct reference to their input</li>
+ * <li>{@link ValueOf} and {@link Constant} functions by a direct read of the
+ * cell or of the value</li>
+ * <li>{@link FormulaFunction}s by a direct evaluation of their
+ * {@link Formula}</li>
+ * <li>functions for which an {@link Intrinsic} is registered (by default,
+ * {@link Addition}, {@link Subtraction}, {@link Multiplication},
+ * {@link Division}, {@link IsGreaterThan} and {@link IsLessThan}) by an
+ * evaluator computing on primitive values</li>
+ * <li>any other function by an evaluator that calls it directly on the values
+ * of its arguments</li>
+ * </ul>
+ * A circuit whose shape is not supported (for example, an output of a
+ * function that is connected to more than one function) cannot be compiled;
+ * {@link #compile(Function)} then returns <tt>null</tt>, and the formula is
+ * evaluated by the circuit itself.
+ * <p>
+ * Evaluators are only used to compute values; the explanation of a formula
+ * is still produced by its original function (see
+ * {@link CellFormula#getExplainedFunction()}).
+ *
+ * @author Sylvain Hallé
+ */
+public class FormulaCompiler
+{
+	/**
+	 * The intrinsics associated to each class of function.
+	 */
+	/*@ non_null @*/ protected static final Map<Class<?>,Intrinsic> s_intrinsics = new HashMap<Class<?>,Intrinsic>();
+
+	static
+	{
+		addIntrinsic(Addition.class, new Primitive(Operator.ADD));
+		addIntrinsic(Subtraction.class, new Primitive(Operator.SUBTRACT));
+		addIntrinsic(Multiplication.class, new Primitive(Operator.MULTIPLY));
+		addIntrinsic(Division.class, new Primitive(Operator.DIVIDE));
+		addIntrinsic(IsGreaterThan.class, new Primitive(Operator.GREATER));
+		addIntrinsic(IsLessThan.class, new Primitive(Operator.LESS));
+	}
+
+	/**
+	 * Registers an intrinsic for a class of function. The intrinsic is used
+	 * for functions of this exact class, and not its descendants.
+	 * @param c The class of function
+	 * @param intrinsic The intrinsic
+	 */
+	public static void addIntrinsic(/*@ non_null @*/ Class<? extends Function> c, /*@ non_null @*/ Intrinsic intrinsic)
+	{
+		synchronized (s_intrinsics)
+		{
+			s_intrinsics.put(c, intrinsic);
+		}
+	}
+
+	/**
+	 * Compiles a function. The resulting evaluator receives the same
+	 * arguments as the function, and produces the value of its first output.
+	 * @param f The function
+	 * @return The evaluator, or <tt>null</tt> if the function cannot be
+	 * compiled
+	 */
+	/*@ null @*/ public static Evaluator compile(/*@ non_null @*/ Function f)
+	{
+		Evaluator[] inputs = new Evaluator[f.getInputArity()];
+		for (int i = 0; i < inputs.length; i++)
+		{
+			inputs[i] = new Input(i);
+		}
+		return compile(f, inputs, 0);
+	}
+
+	/**
+	 * Compiles an output of a function whose arguments are given by other
+	 * evaluators.
+	 * @param f The function
+	 * @param arguments The evaluators giving the arguments of the function
+	 * @param out_index The index of the output
+	 * @return The evaluator, or <tt>null</tt> if the function cannot be
+	 * compiled
+	 */
+	/*@ null @*/ protected static Evaluator compile(Function f, Evaluator[] arguments, int out_index)
+	{
+		if (f instanceof Circuit)
+		{
+			Circuit c = (Circuit) f;
+			// The evaluators bound to the inputs of the functions inside the circuit
+			Map<Node,Evaluator[]> bound = new IdentityHashMap<Node,Evaluator[]>();
+			for (int i = 0; i < c.getInputArity(); i++)
+			{
+				Pin<? extends Node> pin = c.getAssociatedInput(i);
+				if (pin == null)
+				{
+					continue;
+				}
+				Evaluator[] ins = bound.get(pin.getNode());
+				if (ins == null)
+				{
+					ins = new Evaluator[pin.getNode().getInputArity()];
+					bound.put(pin.getNode(), ins);
+				}
+				ins[pin.getIndex()] = arguments[i];
+			}
+			Pin<? extends Node> out = c.getAssociatedOutput(out_index);
+			if (out == null)
+			{
+				return null;
+			}
+			return compile(out.getNode(), out.getIndex(), bound);
+		}
+		if (f instanceof ValueOf)
+		{
+			return new CellRead(arguments[0], ((ValueOf) f).getCell());
+		}
+		if (f instanceof FormulaFunction)
+		{
+			return new Bound(arguments[0], (FormulaFunction) f);
+		}
+		if (f instanceof Constant)
+		{
+			return new Value(f.evaluate()[out_index]);
+		}
+		Intrinsic intrinsic;
+		synchronized (s_intrinsics)
+		{
+			intrinsic = s_intrinsics.get(f.getClass());
+		}
+		if (intrinsic != null)
+		{
+			return intrinsic.compile(f, arguments, out_index);
+		}
+		return new Call(f, arguments, out_index);
+	}
+
+	/**
+	 * Compiles an output of a node inside a circuit.
+	 * @param n The node
+	 * @param out_index The index of the output
+	 * @param bound The evaluators bound to the inputs of the nodes that are
+	 * associated to the inputs of the circuit
+	 * @return The evaluator, or <tt>null</tt> if the node cannot be compiled
+	 */
+	/*@ null @*/ protected static Evaluator compile(Node n, int out_index, Map<Node,Evaluator[]> bound)
+	{
+		if (!(n instanceof Function))
+		{
+			return null;
+		}
+		Evaluator[] arguments = new Evaluator[n.getInputArity()];
+		Evaluator[] bound_args = bound.get(n);
+		for (int i = 0; i < arguments.length; i++)
+		{
+			if (bound_args != null && bound_args[i] != null)
+			{
+				arguments[i] = bound_args[i];
+				continue;
+			}
+			List<Pin<? extends Node>> links = n.getInputLinks(i);
+			if (links.size() != 1)
+			{
+				return null;
+			}
+			Pin<? extends Node> up = links.get(0);
+			arguments[i] = compile(up.getNode(), up.getIndex(), bound);
+			if (arguments[i] == null)
+			{
+				return null;
+			}
+		}
+		if (n instanceof Fork)
+		{
+			// Evaluating the input of the fork once for each of its outputs is
+			// only safe if this input does not involve any function
+			return arguments[0] instanceof Input || arguments[0] instanceof Value ? arguments[0] : null;
+		}
+		if (!(n instanceof ValueOf) && !(n instanceof Constant))
+		{
+			// The value of the node would otherwise be computed more than once
+			int num_links = 0;
+			for (int i = 0; i < n.getOutputArity(); i++)
+			{
+				num_links += n.getOutputLinks(i).size();
+			}
+			if (num_links > 1)
+			{
+				return null;
+			}
+		}
+		return compile((Function) n, arguments, out_index);
+	}
+
+	/**
+	 * Produces an evaluator for a specific class of function.
+	 */
+	public interface Intrinsic
+	{
+		/**
+		 * Produces the evaluator of an output of a function.
+		 * @param f The function
+		 * @param arguments The evaluators giving the arguments of the function
+		 * @param out_index The index of the output
+		 * @return The evaluator
+		 */
+		/*@ non_null @*/ public Evaluator compile(/*@ non_null @*/ Function f, /*@ non_null @*/ Evaluator[] arguments, int out_index);
+	}
+
+	/**
+	 * Computes a value from the arguments of a formula.
+	 */
+	public abstract static class Evaluator
+	{
+		/**
+		 * Computes the value.
+		 * @param inputs The arguments of the formula
+		 * @return The value
+		 */
+		/*@ null @*/ public abstract Object evaluate(/*@ non_null @*/ Object[] inputs);
+
+		/**
+		 * Determines if the value is computed by calling a function that
+		 * defers the recording of its lineage (see {@link ProvenanceMode#LAZY}).
+		 * Such a function keeps a reference to the values it receives, which
+		 * may be modified by the caller before an explanation is requested.
+		 * @return <tt>true</tt> if such a function is called, <tt>false</tt>
+		 * otherwise
+		 */
+		/*@ pure @*/ public boolean defersLineage()
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Evaluator returning one of the arguments of the formula.
+	 */
+	protected static final class Input extends Evaluator
+	{
+		/**
+		 * The index of the argument.
+		 */
+		protected final int m_index;
+
+		/**
+		 * Creates a new input evaluator.
+		 * @param index The index of the argument
+		 */
+		public Input(int index)
+		{
+			super();
+			m_index = index;
+		}
+
+		@Override
+		public Object evaluate(Object[] inputs)
+		{
+			return inputs[m_index];
+		}
+	}
+
+	/**
+	 * Evaluator returning a constant value.
+	 */
+	protected static final class Value extends Evaluator
+	{
+		/**
+		 * The value.
+		 */
+		/*@ null @*/ protected final Object m_value;
+
+		/**
+		 * Creates a new constant evaluator.
+		 * @param value The value
+		 */
+		public Value(/*@ null @*/ Object value)
+		{
+			super();
+			m_value = value;
+		}
+
+		@Override
+		public Object evaluate(Object[] inputs)
+		{
+			return m_value;
+		}
+	}
+
+	/**
+	 * Evaluator reading a cell of a spreadsheet, in the same way as
+	 * {@link ValueOf}.
+	 */
+	protected static final class CellRead extends Evaluator
+	{
+		/**
+		 * The evaluator giving the spreadsheet.
+		 */
+		/*@ non_null @*/ protected final Evaluator m_source;
+
+		/**
+		 * The column of the cell.
+		 */
+		protected final int m_column;
+
+		/**
+		 * The row of the cell.
+		 */
+		protected final int m_row;
+
+		/**
+		 * Creates a new cell read evaluator.
+		 * @param source The evaluator giving the spreadsheet
+		 * @param c The cell
+		 */
+		public CellRead(/*@ non_null @*/ Evaluator source, /*@ non_null @*/ Cell c)
+		{
+			super();
+			m_source = source;
+			m_column = c.getColumn();
+			m_row = c.getRow();
+		}
+
+		@Override
+		public Object evaluate(Object[] inputs)
+		{
+			Object o = m_source.evaluate(inputs);
+			if (!(o instanceof Spreadsheet))
+			{
+				throw new InvalidArgumentTypeException("Expected a spreadsheet");
+			}
+			try
+			{
+				return ((Spreadsheet) o).get(m_column, m_row);
+			}
+			catch (SpreadsheetOutOfBoundsException e)
+			{
+				throw new FunctionException(e);
+			}
+		}
+
+		@Override
+		public boolean defersLineage()
+		{
+			return m_source.defersLineage();
+		}
+	}
+
+	/**
+	 * Evaluator computing a textual {@link Formula} at the anchor of a
+	 * {@link FormulaFunction}.
+	 */
+	protected static final class Bound extends Evaluator
+	{
+		/**
+		 * The evaluator giving the spreadsheet.
+		 */
+		/*@ non_null @*/ protected final Evaluator m_source;
+
+		/**
+		 * The formula.
+		 */
+		/*@ non_null @*/ protected final Formula m_formula;
+
+		/**
+		 * The column of the anchor of the formula.
+		 */
+		protected final int m_column;
+
+		/**
+		 * The row of the anchor of the formula.
+		 */
+		protected final int m_row;
+
+		/**
+		 * Creates a new formula evaluator.
+		 * @param source The evaluator giving the spreadsheet
+		 * @param f The function evaluating the formula
+		 */
+		public Bound(/*@ non_null @*/ Evaluator source, /*@ non_null @*/ FormulaFunction f)
+		{
+			super();
+			m_source = source;
+			m_formula = f.getFormula();
+			m_column = f.getAnchor().getColumn();
+			m_row = f.getAnchor().getRow();
+		}
+
+		@Override
+		public Object evaluate(Object[] inputs)
+		{
+			Object o = m_source.evaluate(inputs);
+			if (!(o instanceof Spreadsheet))
+			{
+				throw new InvalidArgumentTypeException("Expected a spreadsheet");
+			}
+			return m_formula.evaluate((Spreadsheet) o, m_column, m_row);
+		}
+
+		@Override
+		public boolean defersLineage()
+		{
+			return m_source.defersLineage();
+		}
+	}
+
+	/**
+	 * Evaluator calling a function on the values of its arguments.
+	 */
+	protected static class Call extends Evaluator
+	{
+		/**
+		 * The function.
+		 */
+		/*@ non_null @*/ protected final Function m_function;
+
+		/**
+		 * The evaluators giving the arguments of the function.
+		 */
+		/*@ non_null @*/ protected final Evaluator[] m_arguments;
+
+		/**
+		 * The index of the output of the function.
+		 */
+		protected final int m_outIndex;
+
+		/**
+		 * Creates a new call evaluator.
+		 * @param f The function
+		 * @param arguments The evaluators giving the arguments of the function
+		 * @param out_index The index of the output of the function
+		 */
+		public Call(/*@ non_null @*/ Function f, /*@ non_null @*/ Evaluator[] arguments, int out_index)
+		{
+			super();
+			m_function = f;
+			m_arguments = arguments;
+			m_outIndex = out_index;
+		}
+
+		@Override
+		public Object evaluate(Object[] inputs)
+		{
+			Object[] args = new Object[m_arguments.length];
+			for (int i = 0; i < args.length; i++)
+			{
+				args[i] = m_arguments[i].evaluate(inputs);
+			}
+			m_function.reset();
+			return m_function.evaluate(args)[m_outIndex];
+		}
+
+		@Override
+		public boolean defersLineage()
+		{
+			if (m_function instanceof ProvenanceMode.Configurable && ((ProvenanceMode.Configurable) m_function).getProvenance() == ProvenanceMode.LAZY)
+			{
+				return true;
+			}
+			for (Evaluator e : m_arguments)
+			{
+				if (e.defersLineage())
+				{
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * The operations on numbers for which the compiler provides an evaluator
+	 * computing on primitive values.
+	 */
+	protected static enum Operator
+	{
+		ADD, SUBTRACT, MULTIPLY, DIVIDE, GREATER, LESS
+	}
+
+	/**
+	 * Intrinsic producing an {@link Arithmetic} evaluator for a given
+	 * operator.
+	 */
+	protected static final class Primitive implements Intrinsic
+	{
+		/**
+		 * The operator.
+		 */
+		/*@ non_null @*/ protected final Operator m_operator;
+
+		/**
+		 * Creates a new primitive intrinsic.
+		 * @param op The operator
+		 */
+		public Primitive(/*@ non_null @*/ Operator op)
+		{
+			super();
+			m_operator = op;
+		}
+
+		@Override
+		public Evaluator compile(Function f, Evaluator[] arguments, int out_index)
+		{
+			return new Arithmetic(f, arguments, m_operator);
+		}
+	}
+
+	/**
+	 * Evaluator applying an operator to its arguments as the corresponding
+	 * function of <tt>petitpoucet.function.number</tt> does, on primitive
+	 * <tt>float</tt>s. Arithmetic operators fold the arguments from left to
+	 * right (the first argument minus, times or divided by the others), and
+	 * comparisons compare their first two arguments. If one of the arguments
+	 * is not a number, the function itself is called, so that the result (or
+	 * the exception thrown) is the same.
+	 */
+	protected static final class Arithmetic extends Call
+	{
+		/**
+		 * The operator.
+		 */
+		/*@ non_null @*/ protected final Operator m_operator;
+
+		/**
+		 * Creates a new arithmetic evaluator.
+		 * @param f The function
+		 * @param arguments The evaluators giving the operands
+		 * @param op The operator
+		 */
+		public Arithmetic(/*@ non_null @*/ Function f, /*@ non_null @*/ Evaluator[] arguments, /*@ non_null @*/ Operator op)
+		{
+			super(f, arguments, 0);
+			m_operator = op;
+		}
+
+		@Override
+		public Object evaluate(Object[] inputs)
+		{
+			float result = 0;
+			float first = 0;
+			for (int i = 0; i < m_arguments.length; i++)
+			{
+				Object o = m_arguments[i].evaluate(inputs);
+				if (!(o instanceof Number))
+				{
+					return super.evaluate(inputs);
+				}
+				float x = ((Number) o).floatValue();
+				if (i == 0)
+				{
+					first = x;
+					result = x;
+					continue;
+				}
+				switch (m_operator)
+				{
+				case ADD:
+					result += x;
+					break;
+				case SUBTRACT:
+					result -= x;
+					break;
+				case MULTIPLY:
+					result *= x;
+					break;
+				case DIVIDE:
+					result /= x;
+					break;
+				case GREATER:
+					if (i == 1)
+					{
+						return first > x;
+					}
+					break;
+				case LESS:
+					if (i == 1)
+					{
+						return first < x;
+					}
+					break;
+				}
+			}
+			if (m_operator == Operator.GREATER || m_operator == Operator.LESS)
+			{
+				// Fewer than two operands: let the function report it
+				return super.evaluate(inputs);
+			}
+			return result;
+		}
+	}
+}
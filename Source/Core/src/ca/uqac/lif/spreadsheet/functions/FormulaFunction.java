@@ -0,0 +1,189 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import ca.uqac.lif.dag.LabelledNode;
+import ca.uqac.lif.petitpoucet.AndNode;
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.Part;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.AtomicFunction;
+import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
+import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.petitpoucet.function.RelationNodeFactory;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Evaluates a textual {@link Formula} on a spreadsheet. The function is
+ * bound to the cell where the formula is written (its anchor), which
+ * resolves the relative references of the formula. It can therefore be
+ * used as the function of a {@link CellFormula}; see
+ * {@link ApplyFormula#add(Cell, String)}.
+ * <p>
+ * The value of the formula is explained by all the cells it references.
+ *
+ * @author Sylvain Hallé
+ */
+public class FormulaFunction extends AtomicFunction
+{
+	/**
+	 * The text of the formula.
+	 */
+	/*@ non_null @*/ protected final String m_text;
+
+	/**
+	 * The parsed formula, which may be shared with other functions.
+	 */
+	/*@ non_null @*/ protected final Formula m_formula;
+
+	/**
+	 * The cell where the formula is written.
+	 */
+	/*@ non_null @*/ protected final Cell m_anchor;
+
+	/**
+	 * Creates a new instance of the function.
+	 * @param text The text of the formula
+	 * @param anchor The cell where the formula is written
+	 * @throws FormulaSyntaxException If the text is not a valid formula
+	 */
+	public FormulaFunction(/*@ non_null @*/ String text, /*@ non_null @*/ Cell anchor)
+	{
+		this(text, Formula.parse(text, anchor.getColumn(), anchor.getRow()), anchor);
+	}
+
+	/**
+	 * Creates a new instance of the function.
+	 * @param text The text of the formula
+	 * @param formula The parsed formula
+	 * @param anchor The cell where the formula is written
+	 */
+	protected FormulaFunction(/*@ non_null @*/ String text, /*@ non_null @*/ Formula formula, /*@ non_null @*/ Cell anchor)
+	{
+		super(1, 1);
+		m_text = text;
+		m_formula = formula;
+		m_anchor = anchor;
+	}
+
+	/**
+	 * Gets the parsed formula evaluated by this function.
+	 * @return The formula
+	 */
+	/*@ pure non_null @*/ public Formula getFormula()
+	{
+		return m_formula;
+	}
+
+	/**
+	 * Gets the cell where the formula is written.
+	 * @return The cell
+	 */
+	/*@ pure non_null @*/ public Cell getAnchor()
+	{
+		return m_anchor;
+	}
+
+	/**
+	 * Gets the ranges of cells referenced by the formula. A reference to a
+	 * single cell is a range of size 1.
+	 * @return The list of ranges
+	 */
+	/*@ non_null @*/ public List<CellRange> getRanges()
+	{
+		return m_formula.getRanges(m_anchor.getColumn(), m_anchor.getRow());
+	}
+
+	/**
+	 * Gets the cells referenced by the formula, including all the cells of
+	 * its ranges. Since this method creates one cell per cell of each range,
+	 * {@link #getRanges()} should be preferred for formulas referring to
+	 * large ranges.
+	 * @return The set of cells
+	 */
+	/*@ non_null @*/ public Set<Cell> getDependencies()
+	{
+		Set<Cell> cells = new LinkedHashSet<Cell>();
+		for (CellRange r : getRanges())
+		{
+			for (Cell c : r)
+			{
+				cells.add(c);
+			}
+		}
+		return cells;
+	}
+
+	@Override
+	protected Object[] getValue(Object ... args) throws InvalidNumberOfArgumentsException
+	{
+		if (!(args[0] instanceof Spreadsheet))
+		{
+			throw new InvalidArgumentTypeException("Expected a spreadsheet");
+		}
+		return new Object[] {m_formula.evaluate((Spreadsheet) args[0], m_anchor.getColumn(), m_anchor.getRow())};
+	}
+
+	@Override
+	public PartNode getExplanation(Part part, RelationNodeFactory factory)
+	{
+		PartNode root = factory.getPartNode(part, this);
+		int index = NthOutput.mentionedOutput(part);
+		if (index < 0)
+		{
+			return root;
+		}
+		// Each range is explained as a whole rather than cell by cell
+		Set<CellRange> ranges = new LinkedHashSet<CellRange>(getRanges());
+		LabelledNode parent = root;
+		if (ranges.size() > 1)
+		{
+			AndNode and = factory.getAndNode();
+			root.addChild(and);
+			parent = and;
+		}
+		for (CellRange r : ranges)
+		{
+			Part p = r.size() == 1 ? r.getCell(0) : r;
+			parent.addChild(factory.getPartNode(NthOutput.replaceOutBy(part, ComposedPart.compose(p, NthInput.FIRST)), this));
+		}
+		return root;
+	}
+
+	@Override
+	public String toString()
+	{
+		return m_text;
+	}
+
+	@Override
+	public FormulaFunction duplicate(boolean with_state)
+	{
+		FormulaFunction f = new FormulaFunction(m_text, m_formula, m_anchor);
+		copyInto(f, with_state);
+		return f;
+	}
+}
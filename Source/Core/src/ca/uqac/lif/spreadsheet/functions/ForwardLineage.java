@@ -0,0 +1,196 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uqac.lif.dag.Node;
+import ca.uqac.lif.dag.Pin;
+import ca.uqac.lif.petitpoucet.function.Fork;
+import ca.uqac.lif.spreadsheet.Cell;
+
+/**
+ * Follows the lineage of a cell forward, from an input of a function to the
+ * cells of the outputs that depend on it. Explanations obtained with
+ * {@link ca.uqac.lif.petitpoucet.function.AtomicFunction#getExplanation(ca.uqac.lif.petitpoucet.Part)
+ * getExplanation()} go backwards, from an output part to the input parts it
+ * comes from; finding all the output cells affected by a change of an input
+ * cell that way requires querying every output cell. Functions implementing
+ * {@link Traceable} instead answer the forward query directly, from an
+ * inverted index of the lineage they record.
+ * <p>
+ * The method {@link #trace(Node, int, Cell) trace()} composes these queries
+ * across the functions connected to each other, in a time proportional to
+ * the number of cells it visits.
+ *
+ * @author Sylvain Hallé
+ */
+public class ForwardLineage
+{
+	/**
+	 * Interface implemented by functions that can give the output cells that
+	 * depend on a cell of one of their inputs.
+	 */
+	public interface Traceable
+	{
+		/**
+		 * Gets the cells of the output of this function that depend on a cell
+		 * of one of its inputs, according to the lineage recorded during its
+		 * last evaluation.
+		 * @param index The index of the input
+		 * @param c The input cell
+		 * @return The output cells, in row-major order; the array is empty if no
+		 * output cell depends on the input cell, or if no lineage is available
+		 */
+		/*@ non_null @*/ public Cell[] dependents(int index, /*@ non_null @*/ Cell c);
+	}
+
+	/**
+	 * Gets the cells that depend on a cell of an input of a function, in the
+	 * outputs of all the functions connected downstream of it. The search
+	 * goes through functions implementing {@link Traceable}, and through
+	 * {@link Fork}s, which pass each cell to all their outputs unchanged. It
+	 * stops at:
+	 * <ul>
+	 * <li>functions whose output is not connected to anything; the result
+	 * associates them with the cells of their output that are affected</li>
+	 * <li>functions that do not implement {@link Traceable}; the result
+	 * associates them with an empty set, meaning that their output is
+	 * affected, but that the cells concerned cannot be determined</li>
+	 * </ul>
+	 * Since the result only contains the functions at the end of the search,
+	 * cells that reach the output of a circuit are associated with the
+	 * function inside the circuit that produces this output.
+	 * @param n The function
+	 * @param index The index of the input of the function
+	 * @param c The input cell
+	 * @return A map associating each function where the search stops with the
+	 * cells of its output that depend on the input cell
+	 */
+	/*@ non_null @*/ public static Map<Node,Set<Cell>> trace(/*@ non_null @*/ Node n, int index, /*@ non_null @*/ Cell c)
+	{
+		Map<Node,Set<Cell>> affected = new IdentityHashMap<Node,Set<Cell>>();
+		Map<Node,Set<Long>> visited = new IdentityHashMap<Node,Set<Long>>();
+		Deque<Step> to_visit = new ArrayDeque<Step>();
+		to_visit.add(new Step(n, index, c));
+		while (!to_visit.isEmpty())
+		{
+			Step s = to_visit.remove();
+			Set<Long> seen = visited.get(s.m_node);
+			if (seen == null)
+			{
+				seen = new HashSet<Long>();
+				visited.put(s.m_node, seen);
+			}
+			if (!seen.add(SpreadsheetFunction.InputCell.encode(s.m_cell.getColumn(), s.m_cell.getRow(), s.m_index)))
+			{
+				continue;
+			}
+			if (s.m_node instanceof Traceable)
+			{
+				for (Cell out : ((Traceable) s.m_node).dependents(s.m_index, s.m_cell))
+				{
+					propagate(s.m_node, 0, out, to_visit, affected);
+				}
+			}
+			else if (s.m_node instanceof Fork)
+			{
+				for (int i = 0; i < s.m_node.getOutputArity(); i++)
+				{
+					propagate(s.m_node, i, s.m_cell, to_visit, affected);
+				}
+			}
+			else if (!affected.containsKey(s.m_node))
+			{
+				affected.put(s.m_node, new LinkedHashSet<Cell>());
+			}
+		}
+		return affected;
+	}
+
+	/**
+	 * Passes an output cell of a function to the functions connected to this
+	 * output, or adds it to the result if the output is not connected.
+	 * @param n The function
+	 * @param out_index The index of the output
+	 * @param c The output cell
+	 * @param to_visit The input cells that remain to be visited
+	 * @param affected The result of the search
+	 */
+	protected static void propagate(Node n, int out_index, Cell c, Deque<Step> to_visit, Map<Node,Set<Cell>> affected)
+	{
+		List<Pin<? extends Node>> links = n.getOutputLinks(out_index);
+		if (links.isEmpty())
+		{
+			Set<Cell> cells = affected.get(n);
+			if (cells == null)
+			{
+				cells = new LinkedHashSet<Cell>();
+				affected.put(n, cells);
+			}
+			cells.add(c);
+			return;
+		}
+		for (Pin<? extends Node> p : links)
+		{
+			to_visit.add(new Step(p.getNode(), p.getIndex(), c));
+		}
+	}
+
+	/**
+	 * A cell of an input of a function that remains to be visited.
+	 */
+	protected static class Step
+	{
+		/**
+		 * The function.
+		 */
+		/*@ non_null @*/ protected final Node m_node;
+
+		/**
+		 * The index of the input of the function.
+		 */
+		protected final int m_index;
+
+		/**
+		 * The input cell.
+		 */
+		/*@ non_null @*/ protected final Cell m_cell;
+
+		/**
+		 * Creates a new step.
+		 * @param n The function
+		 * @param index The index of the input of the function
+		 * @param c The input cell
+		 */
+		public Step(Node n, int index, Cell c)
+		{
+			super();
+			m_node = n;
+			m_index = index;
+			m_cell = c;
+		}
+	}
+}
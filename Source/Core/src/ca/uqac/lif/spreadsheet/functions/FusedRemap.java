@@ -0,0 +1,725 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ca.uqac.lif.dag.Node;
+import ca.uqac.lif.dag.Pin;
+import ca.uqac.lif.petitpoucet.function.AtomicFunction;
+import ca.uqac.lif.petitpoucet.function.Circuit;
+import ca.uqac.lif.petitpoucet.function.FunctionException;
+import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
+import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+import static ca.uqac.lif.dag.NodeConnector.connect;
+
+/**
+ * A chain of functions that only move the cells of a spreadsheet, evaluated
+ * as a single function. The functions that can be fused are
+ * {@link CopyFrom}, {@link Resize}, {@link Transpose} and {@link Sort}: each
+ * cell of their output is a copy of at most one cell of their input, whose
+ * coordinates are obtained by a transformation of the coordinates of the
+ * output cell.
+ * <p>
+ * Evaluating these functions one after the other produces a complete
+ * spreadsheet, and a complete mapping, at every step of the chain. Instead,
+ * this function composes the transformations of the chain: each cell of the
+ * final output is read directly from the input, and no intermediate
+ * spreadsheet is created. A {@link Sort} in the chain reads the rows it
+ * needs to compare through the transformations that precede it.
+ * <p>
+ * The mapping of the function is the composition of the mappings of the
+ * functions in the chain, and only stores the parameters of each step;
+ * explanations are therefore the same as those obtained by following the
+ * chain function by function.
+ * <p>
+ * A chain can be given directly to the constructor, or the chains of a
+ * {@link Circuit} can be replaced by fused functions with
+ * {@link #fuse(Circuit)}.
+ *
+ * @author Sylvain Hallé
+ */
+public class FusedRemap extends SpreadsheetFunction
+{
+	/**
+	 * The functions of the chain, in the order they are applied.
+	 */
+	/*@ non_null @*/ protected final List<AtomicFunction> m_chain;
+
+	/**
+	 * Creates a new fused function.
+	 * @param chain The functions of the chain, in the order they are applied
+	 * @throws FunctionException If the chain is empty, or if one of its
+	 * functions cannot be fused
+	 */
+	public FusedRemap(/*@ non_null @*/ AtomicFunction ... chain)
+	{
+		super(1);
+		if (chain.length == 0)
+		{
+			throw new FunctionException("The chain of functions is empty");
+		}
+		m_chain = new ArrayList<AtomicFunction>(chain.length);
+		for (AtomicFunction f : chain)
+		{
+			if (!canFuse(f))
+			{
+				throw new FunctionException("Cannot fuse " + f);
+			}
+			m_chain.add(f);
+		}
+	}
+
+	/**
+	 * Determines if a function can be part of a fused chain.
+	 * @param f The function
+	 * @return <tt>true</tt> if the function can be fused, <tt>false</tt>
+	 * otherwise
+	 */
+	public static boolean canFuse(/*@ null @*/ Object f)
+	{
+		return f instanceof CopyFrom || f instanceof Resize || f instanceof Transpose || f instanceof Sort;
+	}
+
+	/**
+	 * Replaces the chains of fusable functions of a circuit by fused
+	 * functions. A chain is a maximal sequence of at least two functions that
+	 * can be fused, where the output of each function is only connected to the
+	 * next one and is not an output of the circuit. The rest of the circuit is
+	 * left as is, and the circuit is modified in place.
+	 * <p>
+	 * If all the functions of a chain have the same {@link ProvenanceMode},
+	 * the fused function is given this mode.
+	 * @param c The circuit
+	 * @return The number of chains replaced by a fused function
+	 */
+	public static int fuse(/*@ non_null @*/ Circuit c)
+	{
+		Map<List<Object>,Integer> circuit_inputs = new HashMap<List<Object>,Integer>();
+		for (int i = 0; i < c.getInputArity(); i++)
+		{
+			Pin<? extends Node> p = c.getAssociatedInput(i);
+			if (p != null)
+			{
+				circuit_inputs.put(Arrays.<Object>asList(p.getNode(), p.getIndex()), i);
+			}
+		}
+		Set<Node> circuit_outputs = new HashSet<Node>();
+		List<Node> order = new ArrayList<Node>();
+		Set<Node> visited = new HashSet<Node>();
+		for (int i = 0; i < c.getOutputArity(); i++)
+		{
+			Pin<? extends Node> p = c.getAssociatedOutput(i);
+			if (p != null)
+			{
+				circuit_outputs.add(p.getNode());
+				CommonSubexpressions.sort(p.getNode(), circuit_inputs, visited, order);
+			}
+		}
+		int fused = 0;
+		for (Node n : order)
+		{
+			if (!canFuse(n) || isLinked(getPrevious(n, circuit_inputs), n, circuit_outputs))
+			{
+				// Not the first function of a chain
+				continue;
+			}
+			List<AtomicFunction> chain = new ArrayList<AtomicFunction>();
+			chain.add((AtomicFunction) n);
+			Node last = n;
+			while (last.getOutputLinks(0).size() == 1)
+			{
+				Node next = last.getOutputLinks(0).get(0).getNode();
+				if (!isLinked(last, next, circuit_outputs) || circuit_inputs.containsKey(Arrays.<Object>asList(next, 0)))
+				{
+					break;
+				}
+				chain.add((AtomicFunction) next);
+				last = next;
+			}
+			if (chain.size() > 1)
+			{
+				replace(c, chain);
+				fused++;
+			}
+		}
+		return fused;
+	}
+
+	/**
+	 * Determines if a function is followed by another one in a chain of
+	 * fusable functions.
+	 * @param n The first function
+	 * @param next The second function
+	 * @param circuit_outputs The functions whose outputs are associated to an
+	 * output of the circuit
+	 * @return <tt>true</tt> if the two functions are part of the same chain,
+	 * <tt>false</tt> otherwise
+	 */
+	protected static boolean isLinked(/*@ null @*/ Node n, /*@ non_null @*/ Node next, /*@ non_null @*/ Set<Node> circuit_outputs)
+	{
+		if (n == null || !canFuse(n) || !canFuse(next) || circuit_outputs.contains(n))
+		{
+			return false;
+		}
+		List<Pin<? extends Node>> links = n.getOutputLinks(0);
+		return links.size() == 1 && links.get(0).getNode() == next && links.get(0).getIndex() == 0 && next.getInputLinks(0).size() == 1;
+	}
+
+	/**
+	 * Gets the function connected to the input of a fusable function.
+	 * @param n The function
+	 * @param circuit_inputs The input of the circuit associated to each input
+	 * pin, given as a list containing a node and the index of the pin
+	 * @return The function, or <tt>null</tt> if the input of the function is
+	 * an input of the circuit or is not connected to a single function
+	 */
+	/*@ null @*/ protected static Node getPrevious(/*@ non_null @*/ Node n, /*@ non_null @*/ Map<List<Object>,Integer> circuit_inputs)
+	{
+		if (circuit_inputs.containsKey(Arrays.<Object>asList(n, 0)))
+		{
+			return null;
+		}
+		List<Pin<? extends Node>> links = n.getInputLinks(0);
+		return links.size() == 1 ? links.get(0).getNode() : null;
+	}
+
+	/**
+	 * Replaces a chain of functions of a circuit by a fused function.
+	 * @param c The circuit
+	 * @param chain The functions of the chain, in the order they are applied
+	 */
+	protected static void replace(/*@ non_null @*/ Circuit c, /*@ non_null @*/ List<AtomicFunction> chain)
+	{
+		FusedRemap f = new FusedRemap(chain.toArray(new AtomicFunction[chain.size()]));
+		ProvenanceMode mode = null;
+		for (AtomicFunction g : chain)
+		{
+			ProvenanceMode m = g instanceof ProvenanceMode.Configurable ? ((ProvenanceMode.Configurable) g).getProvenance() : null;
+			if (m == null || (mode != null && m != mode))
+			{
+				mode = null;
+				break;
+			}
+			mode = m;
+		}
+		if (mode != null)
+		{
+			f.setProvenance(mode);
+		}
+		Node first = chain.get(0), last = chain.get(chain.size() - 1);
+		// Upstream of the chain
+		for (int i = 0; i < c.getInputArity(); i++)
+		{
+			Pin<? extends Node> p = c.getAssociatedInput(i);
+			if (p != null && p.getNode() == first && p.getIndex() == 0)
+			{
+				c.associateInput(i, f.getInputPin(0));
+			}
+		}
+		for (Pin<? extends Node> up : first.getInputLinks(0))
+		{
+			CommonSubexpressions.removeLink(up.getNode().getOutputLinks(up.getIndex()), first, 0);
+			connect(up.getNode(), up.getIndex(), f, 0);
+		}
+		// Downstream of the chain
+		for (int i = 0; i < c.getOutputArity(); i++)
+		{
+			Pin<? extends Node> p = c.getAssociatedOutput(i);
+			if (p != null && p.getNode() == last && p.getIndex() == 0)
+			{
+				c.associateOutput(i, f.getOutputPin(0));
+			}
+		}
+		for (Pin<? extends Node> down : last.getOutputLinks(0))
+		{
+			CommonSubexpressions.removeLink(down.getNode().getInputLinks(down.getIndex()), last, 0);
+			connect(f, 0, down.getNode(), down.getIndex());
+		}
+		for (AtomicFunction g : chain)
+		{
+			g.getInputLinks(0).clear();
+			g.getOutputLinks(0).clear();
+		}
+		c.addNodes(f);
+	}
+
+	@Override
+	protected Object[] getValue(Object ... inputs) throws InvalidNumberOfArgumentsException
+	{
+		if (!(inputs[0] instanceof Spreadsheet))
+		{
+			throw new InvalidArgumentTypeException("Argument is not a spreadsheet");
+		}
+		Spreadsheet s = (Spreadsheet) inputs[0];
+		Stage[] stages = prepare(s);
+		int width = stages[stages.length - 1].m_width, height = stages[stages.length - 1].m_height;
+		Spreadsheet out = new Spreadsheet(width, height);
+		for (int row = 0; row < height; row++)
+		{
+			for (int col = 0; col < width; col++)
+			{
+				long src = source(stages, stages.length, col, row);
+				if (src >= 0)
+				{
+					out.set(col, row, s.get(getColumn(src), getRow(src)));
+				}
+			}
+		}
+		m_mapping = startLineage(inputs) ? new ComposedMapping(stages) : null;
+		endLineage();
+		return new Object[] {out};
+	}
+
+	@Override
+	protected void replay(Object ... inputs)
+	{
+		m_mapping = new ComposedMapping(prepare((Spreadsheet) inputs[0]));
+		endLineage();
+	}
+
+	/**
+	 * Creates the steps of the chain for a given input spreadsheet, and
+	 * determines the dimensions of the output of each of them.
+	 * @param s The input spreadsheet
+	 * @return The steps of the chain
+	 */
+	/*@ non_null @*/ protected Stage[] prepare(/*@ non_null @*/ Spreadsheet s)
+	{
+		Stage[] stages = new Stage[m_chain.size()];
+		int width = s.getWidth(), height = s.getHeight();
+		for (int i = 0; i < stages.length; i++)
+		{
+			AtomicFunction f = m_chain.get(i);
+			Stage st;
+			if (f instanceof Transpose)
+			{
+				st = new TransposeStage(width, height);
+			}
+			else if (f instanceof Resize)
+			{
+				Resize r = (Resize) f;
+				st = new CopyStage(0, 0, r.m_cols, r.m_rows, width, height);
+			}
+			else if (f instanceof CopyFrom)
+			{
+				CopyFrom cf = (CopyFrom) f;
+				Cell tl = cf.m_topLeft, br = cf.m_bottomRight;
+				st = new CopyStage(tl.getColumn(), tl.getRow(), br.getColumn() - tl.getColumn() + 1, br.getRow() - tl.getRow() + 1, width, height);
+			}
+			else
+			{
+				st = new SortStage((Sort) f, s, stages, i, width, height);
+			}
+			stages[i] = st;
+			width = st.m_width;
+			height = st.m_height;
+		}
+		return stages;
+	}
+
+	/**
+	 * Finds the input cell copied into a cell of the output of a step of the
+	 * chain, by going through the previous steps in reverse.
+	 * @param stages The steps of the chain
+	 * @param to The number of steps applied to the input
+	 * @param col The column of the cell in the output of the last step
+	 * @param row The row of the cell in the output of the last step
+	 * @return The coordinates of the input cell encoded with
+	 * {@link #encode(int, int)}, or -1 if the cell is not a copy of an input
+	 * cell
+	 */
+	protected static long source(Stage[] stages, int to, int col, int row)
+	{
+		long c = encode(col, row);
+		for (int i = to - 1; i >= 0 && c >= 0; i--)
+		{
+			c = stages[i].source(getColumn(c), getRow(c));
+		}
+		return c;
+	}
+
+	/**
+	 * Encodes the coordinates of a cell into a single primitive value.
+	 * @param col The column of the cell
+	 * @param row The row of the cell
+	 * @return The encoded coordinates
+	 */
+	protected static long encode(int col, int row)
+	{
+		return ((long) col << 32) | (row & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Gets the column of coordinates encoded with {@link #encode(int, int)}.
+	 * @param c The encoded coordinates
+	 * @return The column
+	 */
+	protected static int getColumn(long c)
+	{
+		return (int) (c >>> 32);
+	}
+
+	/**
+	 * Gets the row of coordinates encoded with {@link #encode(int, int)}.
+	 * @param c The encoded coordinates
+	 * @return The row
+	 */
+	protected static int getRow(long c)
+	{
+		return (int) c;
+	}
+
+	@Override
+	public FusedRemap duplicate(boolean with_state)
+	{
+		FusedRemap f = new FusedRemap(m_chain.toArray(new AtomicFunction[m_chain.size()]));
+		copyInto(f, with_state);
+		return f;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Fused " + m_chain;
+	}
+
+	/**
+	 * A step of the chain, which transforms the coordinates of the cells of
+	 * its output into those of its input, and vice versa.
+	 */
+	protected abstract static class Stage
+	{
+		/**
+		 * The width of the input of the step.
+		 */
+		protected final int m_inWidth;
+
+		/**
+		 * The height of the input of the step.
+		 */
+		protected final int m_inHeight;
+
+		/**
+		 * The width of the output of the step.
+		 */
+		protected int m_width;
+
+		/**
+		 * The height of the output of the step.
+		 */
+		protected int m_height;
+
+		/**
+		 * Creates a new step.
+		 * @param in_width The width of the input of the step
+		 * @param in_height The height of the input of the step
+		 */
+		public Stage(int in_width, int in_height)
+		{
+			super();
+			m_inWidth = in_width;
+			m_inHeight = in_height;
+		}
+
+		/**
+		 * Gets the cell of the input copied into a cell of the output.
+		 * @param col The column of the output cell
+		 * @param row The row of the output cell
+		 * @return The encoded coordinates of the input cell, or -1 if the
+		 * output cell is empty or outside of the output
+		 */
+		public abstract long source(int col, int row);
+
+		/**
+		 * Gets the cell of the output into which a cell of the input is
+		 * copied.
+		 * @param col The column of the input cell
+		 * @param row The row of the input cell
+		 * @return The encoded coordinates of the output cell, or -1 if the
+		 * input cell is not copied
+		 */
+		public abstract long target(int col, int row);
+
+		/**
+		 * Gets the approximate memory size of the step.
+		 * @return The size in bytes
+		 */
+		public long getSize()
+		{
+			return 32;
+		}
+	}
+
+	/**
+	 * A step copying a rectangular region of its input, as done by
+	 * {@link CopyFrom} and {@link Resize}.
+	 */
+	protected static class CopyStage extends Stage
+	{
+		/**
+		 * The column of the input cell copied into the top-left corner.
+		 */
+		protected final int m_col;
+
+		/**
+		 * The row of the input cell copied into the top-left corner.
+		 */
+		protected final int m_row;
+
+		/**
+		 * Creates a new copy step.
+		 * @param col The column of the input cell copied into the top-left
+		 * corner
+		 * @param row The row of the input cell copied into the top-left corner
+		 * @param width The width of the output
+		 * @param height The height of the output
+		 * @param in_width The width of the input
+		 * @param in_height The height of the input
+		 */
+		public CopyStage(int col, int row, int width, int height, int in_width, int in_height)
+		{
+			super(in_width, in_height);
+			m_col = col;
+			m_row = row;
+			m_width = width;
+			m_height = height;
+		}
+
+		@Override
+		public long source(int col, int row)
+		{
+			int in_col = col + m_col, in_row = row + m_row;
+			if (col < 0 || row < 0 || col >= m_width || row >= m_height || in_col >= m_inWidth || in_row >= m_inHeight)
+			{
+				return -1;
+			}
+			return encode(in_col, in_row);
+		}
+
+		@Override
+		public long target(int col, int row)
+		{
+			if (col >= m_inWidth || row >= m_inHeight)
+			{
+				return -1;
+			}
+			int out_col = col - m_col, out_row = row - m_row;
+			if (out_col < 0 || out_row < 0 || out_col >= m_width || out_row >= m_height)
+			{
+				return -1;
+			}
+			return encode(out_col, out_row);
+		}
+	}
+
+	/**
+	 * A step swapping rows and columns, as done by {@link Transpose}.
+	 */
+	protected static class TransposeStage extends Stage
+	{
+		/**
+		 * Creates a new transposition step.
+		 * @param in_width The width of the input
+		 * @param in_height The height of the input
+		 */
+		public TransposeStage(int in_width, int in_height)
+		{
+			super(in_width, in_height);
+			m_width = in_height;
+			m_height = in_width;
+		}
+
+		@Override
+		public long source(int col, int row)
+		{
+			if (col < 0 || row < 0 || col >= m_width || row >= m_height)
+			{
+				return -1;
+			}
+			return encode(row, col);
+		}
+
+		@Override
+		public long target(int col, int row)
+		{
+			if (col < 0 || row < 0 || col >= m_inWidth || row >= m_inHeight)
+			{
+				return -1;
+			}
+			return encode(row, col);
+		}
+	}
+
+	/**
+	 * A step reordering rows, as done by {@link Sort}.
+	 */
+	protected static class SortStage extends Stage
+	{
+		/**
+		 * The input row corresponding to each output row.
+		 */
+		/*@ non_null @*/ protected final int[] m_rows;
+
+		/**
+		 * The output row corresponding to each input row.
+		 */
+		/*@ non_null @*/ protected final int[] m_inverse;
+
+		/**
+		 * Creates a new sorting step, and sorts the rows of its input.
+		 * @param sort The sort function giving the sorting criteria
+		 * @param s The input spreadsheet of the chain
+		 * @param stages The steps of the chain
+		 * @param index The position of this step in the chain
+		 * @param in_width The width of the input of the step
+		 * @param in_height The height of the input of the step
+		 */
+		public SortStage(Sort sort, Spreadsheet s, Stage[] stages, int index, int in_width, int in_height)
+		{
+			super(in_width, in_height);
+			m_width = in_width;
+			m_height = in_height;
+			int first_index = sort.m_excludeFirst ? 1 : 0;
+			List<Sort.SortableRow> rows = new ArrayList<Sort.SortableRow>(Math.max(0, in_height - first_index));
+			for (int row = first_index; row < in_height; row++)
+			{
+				// Read the row of the output of the previous step from the input
+				Object[] contents = new Object[in_width];
+				for (int col = 0; col < in_width; col++)
+				{
+					long src = FusedRemap.source(stages, index, col, row);
+					contents[col] = src < 0 ? null : s.get(getColumn(src), getRow(src));
+				}
+				rows.add(sort.new SortableRow(row, contents));
+			}
+			Collections.sort(rows);
+			m_rows = new int[in_height];
+			m_inverse = new int[in_height];
+			for (int row = 0; row < in_height; row++)
+			{
+				m_rows[row] = row < first_index ? row : rows.get(row - first_index).getOriginalIndex();
+				m_inverse[m_rows[row]] = row;
+			}
+		}
+
+		@Override
+		public long source(int col, int row)
+		{
+			if (col < 0 || row < 0 || col >= m_width || row >= m_height)
+			{
+				return -1;
+			}
+			return encode(col, m_rows[row]);
+		}
+
+		@Override
+		public long target(int col, int row)
+		{
+			if (col < 0 || row < 0 || col >= m_inWidth || row >= m_inHeight)
+			{
+				return -1;
+			}
+			return encode(col, m_inverse[row]);
+		}
+
+		@Override
+		public long getSize()
+		{
+			return super.getSize() + 32 + 8L * m_rows.length;
+		}
+	}
+
+	/**
+	 * The composition of the mappings of the steps of the chain.
+	 */
+	protected static class ComposedMapping extends CellMapping
+	{
+		/**
+		 * The steps of the chain.
+		 */
+		/*@ non_null @*/ protected final Stage[] m_stages;
+
+		/**
+		 * Creates a new composed mapping.
+		 * @param stages The steps of the chain
+		 */
+		public ComposedMapping(/*@ non_null @*/ Stage[] stages)
+		{
+			super();
+			m_stages = stages;
+		}
+
+		@Override
+		public InputCell[] getInputCells(int col, int row)
+		{
+			long src = source(m_stages, m_stages.length, col, row);
+			if (src < 0)
+			{
+				return null;
+			}
+			return new InputCell[] {InputCell.get(getColumn(src), getRow(src))};
+		}
+
+		@Override
+		public Cell[] getOutputCells(int index, int col, int row)
+		{
+			if (index != 0 || col < 0 || row < 0)
+			{
+				return new Cell[0];
+			}
+			long c = encode(col, row);
+			for (int i = 0; i < m_stages.length && c >= 0; i++)
+			{
+				c = m_stages[i].target(getColumn(c), getRow(c));
+			}
+			if (c < 0)
+			{
+				return new Cell[0];
+			}
+			return new Cell[] {Cell.get(getColumn(c), getRow(c))};
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return m_stages[m_stages.length - 1].m_height;
+		}
+
+		@Override
+		public long getSize()
+		{
+			long size = 16;
+			for (Stage s : m_stages)
+			{
+				size += s.getSize();
+			}
+			return size;
+		}
+	}
+}
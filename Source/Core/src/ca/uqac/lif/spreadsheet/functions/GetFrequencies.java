@@ -17,8 +17,6 @@
  */
 package ca.uqac.lif.spreadsheet.functions;
 
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import ca.uqac.lif.dag.LabelledNode;
@@ -58,10 +56,19 @@ import ca.uqac.lif.spreadsheet.Spreadsheet;
  * on the x-axis; the first column contains the lower bound of each bucket
  * on the y-axis. Each cell contains the number of pairs in the input list
  * that fall within each bucket.
+ * <p>
+ * The function can be instructed to bin the input list using multiple
+ * threads with {@link #setThreads(int)}; the resulting table and its
+ * explanations are the same as when a single thread is used. When the
+ * function is set to {@link ProvenanceMode#NONE}, the indices of the pairs
+ * falling in each bucket are not kept, and cells of the table cannot be
+ * explained. When it is set to {@link ProvenanceMode#LAZY}, these indices
+ * are computed from the input list the first time an explanation is
+ * requested.
  * 
  * @author Sylvain Hallé
  */
-public class GetFrequencies extends AtomicFunction
+public class GetFrequencies extends AtomicFunction implements ProvenanceMode.Configurable, ProvenanceRetention.Retainer
 {
 	/**
 	 * The preconfigured minimum value of the generated frequency table
@@ -115,10 +122,54 @@ public class GetFrequencies extends AtomicFunction
 	protected double m_widthY;
 	
 	/**
-	 * An array associating each cell of the table with the number pairs that
-	 * correspond to it.
+	 * For each bucket of the table, the position in {@link #m_indices} of the
+	 * first pair that falls in this bucket. Buckets are numbered row by row;
+	 * the pairs of bucket <i>b</i> are stored between positions
+	 * {@code m_offsets[b]} (inclusive) and {@code m_offsets[b+1]} (exclusive).
+	 */
+	/*@ null @*/ protected int[] m_offsets;
+	
+	/**
+	 * The indices, in the input list, of the pairs that fall in each bucket,
+	 * grouped by bucket and sorted in ascending order within each bucket.
+	 */
+	/*@ null @*/ protected int[] m_indices;
+	
+	/**
+	 * The number of threads used to bin the input list.
+	 */
+	protected int m_numThreads = 1;
+
+	/**
+	 * The provenance mode of this function, or <tt>null</tt> if the function
+	 * uses the default mode.
 	 */
-	protected List<Integer>[][] m_pairs;
+	/*@ null @*/ protected ProvenanceMode m_provenance;
+	
+	/**
+	 * The provenance mode in effect during the last evaluation of the
+	 * function, or <tt>null</tt> if the function has not been evaluated.
+	 */
+	/*@ null @*/ protected ProvenanceMode m_lineage;
+	
+	/**
+	 * The input list of the last evaluation, kept to compute the indices of
+	 * the pairs in each bucket when they are first needed. This field is
+	 * <tt>null</tt> when no such computation is pending.
+	 */
+	/*@ null @*/ protected List<?> m_replayEntries;
+
+	/**
+	 * The retention policy of this function, or <tt>null</tt> if the function
+	 * uses the default policy.
+	 */
+	/*@ null @*/ protected ProvenanceRetention m_retention;
+
+	/**
+	 * A flag indicating that the lineage of the last evaluation has been
+	 * discarded by the retention policy.
+	 */
+	protected boolean m_expired = false;
 	
 	/**
 	 * Creates a new instance of the function.
@@ -172,6 +223,72 @@ public class GetFrequencies extends AtomicFunction
 		this(min_x, max_x, b_x, min_y, max_y, b_y, 1d);
 	}
 	
+	/**
+	 * Sets the number of threads used to bin the input list. When more than
+	 * one thread is used, each thread bins a contiguous slice of the list into
+	 * its own grid, and the grids are then summed together.
+	 * @param num_threads The number of threads
+	 * @return This function
+	 */
+	/*@ non_null @*/ public GetFrequencies setThreads(int num_threads)
+	{
+		m_numThreads = Math.max(1, num_threads);
+		return this;
+	}
+
+	@Override
+	/*@ non_null @*/ public GetFrequencies setProvenance(/*@ null @*/ ProvenanceMode mode)
+	{
+		m_provenance = mode;
+		return this;
+	}
+
+	@Override
+	public ProvenanceMode getProvenance()
+	{
+		if (m_provenance == null)
+		{
+			return ProvenanceMode.getDefault();
+		}
+		return m_provenance;
+	}
+
+	@Override
+	/*@ non_null @*/ public GetFrequencies setRetention(/*@ null @*/ ProvenanceRetention policy)
+	{
+		m_retention = policy;
+		return this;
+	}
+
+	@Override
+	public ProvenanceRetention getRetention()
+	{
+		if (m_retention == null)
+		{
+			return ProvenanceRetention.getDefault();
+		}
+		return m_retention;
+	}
+
+	@Override
+	public synchronized long getLineageSize()
+	{
+		if (m_offsets == null)
+		{
+			return 0;
+		}
+		return 32 + 4L * (m_offsets.length + m_indices.length);
+	}
+
+	@Override
+	public synchronized void expireLineage()
+	{
+		m_offsets = null;
+		m_indices = null;
+		m_replayEntries = null;
+		m_expired = true;
+	}
+	
 	@Override
 	public PartNode getExplanation(Part d, RelationNodeFactory f)
 	{
@@ -182,35 +299,56 @@ public class GetFrequencies extends AtomicFunction
 			root.addChild(f.getUnknownNode());
 			return root;
 		}
+		if (m_expired)
+		{
+			ProvenanceRetention.addExpiredNode(root, f);
+			return root;
+		}
+		if (m_replayEntries != null)
+		{
+			replay(m_replayEntries);
+			m_replayEntries = null;
+		}
+		if (m_lineage == ProvenanceMode.NONE)
+		{
+			root.addChild(f.getUnknownNode());
+			return root;
+		}
 		Part d_tail = d.tail();
 		if (d_tail.head() instanceof Cell)
 		{
 			Cell c = (Cell) d_tail.head();
 			int row = c.getRow(), col = c.getColumn();
-			if (row < 0 || row > m_numBucketsY || col < 0 || col > m_numBucketsX)
+			if (m_offsets == null || row < 0 || row > m_numBucketsY || col < 0 || col > m_numBucketsX)
 			{
 				// Unknown cell
 				root.addChild(f.getUnknownNode());
 			}
 			else
 			{
-				List<Integer> indices = m_pairs[row - 1][col - 1];
-				if (indices == null)
+				int bucket = (row - 1) * m_numBucketsX + (col - 1);
+				int from = 0, to = 0;
+				if (row > 0 && col > 0)
+				{
+					from = m_offsets[bucket];
+					to = m_offsets[bucket + 1];
+				}
+				if (from == to)
 				{
 					root.addChild(f.getPartNode(ComposedPart.compose(Part.nothing, NthInput.FIRST), this));	
 				}
 				else
 				{
 					LabelledNode to_add = root;
-					if (indices.size() > 1)
+					if (to - from > 1)
 					{
 						AndNode and = f.getAndNode();
 						to_add.addChild(and);
 						to_add = and;
 					}
-					for (int index : indices)
+					for (int i = from; i < to; i++)
 					{
-						to_add.addChild(f.getPartNode(ComposedPart.compose(new NthElement(index), NthInput.FIRST), this));
+						to_add.addChild(f.getPartNode(ComposedPart.compose(new NthElement(m_indices[i]), NthInput.FIRST), this));
 					}
 				}
 			}
@@ -222,7 +360,6 @@ public class GetFrequencies extends AtomicFunction
 		return root;
 	}
 
-	@SuppressWarnings("unchecked")
 	@Override
 	protected Object[] getValue(Object... inputs) throws InvalidNumberOfArgumentsException
 	{
@@ -230,62 +367,196 @@ public class GetFrequencies extends AtomicFunction
 		{
 			throw new InvalidArgumentTypeException("Argument is not a list");	
 		}
-		List<?> entries = (List<?>) inputs[0];
+		final List<?> entries = (List<?>) inputs[0];
+		final int num_entries = entries.size();
+		final int num_buckets = m_numBucketsX * m_numBucketsY;
+		final double increment = m_defaultIncrement == null ? 1 : m_defaultIncrement;
+		final int num_slices = ParallelSlices.getSliceCount(m_numThreads, num_entries);
+		final double[][] grids = new double[num_slices][num_buckets];
+		final int[][] counts = new int[num_slices][num_buckets];
+		// The bucket of each pair, or -1 if the pair is out of bounds; only
+		// needed to explain the cells of the table
+		m_expired = false;
+		ProvenanceRetention policy = getRetention();
+		if (policy != null)
+		{
+			policy.touch(this);
+		}
+		m_lineage = getProvenance();
+		m_replayEntries = m_lineage == ProvenanceMode.LAZY ? entries : null;
+		final boolean track = m_lineage == ProvenanceMode.FULL;
+		final int[] bins = track ? new int[num_entries] : null;
+		ParallelSlices.run(num_slices, num_entries, new ParallelSlices.SliceTask()
+		{
+			@Override
+			public void run(int slice, int from, int to)
+			{
+				double[] grid = grids[slice];
+				int[] count = counts[slice];
+				double[] pair = new double[2];
+				for (int index = from; index < to; index++)
+				{
+					if (!getPair(entries.get(index), pair))
+					{
+						throw new InvalidArgumentTypeException("A pair of numbers could not be made out of one of the elements of the list.");
+					}
+					int bucket = getBucket(pair[0], pair[1]);
+					if (bins != null)
+					{
+						bins[index] = bucket;
+					}
+					if (bucket >= 0)
+					{
+						grid[bucket] += increment;
+						count[bucket]++;
+					}
+				}
+			}
+		});
+		// Merge the partial grids in slice order
+		double[] grid = grids[0];
+		int[] count = counts[0];
+		if (num_slices > 1)
+		{
+			grid = new double[num_buckets];
+			count = new int[num_buckets];
+			for (int slice = 0; slice < num_slices; slice++)
+			{
+				for (int b = 0; b < num_buckets; b++)
+				{
+					grid[b] += grids[slice][b];
+					count[b] += counts[slice][b];
+				}
+			}
+		}
+		if (track)
+		{
+			layOutIndices(bins, counts, count, num_slices, num_entries);
+			if (policy != null)
+			{
+				policy.done(this);
+			}
+		}
+		else
+		{
+			m_offsets = null;
+			m_indices = null;
+		}
 		Spreadsheet table = new Spreadsheet(m_numBucketsX + 1, m_numBucketsY + 1, 0);
 		table.set(0, 0, null);
-		m_pairs = new List[m_numBucketsY][m_numBucketsX];
 		for (int i = 0; i < m_numBucketsX; i++)
 		{
-			table.set(i + 1, 0, m_widthX * i);
+			table.set(i + 1, 0, m_minX + m_widthX * i);
 		}
 		for (int i = 0; i < m_numBucketsY; i++)
 		{
-			table.set(0, i + 1, m_widthY * i);
+			table.set(0, i + 1, m_minY + m_widthY * i);
 		}
-		for (int index = 0; index < entries.size(); index++)
+		for (int b = 0; b < num_buckets; b++)
 		{
-			Object o = entries.get(index);
-			double[] pair = getPair(o);
-			if (pair == null)
+			if (count[b] > 0)
 			{
-				throw new InvalidArgumentTypeException("A pair of numbers could not be made out of one of the elements of the list.");
+				table.set(b % m_numBucketsX + 1, b / m_numBucketsX + 1, grid[b]);
 			}
-			add(pair[0], pair[1], table, m_defaultIncrement, index);
 		}
 		return new Object[] {table};
 	}
 	
 	/**
-	 * Adds a value to a frequency table.
+	 * Computes the indices of the pairs in each bucket for an evaluation
+	 * whose recording of lineage has been deferred. Only the bucket of each
+	 * pair is computed again; the table itself is not produced.
+	 * @param entries The input list of the evaluation
+	 */
+	protected void replay(/*@ non_null @*/ List<?> entries)
+	{
+		int num_entries = entries.size();
+		int[] bins = new int[num_entries];
+		int[] count = new int[m_numBucketsX * m_numBucketsY];
+		double[] pair = new double[2];
+		for (int index = 0; index < num_entries; index++)
+		{
+			// The list has already been evaluated once; all its elements are pairs
+			getPair(entries.get(index), pair);
+			int bucket = getBucket(pair[0], pair[1]);
+			bins[index] = bucket;
+			if (bucket >= 0)
+			{
+				count[bucket]++;
+			}
+		}
+		layOutIndices(bins, new int[][] {count}, count, 1, num_entries);
+		ProvenanceRetention policy = getRetention();
+		if (policy != null)
+		{
+			policy.done(this);
+		}
+	}
+	
+	/**
+	 * Lays out the indices of the pairs of each bucket in
+	 * {@link #m_indices}. Each slice writes its pairs after those of the
+	 * preceding slices, so that the indices of each bucket are sorted.
+	 * @param bins The bucket of each pair, or -1 if the pair is out of bounds
+	 * @param counts The number of pairs in each bucket, for each slice
+	 * @param count The total number of pairs in each bucket
+	 * @param num_slices The number of slices
+	 * @param num_entries The number of pairs
+	 */
+	protected void layOutIndices(final int[] bins, int[][] counts, int[] count, int num_slices, int num_entries)
+	{
+		int num_buckets = count.length;
+		m_offsets = new int[num_buckets + 1];
+		for (int b = 0; b < num_buckets; b++)
+		{
+			m_offsets[b + 1] = m_offsets[b] + count[b];
+		}
+		m_indices = new int[m_offsets[num_buckets]];
+		final int[][] positions = new int[num_slices][num_buckets];
+		for (int b = 0; b < num_buckets; b++)
+		{
+			int pos = m_offsets[b];
+			for (int slice = 0; slice < num_slices; slice++)
+			{
+				positions[slice][b] = pos;
+				pos += counts[slice][b];
+			}
+		}
+		ParallelSlices.run(num_slices, num_entries, new ParallelSlices.SliceTask()
+		{
+			@Override
+			public void run(int slice, int from, int to)
+			{
+				int[] pos = positions[slice];
+				for (int index = from; index < to; index++)
+				{
+					int bucket = bins[index];
+					if (bucket >= 0)
+					{
+						m_indices[pos[bucket]++] = index;
+					}
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Gets the bucket in which a pair of values falls.
 	 * @param x The x position
 	 * @param y The y position
-	 * @param table The table
-	 * @param v The value to add in the corresponding cell
-	 * @param index The index of the pair in the function's input list
+	 * @return The index of the bucket, counting row by row, or -1 if the pair
+	 * lies outside of the table
 	 */
-	protected void add(double x, double y, Spreadsheet table, double v, int index)
+	protected int getBucket(double x, double y)
 	{
 		int bin_x = (int) Math.floor(((x - m_minX) / (m_maxX - m_minX)) * (double) m_numBucketsX);
 		int bin_y = (int) Math.floor(((y - m_minY) / (m_maxY - m_minY)) * (double) m_numBucketsY);
 		if (bin_x < 0 || bin_x >= m_numBucketsX || bin_y < 0 || bin_y >= m_numBucketsY)
 		{
 			// Out of bounds: ignore
-			return;
-		}
-		Double d = ((Number) table.get(bin_x + 1, bin_y + 1)).doubleValue();
-		table.set(bin_x + 1, bin_y + 1, d + v);
-		 
-		if (m_pairs[bin_y][bin_x] == null)
-		{
-			List<Integer> indices = new ArrayList<Integer>();
-			indices.add(index);
-			m_pairs[bin_y][bin_x] = indices;
-		}
-		else
-		{
-			List<Integer> indices = m_pairs[bin_y][bin_x];
-			indices.add(index);
+			return -1;
 		}
+		return bin_y * m_numBucketsX + bin_x;
 	}
 	
 	@Override
@@ -299,9 +570,17 @@ public class GetFrequencies extends AtomicFunction
 	{
 		GetFrequencies gf = new GetFrequencies(m_minX, m_maxX, m_numBucketsX, m_minY, m_maxY, m_numBucketsY, m_defaultIncrement);
 		super.copyInto(gf, with_state);
+		gf.m_numThreads = m_numThreads;
+		gf.m_provenance = m_provenance;
+		gf.m_retention = m_retention;
 		if (with_state)
 		{
-			gf.m_pairs = Arrays.copyOf(m_pairs, m_pairs.length);
+			gf.m_expired = m_expired;
+			// The arrays are never modified once computed, and can be shared
+			gf.m_offsets = m_offsets;
+			gf.m_indices = m_indices;
+			gf.m_lineage = m_lineage;
+			gf.m_replayEntries = m_replayEntries;
 		}
 		return gf;
 	}
@@ -314,32 +593,72 @@ public class GetFrequencies extends AtomicFunction
 	 */
 	/*@ null @*/ protected static double[] getPair(/*@ null @*/ Object o)
 	{
-		if (o == null)
+		double[] pair = new double[2];
+		if (!getPair(o, pair))
 		{
 			return null;
 		}
-		Float f1 = null, f2 = null;
+		return pair;
+	}
+	
+	/**
+	 * Attempts to extract a pair of numbers from an object, and writes them
+	 * into an existing array.
+	 * @param o The object
+	 * @param pair An array of size 2 where the values are written
+	 * @return <tt>true</tt> if a pair could be extracted from the object,
+	 * <tt>false</tt> otherwise
+	 */
+	protected static boolean getPair(/*@ null @*/ Object o, /*@ non_null @*/ double[] pair)
+	{
+		if (o instanceof Double[])
+		{
+			// Most common case, produced by createPair
+			Double[] a = (Double[]) o;
+			if (a.length < 2 || a[0] == null || a[1] == null)
+			{
+				return false;
+			}
+			pair[0] = a[0];
+			pair[1] = a[1];
+			return true;
+		}
+		if (o instanceof double[])
+		{
+			double[] a = (double[]) o;
+			if (a.length < 2)
+			{
+				return false;
+			}
+			pair[0] = a[0];
+			pair[1] = a[1];
+			return true;
+		}
 		if (o instanceof List)
 		{
 			List<?> l = (List<?>) o;
 			if (l.size() != 2)
 			{
-				return null;
+				return false;
 			}
-			f1 = DataFormatter.readFloat(l.get(0));
-			f2 = DataFormatter.readFloat(l.get(1));
+			pair[0] = DataFormatter.readDouble(l.get(0));
+			pair[1] = DataFormatter.readDouble(l.get(1));
 		}
-		else if (o.getClass().isArray())
+		else if (o instanceof Object[])
 		{
 			Object[] a = (Object[]) o;
-			f1 = DataFormatter.readFloat(a[0]);
-			f2 = DataFormatter.readFloat(a[1]);
+			if (a.length < 2)
+			{
+				return false;
+			}
+			pair[0] = DataFormatter.readDouble(a[0]);
+			pair[1] = DataFormatter.readDouble(a[1]);
 		}
-		if (f1 == null || f2 == null)
+		else
 		{
-			return null;
+			return false;
 		}
-		return new double[] {f1, f2};
+		return !Double.isNaN(pair[0]) && !Double.isNaN(pair[1]);
 	}
 	
 	/**
@@ -0,0 +1,895 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import ca.uqac.lif.dag.LabelledNode;
+import ca.uqac.lif.petitpoucet.Part;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.FunctionException;
+import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
+import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.petitpoucet.function.RelationNodeFactory;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.functions.ColumnAggregate.Accumulator;
+import ca.uqac.lif.spreadsheet.functions.ColumnAggregate.Aggregate;
+
+/**
+ * Divides the rows of a spreadsheet into groups sharing the same values in
+ * one or more <em>key</em> columns, and computes aggregate values on the
+ * rows of each group. The first row of the input is interpreted as column
+ * headers, and columns are designated by their header. For example, given
+ * the following table:
+ * <p>
+ * <table border="1">
+ * <tr><th>Algorithm</th><th>Size</th><th>Time</th></tr>
+ * <tr><td>A</td><td>10</td><td>3</td></tr>
+ * <tr><td>B</td><td>10</td><td>8</td></tr>
+ * <tr><td>A</td><td>10</td><td>5</td></tr>
+ * <tr><td>A</td><td>20</td><td>7</td></tr>
+ * </table>
+ * <p>
+ * the function
+ * {@code new GroupBy("Algorithm", "Size").aggregate("Time", Aggregate.MEAN)}
+ * produces the following result:
+ * <p>
+ * <table border="1">
+ * <tr><th>Algorithm</th><th>Size</th><th>MEAN(Time)</th></tr>
+ * <tr><td>A</td><td>10</td><td>4</td></tr>
+ * <tr><td>B</td><td>10</td><td>8</td></tr>
+ * <tr><td>A</td><td>20</td><td>7</td></tr>
+ * </table>
+ * <p>
+ * The output has one row per group, in the order in which the groups first
+ * appear in the input. Any of the aggregates of {@link ColumnAggregate} can
+ * be computed, as well as quantiles (see {@link #quantile(Object, double)}),
+ * which are estimated with a {@link QuantileSketch}. As in
+ * {@link ColumnAggregate}, cells that are not numbers are ignored.
+ * <p>
+ * The groups are found with a hash table using open addressing, and the
+ * values of each group are summarized by an {@link Accumulator}, so that the
+ * input is read in a single pass without storing the values of each group.
+ * For very tall spreadsheets, the rows can be divided among multiple threads
+ * with {@link #setThreads(int)}; each thread then aggregates its rows in its
+ * own table, and the tables are merged at the end.
+ * <p>
+ * The function only keeps, for each input row, the group it belongs to. A
+ * key in the output is explained by the corresponding cell in the first row
+ * of its group; the minimum and the maximum of a group are explained by the
+ * cell where the extremum was found; any other aggregate is explained by the
+ * cells of the aggregated column in all the rows of the group. With
+ * {@link #compactRanges(boolean)}, each run of consecutive rows of a group
+ * is designated by a single {@link ca.uqac.lif.spreadsheet.CellRange
+ * CellRange}.
+ *
+ * @author Sylvain Hallé
+ */
+public class GroupBy extends SpreadsheetFunction
+{
+	/**
+	 * The headers of the key columns.
+	 */
+	/*@ non_null @*/ protected final Object[] m_keyNames;
+
+	/**
+	 * The aggregates computed on each group, in the order of the columns of
+	 * the output.
+	 */
+	/*@ non_null @*/ protected final List<GroupAggregate> m_aggregates;
+
+	/**
+	 * The number of threads used to read the spreadsheet.
+	 */
+	protected int m_numThreads = 1;
+
+	/**
+	 * The compression given to the sketches used to estimate quantiles.
+	 */
+	protected double m_compression = QuantileSketch.DEFAULT_COMPRESSION;
+
+	/**
+	 * The groups found in the last spreadsheet given to the function.
+	 */
+	/*@ null @*/ protected GroupTable m_table;
+
+	/**
+	 * The position of the key columns in the last spreadsheet given to the
+	 * function.
+	 */
+	/*@ null @*/ protected int[] m_keyColumns;
+
+	/**
+	 * The position of the aggregated column of each aggregate in the last
+	 * spreadsheet given to the function.
+	 */
+	/*@ null @*/ protected int[] m_valueColumns;
+
+	/**
+	 * The group of each row of the last spreadsheet given to the function,
+	 * or <tt>null</tt> if the lineage is not kept.
+	 */
+	/*@ null @*/ protected int[] m_groupOfRow;
+
+	/**
+	 * The rows of the last spreadsheet given to the function, sorted by group
+	 * (and in increasing order within a group).
+	 */
+	/*@ null @*/ protected int[] m_groupRows;
+
+	/**
+	 * The position in {@link #m_groupRows} where the rows of each group
+	 * start. The rows of a group end where those of the next group start.
+	 */
+	/*@ null @*/ protected int[] m_groupStart;
+
+	/**
+	 * Creates a new group by function.
+	 * @param key_names The headers of the columns whose values define the
+	 * groups
+	 */
+	public GroupBy(/*@ non_null @*/ Object ... key_names)
+	{
+		super(1);
+		m_keyNames = key_names;
+		m_aggregates = new ArrayList<GroupAggregate>();
+	}
+
+	/**
+	 * Adds an aggregate to compute on each group. The header of the
+	 * corresponding column of the output is the name of the aggregate
+	 * followed by the header of the aggregated column, such as
+	 * <tt>MEAN(Time)</tt>.
+	 * @param column The header of the aggregated column
+	 * @param a The aggregate
+	 * @return This function
+	 */
+	/*@ non_null @*/ public GroupBy aggregate(/*@ non_null @*/ Object column, /*@ non_null @*/ Aggregate a)
+	{
+		return aggregate(column, a, a + "(" + column + ")");
+	}
+
+	/**
+	 * Adds an aggregate to compute on each group.
+	 * @param column The header of the aggregated column
+	 * @param a The aggregate
+	 * @param caption The header of the corresponding column of the output
+	 * @return This function
+	 */
+	/*@ non_null @*/ public GroupBy aggregate(/*@ non_null @*/ Object column, /*@ non_null @*/ Aggregate a, /*@ null @*/ Object caption)
+	{
+		m_aggregates.add(new GroupAggregate(column, a, 0, caption));
+		return this;
+	}
+
+	/**
+	 * Adds a quantile to estimate on each group. The header of the
+	 * corresponding column of the output is the letter Q followed by the
+	 * quantile and the header of the aggregated column, such as
+	 * <tt>Q0.9(Time)</tt>.
+	 * @param column The header of the aggregated column
+	 * @param q The quantile, between 0 and 1
+	 * @return This function
+	 */
+	/*@ non_null @*/ public GroupBy quantile(/*@ non_null @*/ Object column, double q)
+	{
+		return quantile(column, q, "Q" + q + "(" + column + ")");
+	}
+
+	/**
+	 * Adds a quantile to estimate on each group.
+	 * @param column The header of the aggregated column
+	 * @param q The quantile, between 0 and 1
+	 * @param caption The header of the corresponding column of the output
+	 * @return This function
+	 */
+	/*@ non_null @*/ public GroupBy quantile(/*@ non_null @*/ Object column, double q, /*@ null @*/ Object caption)
+	{
+		m_aggregates.add(new GroupAggregate(column, null, q, caption));
+		return this;
+	}
+
+	/**
+	 * Sets the number of threads used to read the spreadsheet. When more than
+	 * one thread is used, each thread aggregates a slice of the rows, and the
+	 * partial aggregates are then merged together.
+	 * @param num_threads The number of threads
+	 * @return This function
+	 */
+	/*@ non_null @*/ public GroupBy setThreads(int num_threads)
+	{
+		m_numThreads = Math.max(1, num_threads);
+		return this;
+	}
+
+	/**
+	 * Sets the compression of the sketches used to estimate quantiles.
+	 * @param compression The compression. Higher values produce more accurate
+	 * quantiles at the price of more memory.
+	 * @return This function
+	 */
+	/*@ non_null @*/ public GroupBy setCompression(double compression)
+	{
+		m_compression = compression;
+		return this;
+	}
+
+	@Override
+	protected Object[] getValue(Object... inputs) throws InvalidNumberOfArgumentsException
+	{
+		if (!(inputs[0] instanceof Spreadsheet))
+		{
+			throw new InvalidArgumentTypeException("Argument is not a spreadsheet");
+		}
+		startLineage(inputs);
+		// Nothing needs to be replayed: the groups computed below are enough
+		// to explain the output
+		m_replayInputs = null;
+		final Spreadsheet s = (Spreadsheet) inputs[0];
+		final int[] key_cols = new int[m_keyNames.length];
+		for (int i = 0; i < key_cols.length; i++)
+		{
+			key_cols[i] = getColumn(s, m_keyNames[i]);
+		}
+		final int[] value_cols = new int[m_aggregates.size()];
+		final boolean[] sketched = new boolean[value_cols.length];
+		for (int i = 0; i < value_cols.length; i++)
+		{
+			GroupAggregate ga = m_aggregates.get(i);
+			value_cols[i] = getColumn(s, ga.m_column);
+			sketched[i] = ga.m_aggregate == null;
+		}
+		final int num_rows = s.getHeight() - 1;
+		final int num_slices = ParallelSlices.getSliceCount(m_numThreads, num_rows);
+		final GroupTable[] partial = new GroupTable[num_slices];
+		final int[] group_of_row = new int[s.getHeight()];
+		group_of_row[0] = -1;
+		ParallelSlices.run(num_slices, num_rows, new ParallelSlices.SliceTask()
+		{
+			@Override
+			public void run(int slice, int from, int to)
+			{
+				GroupTable table = new GroupTable(key_cols, value_cols, sketched, m_compression);
+				partial[slice] = table;
+				for (int row = from + 1; row <= to; row++) // + 1 since first line is col name
+				{
+					Object[] contents = s.getRow(row);
+					int g = table.find(contents);
+					group_of_row[row] = g;
+					table.add(g, contents, row);
+				}
+			}
+		});
+		GroupTable table = partial[0];
+		for (int slice = 1; slice < num_slices; slice++)
+		{
+			int[] remap = table.merge(partial[slice]);
+			int from = ParallelSlices.getSliceStart(slice, num_slices, num_rows);
+			int to = ParallelSlices.getSliceStart(slice + 1, num_slices, num_rows);
+			for (int row = from + 1; row <= to; row++)
+			{
+				group_of_row[row] = remap[group_of_row[row]];
+			}
+		}
+		m_table = table;
+		m_keyColumns = key_cols;
+		m_valueColumns = value_cols;
+		if (m_lineage == ProvenanceMode.NONE)
+		{
+			m_groupOfRow = null;
+			m_groupRows = null;
+			m_groupStart = null;
+		}
+		else
+		{
+			indexRows(group_of_row, table.getSize());
+		}
+		int num_keys = key_cols.length, num_groups = table.getSize();
+		Spreadsheet out = new Spreadsheet(num_keys + value_cols.length, num_groups + 1);
+		for (int i = 0; i < num_keys; i++)
+		{
+			out.set(i, 0, s.get(key_cols[i], 0));
+		}
+		for (int i = 0; i < value_cols.length; i++)
+		{
+			out.set(num_keys + i, 0, m_aggregates.get(i).m_caption);
+		}
+		for (int g = 0; g < num_groups; g++)
+		{
+			Object[] key = table.m_keys.get(g);
+			for (int i = 0; i < num_keys; i++)
+			{
+				out.set(i, g + 1, key[i]);
+			}
+			for (int i = 0; i < value_cols.length; i++)
+			{
+				out.set(num_keys + i, g + 1, table.get(g, i, m_aggregates.get(i)));
+			}
+		}
+		endLineage();
+		return new Object[] {out};
+	}
+
+	/**
+	 * Gets the position of a column designated by its header.
+	 * @param s The spreadsheet
+	 * @param name The header of the column
+	 * @return The position of the column
+	 * @throws FunctionException If no column has this header
+	 */
+	protected static int getColumn(/*@ non_null @*/ Spreadsheet s, /*@ null @*/ Object name)
+	{
+		int index = s.getColumnIndex(name);
+		if (index < 0)
+		{
+			throw new FunctionException("No column named " + name);
+		}
+		return index;
+	}
+
+	/**
+	 * Sorts the rows of the input by group, in the order of a counting sort.
+	 * @param group_of_row The group of each row
+	 * @param num_groups The number of groups
+	 */
+	protected void indexRows(/*@ non_null @*/ int[] group_of_row, int num_groups)
+	{
+		int[] start = new int[num_groups + 1];
+		for (int row = 1; row < group_of_row.length; row++)
+		{
+			start[group_of_row[row] + 1]++;
+		}
+		for (int g = 0; g < num_groups; g++)
+		{
+			start[g + 1] += start[g];
+		}
+		int[] next = Arrays.copyOf(start, num_groups);
+		int[] rows = new int[Math.max(0, group_of_row.length - 1)];
+		for (int row = 1; row < group_of_row.length; row++)
+		{
+			rows[next[group_of_row[row]]++] = row;
+		}
+		m_groupOfRow = group_of_row;
+		m_groupRows = rows;
+		m_groupStart = start;
+	}
+
+	@Override
+	public PartNode getExplanation(Part part, RelationNodeFactory factory)
+	{
+		int output_nb = NthOutput.mentionedOutput(part);
+		Cell c = Cell.mentionedCell(part);
+		if (output_nb != 0 || c == null)
+		{
+			return super.getExplanation(part, factory);
+		}
+		if (!hasLineage() || m_groupStart == null)
+		{
+			return getUnrecordedExplanation(part, factory);
+		}
+		PartNode root = factory.getPartNode(part, this);
+		int row = c.getRow(), col = c.getColumn(), num_keys = m_keyColumns.length;
+		if (col < 0 || col >= num_keys + m_valueColumns.length || row < 0 || row > m_table.getSize())
+		{
+			return root;
+		}
+		if (row == 0)
+		{
+			int in_col = col < num_keys ? m_keyColumns[col] : m_valueColumns[col - num_keys];
+			root.addChild(factory.getPartNode(InputCell.get(in_col, 0).getPart(), this));
+			return root;
+		}
+		int g = row - 1;
+		if (col < num_keys)
+		{
+			root.addChild(factory.getPartNode(InputCell.get(m_keyColumns[col], m_groupRows[m_groupStart[g]]).getPart(), this));
+			return root;
+		}
+		int i = col - num_keys;
+		int arg_row = getExtremumRow(g, i);
+		if (arg_row >= 0)
+		{
+			root.addChild(factory.getPartNode(InputCell.get(m_valueColumns[i], arg_row).getPart(), this));
+			return root;
+		}
+		int from = m_groupStart[g], to = m_groupStart[g + 1];
+		int num_runs = 0;
+		for (int k = from; k < to; k++)
+		{
+			if (k == from || m_groupRows[k] != m_groupRows[k - 1] + 1)
+			{
+				num_runs++;
+			}
+		}
+		LabelledNode to_add = root;
+		if (to - from > 1 && (!m_compactRanges || num_runs > 1))
+		{
+			to_add = factory.getAndNode();
+			root.addChild(to_add);
+		}
+		int run_start = from;
+		for (int k = from + 1; k <= to; k++)
+		{
+			if (k == to || m_groupRows[k] != m_groupRows[k - 1] + 1)
+			{
+				addInputColumn(to_add, m_valueColumns[i], m_groupRows[run_start], m_groupRows[k - 1], factory);
+				run_start = k;
+			}
+		}
+		return root;
+	}
+
+	/**
+	 * Gets the row where the value of an aggregate is found, if this
+	 * aggregate is the minimum or the maximum.
+	 * @param g The group
+	 * @param i The index of the aggregate
+	 * @return The row, or -1 if the aggregate is neither the minimum nor the
+	 * maximum, or if the group has no value
+	 */
+	protected int getExtremumRow(int g, int i)
+	{
+		Aggregate a = m_aggregates.get(i).m_aggregate;
+		Accumulator acc = m_table.m_accumulators.get(g)[i];
+		if ((a == Aggregate.MIN || a == Aggregate.MAX) && acc.m_count > 0)
+		{
+			return a == Aggregate.MIN ? acc.m_minRow : acc.m_maxRow;
+		}
+		return -1;
+	}
+
+	@Override
+	public Cell[] dependents(int index, Cell c)
+	{
+		int row = c.getRow(), col = c.getColumn();
+		if (index != 0 || !hasLineage() || m_groupOfRow == null || row < 0 || row >= m_groupOfRow.length)
+		{
+			return new Cell[0];
+		}
+		int num_keys = m_keyColumns.length;
+		List<Cell> cells = new ArrayList<Cell>();
+		int g = m_groupOfRow[row];
+		for (int i = 0; i < num_keys; i++)
+		{
+			// Only the first row of a group explains its key
+			if (m_keyColumns[i] == col && (row == 0 || row == m_groupRows[m_groupStart[g]]))
+			{
+				cells.add(Cell.get(i, g + 1));
+			}
+		}
+		for (int i = 0; i < m_valueColumns.length; i++)
+		{
+			if (m_valueColumns[i] != col)
+			{
+				continue;
+			}
+			if (row > 0)
+			{
+				int arg_row = getExtremumRow(g, i);
+				if (arg_row >= 0 && arg_row != row)
+				{
+					continue;
+				}
+			}
+			cells.add(Cell.get(num_keys + i, g + 1));
+		}
+		return cells.toArray(new Cell[cells.size()]);
+	}
+
+	@Override
+	public synchronized long getLineageSize()
+	{
+		// Two ints per input row, and an accumulator per group and aggregate
+		long size = m_groupOfRow == null ? 0 : 8L * (m_groupOfRow.length + m_groupRows.length);
+		return m_table == null ? size : size + 80L * m_table.getSize() * m_aggregates.size();
+	}
+
+	@Override
+	public synchronized void expireLineage()
+	{
+		super.expireLineage();
+		m_groupOfRow = null;
+		m_groupRows = null;
+		m_groupStart = null;
+	}
+
+	@Override
+	public void reset()
+	{
+		super.reset();
+		m_table = null;
+		m_keyColumns = null;
+		m_valueColumns = null;
+		m_groupOfRow = null;
+		m_groupRows = null;
+		m_groupStart = null;
+	}
+
+	@Override
+	public GroupBy duplicate(boolean with_state)
+	{
+		GroupBy gb = new GroupBy(m_keyNames);
+		copyInto(gb, with_state);
+		return gb;
+	}
+
+	protected void copyInto(GroupBy gb, boolean with_state)
+	{
+		super.copyInto(gb, with_state);
+		gb.m_aggregates.addAll(m_aggregates);
+		gb.m_numThreads = m_numThreads;
+		gb.m_compression = m_compression;
+		if (with_state)
+		{
+			// None of these is modified once computed, and can be shared
+			gb.m_table = m_table;
+			gb.m_keyColumns = m_keyColumns;
+			gb.m_valueColumns = m_valueColumns;
+			gb.m_groupOfRow = m_groupOfRow;
+			gb.m_groupRows = m_groupRows;
+			gb.m_groupStart = m_groupStart;
+		}
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Group by " + Arrays.toString(m_keyNames);
+	}
+
+	/**
+	 * An aggregate computed on a column for each group.
+	 */
+	protected static class GroupAggregate
+	{
+		/**
+		 * The header of the aggregated column.
+		 */
+		/*@ non_null @*/ protected final Object m_column;
+
+		/**
+		 * The aggregate, or <tt>null</tt> for a quantile.
+		 */
+		/*@ null @*/ protected final Aggregate m_aggregate;
+
+		/**
+		 * The quantile to estimate, if the aggregate is a quantile.
+		 */
+		protected final double m_quantile;
+
+		/**
+		 * The header of the corresponding column of the output.
+		 */
+		/*@ null @*/ protected final Object m_caption;
+
+		/**
+		 * Creates a new aggregate.
+		 * @param column The header of the aggregated column
+		 * @param a The aggregate, or <tt>null</tt> for a quantile
+		 * @param q The quantile to estimate, if the aggregate is a quantile
+		 * @param caption The header of the corresponding column of the output
+		 */
+		public GroupAggregate(/*@ non_null @*/ Object column, /*@ null @*/ Aggregate a, double q, /*@ null @*/ Object caption)
+		{
+			super();
+			m_column = column;
+			m_aggregate = a;
+			m_quantile = q;
+			m_caption = caption;
+		}
+	}
+
+	/**
+	 * A hash table associating the values of the key columns of a row to a
+	 * group, and each group to the accumulators of its values. Collisions are
+	 * resolved by linear probing in an array of group numbers; the keys and
+	 * accumulators of the groups are stored in the order the groups are
+	 * created.
+	 */
+	protected static class GroupTable
+	{
+		/**
+		 * The initial number of slots of the table.
+		 */
+		protected static final int INITIAL_CAPACITY = 16;
+
+		/**
+		 * The position of the key columns in the input.
+		 */
+		/*@ non_null @*/ protected final int[] m_keyColumns;
+
+		/**
+		 * The position of the aggregated column of each aggregate.
+		 */
+		/*@ non_null @*/ protected final int[] m_valueColumns;
+
+		/**
+		 * Whether each aggregate is a quantile, which requires a sketch.
+		 */
+		/*@ non_null @*/ protected final boolean[] m_sketched;
+
+		/**
+		 * The compression given to the sketches.
+		 */
+		protected final double m_compression;
+
+		/**
+		 * The slots of the table, containing the number of a group plus one,
+		 * or 0 for an empty slot.
+		 */
+		/*@ non_null @*/ protected int[] m_slots;
+
+		/**
+		 * The hash of the key of each group.
+		 */
+		/*@ non_null @*/ protected long[] m_hashes;
+
+		/**
+		 * The values of the key columns of each group.
+		 */
+		/*@ non_null @*/ protected final List<Object[]> m_keys;
+
+		/**
+		 * The accumulators of each group, one per aggregate.
+		 */
+		/*@ non_null @*/ protected final List<Accumulator[]> m_accumulators;
+
+		/**
+		 * The sketches of each group, one per aggregate that is a quantile.
+		 */
+		/*@ non_null @*/ protected final List<QuantileSketch[]> m_sketches;
+
+		/**
+		 * Creates a new empty table.
+		 * @param key_cols The position of the key columns in the input
+		 * @param value_cols The position of the aggregated column of each
+		 * aggregate
+		 * @param sketched Whether each aggregate is a quantile
+		 * @param compression The compression given to the sketches
+		 */
+		public GroupTable(/*@ non_null @*/ int[] key_cols, /*@ non_null @*/ int[] value_cols, /*@ non_null @*/ boolean[] sketched, double compression)
+		{
+			super();
+			m_keyColumns = key_cols;
+			m_valueColumns = value_cols;
+			m_sketched = sketched;
+			m_compression = compression;
+			m_slots = new int[INITIAL_CAPACITY];
+			m_hashes = new long[INITIAL_CAPACITY];
+			m_keys = new ArrayList<Object[]>();
+			m_accumulators = new ArrayList<Accumulator[]>();
+			m_sketches = new ArrayList<QuantileSketch[]>();
+		}
+
+		/**
+		 * Gets the number of groups in the table.
+		 * @return The number of groups
+		 */
+		/*@ pure @*/ public int getSize()
+		{
+			return m_keys.size();
+		}
+
+		/**
+		 * Finds the group of a row, creating it if it does not exist.
+		 * @param contents The contents of the row
+		 * @return The number of the group
+		 */
+		public int find(/*@ non_null @*/ Object[] contents)
+		{
+			long h = 17;
+			for (int col : m_keyColumns)
+			{
+				h = h * 31 + ResultCache.sameHash(contents[col]);
+			}
+			int mask = m_slots.length - 1;
+			int slot = (int) (h ^ (h >>> 32)) & mask;
+			while (m_slots[slot] != 0)
+			{
+				int g = m_slots[slot] - 1;
+				if (m_hashes[g] == h && sameKey(m_keys.get(g), contents))
+				{
+					return g;
+				}
+				slot = (slot + 1) & mask;
+			}
+			Object[] key = new Object[m_keyColumns.length];
+			for (int i = 0; i < key.length; i++)
+			{
+				key[i] = contents[m_keyColumns[i]];
+			}
+			return insert(key, h, slot);
+		}
+
+		/**
+		 * Finds the group having given values in its key columns, creating it
+		 * if it does not exist.
+		 * @param key The values of the key columns
+		 * @return The number of the group
+		 */
+		protected int findKey(/*@ non_null @*/ Object[] key)
+		{
+			// Lay out the key as a row so that the same method can be used
+			int width = 0;
+			for (int col : m_keyColumns)
+			{
+				width = Math.max(width, col + 1);
+			}
+			Object[] contents = new Object[width];
+			for (int i = 0; i < key.length; i++)
+			{
+				contents[m_keyColumns[i]] = key[i];
+			}
+			return find(contents);
+		}
+
+		/**
+		 * Creates a new group.
+		 * @param key The values of the key columns
+		 * @param h The hash of the key
+		 * @param slot The empty slot where the group is placed
+		 * @return The number of the group
+		 */
+		protected int insert(/*@ non_null @*/ Object[] key, long h, int slot)
+		{
+			int g = m_keys.size();
+			m_keys.add(key);
+			Accumulator[] accs = new Accumulator[m_valueColumns.length];
+			QuantileSketch[] sketches = new QuantileSketch[m_valueColumns.length];
+			for (int i = 0; i < accs.length; i++)
+			{
+				accs[i] = new Accumulator();
+				if (m_sketched[i])
+				{
+					sketches[i] = new QuantileSketch(m_compression);
+				}
+			}
+			m_accumulators.add(accs);
+			m_sketches.add(sketches);
+			if (g >= m_hashes.length)
+			{
+				m_hashes = Arrays.copyOf(m_hashes, 2 * m_hashes.length);
+			}
+			m_hashes[g] = h;
+			m_slots[slot] = g + 1;
+			if (2 * m_keys.size() > m_slots.length)
+			{
+				rehash();
+			}
+			return g;
+		}
+
+		/**
+		 * Doubles the number of slots of the table, keeping its load factor
+		 * below one half.
+		 */
+		protected void rehash()
+		{
+			int[] slots = new int[2 * m_slots.length];
+			int mask = slots.length - 1;
+			for (int g = 0; g < m_keys.size(); g++)
+			{
+				long h = m_hashes[g];
+				int slot = (int) (h ^ (h >>> 32)) & mask;
+				while (slots[slot] != 0)
+				{
+					slot = (slot + 1) & mask;
+				}
+				slots[slot] = g + 1;
+			}
+			m_slots = slots;
+		}
+
+		/**
+		 * Determines if a row has the same values as a group in its key
+		 * columns.
+		 * @param key The values of the key columns of the group
+		 * @param contents The contents of the row
+		 * @return <tt>true</tt> if the values are the same, <tt>false</tt>
+		 * otherwise
+		 */
+		protected boolean sameKey(/*@ non_null @*/ Object[] key, /*@ non_null @*/ Object[] contents)
+		{
+			for (int i = 0; i < key.length; i++)
+			{
+				if (!Spreadsheet.same(key[i], contents[m_keyColumns[i]]))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Adds the values of a row to the accumulators of a group.
+		 * @param g The number of the group
+		 * @param contents The contents of the row
+		 * @param row The index of the row
+		 */
+		public void add(int g, /*@ non_null @*/ Object[] contents, int row)
+		{
+			Accumulator[] accs = m_accumulators.get(g);
+			QuantileSketch[] sketches = m_sketches.get(g);
+			for (int i = 0; i < accs.length; i++)
+			{
+				Object o = contents[m_valueColumns[i]];
+				if (o instanceof Number)
+				{
+					double x = ((Number) o).doubleValue();
+					accs[i].add(x, row);
+					if (sketches[i] != null)
+					{
+						sketches[i].add(x);
+					}
+				}
+				else if (o == null)
+				{
+					accs[i].addNull();
+				}
+			}
+		}
+
+		/**
+		 * Merges the groups of another table into this one. The rows of the
+		 * other table are assumed to come after those of this one.
+		 * @param other The other table
+		 * @return The number in this table of each group of the other table
+		 */
+		/*@ non_null @*/ public int[] merge(/*@ non_null @*/ GroupTable other)
+		{
+			int[] remap = new int[other.getSize()];
+			for (int g = 0; g < remap.length; g++)
+			{
+				int new_g = findKey(other.m_keys.get(g));
+				remap[g] = new_g;
+				Accumulator[] accs = m_accumulators.get(new_g), other_accs = other.m_accumulators.get(g);
+				QuantileSketch[] sketches = m_sketches.get(new_g), other_sketches = other.m_sketches.get(g);
+				for (int i = 0; i < accs.length; i++)
+				{
+					accs[i].merge(other_accs[i]);
+					if (sketches[i] != null)
+					{
+						sketches[i].merge(other_sketches[i]);
+					}
+				}
+			}
+			return remap;
+		}
+
+		/**
+		 * Gets the value of an aggregate for a group.
+		 * @param g The number of the group
+		 * @param i The index of the aggregate
+		 * @param ga The aggregate
+		 * @return The value, or <tt>null</tt> if the aggregate is undefined
+		 */
+		/*@ null @*/ public Number get(int g, int i, /*@ non_null @*/ GroupAggregate ga)
+		{
+			if (ga.m_aggregate != null)
+			{
+				return m_accumulators.get(g)[i].get(ga.m_aggregate);
+			}
+			QuantileSketch qs = m_sketches.get(g)[i];
+			return qs.getCount() == 0 ? null : qs.quantile(ga.m_quantile);
+		}
+	}
+}
@@ -152,6 +152,7 @@ public class Merge extends SpreadsheetFunction
 	@Override
 	protected Object[] getValue(Object... inputs) throws InvalidNumberOfArgumentsException
 	{
+		boolean track = startLineage(inputs);
 		Spreadsheet[] s_inputs = new Spreadsheet[inputs.length];
 		List<Object> headers = new ArrayList<Object>();
 		List<TrackedCell> tracked_headers = new ArrayList<TrackedCell>();
@@ -170,7 +171,7 @@ public class Merge extends SpreadsheetFunction
 				{
 					Object o = s.get(col, 0);
 					headers.add(o);
-					tracked_headers.add(new TrackedCell(o, InputCell.get(col, 0, i)));
+					tracked_headers.add(new TrackedCell(o, InputCell.encode(col, 0, i)));
 				}
 			}
 			for (int col = 0; col < s_inputs[i].getWidth(); col++)
@@ -179,7 +180,7 @@ public class Merge extends SpreadsheetFunction
 				if (!headers.contains(o))
 				{
 					headers.add(o);
-					tracked_headers.add(new TrackedCell(o, InputCell.get(col, 0, i)));
+					tracked_headers.add(new TrackedCell(o, InputCell.encode(col, 0, i)));
 				}
 			}
 			for (int r = 1; r < s.getHeight(); r++)
@@ -188,7 +189,7 @@ public class Merge extends SpreadsheetFunction
 				Row row = findRow(original_row, r, merged_rows);
 				for (int col = 0; col < original_row.length; col++)
 				{
-					row.add(s.get(col, 0), new TrackedCell(s.get(col, r), InputCell.get(col, r, i)));
+					row.add(s.get(col, 0), s.get(col, r), track ? new long[] {InputCell.encode(col, r, i)} : null);
 				}
 			}
 		}
@@ -0,0 +1,144 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import ca.uqac.lif.petitpoucet.function.FunctionException;
+
+/**
+ * Utility methods to split a range of indices into contiguous slices and
+ * process them concurrently. Functions using this class compute a partial
+ * result for each slice (for example, a grid of counts), and then merge the
+ * partial results in slice order, so that their output does not depend on
+ * the scheduling of the threads.
+ *
+ * @author Sylvain Hallé
+ */
+public class ParallelSlices
+{
+	/**
+	 * The minimum number of elements in a slice. Below this size, the
+	 * overhead of dispatching a slice to another thread is not worth it.
+	 */
+	public static final int MIN_SLICE_SIZE = 4096;
+
+	/**
+	 * A computation applied to a slice of indices.
+	 */
+	public interface SliceTask
+	{
+		/**
+		 * Processes a slice of indices.
+		 * @param slice The number of the slice
+		 * @param from The first index of the slice (inclusive)
+		 * @param to The last index of the slice (exclusive)
+		 */
+		public void run(int slice, int from, int to);
+	}
+
+	/**
+	 * Determines the number of slices into which a range of indices should be
+	 * divided.
+	 * @param num_threads The maximum number of threads to use
+	 * @param size The number of indices in the range
+	 * @return The number of slices, which is at least 1
+	 */
+	public static int getSliceCount(int num_threads, int size)
+	{
+		return Math.max(1, Math.min(num_threads, size / MIN_SLICE_SIZE));
+	}
+
+	/**
+	 * Gets the first index of a slice.
+	 * @param slice The number of the slice
+	 * @param num_slices The number of slices
+	 * @param size The number of indices in the range
+	 * @return The first index of the slice
+	 */
+	public static int getSliceStart(int slice, int num_slices, int size)
+	{
+		return (int) ((long) size * slice / num_slices);
+	}
+
+	/**
+	 * Processes a range of indices in slices. The first slice is processed by
+	 * the calling thread, and the others by the threads of the common
+	 * fork/join pool. The method returns once all the slices have been
+	 * processed.
+	 * @param num_slices The number of slices
+	 * @param size The number of indices in the range
+	 * @param task The computation to apply on each slice
+	 * @throws FunctionException If the computation of any slice throws an
+	 * exception
+	 */
+	public static void run(int num_slices, int size, final SliceTask task)
+	{
+		if (num_slices <= 1)
+		{
+			task.run(0, 0, size);
+			return;
+		}
+		ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[num_slices];
+		for (int i = 1; i < num_slices; i++)
+		{
+			final int slice = i;
+			final int from = getSliceStart(i, num_slices, size), to = getSliceStart(i + 1, num_slices, size);
+			tasks[i] = ForkJoinPool.commonPool().submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					task.run(slice, from, to);
+				}
+			});
+		}
+		RuntimeException error = null;
+		try
+		{
+			task.run(0, 0, getSliceStart(1, num_slices, size));
+		}
+		catch (RuntimeException e)
+		{
+			error = e;
+		}
+		for (int i = 1; i < num_slices; i++)
+		{
+			try
+			{
+				tasks[i].join();
+			}
+			catch (RuntimeException e)
+			{
+				if (error == null)
+				{
+					error = e;
+				}
+			}
+		}
+		if (error instanceof FunctionException)
+		{
+			throw error;
+		}
+		if (error != null)
+		{
+			throw new FunctionException(error);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+/**
+ * Determines how much lineage information a function records when it is
+ * evaluated. Recording the correspondence between input and output cells is
+ * what makes it possible to answer provenance queries, but it has a cost in
+ * time and memory that is wasted when no explanation is ever requested.
+ * <p>
+ * Each function implementing {@link Configurable} can be given its own mode;
+ * functions that are not given one use the global default returned by
+ * {@link #getDefault()}, which is {@link #FULL} unless changed with
+ * {@link #setDefault(ProvenanceMode)}.
+ *
+ * @author Sylvain Hallé
+ */
+public enum ProvenanceMode
+{
+	/**
+	 * The function records the lineage of every output cell during its
+	 * evaluation.
+	 */
+	FULL,
+
+	/**
+	 * The function records no lineage. Explanations requested on its output
+	 * only contain an unknown node.
+	 */
+	NONE,
+
+	/**
+	 * The function records no lineage during its evaluation, but keeps a
+	 * reference to its inputs. The lineage is computed by replaying the
+	 * evaluation the first time an explanation is requested. This makes the
+	 * first query more expensive, but evaluations are as fast as with
+	 * {@link #NONE}. The inputs must therefore not be modified between the
+	 * evaluation and the first query. Functions whose inputs cannot be read
+	 * twice record their lineage as with {@link #FULL}.
+	 */
+	LAZY;
+
+	/**
+	 * The mode used by functions that have not been given one explicitly.
+	 */
+	private static volatile ProvenanceMode s_default = FULL;
+
+	/**
+	 * Gets the mode used by functions that have not been given one
+	 * explicitly.
+	 * @return The default mode
+	 */
+	/*@ non_null @*/ public static ProvenanceMode getDefault()
+	{
+		return s_default;
+	}
+
+	/**
+	 * Sets the mode used by functions that have not been given one
+	 * explicitly. The change applies to all subsequent evaluations, including
+	 * those of functions that already exist.
+	 * @param mode The default mode
+	 */
+	public static void setDefault(/*@ non_null @*/ ProvenanceMode mode)
+	{
+		s_default = mode;
+	}
+
+	/**
+	 * Sets the mode of a group of functions, such as those that make up a
+	 * circuit. Objects that do not implement {@link Configurable} are
+	 * ignored.
+	 * @param mode The mode, or <tt>null</tt> to make the functions use the
+	 * default mode
+	 * @param functions The functions
+	 */
+	public static void set(/*@ null @*/ ProvenanceMode mode, /*@ non_null @*/ Object ... functions)
+	{
+		for (Object o : functions)
+		{
+			if (o instanceof Configurable)
+			{
+				((Configurable) o).setProvenance(mode);
+			}
+		}
+	}
+
+	/**
+	 * Interface implemented by functions whose recording of lineage can be
+	 * configured.
+	 */
+	public interface Configurable
+	{
+		/**
+		 * Sets the provenance mode of this function.
+		 * @param mode The mode, or <tt>null</tt> to use the default mode
+		 * @return This function
+		 */
+		/*@ non_null @*/ public Configurable setProvenance(/*@ null @*/ ProvenanceMode mode);
+
+		/**
+		 * Gets the provenance mode this function uses when it is evaluated.
+		 * @return The mode
+		 */
+		/*@ pure non_null @*/ public ProvenanceMode getProvenance();
+	}
+}
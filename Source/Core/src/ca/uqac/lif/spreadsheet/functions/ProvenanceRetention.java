@@ -0,0 +1,414 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.uqac.lif.dag.LabelledNode;
+import ca.uqac.lif.petitpoucet.Part;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.RelationNodeFactory;
+
+/**
+ * Policy bounding the amount of lineage kept by a group of functions. By
+ * default, each function keeps the lineage of its last evaluation until it
+ * is evaluated again; in a long-running pipeline, the memory retained by
+ * the functions therefore depends on the largest input they have seen. A
+ * retention policy limits this memory in three ways, which can be combined:
+ * <ul>
+ * <li>{@link #keepEvaluations(int) keepEvaluations(n)}: only the functions
+ * that have been evaluated during the last <i>n</i> runs keep their lineage.
+ * A run is a sequence of evaluations of the functions sharing the policy; a
+ * new run starts when a function already evaluated during the current run
+ * is evaluated again, as happens when a pipeline processes a new input</li>
+ * <li>{@link #keepBytes(long) keepBytes(b)}: when the estimated size of
+ * the lineage kept by all the functions exceeds <i>b</i> bytes, the lineage
+ * of the least recently evaluated functions is discarded</li>
+ * <li>{@link #keepRows(int) keepRows(w)}: functions whose output rows
+ * correspond to rows of their input only keep the lineage of the last
+ * <i>w</i> rows of their output (the first row, which contains the column
+ * headers, is always kept)</li>
+ * </ul>
+ * The number of runs and the size of the lineage are checked each time a
+ * function sharing the policy starts an evaluation, and the size is checked
+ * again once the function has produced its lineage, which is discarded
+ * right away if it alone exceeds the limit. The window of rows is the one in
+ * effect when a function is evaluated; the lineage of the other rows is not
+ * recorded at all. Explanations of output cells whose lineage has been
+ * discarded contain a node whose subject is {@link #EXPIRED}.
+ * <p>
+ * A policy can be given to each function implementing {@link Retainer}.
+ * Functions that are not given one use the global default returned by
+ * {@link #getDefault()}, which is <tt>null</tt> (no limit) unless changed
+ * with {@link #setDefault(ProvenanceRetention)}. Since a policy only keeps
+ * weak references to the functions, it does not prevent functions that are
+ * no longer used from being garbage collected. The lineage of a function is
+ * discarded by calling {@link Retainer#expireLineage()} without holding the
+ * lock of the policy; functions must therefore synchronize this method with
+ * the other methods that access their lineage.
+ *
+ * @author Sylvain Hallé
+ */
+public class ProvenanceRetention
+{
+	/**
+	 * The subject of the node added to explanations whose lineage has been
+	 * discarded.
+	 */
+	public static final String EXPIRED = "Expired lineage";
+
+	/**
+	 * The policy used by functions that have not been given one explicitly.
+	 */
+	private static volatile ProvenanceRetention s_default = null;
+
+	/**
+	 * The number of evaluations for which lineage is kept, or a non-positive
+	 * value for no limit.
+	 */
+	protected int m_maxEvaluations = 0;
+
+	/**
+	 * The maximum estimated size of the lineage kept, in bytes, or a negative
+	 * value for no limit.
+	 */
+	protected long m_maxBytes = -1;
+
+	/**
+	 * The number of output rows whose lineage is kept, or a non-positive value
+	 * for no limit.
+	 */
+	protected int m_rowWindow = 0;
+
+	/**
+	 * The number of runs that have been started by the functions sharing this
+	 * policy.
+	 */
+	protected long m_clock = 0;
+
+	/**
+	 * The functions sharing this policy, from the least to the most recently
+	 * evaluated.
+	 */
+	/*@ non_null @*/ protected final List<Entry> m_entries;
+
+	/**
+	 * Gets the policy used by functions that have not been given one
+	 * explicitly.
+	 * @return The default policy, or <tt>null</tt> if lineage is not bounded
+	 */
+	/*@ null @*/ public static ProvenanceRetention getDefault()
+	{
+		return s_default;
+	}
+
+	/**
+	 * Sets the policy used by functions that have not been given one
+	 * explicitly.
+	 * @param policy The default policy, or <tt>null</tt> to leave lineage
+	 * unbounded
+	 */
+	public static void setDefault(/*@ null @*/ ProvenanceRetention policy)
+	{
+		s_default = policy;
+	}
+
+	/**
+	 * Creates a new retention policy that imposes no limit.
+	 */
+	public ProvenanceRetention()
+	{
+		super();
+		m_entries = new ArrayList<Entry>();
+	}
+
+	/**
+	 * Keeps lineage only for the functions evaluated during the last runs.
+	 * @param n The number of runs, or a non-positive value for no limit
+	 * @return This policy
+	 */
+	/*@ non_null @*/ public synchronized ProvenanceRetention keepEvaluations(int n)
+	{
+		m_maxEvaluations = n;
+		return this;
+	}
+
+	/**
+	 * Bounds the estimated size of the lineage kept by the functions.
+	 * @param bytes The maximum size, in bytes, or a negative value for no
+	 * limit
+	 * @return This policy
+	 */
+	/*@ non_null @*/ public synchronized ProvenanceRetention keepBytes(long bytes)
+	{
+		m_maxBytes = bytes;
+		return this;
+	}
+
+	/**
+	 * Keeps lineage only for the last rows of the output of each function.
+	 * @param rows The number of rows, or a non-positive value for no limit
+	 * @return This policy
+	 */
+	/*@ non_null @*/ public synchronized ProvenanceRetention keepRows(int rows)
+	{
+		m_rowWindow = rows;
+		return this;
+	}
+
+	/**
+	 * Gets the number of output rows whose lineage is kept.
+	 * @return The number of rows, or a non-positive value for no limit
+	 */
+	/*@ pure @*/ public synchronized int getRowWindow()
+	{
+		return m_rowWindow;
+	}
+
+	/**
+	 * Gets the first output row whose lineage is kept, given the height of an
+	 * output spreadsheet.
+	 * @param height The height of the output spreadsheet
+	 * @return The index of the first row outside of the header whose lineage
+	 * is kept, or 0 if the lineage of all rows is kept
+	 */
+	/*@ pure @*/ public synchronized int getWindowStart(int height)
+	{
+		if (m_rowWindow <= 0)
+		{
+			return 0;
+		}
+		return Math.max(1, height - m_rowWindow);
+	}
+
+	/**
+	 * Notifies the policy that a function starts an evaluation. The function
+	 * becomes the most recently evaluated one, and the lineage of other
+	 * functions is discarded if the limits of the policy are exceeded. The
+	 * lineage kept by the function itself is not discarded, since it is about
+	 * to be replaced.
+	 * @param r The function
+	 */
+	public void touch(/*@ non_null @*/ Retainer r)
+	{
+		List<Entry> expired = new ArrayList<Entry>();
+		synchronized (this)
+		{
+			// Forget the functions that have been garbage collected, and r itself
+			boolean new_run = m_clock == 0;
+			for (int i = m_entries.size() - 1; i >= 0; i--)
+			{
+				Entry e = m_entries.get(i);
+				Retainer other = e.get();
+				if (other == r && e.m_stamp == m_clock)
+				{
+					// r has already been evaluated during the current run
+					new_run = true;
+				}
+				if (other == null || other == r)
+				{
+					m_entries.remove(i);
+				}
+			}
+			if (new_run)
+			{
+				m_clock++;
+			}
+			if (m_maxEvaluations > 0)
+			{
+				while (!m_entries.isEmpty() && m_entries.get(0).m_stamp <= m_clock - m_maxEvaluations)
+				{
+					expired.add(m_entries.remove(0));
+				}
+			}
+			trim(expired);
+			m_entries.add(new Entry(r, m_clock));
+		}
+		expire(expired);
+	}
+
+	/**
+	 * Notifies the policy that a function has produced the lineage of an
+	 * evaluation. The lineage of the least recently evaluated functions,
+	 * including this one if it alone exceeds the limit, is discarded until
+	 * the size of the lineage kept no longer exceeds the limit of the policy.
+	 * Nothing is done if the lineage of the function has already been
+	 * discarded.
+	 * @param r The function
+	 */
+	public void done(/*@ non_null @*/ Retainer r)
+	{
+		List<Entry> expired = new ArrayList<Entry>();
+		synchronized (this)
+		{
+			for (Entry e : m_entries)
+			{
+				if (e.get() == r)
+				{
+					trim(expired);
+					break;
+				}
+			}
+		}
+		expire(expired);
+	}
+
+	/**
+	 * Removes entries from the functions sharing this policy, from the least
+	 * to the most recently evaluated, until the size of the lineage they keep
+	 * no longer exceeds the limit.
+	 * @param expired A list to which the removed entries are added
+	 */
+	protected void trim(/*@ non_null @*/ List<Entry> expired)
+	{
+		if (m_maxBytes < 0)
+		{
+			return;
+		}
+		long total = 0;
+		for (Entry e : m_entries)
+		{
+			total += size(e);
+		}
+		while (total > m_maxBytes && !m_entries.isEmpty())
+		{
+			Entry e = m_entries.remove(0);
+			total -= size(e);
+			expired.add(e);
+		}
+	}
+
+	/**
+	 * Gets the estimated size of the lineage kept by the functions sharing
+	 * this policy.
+	 * @return The size, in bytes
+	 */
+	public synchronized long getRetainedSize()
+	{
+		long total = 0;
+		for (Entry e : m_entries)
+		{
+			total += size(e);
+		}
+		return total;
+	}
+
+	/**
+	 * Adds to an explanation the node indicating that its lineage has been
+	 * discarded.
+	 * @param parent The node to which the expired node is added
+	 * @param factory The factory used to obtain nodes
+	 */
+	public static void addExpiredNode(/*@ non_null @*/ LabelledNode parent, /*@ non_null @*/ RelationNodeFactory factory)
+	{
+		PartNode expired = factory.getPartNode(Part.nothing, EXPIRED);
+		parent.addChild(expired);
+		expired.addChild(factory.getUnknownNode());
+	}
+
+	/**
+	 * Gets the estimated size of the lineage of an entry.
+	 * @param e The entry
+	 * @return The size, or 0 if the function has been garbage collected
+	 */
+	protected static long size(Entry e)
+	{
+		Retainer r = e.get();
+		return r == null ? 0 : r.getLineageSize();
+	}
+
+	/**
+	 * Discards the lineage of entries. This method is called without holding
+	 * the lock of the policy, so that a function discarding its lineage never
+	 * waits for the policy while another thread holds it.
+	 * @param entries The entries
+	 */
+	protected static void expire(/*@ non_null @*/ List<Entry> entries)
+	{
+		for (Entry e : entries)
+		{
+			Retainer r = e.get();
+			if (r != null)
+			{
+				r.expireLineage();
+			}
+		}
+	}
+
+	/**
+	 * Interface implemented by functions whose lineage can be bounded by a
+	 * retention policy.
+	 */
+	public interface Retainer
+	{
+		/**
+		 * Sets the retention policy of this function.
+		 * @param policy The policy, or <tt>null</tt> to use the default policy
+		 * @return This function
+		 */
+		/*@ non_null @*/ public Retainer setRetention(/*@ null @*/ ProvenanceRetention policy);
+
+		/**
+		 * Gets the retention policy this function uses.
+		 * @return The policy, or <tt>null</tt> if lineage is not bounded
+		 */
+		/*@ pure null @*/ public ProvenanceRetention getRetention();
+
+		/**
+		 * Gets the estimated size of the lineage kept by this function. This
+		 * method is called while holding the lock of the policy, and must not
+		 * wait for locks other than that of the function.
+		 * @return The size, in bytes
+		 */
+		/*@ pure @*/ public long getLineageSize();
+
+		/**
+		 * Discards the lineage kept by this function. Subsequent explanations
+		 * on its output report the lineage as expired, until the function is
+		 * evaluated again. Since this method is called by the policy when
+		 * other functions are evaluated, it must be synchronized with the
+		 * methods of the function that access its lineage.
+		 */
+		public void expireLineage();
+	}
+
+	/**
+	 * A weak reference to a function, along with the run during which it last
+	 * started an evaluation.
+	 */
+	protected static class Entry extends WeakReference<Retainer>
+	{
+		/**
+		 * The run during which the function last started an evaluation.
+		 */
+		protected final long m_stamp;
+
+		/**
+		 * Creates a new entry.
+		 * @param r The function
+		 * @param stamp The run
+		 */
+		public Entry(/*@ non_null @*/ Retainer r, long stamp)
+		{
+			super(r);
+			m_stamp = stamp;
+		}
+	}
+}
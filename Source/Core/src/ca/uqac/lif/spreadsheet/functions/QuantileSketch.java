@@ -0,0 +1,477 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable summary of a stream of numerical values, which can answer
+ * approximate quantile queries using a bounded amount of memory. The sketch
+ * is an implementation of the "merging" variant of the <em>t-digest</em>
+ * proposed by Dunning and Ertl: values are first accumulated in a buffer,
+ * which is periodically merged into a sorted list of weighted centroids.
+ * Centroids near the extremities of the distribution are kept small, which
+ * makes estimates of low and high quantiles more accurate than those of the
+ * median.
+ * <p>
+ * The trade-off between accuracy and memory is controlled by a single
+ * <em>compression</em> parameter: the number of centroids kept by the
+ * sketch is bounded by a small multiple of this value, regardless of the
+ * number of values that have been added to it. The minimum and the maximum
+ * of the stream are always tracked exactly. As long as the sketch has not
+ * been forced to merge any two values into the same centroid, quantiles are
+ * computed exactly, using the same rank convention as {@link BoxStats}.
+ * <p>
+ * Two sketches built independently (for example on different threads, or
+ * from different files) can be combined with {@link #merge(QuantileSketch)}.
+ * A sketch is not thread-safe; each thread should feed its own instance.
+ *
+ * @author Sylvain Hallé
+ */
+public class QuantileSketch
+{
+	/**
+	 * The default value of the compression parameter.
+	 */
+	public static final double DEFAULT_COMPRESSION = 100;
+
+	/**
+	 * The compression parameter of this sketch.
+	 */
+	protected final double m_compression;
+
+	/**
+	 * The means of the centroids, sorted in ascending order.
+	 */
+	protected double[] m_means;
+
+	/**
+	 * The weights of the centroids.
+	 */
+	protected double[] m_weights;
+
+	/**
+	 * The number of centroids currently in use.
+	 */
+	protected int m_numCentroids;
+
+	/**
+	 * The means of the values that have not yet been merged into the
+	 * centroids.
+	 */
+	protected double[] m_bufferMeans;
+
+	/**
+	 * The weights of the values that have not yet been merged into the
+	 * centroids.
+	 */
+	protected double[] m_bufferWeights;
+
+	/**
+	 * The number of values currently in the buffer.
+	 */
+	protected int m_bufferCount;
+
+	/**
+	 * The total number of values summarized by this sketch.
+	 */
+	protected long m_count;
+
+	/**
+	 * The smallest value seen so far.
+	 */
+	protected double m_min;
+
+	/**
+	 * The largest value seen so far.
+	 */
+	protected double m_max;
+
+	/**
+	 * Creates a new empty sketch with the default compression.
+	 */
+	public QuantileSketch()
+	{
+		this(DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Creates a new empty sketch.
+	 * @param compression The compression parameter. Higher values produce
+	 * more accurate estimates at the price of more memory.
+	 */
+	public QuantileSketch(double compression)
+	{
+		super();
+		if (compression < 10)
+		{
+			compression = 10;
+		}
+		m_compression = compression;
+		int buffer_size = (int) (5 * compression);
+		m_bufferMeans = new double[buffer_size];
+		m_bufferWeights = new double[buffer_size];
+		m_means = new double[0];
+		m_weights = new double[0];
+		clear();
+	}
+
+	/**
+	 * Gets the compression parameter of this sketch.
+	 * @return The compression
+	 */
+	/*@ pure @*/ public double getCompression()
+	{
+		return m_compression;
+	}
+
+	/**
+	 * Removes all the values summarized by this sketch.
+	 */
+	public void clear()
+	{
+		m_numCentroids = 0;
+		m_bufferCount = 0;
+		m_count = 0;
+		m_min = Double.POSITIVE_INFINITY;
+		m_max = Double.NEGATIVE_INFINITY;
+	}
+
+	/**
+	 * Adds a value to the sketch. NaN values are ignored.
+	 * @param x The value
+	 */
+	public void add(double x)
+	{
+		add(x, 1);
+	}
+
+	/**
+	 * Adds a value to the sketch with a given weight.
+	 * @param x The value
+	 * @param weight The weight, which must be positive
+	 */
+	protected void add(double x, double weight)
+	{
+		if (Double.isNaN(x) || weight <= 0)
+		{
+			return;
+		}
+		if (m_bufferCount == m_bufferMeans.length)
+		{
+			compress();
+		}
+		m_bufferMeans[m_bufferCount] = x;
+		m_bufferWeights[m_bufferCount] = weight;
+		m_bufferCount++;
+		m_count += weight;
+		m_min = Math.min(m_min, x);
+		m_max = Math.max(m_max, x);
+	}
+
+	/**
+	 * Adds the contents of another sketch to this one. The other sketch is
+	 * left unchanged.
+	 * @param other The other sketch
+	 */
+	public void merge(/*@ non_null @*/ QuantileSketch other)
+	{
+		if (other == this)
+		{
+			other = other.duplicate();
+		}
+		long count = m_count + other.m_count;
+		double min = Math.min(m_min, other.m_min), max = Math.max(m_max, other.m_max);
+		for (int i = 0; i < other.m_numCentroids; i++)
+		{
+			add(other.m_means[i], other.m_weights[i]);
+		}
+		for (int i = 0; i < other.m_bufferCount; i++)
+		{
+			add(other.m_bufferMeans[i], other.m_bufferWeights[i]);
+		}
+		// Weights are integral counts, so the total is preserved exactly
+		m_count = count;
+		m_min = min;
+		m_max = max;
+	}
+
+	/**
+	 * Gets the number of values summarized by this sketch.
+	 * @return The number of values
+	 */
+	/*@ pure @*/ public long getCount()
+	{
+		return m_count;
+	}
+
+	/**
+	 * Gets the smallest value added to this sketch.
+	 * @return The value, or NaN if the sketch is empty
+	 */
+	/*@ pure @*/ public double getMin()
+	{
+		return m_count == 0 ? Double.NaN : m_min;
+	}
+
+	/**
+	 * Gets the largest value added to this sketch.
+	 * @return The value, or NaN if the sketch is empty
+	 */
+	/*@ pure @*/ public double getMax()
+	{
+		return m_count == 0 ? Double.NaN : m_max;
+	}
+
+	/**
+	 * Gets the number of centroids currently used to summarize the values.
+	 * This gives an indication of the memory used by the sketch.
+	 * @return The number of centroids
+	 */
+	public int getCentroidCount()
+	{
+		compress();
+		return m_numCentroids;
+	}
+
+	/**
+	 * Estimates the value of a quantile of the values added to this sketch.
+	 * @param q The quantile, between 0 and 1
+	 * @return The estimated value, or NaN if the sketch is empty
+	 */
+	public double quantile(double q)
+	{
+		if (m_count == 0)
+		{
+			return Double.NaN;
+		}
+		if (q <= 0)
+		{
+			return m_min;
+		}
+		if (q >= 1)
+		{
+			return m_max;
+		}
+		compress();
+		if (m_numCentroids == m_count)
+		{
+			// No two values were merged: the answer is exact
+			return m_means[Math.max(0, (int) (m_count * q) - 1)];
+		}
+		double index = q * m_count;
+		double left_half = m_weights[0] / 2;
+		if (index < left_half)
+		{
+			return m_min + (index / left_half) * (m_means[0] - m_min);
+		}
+		double right_half = m_weights[m_numCentroids - 1] / 2;
+		if (index >= m_count - right_half)
+		{
+			double d = (m_count - index) / right_half;
+			return m_max - d * (m_max - m_means[m_numCentroids - 1]);
+		}
+		double center = left_half;
+		for (int i = 0; i < m_numCentroids - 1; i++)
+		{
+			double next_center = center + (m_weights[i] + m_weights[i + 1]) / 2;
+			if (index < next_center)
+			{
+				double d = (index - center) / (next_center - center);
+				return m_means[i] + d * (m_means[i + 1] - m_means[i]);
+			}
+			center = next_center;
+		}
+		return m_means[m_numCentroids - 1];
+	}
+
+	/**
+	 * Merges the buffered values into the list of centroids.
+	 */
+	protected void compress()
+	{
+		if (m_bufferCount == 0)
+		{
+			return;
+		}
+		int n = m_numCentroids + m_bufferCount;
+		double[] means = Arrays.copyOf(m_means, n);
+		double[] weights = Arrays.copyOf(m_weights, n);
+		System.arraycopy(m_bufferMeans, 0, means, m_numCentroids, m_bufferCount);
+		System.arraycopy(m_bufferWeights, 0, weights, m_numCentroids, m_bufferCount);
+		m_bufferCount = 0;
+		sortByMean(means, weights, n);
+		double total = 0;
+		for (int i = 0; i < n; i++)
+		{
+			total += weights[i];
+		}
+		int out = 0;
+		double weight_so_far = 0;
+		double q_limit = inverseScale(scale(0) + 1);
+		for (int i = 1; i < n; i++)
+		{
+			double proposed = weight_so_far + weights[out] + weights[i];
+			if (proposed / total <= q_limit)
+			{
+				// Absorb centroid i into the current one
+				double w = weights[out] + weights[i];
+				means[out] += (means[i] - means[out]) * weights[i] / w;
+				weights[out] = w;
+			}
+			else
+			{
+				weight_so_far += weights[out];
+				q_limit = inverseScale(scale(weight_so_far / total) + 1);
+				out++;
+				means[out] = means[i];
+				weights[out] = weights[i];
+			}
+		}
+		m_numCentroids = n == 0 ? 0 : out + 1;
+		m_means = Arrays.copyOf(means, m_numCentroids);
+		m_weights = Arrays.copyOf(weights, m_numCentroids);
+	}
+
+	/**
+	 * The scale function of the digest, which maps a quantile to an index
+	 * such that a centroid never spans more than one unit of index.
+	 * @param q The quantile
+	 * @return The index
+	 */
+	protected double scale(double q)
+	{
+		return m_compression / (2 * Math.PI) * Math.asin(2 * q - 1);
+	}
+
+	/**
+	 * The inverse of {@link #scale(double)}.
+	 * @param k The index
+	 * @return The quantile
+	 */
+	protected double inverseScale(double k)
+	{
+		if (k >= m_compression / 4)
+		{
+			return 1;
+		}
+		return (Math.sin(k * 2 * Math.PI / m_compression) + 1) / 2;
+	}
+
+	/**
+	 * Sorts two parallel arrays according to the values of the first one.
+	 * @param means The array of means
+	 * @param weights The array of weights
+	 * @param n The number of elements of the arrays to sort
+	 */
+	protected static void sortByMean(double[] means, double[] weights, int n)
+	{
+		sortByMean(means, weights, 0, n - 1);
+	}
+
+	/**
+	 * Sorts a slice of two parallel arrays according to the values of the
+	 * first one.
+	 * @param means The array of means
+	 * @param weights The array of weights
+	 * @param lo The index of the first element of the slice
+	 * @param hi The index of the last element of the slice
+	 */
+	private static void sortByMean(double[] means, double[] weights, int lo, int hi)
+	{
+		while (hi - lo > 16)
+		{
+			double pivot = means[(lo + hi) >>> 1];
+			int i = lo, j = hi;
+			while (i <= j)
+			{
+				while (means[i] < pivot)
+				{
+					i++;
+				}
+				while (means[j] > pivot)
+				{
+					j--;
+				}
+				if (i <= j)
+				{
+					swap(means, weights, i++, j--);
+				}
+			}
+			// Recurse on the smaller half to bound the stack depth
+			if (j - lo < hi - i)
+			{
+				sortByMean(means, weights, lo, j);
+				lo = i;
+			}
+			else
+			{
+				sortByMean(means, weights, i, hi);
+				hi = j;
+			}
+		}
+		for (int i = lo + 1; i <= hi; i++)
+		{
+			for (int j = i; j > lo && means[j - 1] > means[j]; j--)
+			{
+				swap(means, weights, j - 1, j);
+			}
+		}
+	}
+
+	/**
+	 * Swaps two elements in a pair of parallel arrays.
+	 * @param means The array of means
+	 * @param weights The array of weights
+	 * @param i The index of the first element
+	 * @param j The index of the second element
+	 */
+	private static void swap(double[] means, double[] weights, int i, int j)
+	{
+		double m = means[i], w = weights[i];
+		means[i] = means[j];
+		weights[i] = weights[j];
+		means[j] = m;
+		weights[j] = w;
+	}
+
+	/**
+	 * Creates a copy of this sketch.
+	 * @return The copy
+	 */
+	/*@ non_null @*/ public QuantileSketch duplicate()
+	{
+		QuantileSketch qs = new QuantileSketch(m_compression);
+		qs.m_means = Arrays.copyOf(m_means, m_numCentroids);
+		qs.m_weights = Arrays.copyOf(m_weights, m_numCentroids);
+		qs.m_numCentroids = m_numCentroids;
+		System.arraycopy(m_bufferMeans, 0, qs.m_bufferMeans, 0, m_bufferCount);
+		System.arraycopy(m_bufferWeights, 0, qs.m_bufferWeights, 0, m_bufferCount);
+		qs.m_bufferCount = m_bufferCount;
+		qs.m_count = m_count;
+		qs.m_min = m_min;
+		qs.m_max = m_max;
+		return qs;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "QuantileSketch (" + m_count + " values)";
+	}
+}
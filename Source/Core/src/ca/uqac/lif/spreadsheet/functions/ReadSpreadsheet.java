@@ -17,10 +17,16 @@
  */
 package ca.uqac.lif.spreadsheet.functions;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
 
+import ca.uqac.lif.dag.LabelledNode;
+import ca.uqac.lif.petitpoucet.AndNode;
 import ca.uqac.lif.petitpoucet.Part;
 import ca.uqac.lif.petitpoucet.PartNode;
 import ca.uqac.lif.petitpoucet.function.AtomicFunction;
@@ -28,14 +34,21 @@ import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
 import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
 import ca.uqac.lif.petitpoucet.function.RelationNodeFactory;
 import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
 
 /**
  * Reads a spreadsheet from a character source, either a {@link Scanner} or a
- * {@link String}.
+ * {@link String}. When the function is set to {@link ProvenanceMode#NONE},
+ * the position of each cell in the input string is not recorded. When it is
+ * set to {@link ProvenanceMode#LAZY} and reads a string, these positions are
+ * computed by reading the string again the first time an explanation is
+ * requested; a scanner can only be read once, and positions are then
+ * recorded right away. The positions kept can also be bounded by a
+ * {@link ProvenanceRetention} policy.
  * @author Sylvain Hallé
  */
-public class ReadSpreadsheet extends AtomicFunction
+public class ReadSpreadsheet extends AtomicFunction implements ProvenanceMode.Configurable, ProvenanceRetention.Retainer, CommonSubexpressions.Configured
 {
 	/**
 	 * The mapping associating cells of the resulting spreadsheet to parts of
@@ -43,6 +56,43 @@ public class ReadSpreadsheet extends AtomicFunction
 	 */
 	/*@ non_null @*/ protected final Map<Cell,Part> m_mapping;
 
+	/**
+	 * The provenance mode of this function, or <tt>null</tt> if the function
+	 * uses the default mode.
+	 */
+	/*@ null @*/ protected ProvenanceMode m_provenance;
+
+	/**
+	 * The provenance mode in effect during the last evaluation of the
+	 * function, or <tt>null</tt> if the function has not been evaluated.
+	 */
+	/*@ null @*/ protected ProvenanceMode m_lineage;
+
+	/**
+	 * The string read during the last evaluation, kept to compute the
+	 * position of each cell when it is first needed. This field is
+	 * <tt>null</tt> when no such computation is pending.
+	 */
+	/*@ null @*/ protected String m_replayString;
+
+	/**
+	 * The retention policy of this function, or <tt>null</tt> if the function
+	 * uses the default policy.
+	 */
+	/*@ null @*/ protected ProvenanceRetention m_retention;
+
+	/**
+	 * A flag indicating that the lineage of the last evaluation has been
+	 * discarded by the retention policy.
+	 */
+	protected boolean m_expired = false;
+
+	/**
+	 * The first row of the last spreadsheet read whose lineage is kept, or 0
+	 * if the lineage of all rows is kept.
+	 */
+	protected int m_windowStart = 0;
+
 	/**
 	 * Creates a new instance of the function.
 	 */
@@ -52,44 +102,189 @@ public class ReadSpreadsheet extends AtomicFunction
 		m_mapping = new HashMap<Cell,Part>();
 	}
 
+	@Override
+	/*@ non_null @*/ public ReadSpreadsheet setProvenance(/*@ null @*/ ProvenanceMode mode)
+	{
+		m_provenance = mode;
+		return this;
+	}
+
+	@Override
+	public ProvenanceMode getProvenance()
+	{
+		if (m_provenance == null)
+		{
+			return ProvenanceMode.getDefault();
+		}
+		return m_provenance;
+	}
+
+	@Override
+	/*@ non_null @*/ public ReadSpreadsheet setRetention(/*@ null @*/ ProvenanceRetention policy)
+	{
+		m_retention = policy;
+		return this;
+	}
+
+	@Override
+	public ProvenanceRetention getRetention()
+	{
+		if (m_retention == null)
+		{
+			return ProvenanceRetention.getDefault();
+		}
+		return m_retention;
+	}
+
+	@Override
+	public synchronized long getLineageSize()
+	{
+		// A map entry, its cell and its part take roughly 150 bytes
+		return 150L * m_mapping.size();
+	}
+
+	@Override
+	public synchronized void expireLineage()
+	{
+		m_mapping.clear();
+		m_replayString = null;
+		m_expired = true;
+	}
+
 	@Override
 	protected Object[] getValue(Object... inputs) throws InvalidNumberOfArgumentsException
 	{
-		if (inputs[0] instanceof Scanner)
+		synchronized (this)
 		{
 			m_mapping.clear();
-			Spreadsheet s = Spreadsheet.read((Scanner) inputs[0], "#", "\\s+", m_mapping);
-			return new Object[] {s};
+		}
+		m_expired = false;
+		ProvenanceRetention policy = getRetention();
+		if (policy != null)
+		{
+			policy.touch(this);
+		}
+		m_lineage = getProvenance();
+		m_replayString = null;
+		// The cells are read into a separate map, so that the mapping of the
+		// function is only locked while its window is copied
+		Map<Cell,Part> mapping = m_lineage == ProvenanceMode.NONE ? null : new HashMap<Cell,Part>();
+		if (m_lineage == ProvenanceMode.LAZY && inputs[0] instanceof String)
+		{
+			m_replayString = (String) inputs[0];
+			mapping = null;
+		}
+		Spreadsheet s;
+		if (inputs[0] instanceof Scanner)
+		{
+			s = Spreadsheet.read((Scanner) inputs[0], "#", "\\s+", mapping);
 		}
 		else if (inputs[0] instanceof String)
 		{
-			m_mapping.clear();
-			Spreadsheet s = Spreadsheet.read(new Scanner((String) inputs[0]), "#", "\\s+", m_mapping);
-			return new Object[] {s};
+			s = Spreadsheet.read(new Scanner((String) inputs[0]), "#", "\\s+", mapping);
+		}
+		else
+		{
+			throw new InvalidArgumentTypeException("Argument is not a scanner or a string");
+		}
+		int window_start = policy == null ? 0 : policy.getWindowStart(s.getHeight());
+		synchronized (this)
+		{
+			m_windowStart = window_start;
+			if (mapping != null)
+			{
+				m_mapping.putAll(mapping);
+				applyWindow();
+			}
+		}
+		if (policy != null)
+		{
+			policy.done(this);
+		}
+		return new Object[] {s};
+	}
+
+	/**
+	 * Removes from the mapping the cells of the rows that lie before the
+	 * window of the retention policy.
+	 */
+	protected void applyWindow()
+	{
+		if (m_windowStart <= 1)
+		{
+			return;
+		}
+		Iterator<Cell> it = m_mapping.keySet().iterator();
+		while (it.hasNext())
+		{
+			int row = it.next().getRow();
+			if (row > 0 && row < m_windowStart)
+			{
+				it.remove();
+			}
 		}
-		throw new InvalidArgumentTypeException("Argument is not a scanner or a string");
 	}
 
 	@Override
-	public PartNode getExplanation(Part d, RelationNodeFactory f)
+	public synchronized PartNode getExplanation(Part d, RelationNodeFactory f)
 	{
 		PartNode root = f.getPartNode(d, this);
-		Cell c = Cell.mentionedCell(d);
-		if (c == null)
+		CellRange range = CellRange.mentionedRange(d);
+		if (range == null)
 		{
 			// No specific cell is asked
 			root.addChild(f.getPartNode(Part.all, "Input string"));
 			return root;
 		}
-		// A specific cell is asked
-		if (!m_mapping.containsKey(c))
+		// The first data row of the range, if any
+		int first_data_row = Math.max(1, range.getFirstRow());
+		if (m_expired || (first_data_row <= range.getLastRow() && first_data_row < m_windowStart))
 		{
-			// No mapping for this cell
+			ProvenanceRetention.addExpiredNode(root, f);
+			return root;
+		}
+		if (m_replayString != null)
+		{
+			Spreadsheet.read(new Scanner(m_replayString), "#", "\\s+", m_mapping);
+			m_replayString = null;
+			applyWindow();
+		}
+		if (m_lineage == ProvenanceMode.NONE)
+		{
+			root.addChild(f.getUnknownNode());
+			return root;
+		}
+		// Each cell of the range is explained by its own part of the string
+		final Set<Part> parts = new LinkedHashSet<Part>();
+		range.forEach(new CellRange.Visitor()
+		{
+			@Override
+			public void visit(int col, int row)
+			{
+				Part p = m_mapping.get(Cell.get(col, row));
+				if (p != null)
+				{
+					parts.add(p);
+				}
+			}
+		});
+		if (parts.isEmpty())
+		{
+			// No mapping for these cells
 			root.addChild(f.getPartNode(Part.nothing, null));
 			return root;
 		}
-		Part p = m_mapping.get(c);
-		root.addChild(f.getPartNode(p, "Input string"));
+		LabelledNode parent = root;
+		if (parts.size() > 1)
+		{
+			AndNode and = f.getAndNode();
+			root.addChild(and);
+			parent = and;
+		}
+		for (Part p : parts)
+		{
+			parent.addChild(f.getPartNode(p, "Input string"));
+		}
 		return root;
 	}
 
@@ -99,14 +294,27 @@ public class ReadSpreadsheet extends AtomicFunction
 		return "Read spreadsheet";
 	}
 	
+	@Override
+	public Object getConfiguration()
+	{
+		// The function has no parameters of its own
+		return Arrays.asList();
+	}
+
 	@Override
 	public ReadSpreadsheet duplicate(boolean with_state)
 	{
 		ReadSpreadsheet rs = new ReadSpreadsheet();
 		copyInto(rs, with_state);
+		rs.m_provenance = m_provenance;
+		rs.m_retention = m_retention;
 		if (with_state)
 		{
+			rs.m_expired = m_expired;
+			rs.m_windowStart = m_windowStart;
 			rs.m_mapping.putAll(m_mapping);
+			rs.m_lineage = m_lineage;
+			rs.m_replayString = m_replayString;
 		}
 		return rs;
 	}
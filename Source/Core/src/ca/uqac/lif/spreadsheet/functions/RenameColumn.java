@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.spreadsheet.functions;
 
+import java.util.Arrays;
+
 import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
 import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
@@ -25,7 +27,7 @@ import ca.uqac.lif.spreadsheet.Spreadsheet;
  * Renames the first cell of a column.
  * @author Sylvain Hallé
  */
-public class RenameColumn extends SpreadsheetFunction
+public class RenameColumn extends SpreadsheetFunction implements CommonSubexpressions.Configured
 {
 	/**
 	 * The original column name.
@@ -68,6 +70,12 @@ public class RenameColumn extends SpreadsheetFunction
 		return "Rename " + m_from + " to " + m_to;
 	}
 	
+	@Override
+	public Object getConfiguration()
+	{
+		return Arrays.asList(m_from, m_to);
+	}
+
 	@Override
 	public RenameColumn duplicate(boolean with_state)
 	{
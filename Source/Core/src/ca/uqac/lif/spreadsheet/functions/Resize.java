@@ -17,6 +17,8 @@
  */
 package ca.uqac.lif.spreadsheet.functions;
 
+import java.util.Arrays;
+
 import ca.uqac.lif.petitpoucet.Part;
 import ca.uqac.lif.petitpoucet.PartNode;
 import ca.uqac.lif.petitpoucet.function.AtomicFunction;
@@ -56,7 +58,7 @@ import ca.uqac.lif.spreadsheet.Spreadsheet;
  * </table>
  * @author Sylvain Hallé
  */
-public class Resize extends AtomicFunction
+public class Resize extends AtomicFunction implements CommonSubexpressions.Configured
 {
 	/**
 	 * The number of rows in the output spreadsheet.
@@ -145,6 +147,12 @@ public class Resize extends AtomicFunction
 		return "Resize " + m_cols + "\u00d7" + m_rows;
 	}
 	
+	@Override
+	public Object getConfiguration()
+	{
+		return Arrays.asList(m_cols, m_rows);
+	}
+
 	@Override
 	public Resize duplicate(boolean with_state)
 	{
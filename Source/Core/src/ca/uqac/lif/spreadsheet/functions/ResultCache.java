@@ -0,0 +1,545 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ca.uqac.lif.petitpoucet.function.AtomicFunction;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * A bounded cache of the results produced by functions, shared by one or
+ * more {@link CachedFunction}s. Each result is indexed by the configuration
+ * of the function that produced it, and by a fingerprint of the contents of
+ * each of its inputs. The cache keeps the results in least recently used
+ * order, and evicts the oldest ones when either its number of entries or
+ * the total number of cells of the spreadsheets it contains exceeds a limit.
+ * <p>
+ * Fingerprints are 64-bit hash values computed from the dimensions and the
+ * contents of a spreadsheet, including the type of each value: two
+ * spreadsheets whose cells hold the same values of the same types have the
+ * same fingerprint, but an {@link Integer} 1 and a {@link Double} 1.0 do
+ * not. Since fingerprints are not compared to the actual inputs, two
+ * different inputs could in principle be mistaken for one another. To rule
+ * out such collisions, each entry can also store a second, independent hash
+ * of the inputs (see {@link #checksum(Object)}); a lookup whose checksums do
+ * not match those of the entry found is then counted as a collision and
+ * treated as a miss.
+ * <p>
+ * The methods of the cache are synchronized, so that functions evaluated on
+ * different threads can share the same instance.
+ *
+ * @author Sylvain Hallé
+ */
+public class ResultCache
+{
+	/**
+	 * The default maximum number of entries of the cache.
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 256;
+
+	/**
+	 * The default maximum number of cells of the spreadsheets in the cache.
+	 */
+	public static final long DEFAULT_MAX_CELLS = 10000000;
+
+	/**
+	 * The entries of the cache, in least recently used order.
+	 */
+	/*@ non_null @*/ protected final LinkedHashMap<Key,Entry> m_entries;
+
+	/**
+	 * The maximum number of entries of the cache.
+	 */
+	protected final int m_maxEntries;
+
+	/**
+	 * The maximum number of cells of the spreadsheets in the cache.
+	 */
+	protected final long m_maxCells;
+
+	/**
+	 * The number of cells of the spreadsheets currently in the cache.
+	 */
+	protected long m_cells = 0;
+
+	/**
+	 * The number of lookups that found a result.
+	 */
+	protected long m_hits = 0;
+
+	/**
+	 * The number of lookups that found no result.
+	 */
+	protected long m_misses = 0;
+
+	/**
+	 * The number of entries removed to make room for new ones.
+	 */
+	protected long m_evictions = 0;
+
+	/**
+	 * The number of lookups whose fingerprints matched an entry but whose
+	 * checksums did not.
+	 */
+	protected long m_collisions = 0;
+
+	/**
+	 * Creates a new cache with the default limits.
+	 */
+	public ResultCache()
+	{
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_CELLS);
+	}
+
+	/**
+	 * Creates a new cache.
+	 * @param max_entries The maximum number of entries of the cache
+	 * @param max_cells The maximum number of cells of the spreadsheets in the
+	 * cache
+	 */
+	public ResultCache(int max_entries, long max_cells)
+	{
+		super();
+		m_maxEntries = max_entries;
+		m_maxCells = max_cells;
+		m_entries = new LinkedHashMap<Key,Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Looks up the result of a function.
+	 * @param config An object standing for the configuration of the function
+	 * @param fingerprints The fingerprints of the inputs of the function
+	 * @return The entry, or <tt>null</tt> if the result is not in the cache
+	 */
+	/*@ null @*/ public Entry get(/*@ non_null @*/ Object config, /*@ non_null @*/ long[] fingerprints)
+	{
+		return get(config, fingerprints, null);
+	}
+
+	/**
+	 * Looks up the result of a function, and checks that the entry found has
+	 * been stored with the same checksums.
+	 * @param config An object standing for the configuration of the function
+	 * @param fingerprints The fingerprints of the inputs of the function
+	 * @param checksums The checksums of the inputs of the function, or
+	 * <tt>null</tt> to accept any entry with the same fingerprints
+	 * @return The entry, or <tt>null</tt> if the result is not in the cache
+	 */
+	/*@ null @*/ public synchronized Entry get(/*@ non_null @*/ Object config, /*@ non_null @*/ long[] fingerprints, /*@ null @*/ long[] checksums)
+	{
+		Entry e = m_entries.get(new Key(config, fingerprints));
+		if (e != null && checksums != null && !Arrays.equals(checksums, e.m_checksums))
+		{
+			m_collisions++;
+			e = null;
+		}
+		if (e == null)
+		{
+			m_misses++;
+		}
+		else
+		{
+			m_hits++;
+		}
+		return e;
+	}
+
+	/**
+	 * Adds the result of a function to the cache. Results larger than the
+	 * limits of the cache are not kept.
+	 * @param config An object standing for the configuration of the function
+	 * @param fingerprints The fingerprints of the inputs of the function
+	 * @param outputs The outputs produced by the function
+	 * @param state A copy of the function holding the provenance information
+	 * of this evaluation
+	 */
+	public void put(/*@ non_null @*/ Object config, /*@ non_null @*/ long[] fingerprints, /*@ non_null @*/ Object[] outputs, /*@ non_null @*/ AtomicFunction state)
+	{
+		put(config, fingerprints, null, outputs, state);
+	}
+
+	/**
+	 * Adds the result of a function to the cache, along with the checksums of
+	 * its inputs. Results larger than the limits of the cache are not kept.
+	 * @param config An object standing for the configuration of the function
+	 * @param fingerprints The fingerprints of the inputs of the function
+	 * @param checksums The checksums of the inputs of the function, or
+	 * <tt>null</tt> if they are not stored
+	 * @param outputs The outputs produced by the function
+	 * @param state A copy of the function holding the provenance information
+	 * of this evaluation
+	 */
+	public synchronized void put(/*@ non_null @*/ Object config, /*@ non_null @*/ long[] fingerprints, /*@ null @*/ long[] checksums, /*@ non_null @*/ Object[] outputs, /*@ non_null @*/ AtomicFunction state)
+	{
+		Entry e = new Entry(outputs, state, checksums);
+		if (e.m_cells > m_maxCells || m_maxEntries < 1)
+		{
+			return;
+		}
+		Entry old = m_entries.put(new Key(config, fingerprints), e);
+		if (old != null)
+		{
+			m_cells -= old.m_cells;
+		}
+		m_cells += e.m_cells;
+		Iterator<Entry> it = m_entries.values().iterator();
+		while (m_entries.size() > m_maxEntries || m_cells > m_maxCells)
+		{
+			Entry oldest = it.next();
+			it.remove();
+			m_cells -= oldest.m_cells;
+			m_evictions++;
+		}
+	}
+
+	/**
+	 * Removes all the entries of the cache. The statistics of the cache are
+	 * kept.
+	 */
+	public synchronized void clear()
+	{
+		m_entries.clear();
+		m_cells = 0;
+	}
+
+	/**
+	 * Gets the number of entries of the cache.
+	 * @return The number of entries
+	 */
+	public synchronized int size()
+	{
+		return m_entries.size();
+	}
+
+	/**
+	 * Gets the number of cells of the spreadsheets in the cache.
+	 * @return The number of cells
+	 */
+	public synchronized long getCellCount()
+	{
+		return m_cells;
+	}
+
+	/**
+	 * Gets the number of lookups that found a result.
+	 * @return The number of hits
+	 */
+	public synchronized long getHits()
+	{
+		return m_hits;
+	}
+
+	/**
+	 * Gets the number of lookups that found no result.
+	 * @return The number of misses
+	 */
+	public synchronized long getMisses()
+	{
+		return m_misses;
+	}
+
+	/**
+	 * Gets the number of entries removed to make room for new ones.
+	 * @return The number of evictions
+	 */
+	public synchronized long getEvictions()
+	{
+		return m_evictions;
+	}
+
+	/**
+	 * Gets the number of lookups whose fingerprints matched an entry of the
+	 * cache but whose checksums did not.
+	 * @return The number of collisions
+	 */
+	public synchronized long getCollisions()
+	{
+		return m_collisions;
+	}
+
+	/**
+	 * Computes the fingerprint of an input of a function. The type of each
+	 * value is part of the fingerprint.
+	 * @param o The input
+	 * @return The fingerprint
+	 */
+	public static long fingerprint(/*@ null @*/ Object o)
+	{
+		return hash(o, false);
+	}
+
+	/**
+	 * Computes the checksum of an input of a function. The checksum is a hash
+	 * computed independently of the fingerprint, so that two inputs having
+	 * the same fingerprint are very unlikely to also have the same checksum.
+	 * @param o The input
+	 * @return The checksum
+	 */
+	public static long checksum(/*@ null @*/ Object o)
+	{
+		return hash(o, true);
+	}
+
+	/**
+	 * Computes a hash of a single value that is consistent with
+	 * {@link Spreadsheet#same(Object, Object)}: numbers with the same value
+	 * have the same hash regardless of their type. Contrary to
+	 * {@link #fingerprint(Object)}, this hash can be used to group values that
+	 * are compared with this method.
+	 * @param o The value
+	 * @return The hash
+	 */
+	public static long sameHash(/*@ null @*/ Object o)
+	{
+		return mix(valueFingerprint(o));
+	}
+
+	/**
+	 * Computes the fingerprint or the checksum of an input of a function.
+	 * @param o The input
+	 * @param check Set to <tt>true</tt> to compute the checksum,
+	 * <tt>false</tt> to compute the fingerprint
+	 * @return The hash
+	 */
+	protected static long hash(/*@ null @*/ Object o, boolean check)
+	{
+		long seed = check ? 0x436865636B73756DL : 0x5370726561647368L;
+		if (o instanceof Spreadsheet)
+		{
+			Spreadsheet s = (Spreadsheet) o;
+			int width = s.getWidth(), height = s.getHeight();
+			long factor = check ? 0x9E3779B97F4A7C15L : 31;
+			long h = mix(seed ^ ((long) width << 32 | height));
+			for (int row = 0; row < height; row++)
+			{
+				for (int col = 0; col < width; col++)
+				{
+					h = mix(h * factor + typedFingerprint(s.get(col, row), check));
+				}
+			}
+			return h;
+		}
+		return mix(seed ^ typedFingerprint(o, check));
+	}
+
+	/**
+	 * Computes the fingerprint of a single value, taking its type into
+	 * account.
+	 * @param o The value
+	 * @param check Set to <tt>true</tt> to compute the value used by a
+	 * checksum, <tt>false</tt> to compute the value used by a fingerprint
+	 * @return The fingerprint
+	 */
+	protected static long typedFingerprint(/*@ null @*/ Object o, boolean check)
+	{
+		if (o == null)
+		{
+			return check ? 0x7F4A7C159E3779B9L : 0x9E3779B97F4A7C15L;
+		}
+		long type = mix(o.getClass().getName().hashCode() + (check ? 0x100000000L : 0));
+		if (o instanceof String && check)
+		{
+			// Polynomial hash of the characters, independent of the FNV-1a hash
+			// used by the fingerprint
+			String s = (String) o;
+			long h = 0x84222325CBF29CE4L;
+			for (int i = 0; i < s.length(); i++)
+			{
+				h = h * 0xC6A4A7935BD1E995L + s.charAt(i) + 1;
+			}
+			return type ^ h;
+		}
+		long v = valueFingerprint(o);
+		return type ^ (check ? mix(v) : v);
+	}
+
+	/**
+	 * Computes the fingerprint of a single value. Numbers with the same value
+	 * have the same fingerprint regardless of their type, in the same way as
+	 * {@link Spreadsheet#same(Object, Object)} considers them equal.
+	 * @param o The value
+	 * @return The fingerprint
+	 */
+	protected static long valueFingerprint(/*@ null @*/ Object o)
+	{
+		if (o == null)
+		{
+			return 0x9E3779B97F4A7C15L;
+		}
+		if (o instanceof Number)
+		{
+			double d = ((Number) o).doubleValue();
+			// Make 0 and -0 equal, as they are for ==
+			return Double.doubleToLongBits(d == 0 ? 0d : d);
+		}
+		if (o instanceof String)
+		{
+			// 64-bit FNV-1a hash of the characters
+			String s = (String) o;
+			long h = 0xCBF29CE484222325L;
+			for (int i = 0; i < s.length(); i++)
+			{
+				h = (h ^ s.charAt(i)) * 0x100000001B3L;
+			}
+			return h;
+		}
+		return mix(o.getClass().hashCode()) ^ o.hashCode();
+	}
+
+	/**
+	 * Scrambles the bits of a 64-bit value.
+	 * @param h The value
+	 * @return The scrambled value
+	 */
+	protected static long mix(long h)
+	{
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * The key associated to a result in the cache.
+	 */
+	protected static class Key
+	{
+		/**
+		 * The object standing for the configuration of the function.
+		 */
+		/*@ non_null @*/ protected final Object m_config;
+
+		/**
+		 * The fingerprints of the inputs.
+		 */
+		/*@ non_null @*/ protected final long[] m_fingerprints;
+
+		/**
+		 * Creates a new key.
+		 * @param config The object standing for the configuration of the
+		 * function
+		 * @param fingerprints The fingerprints of the inputs
+		 */
+		public Key(Object config, long[] fingerprints)
+		{
+			super();
+			m_config = config;
+			m_fingerprints = fingerprints;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return m_config.hashCode() * 31 + Arrays.hashCode(m_fingerprints);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key))
+			{
+				return false;
+			}
+			Key k = (Key) o;
+			return m_config.equals(k.m_config) && Arrays.equals(m_fingerprints, k.m_fingerprints);
+		}
+	}
+
+	/**
+	 * A result kept in the cache.
+	 */
+	public static class Entry
+	{
+		/**
+		 * The outputs produced by the function.
+		 */
+		/*@ non_null @*/ protected final Object[] m_outputs;
+
+		/**
+		 * A copy of the function holding the provenance information of the
+		 * evaluation.
+		 */
+		/*@ non_null @*/ protected final AtomicFunction m_state;
+
+		/**
+		 * The checksums of the inputs of the function, or <tt>null</tt> if they
+		 * have not been stored.
+		 */
+		/*@ null @*/ protected final long[] m_checksums;
+
+		/**
+		 * The number of cells of the spreadsheets among the outputs, counting
+		 * other outputs as a single cell.
+		 */
+		protected final long m_cells;
+
+		/**
+		 * Creates a new entry.
+		 * @param outputs The outputs produced by the function
+		 * @param state A copy of the function holding the provenance
+		 * information of the evaluation
+		 * @param checksums The checksums of the inputs of the function, or
+		 * <tt>null</tt>
+		 */
+		protected Entry(Object[] outputs, AtomicFunction state, long[] checksums)
+		{
+			super();
+			m_outputs = outputs;
+			m_state = state;
+			m_checksums = checksums;
+			long cells = 0;
+			for (Object o : outputs)
+			{
+				if (o instanceof Spreadsheet)
+				{
+					cells += (long) ((Spreadsheet) o).getWidth() * ((Spreadsheet) o).getHeight();
+				}
+				else
+				{
+					cells++;
+				}
+			}
+			m_cells = cells;
+		}
+
+		/**
+		 * Gets the outputs produced by the function.
+		 * @return The outputs
+		 */
+		/*@ pure non_null @*/ public Object[] getOutputs()
+		{
+			return m_outputs;
+		}
+
+		/**
+		 * Gets the copy of the function holding the provenance information of
+		 * the evaluation.
+		 * @return The function
+		 */
+		/*@ pure non_null @*/ public AtomicFunction getState()
+		{
+			return m_state;
+		}
+	}
+}
@@ -29,7 +29,7 @@ import ca.uqac.lif.spreadsheet.Spreadsheet;
  * Sorts the rows of a spreadsheet.
  * @author Sylvain Hallé
  */
-public class Sort extends SpreadsheetFunction
+public class Sort extends SpreadsheetFunction implements CommonSubexpressions.Configured
 {
 	/**
 	 * A flag used to exclude the first row of a spreadsheet from the sort.
@@ -105,36 +105,70 @@ public class Sort extends SpreadsheetFunction
 		}
 		Spreadsheet s = (Spreadsheet) inputs[0];
 		int height = s.getHeight(), width = s.getWidth();
-		List<SortableRow> sorted_rows = new ArrayList<SortableRow>(height);
 		int first_index = (m_excludeFirst ? 1 : 0);
-		for (int i = first_index; i < height; i++)
-		{
-			sorted_rows.add(new SortableRow(i, s.getRow(i)));
-		}
-		Collections.sort(sorted_rows);
+		List<SortableRow> sorted_rows = sortRows(s);
 		Spreadsheet out = new Spreadsheet(width, height);
-		m_mapping = new InputCell[height][width][];
+		int[] permutation = new int[height];
 		if (first_index == 1)
 		{
 			for (int col = 0; col < width; col++)
 			{
 				out.set(col, 0, s.get(col, 0));
-				m_mapping[0][col] = new InputCell[] {InputCell.get(col, 0)};
 			}
 		}
 		for (int i = first_index; i < height; i++)
 		{
 			SortableRow s_row = sorted_rows.get(i - first_index);
-			int original_row_index = s_row.getOriginalIndex();
+			permutation[i] = s_row.getOriginalIndex();
 			Object[] contents = s_row.getContents();
 			for (int col = 0; col < width; col++)
 			{
 				out.set(col, i, contents[col]);
-				m_mapping[i][col] = new InputCell[] {InputCell.get(col, original_row_index)};
 			}
 		}
+		m_mapping = startLineage(inputs) ? new CellMapping.RowPermutation(permutation, width) : null;
+		endLineage();
 		return new Object[] {out};
 	}
+
+	/**
+	 * Computes the mapping of an evaluation whose recording of lineage has
+	 * been deferred. Only the permutation of the rows is computed; the sorted
+	 * spreadsheet is not produced again.
+	 */
+	@Override
+	protected void replay(Object ... inputs)
+	{
+		Spreadsheet s = (Spreadsheet) inputs[0];
+		List<SortableRow> sorted_rows = sortRows(s);
+		int first_index = (m_excludeFirst ? 1 : 0);
+		int[] permutation = new int[s.getHeight()];
+		for (int i = first_index; i < permutation.length; i++)
+		{
+			permutation[i] = sorted_rows.get(i - first_index).getOriginalIndex();
+		}
+		m_mapping = new CellMapping.RowPermutation(permutation, s.getWidth());
+		endLineage();
+	}
+
+	/**
+	 * Sorts the rows of a spreadsheet according to the sort criteria of this
+	 * function.
+	 * @param s The spreadsheet
+	 * @return The rows of the spreadsheet, in sorted order. If the first row
+	 * of the spreadsheet contains headers, it is not included in the list.
+	 */
+	/*@ non_null @*/ protected List<SortableRow> sortRows(/*@ non_null @*/ Spreadsheet s)
+	{
+		int height = s.getHeight();
+		List<SortableRow> sorted_rows = new ArrayList<SortableRow>(height);
+		for (int i = (m_excludeFirst ? 1 : 0); i < height; i++)
+		{
+			sorted_rows.add(new SortableRow(i, s.getRow(i)));
+		}
+		Collections.sort(sorted_rows);
+		return sorted_rows;
+	}
 	
 	@Override
 	public String toString()
@@ -142,6 +176,19 @@ public class Sort extends SpreadsheetFunction
 		return "Sort";
 	}
 	
+	@Override
+	public Object getConfiguration()
+	{
+		List<Object> config = new ArrayList<Object>(2 * m_conditions.size() + 1);
+		config.add(m_excludeFirst);
+		for (SortingCondition sc : m_conditions)
+		{
+			config.add(sc.getColumnIndex());
+			config.add(sc.isAscending());
+		}
+		return config;
+	}
+
 	@Override
 	public Sort duplicate(boolean with_state)
 	{
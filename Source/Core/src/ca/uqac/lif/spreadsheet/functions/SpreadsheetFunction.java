@@ -17,9 +17,13 @@
  */
 package ca.uqac.lif.spreadsheet.functions;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import ca.uqac.lif.dag.LabelledNode;
 import ca.uqac.lif.petitpoucet.AndNode;
@@ -31,17 +35,31 @@ import ca.uqac.lif.petitpoucet.function.NthInput;
 import ca.uqac.lif.petitpoucet.function.NthOutput;
 import ca.uqac.lif.petitpoucet.function.RelationNodeFactory;
 import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
 
 /**
  * A n:1 atomic function that turns a spreadsheet into another one, and for
  * which there exists a one-to-many correspondence between cells of the input
- * and the output. This correspondence is stored in an internal array, which is
- * used to answer provenance queries.
+ * and the output. This correspondence is represented by a {@link CellMapping},
+ * which is used to answer provenance queries.
+ * <p>
+ * When the function is set to {@link ProvenanceMode#NONE}, no mapping is
+ * computed, and explanations on the cells of its output only contain an
+ * unknown node. When it is set to {@link ProvenanceMode#LAZY}, the function
+ * only keeps a reference to its inputs, and computes the mapping the first
+ * time an explanation is requested by calling {@link #replay(Object...)}.
+ * <p>
+ * The lineage kept by the function can also be bounded by a
+ * {@link ProvenanceRetention} policy, in which case explanations on cells
+ * whose lineage has been discarded report it as expired.
+ * <p>
+ * The same mapping answers forward queries: {@link #dependents(int, Cell)}
+ * gives the output cells that depend on an input cell.
  * 
  * @author Sylvain Hallé
  */
-public abstract class SpreadsheetFunction extends AtomicFunction
+public abstract class SpreadsheetFunction extends AtomicFunction implements ProvenanceMode.Configurable, ProvenanceRetention.Retainer, ForwardLineage.Traceable
 {
 	/**
 	 * A flag that determines if the first row of each spreadsheet should be
@@ -51,10 +69,60 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 
 	/**
 	 * A mapping keeping the correspondence between cells of the input
-	 * spreadsheet(s) and cells of the output spreadsheet. This array is used to
-	 * answer provenance queries.
+	 * spreadsheet(s) and cells of the output spreadsheet. This mapping is used
+	 * to answer provenance queries.
 	 */
-	/*@ null @*/ protected InputCell[][][] m_mapping;
+	/*@ null @*/ protected CellMapping m_mapping;
+
+	/**
+	 * The provenance mode of this function, or <tt>null</tt> if the function
+	 * uses the default mode.
+	 */
+	/*@ null @*/ protected ProvenanceMode m_provenance;
+
+	/**
+	 * The provenance mode in effect during the last evaluation of the
+	 * function, or <tt>null</tt> if the function has not been evaluated.
+	 */
+	/*@ null @*/ protected ProvenanceMode m_lineage;
+
+	/**
+	 * The inputs of the last evaluation, kept to compute the mapping when it
+	 * is first needed. This field is <tt>null</tt> when no such computation
+	 * is pending.
+	 */
+	/*@ null @*/ protected Object[] m_replayInputs;
+
+	/**
+	 * A flag indicating that the function is being re-evaluated to compute
+	 * its mapping.
+	 */
+	protected boolean m_replaying = false;
+
+	/**
+	 * The retention policy of this function, or <tt>null</tt> if the function
+	 * uses the default policy.
+	 */
+	/*@ null @*/ protected ProvenanceRetention m_retention;
+
+	/**
+	 * A flag indicating that the lineage of the last evaluation has been
+	 * discarded by the retention policy.
+	 */
+	protected boolean m_expired = false;
+
+	/**
+	 * The number of output rows whose lineage is kept, according to the
+	 * retention policy in effect during the last evaluation, or a
+	 * non-positive value for no limit.
+	 */
+	protected int m_rowWindow = 0;
+
+	/**
+	 * A flag determining if explanations designate contiguous blocks of input
+	 * cells with a single {@link CellRange}, instead of one node per cell.
+	 */
+	protected boolean m_compactRanges = false;
 
 	public SpreadsheetFunction(int in_arity)
 	{
@@ -85,11 +153,220 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 		return excludeFirst(true);
 	}
 
+	/**
+	 * Sets whether explanations designate contiguous blocks of input cells
+	 * with a single {@link CellRange} part. This makes the explanation of an
+	 * output cell depending on a whole column occupy a constant amount of
+	 * memory, at the price of a coarser granularity for the functions
+	 * upstream, which only see the range as a whole.
+	 * @param b Set to {@code true} to use ranges, {@code false} to use one
+	 * node per input cell
+	 * @return This function
+	 */
+	/*@ non_null @*/ public SpreadsheetFunction compactRanges(boolean b)
+	{
+		m_compactRanges = b;
+		return this;
+	}
+
+	@Override
+	/*@ non_null @*/ public SpreadsheetFunction setProvenance(/*@ null @*/ ProvenanceMode mode)
+	{
+		m_provenance = mode;
+		return this;
+	}
+
+	@Override
+	public ProvenanceMode getProvenance()
+	{
+		if (m_provenance == null)
+		{
+			return ProvenanceMode.getDefault();
+		}
+		return m_provenance;
+	}
+
+	@Override
+	/*@ non_null @*/ public SpreadsheetFunction setRetention(/*@ null @*/ ProvenanceRetention policy)
+	{
+		m_retention = policy;
+		return this;
+	}
+
+	@Override
+	public ProvenanceRetention getRetention()
+	{
+		if (m_retention == null)
+		{
+			return ProvenanceRetention.getDefault();
+		}
+		return m_retention;
+	}
+
+	@Override
+	public synchronized long getLineageSize()
+	{
+		return m_mapping == null ? 0 : m_mapping.getSize();
+	}
+
+	@Override
+	public synchronized void expireLineage()
+	{
+		m_mapping = null;
+		m_replayInputs = null;
+		m_expired = true;
+	}
+
+	/**
+	 * Gets the first row of an output spreadsheet whose lineage is kept,
+	 * according to the retention policy in effect during the last evaluation
+	 * of this function.
+	 * @param height The height of the output spreadsheet
+	 * @return The index of the first row outside of the header whose lineage
+	 * is kept, or 0 if the lineage of all rows is kept
+	 */
+	/*@ pure @*/ protected int getWindowStart(int height)
+	{
+		return m_rowWindow <= 0 ? 0 : Math.max(1, height - m_rowWindow);
+	}
+
+	/**
+	 * Starts the recording of lineage for an evaluation of the function.
+	 * Descendants call this method at the beginning of
+	 * {@link #getValue(Object...) getValue()}, and skip the computation of
+	 * their mapping when it returns <tt>false</tt>.
+	 * @param inputs The inputs of the evaluation
+	 * @return <tt>true</tt> if the mapping must be computed during this
+	 * evaluation, <tt>false</tt> otherwise
+	 */
+	protected boolean startLineage(Object ... inputs)
+	{
+		if (m_replaying)
+		{
+			return true;
+		}
+		m_expired = false;
+		ProvenanceRetention policy = getRetention();
+		m_rowWindow = 0;
+		if (policy != null)
+		{
+			policy.touch(this);
+			m_rowWindow = policy.getRowWindow();
+		}
+		m_lineage = getProvenance();
+		m_replayInputs = m_lineage == ProvenanceMode.LAZY ? inputs : null;
+		return m_lineage == ProvenanceMode.FULL;
+	}
+
+	/**
+	 * Ends the recording of lineage for an evaluation of the function.
+	 * Descendants call this method once their mapping has been computed, so
+	 * that the retention policy can account for its size.
+	 */
+	protected void endLineage()
+	{
+		ProvenanceRetention policy = getRetention();
+		if (policy != null)
+		{
+			policy.done(this);
+		}
+	}
+
+	/**
+	 * Determines if the mapping must be computed during the current
+	 * evaluation of the function. The result of this method is only
+	 * meaningful after a call to {@link #startLineage(Object...)}.
+	 * @return <tt>true</tt> if the mapping must be computed, <tt>false</tt>
+	 * otherwise
+	 */
+	/*@ pure @*/ protected boolean tracksProvenance()
+	{
+		return m_replaying || m_lineage == ProvenanceMode.FULL;
+	}
+
+	/**
+	 * Ensures that the lineage of the last evaluation is available, computing
+	 * it if it has been deferred.
+	 * @return <tt>true</tt> if the lineage is available, <tt>false</tt> if
+	 * it has not been recorded or has expired
+	 */
+	protected boolean hasLineage()
+	{
+		if (m_replayInputs != null)
+		{
+			Object[] inputs = m_replayInputs;
+			m_replayInputs = null;
+			m_replaying = true;
+			try
+			{
+				replay(inputs);
+			}
+			finally
+			{
+				m_replaying = false;
+			}
+		}
+		return !m_expired && m_lineage != ProvenanceMode.NONE;
+	}
+
+	/**
+	 * Computes the mapping of an evaluation whose recording of lineage has
+	 * been deferred. By default, this method evaluates the function again on
+	 * the same inputs and discards the result; descendants can override it
+	 * to only perform the part of their computation that determines the
+	 * mapping. Since the function must produce the same mapping as during
+	 * the original evaluation, stateful functions must also override this
+	 * method so that their state is not updated twice.
+	 * @param inputs The inputs of the evaluation
+	 */
+	protected void replay(Object ... inputs)
+	{
+		getValue(inputs);
+	}
+
+	/**
+	 * Produces the explanation of a part of the output when no lineage is
+	 * available for it.
+	 * @param part The part of the output
+	 * @param factory The factory used to obtain nodes
+	 * @return The root of the explanation, whose only child is an unknown
+	 * node, or an expired node if the lineage has been discarded by the
+	 * retention policy
+	 */
+	/*@ non_null @*/ protected PartNode getUnrecordedExplanation(Part part, RelationNodeFactory factory)
+	{
+		if (m_expired)
+		{
+			return getExpiredExplanation(part, factory);
+		}
+		PartNode root = factory.getPartNode(part, this);
+		root.addChild(factory.getUnknownNode());
+		return root;
+	}
+
+	/**
+	 * Produces the explanation of a part of the output whose lineage has been
+	 * discarded by the retention policy.
+	 * @param part The part of the output
+	 * @param factory The factory used to obtain nodes
+	 * @return The root of the explanation, whose only child is a node with
+	 * subject {@link ProvenanceRetention#EXPIRED}
+	 */
+	/*@ non_null @*/ protected PartNode getExpiredExplanation(Part part, RelationNodeFactory factory)
+	{
+		PartNode root = factory.getPartNode(part, this);
+		ProvenanceRetention.addExpiredNode(root, factory);
+		return root;
+	}
+
 	@Override
 	public void reset()
 	{
 		super.reset();
 		m_mapping = null;
+		m_lineage = null;
+		m_replayInputs = null;
+		m_expired = false;
 	}
 
 	@Override
@@ -97,15 +374,27 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 	{
 		int output_nb = NthOutput.mentionedOutput(part);
 		Cell c = Cell.mentionedCell(part);
+		if (output_nb == 0 && c == null && CellRange.mentionedRange(part) != null)
+		{
+			return getRangeExplanation(part, CellRange.mentionedRange(part), factory);
+		}
 		if (output_nb != 0 || c == null)
 		{
 			return super.getExplanation(part, factory);
 		}
-		PartNode root = factory.getPartNode(part, this);
+		if (!hasLineage())
+		{
+			return getUnrecordedExplanation(part, factory);
+		}
 		int row = c.getRow(), col = c.getColumn();
-		if (m_mapping != null && row >= 0 && row < m_mapping.length && col >= 0 && col < m_mapping[0].length)
+		if (m_mapping != null && row > 0 && row < getWindowStart(m_mapping.getHeight()))
 		{
-			InputCell[] new_cells = m_mapping[row][col];
+			return getExpiredExplanation(part, factory);
+		}
+		PartNode root = factory.getPartNode(part, this);
+		if (m_mapping != null)
+		{
+			InputCell[] new_cells = m_mapping.getInputCells(col, row);
 			if (new_cells != null)
 			{
 				LabelledNode and = root;
@@ -125,6 +414,87 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 		return root;
 	}
 
+	/**
+	 * Explains a range of cells of the output. The explanation contains the
+	 * input cells associated to any cell of the range, each of them appearing
+	 * only once.
+	 * @param part The part to explain
+	 * @param range The range of output cells mentioned in this part
+	 * @param factory The factory used to obtain nodes
+	 * @return The root of the explanation
+	 */
+	/*@ non_null @*/ protected PartNode getRangeExplanation(Part part, /*@ non_null @*/ CellRange range, RelationNodeFactory factory)
+	{
+		if (!hasLineage())
+		{
+			return getUnrecordedExplanation(part, factory);
+		}
+		PartNode root = factory.getPartNode(part, this);
+		if (m_mapping == null)
+		{
+			return root;
+		}
+		final Set<InputCell> cells = new LinkedHashSet<InputCell>();
+		final int window_start = getWindowStart(m_mapping.getHeight());
+		final boolean[] expired = new boolean[1];
+		range.forEach(new CellRange.Visitor()
+		{
+			@Override
+			public void visit(int col, int row)
+			{
+				if (row > 0 && row < window_start)
+				{
+					expired[0] = true;
+					return;
+				}
+				InputCell[] new_cells = m_mapping.getInputCells(col, row);
+				if (new_cells != null)
+				{
+					cells.addAll(Arrays.asList(new_cells));
+				}
+			}
+		});
+		if (expired[0])
+		{
+			return getExpiredExplanation(part, factory);
+		}
+		LabelledNode and = root;
+		if (cells.size() > 1)
+		{
+			AndNode an = factory.getAndNode();
+			root.addChild(an);
+			and = an;
+		}
+		for (InputCell new_cell : cells)
+		{
+			and.addChild(factory.getPartNode(new_cell.getPart(), this));
+		}
+		return root;
+	}
+
+	/**
+	 * Adds to a node of an explanation the cells of a column of the first
+	 * input, between two rows. Depending on {@link #compactRanges(boolean)},
+	 * the cells are added as a single range or as one node per cell.
+	 * @param parent The node to which the cells are added
+	 * @param col The column of the cells
+	 * @param row1 The first row (inclusive)
+	 * @param row2 The last row (inclusive)
+	 * @param factory The factory used to obtain nodes
+	 */
+	protected void addInputColumn(/*@ non_null @*/ LabelledNode parent, int col, int row1, int row2, RelationNodeFactory factory)
+	{
+		if (m_compactRanges && row2 > row1)
+		{
+			parent.addChild(factory.getPartNode(ComposedPart.compose(new CellRange(col, row1, col, row2), NthInput.FIRST), this));
+			return;
+		}
+		for (int r = row1; r <= row2; r++)
+		{
+			parent.addChild(factory.getPartNode(InputCell.get(col, r).getPart(), this));
+		}
+	}
+
 	/**
 	 * Gets an array of input cells associated to a given output cell.
 	 * @param col The column of the output cell
@@ -133,11 +503,41 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 	 */
 	public InputCell[] trackToInput(int col, int row)
 	{
-		if (m_mapping == null)
+		InputCell[] cells = null;
+		if (hasLineage() && m_mapping != null)
+		{
+			cells = m_mapping.getInputCells(col, row);
+		}
+		if (cells == null)
 		{
 			return new InputCell[0];
 		}
-		return m_mapping[row][col];
+		return cells;
+	}
+
+	@Override
+	public Cell[] dependents(int index, Cell c)
+	{
+		if (!hasLineage() || m_mapping == null)
+		{
+			return new Cell[0];
+		}
+		Cell[] cells = m_mapping.getOutputCells(index, c.getColumn(), c.getRow());
+		int window_start = getWindowStart(m_mapping.getHeight());
+		if (window_start <= 1)
+		{
+			return cells;
+		}
+		// Leave out the cells whose lineage has been discarded
+		List<Cell> kept = new ArrayList<Cell>(cells.length);
+		for (Cell out : cells)
+		{
+			if (out.getRow() == 0 || out.getRow() >= window_start)
+			{
+				kept.add(out);
+			}
+		}
+		return kept.toArray(new Cell[kept.size()]);
 	}
 	
 	/*@ non_null @*/ protected Row findRow(Object[] row_contents, int row_index, List<Row> new_rows)
@@ -157,31 +557,53 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 	protected Spreadsheet fillSpreadsheet(List<Row> new_rows, List<TrackedCell> new_headers)
 	{
 		Spreadsheet out = new Spreadsheet(new_headers.size(), new_rows.size() + 1);
-		m_mapping = new InputCell[new_rows.size() + 1][new_headers.size()][];
+		CellMapping.Packed mapping = null;
+		int window_start = 0;
+		if (tracksProvenance())
+		{
+			window_start = getWindowStart(new_rows.size() + 1);
+			mapping = new CellMapping.Packed(new_headers.size(), new_rows.size() + 1, window_start);
+		}
 		for (int col = 0; col < new_headers.size(); col++)
 		{
 			out.set(col, 0, new_headers.get(col).getValue());
-			m_mapping[0][col] = new_headers.get(col).getOrigin();
+			if (mapping != null)
+			{
+				mapping.add(col, 0, new_headers.get(col).getOrigin());
+			}
 		}
 		for (int row = 0; row < new_rows.size(); row++)
 		{
 			Row r = new_rows.get(row);
-			for (int col = 0; col < r.m_staticColumns.length; col++)
+			boolean in_window = mapping != null && row + 1 >= window_start;
+			for (int col = 0; col < r.m_staticValues.length; col++)
 			{
-				out.set(col, row + 1, r.m_staticColumns[col].getValue());
-				m_mapping[row + 1][col] = r.m_staticColumns[col].getOrigin();
+				out.set(col, row + 1, r.m_staticValues[col]);
+				if (in_window)
+				{
+					mapping.add(col, row + 1, r.m_staticOrigins[col]);
+				}
 			}
-			for (int col = r.m_staticColumns.length; col < new_headers.size(); col++)
+			for (int col = r.m_staticValues.length; col < new_headers.size(); col++)
 			{
 				Object key = new_headers.get(col).getValue();
-				TrackedCell tc = r.m_otherValues.get(key);
-				if (tc != null)
+				if (r.m_otherValues.containsKey(key))
 				{
-					out.set(col, row + 1, tc.getValue());
-					m_mapping[row + 1][col] = tc.getOrigin();
+					out.set(col, row + 1, r.m_otherValues.get(key));
+					long[] origin = in_window ? r.m_otherOrigins.get(key) : null;
+					if (origin != null)
+					{
+						mapping.add(col, row + 1, origin);
+					}
 				}
 			}
 		}
+		if (mapping != null)
+		{
+			mapping.compact();
+		}
+		m_mapping = mapping;
+		endLineage();
 		return out;
 	}
 	
@@ -189,24 +611,17 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 	{
 		super.copyInto(sf, with_state);
 		sf.m_excludeFirst = m_excludeFirst;
+		sf.m_provenance = m_provenance;
+		sf.m_retention = m_retention;
+		sf.m_compactRanges = m_compactRanges;
 		if (with_state)
 		{
-			InputCell[][][] mapping = new InputCell[m_mapping.length][][];
-			for (int i = 0; i < m_mapping.length; i++)
-			{
-				InputCell[][] ic = new InputCell[m_mapping[i].length][];
-				for (int j = 0; j < m_mapping[i].length; j++)
-				{
-					InputCell[] c = new InputCell[m_mapping[i][j].length];
-					for (int k = 0; k < m_mapping[i][j].length; k++)
-					{
-						c[k] = m_mapping[i][j][k];
-					}
-					ic[j] = c;
-				}
-				mapping[i] = ic;
-			}
-			sf.m_mapping = mapping;
+			sf.m_expired = m_expired;
+			sf.m_rowWindow = m_rowWindow;
+			// Mappings are not modified once computed, and can be shared
+			sf.m_mapping = m_mapping;
+			sf.m_lineage = m_lineage;
+			sf.m_replayInputs = m_replayInputs;
 		}
 	}
 
@@ -221,17 +636,18 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 		/*@ null @*/ protected final Object m_value;
 
 		/**
-		 * The cell of the original spreadsheet this value derives from.
+		 * The cells of the original spreadsheet this value derives from, each
+		 * encoded with {@link InputCell#encode(int, int, int)}.
 		 */
-		/*@ non_null @*/ protected final InputCell[] m_origin;
+		/*@ non_null @*/ protected final long[] m_origin;
 
 		/**
 		 * Creates a new tracked cell.
 		 * @param value The value of the cell
-		 * @param origin The cell of the original spreadsheet this value derives
-		 * from
+		 * @param origin The cells of the original spreadsheet this value derives
+		 * from, each encoded with {@link InputCell#encode(int, int, int)}
 		 */
-		public TrackedCell(/*@ null @*/ Object value, /*@ non_null @*/ InputCell ... origin)
+		public TrackedCell(/*@ null @*/ Object value, /*@ non_null @*/ long ... origin)
 		{
 			super();
 			m_value = value;
@@ -239,10 +655,10 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 		}
 
 		/**
-		 * Gets the cell of the original table this value derives from.
-		 * @return The cell
+		 * Gets the cells of the original table this value derives from.
+		 * @return The encoded cells
 		 */
-		/*@ pure non_null @*/ public InputCell[] getOrigin()
+		/*@ pure non_null @*/ public long[] getOrigin()
 		{
 			return m_origin;
 		}
@@ -300,6 +716,52 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 			return get(col, row, 0);
 		}
 
+		/**
+		 * Encodes the coordinates of an input cell into a single primitive
+		 * value. This makes it possible to store references to input cells
+		 * without creating an object for each of them. The row occupies the 32
+		 * lower bits, the column the next 24 bits, and the input index the 8
+		 * upper bits.
+		 * @param col The column corresponding to the cell
+		 * @param row The row corresponding to the cell
+		 * @param index The index of the input argument this cell points to
+		 * @return The encoded cell
+		 * @throws IllegalArgumentException If the column is not between 0 and
+		 * 2<sup>24</sup>-1, or the index is not between 0 and 255
+		 * @see #decode(long)
+		 */
+		public static long encode(int col, int row, int index)
+		{
+			if ((col & ~0xFFFFFF) != 0 || (index & ~0xFF) != 0)
+			{
+				throw new IllegalArgumentException("Cannot encode column " + col + " of input " + index);
+			}
+			return ((long) index << 56) | ((long) (col & 0xFFFFFF) << 32) | (row & 0xFFFFFFFFL);
+		}
+
+		/**
+		 * Encodes the coordinates of a cell of the input at index 0 into a
+		 * single primitive value.
+		 * @param col The column corresponding to the cell
+		 * @param row The row corresponding to the cell
+		 * @return The encoded cell
+		 */
+		public static long encode(int col, int row)
+		{
+			return encode(col, row, 0);
+		}
+
+		/**
+		 * Creates an input cell out of the value produced by
+		 * {@link #encode(int, int, int)}.
+		 * @param code The encoded cell
+		 * @return The input cell
+		 */
+		/*@ non_null @*/ public static InputCell decode(long code)
+		{
+			return new InputCell((int) ((code >>> 32) & 0xFFFFFF), (int) code, (int) (code >>> 56));
+		}
+
 		/**
 		 * Creates a new input cell.
 		 * @param col The column corresponding to the cell
@@ -345,39 +807,82 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 		}
 	}
 
+	/**
+	 * A row of an output spreadsheet under construction. The row has static
+	 * columns, whose values are copied from a row of the input, and other
+	 * columns, whose values are associated to a key. The input cells each
+	 * value derives from are only stored when the function records its
+	 * lineage, so that an evaluation without lineage creates no object per
+	 * cell.
+	 */
 	protected class Row
 	{
-		/*@ non_null @*/ protected TrackedCell[] m_staticColumns;
+		/**
+		 * The values of the static columns.
+		 */
+		/*@ non_null @*/ protected Object[] m_staticValues;
 
-		/*@ non_null @*/ protected Map<Object,TrackedCell> m_otherValues;
+		/**
+		 * The input cell each static column derives from, encoded with
+		 * {@link InputCell#encode(int, int, int)}, or <tt>null</tt> if lineage
+		 * is not recorded.
+		 */
+		/*@ null @*/ protected long[] m_staticOrigins;
+
+		/**
+		 * The values of the other columns, associated to their key.
+		 */
+		/*@ non_null @*/ protected Map<Object,Object> m_otherValues;
+
+		/**
+		 * The input cells the value of each other column derives from, or
+		 * <tt>null</tt> if lineage is not recorded.
+		 */
+		/*@ null @*/ protected Map<Object,long[]> m_otherOrigins;
 		
 		protected Row()
 		{
 			super();
+			m_otherValues = new HashMap<Object,Object>();
+			m_otherOrigins = tracksProvenance() ? new HashMap<Object,long[]>() : null;
 		}
 		
 		public Row(/*@ non_null @*/ Object[] row, int row_index)
 		{
-			super();
-			m_staticColumns = new TrackedCell[row.length - 2];
-			int index = 0;
-			for (int i = 0; i < m_staticColumns.length; i++)
+			this();
+			m_staticValues = Arrays.copyOf(row, row.length - 2);
+			if (tracksProvenance())
 			{
-				m_staticColumns[index++] = new TrackedCell(row[i], InputCell.get(i, row_index));
+				m_staticOrigins = new long[m_staticValues.length];
+				for (int i = 0; i < m_staticOrigins.length; i++)
+				{
+					m_staticOrigins[i] = InputCell.encode(i, row_index);
+				}
 			}
-			m_otherValues = new HashMap<Object,TrackedCell>();
 		}
 
-		public void add(Object key, TrackedCell value)
+		/**
+		 * Sets the value of a column other than the static columns.
+		 * @param key The key of the column
+		 * @param value The value
+		 * @param origin The input cells the value derives from, each encoded
+		 * with {@link InputCell#encode(int, int, int)}, or <tt>null</tt> if
+		 * lineage is not recorded
+		 */
+		public void add(Object key, /*@ null @*/ Object value, /*@ null @*/ long[] origin)
 		{
 			m_otherValues.put(key, value);
+			if (m_otherOrigins != null && origin != null)
+			{
+				m_otherOrigins.put(key, origin);
+			}
 		}
 
 		@Override
 		public int hashCode()
 		{
 			int c = 0;
-			for (Object o : m_staticColumns)
+			for (Object o : m_staticValues)
 			{
 				if (o != null)
 				{
@@ -389,16 +894,14 @@ public abstract class SpreadsheetFunction extends AtomicFunction
 
 		public boolean matches(Object[] row)
 		{
-			int index = 0;
-			for (int i = 0; i < m_staticColumns.length; i++)
+			for (int i = 0; i < m_staticValues.length; i++)
 			{
-				Object tv = m_staticColumns[index].getValue();
+				Object tv = m_staticValues[i];
 				if (((tv == null) != (row[i] == null)) ||
 						(tv != null && !tv.equals(row[i])))
 				{
 					return false;
 				}
-				index++;
 			}
 			return true;
 		}		
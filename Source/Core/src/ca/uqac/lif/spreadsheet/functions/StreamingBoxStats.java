@@ -0,0 +1,269 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
+import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Computes box-and-whiskers statistics from each column of a stream of
+ * tables, using a bounded amount of memory. Contrary to {@link BoxStats},
+ * which needs the whole contents of each column at once, this function is
+ * stateful: each call to {@link #evaluate(Object...) evaluate} receives a
+ * new chunk of rows, whose values are added to one {@link QuantileSketch}
+ * per column, and outputs the statistics of all the rows seen so far.
+ * As in {@link BoxStats}, the first row of each chunk is expected to contain
+ * the column headers.
+ * <p>
+ * The output has the same 7-column layout as the one produced by
+ * {@link BoxStats} (line counter, Min, Q1, Q2, Q3, Max and label), and can
+ * therefore be passed directly to a
+ * {@link ca.uqac.lif.spreadsheet.chart.BoxPlot BoxPlot}. The minimum and the
+ * maximum of each column are exact; the quartiles are estimates whose
+ * accuracy depends on the compression of the underlying sketches.
+ * <p>
+ * Instances built on different threads or from different files can be
+ * combined with {@link #merge(StreamingBoxStats)}. Since the individual
+ * values are not kept, the quartiles cannot be tracked to a specific input
+ * cell; only the labels of the output are explained by the header of the
+ * last chunk received.
+ *
+ * @author Sylvain Hallé
+ */
+public class StreamingBoxStats extends SpreadsheetFunction
+{
+	/**
+	 * The compression given to the sketch of each column.
+	 */
+	protected final double m_compression;
+
+	/**
+	 * The sketches summarizing the values of each column.
+	 */
+	/*@ non_null @*/ protected List<QuantileSketch> m_sketches;
+
+	/**
+	 * The labels of each column, taken from the first row of the chunks.
+	 */
+	/*@ non_null @*/ protected List<Object> m_labels;
+
+	/**
+	 * The captions of the columns of the output spreadsheet, in the same
+	 * order as in {@link BoxStats}.
+	 */
+	/*@ non_null @*/ protected final String[] m_captions;
+
+	/**
+	 * Creates a new streaming box stats function with the default
+	 * compression.
+	 */
+	public StreamingBoxStats()
+	{
+		this(QuantileSketch.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * Creates a new streaming box stats function.
+	 * @param compression The compression of the sketch of each column. Higher
+	 * values produce more accurate quartiles at the price of more memory.
+	 */
+	public StreamingBoxStats(double compression)
+	{
+		this(compression, "x", "Min", "Q1", "Q2", "Q3", "Max", "Label");
+	}
+
+	/**
+	 * Creates a new streaming box stats function.
+	 * @param compression The compression of the sketch of each column
+	 * @param x The caption of the line counter column
+	 * @param min The caption of the minimum column
+	 * @param q1 The caption of the first quartile column
+	 * @param q2 The caption of the second quartile column
+	 * @param q3 The caption of the third quartile column
+	 * @param max The caption of the maximum column
+	 * @param label The caption of the label column
+	 */
+	public StreamingBoxStats(double compression, String x, String min, String q1, String q2, String q3, String max, String label)
+	{
+		super(1);
+		m_compression = compression;
+		m_captions = new String[] {x, min, q1, q2, q3, max, label};
+		m_sketches = new ArrayList<QuantileSketch>();
+		m_labels = new ArrayList<Object>();
+	}
+
+	@Override
+	protected Object[] getValue(Object ... inputs) throws InvalidNumberOfArgumentsException
+	{
+		if (!(inputs[0] instanceof Spreadsheet))
+		{
+			throw new InvalidArgumentTypeException("Argument is not a spreadsheet");
+		}
+		Spreadsheet chunk = (Spreadsheet) inputs[0];
+		startLineage(inputs);
+		// The mapping is small enough to be computed right away, even when
+		// its computation could be deferred
+		m_replayInputs = null;
+		add(chunk);
+		m_mapping = m_lineage == ProvenanceMode.NONE ? null : getMapping(chunk.getWidth());
+		endLineage();
+		return new Object[] {getStatistics()};
+	}
+
+	/**
+	 * Computes the mapping between the cells of the output and the header of
+	 * the last chunk received. Only the labels of the output are associated
+	 * to input cells.
+	 * @param width The width of the last chunk
+	 * @return The mapping
+	 */
+	/*@ non_null @*/ protected CellMapping getMapping(int width)
+	{
+		CellMapping.Explicit mapping = new CellMapping.Explicit(7, m_sketches.size() + 1);
+		for (int col = 0; col < width; col++)
+		{
+			mapping.set(6, col + 1, InputCell.get(col, 0));
+		}
+		return mapping;
+	}
+
+	/**
+	 * Adds the values of a chunk of rows to the sketches of this function,
+	 * without producing an output.
+	 * @param chunk The chunk, whose first row contains the column headers
+	 */
+	public void add(/*@ non_null @*/ Spreadsheet chunk)
+	{
+		int width = chunk.getWidth(), height = chunk.getHeight();
+		for (int col = 0; col < width; col++)
+		{
+			getSketch(col);
+			if (height > 0)
+			{
+				m_labels.set(col, chunk.get(col, 0));
+			}
+		}
+		for (int row = 1; row < height; row++) // 1 since first line is col name
+		{
+			for (int col = 0; col < width; col++)
+			{
+				Object o = chunk.get(col, row);
+				if (o instanceof Number)
+				{
+					m_sketches.get(col).add(((Number) o).doubleValue());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the contents of another streaming box stats function to this one.
+	 * The sketch of each column of the other function is merged into the
+	 * sketch of the same column of this function.
+	 * @param other The other function, which is left unchanged
+	 */
+	public void merge(/*@ non_null @*/ StreamingBoxStats other)
+	{
+		for (int col = 0; col < other.m_sketches.size(); col++)
+		{
+			getSketch(col).merge(other.m_sketches.get(col));
+			if (m_labels.get(col) == null)
+			{
+				m_labels.set(col, other.m_labels.get(col));
+			}
+		}
+	}
+
+	/**
+	 * Gets the sketch summarizing the values of a column, creating it if it
+	 * does not exist.
+	 * @param col The index of the column
+	 * @return The sketch
+	 */
+	/*@ non_null @*/ public QuantileSketch getSketch(int col)
+	{
+		while (m_sketches.size() <= col)
+		{
+			m_sketches.add(new QuantileSketch(m_compression));
+			m_labels.add(null);
+		}
+		return m_sketches.get(col);
+	}
+
+	/**
+	 * Produces the table of statistics for the values seen so far.
+	 * @return The table
+	 */
+	/*@ non_null @*/ public Spreadsheet getStatistics()
+	{
+		Spreadsheet new_table = new Spreadsheet(7, m_sketches.size() + 1);
+		for (int i = 0; i < m_captions.length; i++)
+		{
+			new_table.set(i, 0, m_captions[i]);
+		}
+		for (int col = 0; col < m_sketches.size(); col++)
+		{
+			QuantileSketch qs = m_sketches.get(col);
+			new_table.set(0, col + 1, col);
+			if (qs.getCount() > 0)
+			{
+				new_table.set(1, col + 1, qs.getMin());
+				new_table.set(2, col + 1, qs.quantile(0.25));
+				new_table.set(3, col + 1, qs.quantile(0.5));
+				new_table.set(4, col + 1, qs.quantile(0.75));
+				new_table.set(5, col + 1, qs.getMax());
+			}
+			new_table.set(6, col + 1, m_labels.get(col));
+		}
+		return new_table;
+	}
+
+	@Override
+	public void reset()
+	{
+		super.reset();
+		m_sketches.clear();
+		m_labels.clear();
+	}
+
+	@Override
+	public StreamingBoxStats duplicate(boolean with_state)
+	{
+		StreamingBoxStats o = new StreamingBoxStats(m_compression, m_captions[0], m_captions[1], m_captions[2], m_captions[3], m_captions[4], m_captions[5], m_captions[6]);
+		super.copyInto(o, with_state);
+		if (with_state)
+		{
+			for (QuantileSketch qs : m_sketches)
+			{
+				o.m_sketches.add(qs.duplicate());
+			}
+			o.m_labels.addAll(m_labels);
+		}
+		return o;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Streaming box stats";
+	}
+}
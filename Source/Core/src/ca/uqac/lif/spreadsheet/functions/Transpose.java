@@ -17,21 +17,51 @@
  */
 package ca.uqac.lif.spreadsheet.functions;
 
+import java.util.Arrays;
+
 import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
 import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
 
 /**
- * Transposes a spreadsheet.
+ * Transposes a spreadsheet. By default, the function produces a new
+ * spreadsheet, whose cells are copied from the input by square blocks (see
+ * {@link Spreadsheet#transpose()}). When the output is only meant to be read,
+ * as is the case for a chart, the function can instead be asked to produce a
+ * {@link ca.uqac.lif.spreadsheet.TransposedView TransposedView} of its input,
+ * which copies no cell at all (see {@link #view(boolean)}).
+ * <p>
+ * In both cases, the lineage of the output is not stored cell by cell: the
+ * input cell corresponding to an output cell is obtained by swapping its
+ * coordinates.
  * @author Sylvain Hallé
  */
-public class Transpose extends SpreadsheetFunction
+public class Transpose extends SpreadsheetFunction implements CommonSubexpressions.Configured
 {
+	/**
+	 * A flag indicating whether the function outputs a view of its input
+	 * rather than a copy.
+	 */
+	protected boolean m_view = false;
+
 	public Transpose()
 	{
 		super(1);
 	}
 
+	/**
+	 * Sets whether the function outputs a read-only view of its input rather
+	 * than a copy.
+	 * @param b Set to {@code true} to output a view, {@code false} to output
+	 * a copy
+	 * @return This function
+	 */
+	/*@ non_null @*/ public Transpose view(boolean b)
+	{
+		m_view = b;
+		return this;
+	}
+
 	@Override
 	protected Object[] getValue(Object... inputs) throws InvalidNumberOfArgumentsException
 	{
@@ -40,16 +70,9 @@ public class Transpose extends SpreadsheetFunction
 			throw new InvalidArgumentTypeException("Argument is not a spreadsheet");
 		}
 		Spreadsheet s = (Spreadsheet) inputs[0];
-		Spreadsheet out = new Spreadsheet(s.getHeight(), s.getWidth());
-		m_mapping = new InputCell[s.getWidth()][s.getHeight()][];
-		for (int row = 0; row < s.getHeight(); row++)
-		{
-			for (int col = 0; col < s.getWidth(); col++)
-			{
-				out.set(row, col, s.get(col, row));
-				m_mapping[col][row] = new InputCell[] {InputCell.get(col, row)};
-			}
-		}
+		Spreadsheet out = m_view ? s.transposedView() : s.transpose();
+		m_mapping = startLineage(inputs) ? new CellMapping.Transposition(s.getHeight(), s.getWidth()) : null;
+		endLineage();
 		return new Object[] {out};
 	}
 	
@@ -59,11 +82,18 @@ public class Transpose extends SpreadsheetFunction
 		return "^T";
 	}
 	
+	@Override
+	public Object getConfiguration()
+	{
+		return Arrays.asList(m_view);
+	}
+
 	@Override
 	public Transpose duplicate(boolean with_state)
 	{
 		Transpose t = new Transpose();
 		copyInto(t, with_state);
+		t.m_view = m_view;
 		return t;
 	}
 }
@@ -152,14 +152,12 @@ public class Union extends SpreadsheetFunction
 			total_height++; // To account for the extra header row
 		}
 		Spreadsheet out = new Spreadsheet(max_width, total_height);
-		m_mapping = new InputCell[total_height][max_width][];
 		int current_row = 0;
 		if (m_excludeFirst)
 		{
 			for (int col = 0; col < max_width; col++)
 			{
 				out.set(col, 0, s_inputs[m_labelInput].get(col, 0));
-				m_mapping[0][col] = new InputCell[] {InputCell.get(col, 0, m_labelInput)};
 			}
 			current_row = 1;
 		}
@@ -170,11 +168,16 @@ public class Union extends SpreadsheetFunction
 				for (int col = 0; col < m_widths[i]; col++)
 				{
 					out.set(col, current_row, s_inputs[i].get(col, row));
-					m_mapping[current_row][col] = new InputCell[] {InputCell.get(col, row, i)};
 				}
 				current_row++;
 			}
 		}
+		m_mapping = null;
+		if (startLineage(inputs))
+		{
+			m_mapping = new CellMapping.RowOffsets(Arrays.copyOf(m_heights, m_heights.length), Arrays.copyOf(m_widths, m_widths.length), m_excludeFirst, m_labelInput);
+		}
+		endLineage();
 		return new Object[] {out};
 	}
 	
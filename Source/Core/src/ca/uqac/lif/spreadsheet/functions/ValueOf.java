@@ -62,6 +62,15 @@ public class ValueOf extends AtomicFunction
 		this(Cell.get(col, row));
 	}
 
+	/**
+	 * Gets the cell this function gets the value of.
+	 * @return The cell
+	 */
+	/*@ pure non_null @*/ public Cell getCell()
+	{
+		return m_cell;
+	}
+
 	@Override
 	protected Object[] getValue(Object ... args) throws InvalidNumberOfArgumentsException
 	{
@@ -0,0 +1,525 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import ca.uqac.lif.petitpoucet.function.FunctionException;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * A set of named sheets, whose values may be computed from other sheets.
+ * Each sheet is made of a spreadsheet of data and, optionally, of an
+ * {@link ApplyFormula} filling some of its cells. The first input of this
+ * function is the data of the sheet; its other inputs are the computed
+ * values of other sheets of the workbook, given by name when the sheet is
+ * added. A formula reads another sheet by associating one of its arguments
+ * to the corresponding input index with
+ * {@link CellFormula#associate(int, int)}.
+ * <p>
+ * The workbook keeps the computed value of each sheet. When the data of a
+ * sheet is modified, only this sheet and the sheets that depend on it are
+ * computed again, the next time a value is requested:
+ * <ul>
+ * <li>if the data of a sheet is replaced as a whole with
+ * {@link #set(String, Spreadsheet)}, the sheet and all the sheets that depend
+ * on it are computed from scratch;</li>
+ * <li>if individual cells are modified with
+ * {@link #set(String, int, int, Object)}, each sheet is updated with
+ * {@link ApplyFormula#updateInPlace(Spreadsheet, int, java.util.Collection, Object...)
+ * ApplyFormula.updateInPlace()}, which only evaluates the formulas that read
+ * a modified cell (directly or not). The cells whose value actually changes
+ * are then passed to the sheets that depend on it, which are left untouched
+ * if none of the cells they read has changed.</li>
+ * </ul>
+ * The workbook keeps its own copy of the data of each sheet, made when the
+ * data is given to {@link #add(String, Spreadsheet, ApplyFormula, String...)
+ * add()} or {@link #set(String, Spreadsheet)}; the spreadsheets passed by the
+ * caller are never modified. Modifications of individual cells are then
+ * applied in place, both to this copy and to the values of the sheets, so
+ * that no sheet is copied as a whole when a cell changes. The spreadsheet
+ * returned by {@link #get(String)} is therefore the value of the sheet
+ * itself, which changes along with the workbook; it must be duplicated by a
+ * caller who needs to keep it.
+ * Sheets are computed by levels, where each sheet only depends on sheets of
+ * the previous levels. With {@link #setThreads(int)}, the sheets of a level
+ * are computed concurrently.
+ *
+ * @author Sylvain Hallé
+ */
+public class Workbook
+{
+	/**
+	 * The sheets of the workbook, indexed by name.
+	 */
+	/*@ non_null @*/ protected final Map<String,Sheet> m_sheets;
+
+	/**
+	 * The sheets of the workbook, grouped by level, or <tt>null</tt> if the
+	 * levels must be computed again.
+	 */
+	/*@ null @*/ protected List<List<Sheet>> m_levels;
+
+	/**
+	 * The maximum number of sheets computed at the same time.
+	 */
+	protected int m_numThreads = 1;
+
+	/**
+	 * Creates a new empty workbook.
+	 */
+	public Workbook()
+	{
+		super();
+		m_sheets = new LinkedHashMap<String,Sheet>();
+	}
+
+	/**
+	 * Sets the maximum number of sheets computed at the same time.
+	 * @param num_threads The number of threads
+	 * @return This workbook
+	 */
+	/*@ non_null @*/ public Workbook setThreads(int num_threads)
+	{
+		m_numThreads = Math.max(1, num_threads);
+		return this;
+	}
+
+	/**
+	 * Adds a sheet containing only data, or replaces the sheet with the same
+	 * name.
+	 * @param name The name of the sheet
+	 * @param data The data of the sheet
+	 * @return This workbook
+	 */
+	/*@ non_null @*/ public Workbook add(/*@ non_null @*/ String name, /*@ non_null @*/ Spreadsheet data)
+	{
+		return add(name, data, null);
+	}
+
+	/**
+	 * Adds a sheet, or replaces the sheet with the same name.
+	 * @param name The name of the sheet
+	 * @param data The data of the sheet
+	 * @param formulas The formulas filling cells of the sheet, or
+	 * <tt>null</tt> if the sheet only contains data
+	 * @param sources The names of the sheets whose values are passed to the
+	 * formulas, in the order of their input index starting at 1
+	 * @return This workbook
+	 * @throws FunctionException If the input arity of the formulas does not
+	 * match the number of sheets they receive
+	 */
+	/*@ non_null @*/ public Workbook add(/*@ non_null @*/ String name, /*@ non_null @*/ Spreadsheet data, /*@ null @*/ ApplyFormula formulas, /*@ non_null @*/ String ... sources)
+	{
+		if (formulas != null && formulas.getInputArity() != sources.length + 1)
+		{
+			throw new FunctionException("Formulas of sheet " + name + " expect " + (formulas.getInputArity() - 1) + " source sheets");
+		}
+		if (formulas == null && sources.length > 0)
+		{
+			throw new FunctionException("A sheet without formulas cannot have source sheets");
+		}
+		Sheet old = m_sheets.get(name);
+		m_sheets.put(name, new Sheet(name, data.duplicate(), formulas, sources));
+		m_levels = null;
+		if (old != null)
+		{
+			for (Sheet s : m_sheets.values())
+			{
+				s.m_stale = true;
+			}
+		}
+		return this;
+	}
+
+	/**
+	 * Gets the names of the sheets of the workbook.
+	 * @return The names, in the order the sheets were added
+	 */
+	/*@ non_null @*/ public Set<String> getNames()
+	{
+		return m_sheets.keySet();
+	}
+
+	/**
+	 * Gets the value of a sheet, computing it (and the sheets it depends on)
+	 * if necessary.
+	 * @param name The name of the sheet
+	 * @return The value of the sheet
+	 * @throws FunctionException If no sheet has this name, or if sheets have
+	 * circular dependencies
+	 */
+	/*@ non_null @*/ public Spreadsheet get(/*@ non_null @*/ String name)
+	{
+		Sheet s = getSheet(name);
+		recalculate();
+		return s.m_value;
+	}
+
+	/**
+	 * Replaces the data of a sheet. The workbook keeps a copy of the data.
+	 * @param name The name of the sheet
+	 * @param data The new data
+	 * @return This workbook
+	 */
+	/*@ non_null @*/ public Workbook set(/*@ non_null @*/ String name, /*@ non_null @*/ Spreadsheet data)
+	{
+		Sheet s = getSheet(name);
+		s.m_data = data.duplicate();
+		s.m_stale = true;
+		return this;
+	}
+
+	/**
+	 * Modifies a cell of the data of a sheet.
+	 * @param name The name of the sheet
+	 * @param col The column of the cell
+	 * @param row The row of the cell
+	 * @param value The new value of the cell
+	 * @return This workbook
+	 */
+	/*@ non_null @*/ public Workbook set(/*@ non_null @*/ String name, int col, int row, /*@ null @*/ Object value)
+	{
+		Sheet s = getSheet(name);
+		if (Spreadsheet.same(s.m_data.get(col, row), value))
+		{
+			return this;
+		}
+		s.m_data.set(col, row, value);
+		s.getChanged(0).add(Cell.get(col, row));
+		return this;
+	}
+
+	/**
+	 * Computes the value of all the sheets that have been affected by a
+	 * modification since the last computation.
+	 * @throws FunctionException If sheets have circular dependencies, or if
+	 * a formula cannot be evaluated
+	 */
+	public void recalculate()
+	{
+		for (List<Sheet> level : getLevels())
+		{
+			final List<Sheet> to_compute = new ArrayList<Sheet>();
+			for (Sheet s : level)
+			{
+				if (s.m_value == null || s.m_stale || !s.m_changed.isEmpty())
+				{
+					to_compute.add(s);
+				}
+			}
+			if (to_compute.isEmpty())
+			{
+				continue;
+			}
+			final List<Set<Cell>> modified = new ArrayList<Set<Cell>>(to_compute.size());
+			for (int i = 0; i < to_compute.size(); i++)
+			{
+				modified.add(null);
+			}
+			ParallelSlices.run(Math.min(m_numThreads, to_compute.size()), to_compute.size(), new ParallelSlices.SliceTask()
+			{
+				@Override
+				public void run(int slice, int from, int to)
+				{
+					for (int i = from; i < to; i++)
+					{
+						modified.set(i, to_compute.get(i).compute());
+					}
+				}
+			});
+			// Pass the modifications to the sheets that depend on the computed ones
+			for (int i = 0; i < to_compute.size(); i++)
+			{
+				Sheet s = to_compute.get(i);
+				Set<Cell> cells = modified.get(i);
+				for (Sheet d : s.m_dependents)
+				{
+					for (int index = 0; index < d.m_sources.length; index++)
+					{
+						if (d.m_sources[index] != s)
+						{
+							continue;
+						}
+						if (cells == null)
+						{
+							d.m_stale = true;
+						}
+						else if (!cells.isEmpty())
+						{
+							d.getChanged(index + 1).addAll(cells);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets a sheet by its name.
+	 * @param name The name
+	 * @return The sheet
+	 * @throws FunctionException If no sheet has this name
+	 */
+	/*@ non_null @*/ protected Sheet getSheet(String name)
+	{
+		Sheet s = m_sheets.get(name);
+		if (s == null)
+		{
+			throw new FunctionException("No sheet named " + name);
+		}
+		return s;
+	}
+
+	/**
+	 * Gets the sheets grouped by level, computing the levels if necessary.
+	 * Sheets of level 0 do not depend on any other sheet; the other sheets
+	 * are one level above the highest level of the sheets they depend on.
+	 * @return The list of levels
+	 * @throws FunctionException If a sheet refers to an unknown sheet, or if
+	 * sheets have circular dependencies
+	 */
+	/*@ non_null @*/ protected List<List<Sheet>> getLevels()
+	{
+		if (m_levels != null)
+		{
+			return m_levels;
+		}
+		Map<Sheet,Integer> in_degree = new HashMap<Sheet,Integer>();
+		for (Sheet s : m_sheets.values())
+		{
+			s.m_dependents.clear();
+		}
+		for (Sheet s : m_sheets.values())
+		{
+			s.m_sources = new Sheet[s.m_sourceNames.length];
+			Set<Sheet> distinct = new HashSet<Sheet>();
+			for (int i = 0; i < s.m_sourceNames.length; i++)
+			{
+				s.m_sources[i] = getSheet(s.m_sourceNames[i]);
+				if (distinct.add(s.m_sources[i]))
+				{
+					s.m_sources[i].m_dependents.add(s);
+				}
+			}
+			in_degree.put(s, distinct.size());
+		}
+		List<List<Sheet>> levels = new ArrayList<List<Sheet>>();
+		List<Sheet> current = new ArrayList<Sheet>();
+		for (Sheet s : m_sheets.values())
+		{
+			if (in_degree.get(s) == 0)
+			{
+				current.add(s);
+			}
+		}
+		int count = 0;
+		while (!current.isEmpty())
+		{
+			levels.add(current);
+			count += current.size();
+			List<Sheet> next = new ArrayList<Sheet>();
+			for (Sheet s : current)
+			{
+				for (Sheet d : s.m_dependents)
+				{
+					int deg = in_degree.get(d) - 1;
+					in_degree.put(d, deg);
+					if (deg == 0)
+					{
+						next.add(d);
+					}
+				}
+			}
+			current = next;
+		}
+		if (count < m_sheets.size())
+		{
+			throw new FunctionException("Circular dependency between sheets");
+		}
+		m_levels = levels;
+		return levels;
+	}
+
+	/**
+	 * A sheet of the workbook, with its data, its formulas and its computed
+	 * value.
+	 */
+	protected static class Sheet
+	{
+		/**
+		 * The name of the sheet.
+		 */
+		/*@ non_null @*/ protected final String m_name;
+
+		/**
+		 * The data of the sheet.
+		 */
+		/*@ non_null @*/ protected Spreadsheet m_data;
+
+		/**
+		 * The formulas filling cells of the sheet, if any.
+		 */
+		/*@ null @*/ protected final ApplyFormula m_formulas;
+
+		/**
+		 * The names of the sheets passed to the formulas.
+		 */
+		/*@ non_null @*/ protected final String[] m_sourceNames;
+
+		/**
+		 * The sheets passed to the formulas, resolved from their names when the
+		 * levels of the workbook are computed.
+		 */
+		/*@ non_null @*/ protected Sheet[] m_sources;
+
+		/**
+		 * The sheets that receive the value of this sheet.
+		 */
+		/*@ non_null @*/ protected final List<Sheet> m_dependents;
+
+		/**
+		 * The computed value of the sheet, or <tt>null</tt> if it has not been
+		 * computed yet.
+		 */
+		/*@ null @*/ protected Spreadsheet m_value;
+
+		/**
+		 * Whether the value of the sheet must be computed from scratch.
+		 */
+		protected boolean m_stale = true;
+
+		/**
+		 * The cells of each input of the formulas that have changed since the
+		 * last computation of the value, indexed by input.
+		 */
+		/*@ non_null @*/ protected final Map<Integer,Set<Cell>> m_changed;
+
+		/**
+		 * Creates a new sheet.
+		 * @param name The name of the sheet
+		 * @param data The data of the sheet
+		 * @param formulas The formulas filling cells of the sheet, if any
+		 * @param sources The names of the sheets passed to the formulas
+		 */
+		public Sheet(/*@ non_null @*/ String name, /*@ non_null @*/ Spreadsheet data, /*@ null @*/ ApplyFormula formulas, /*@ non_null @*/ String[] sources)
+		{
+			super();
+			m_name = name;
+			m_data = data;
+			m_formulas = formulas;
+			m_sourceNames = sources;
+			m_sources = new Sheet[0];
+			m_dependents = new ArrayList<Sheet>();
+			m_changed = new TreeMap<Integer,Set<Cell>>();
+		}
+
+		/**
+		 * Gets the set of changed cells of an input, creating it if necessary.
+		 * @param index The index of the input
+		 * @return The set of cells
+		 */
+		/*@ non_null @*/ protected Set<Cell> getChanged(int index)
+		{
+			Set<Cell> cells = m_changed.get(index);
+			if (cells == null)
+			{
+				cells = new HashSet<Cell>();
+				m_changed.put(index, cells);
+			}
+			return cells;
+		}
+
+		/**
+		 * Computes the value of the sheet.
+		 * @return The cells of the value that have changed, or <tt>null</tt> if
+		 * the value has been computed from scratch
+		 */
+		/*@ null @*/ protected Set<Cell> compute()
+		{
+			Spreadsheet previous = m_value;
+			boolean from_scratch = m_stale || previous == null;
+			Object[] inputs = new Object[m_sources.length + 1];
+			inputs[0] = m_data;
+			for (int i = 0; i < m_sources.length; i++)
+			{
+				inputs[i + 1] = m_sources[i].m_value;
+			}
+			if (m_formulas == null)
+			{
+				// The value of the sheet is its data, already modified in place,
+				// and only cells whose value differs have been recorded
+				m_value = m_data;
+				Set<Cell> modified = from_scratch ? null : new HashSet<Cell>(getChanged(0));
+				m_stale = false;
+				m_changed.clear();
+				return modified;
+			}
+			if (from_scratch)
+			{
+				m_value = (Spreadsheet) m_formulas.evaluate(inputs)[0];
+				m_stale = false;
+				m_changed.clear();
+				return null;
+			}
+			// Remember the values of the cells that may change, since the value
+			// is modified in place
+			Map<Cell,Object> candidates = new HashMap<Cell,Object>();
+			for (Cell c : getChanged(0))
+			{
+				candidates.put(c, previous.get(c.getColumn(), c.getRow()));
+			}
+			for (CellFormula cf : m_formulas.m_formulas)
+			{
+				Cell c = cf.getTarget();
+				candidates.put(c, previous.get(c.getColumn(), c.getRow()));
+			}
+			for (Map.Entry<Integer,Set<Cell>> e : m_changed.entrySet())
+			{
+				m_formulas.updateInPlace(previous, e.getKey(), e.getValue(), inputs);
+			}
+			m_stale = false;
+			m_changed.clear();
+			// Only keep the cells whose value is actually different
+			Set<Cell> modified = new HashSet<Cell>();
+			for (Map.Entry<Cell,Object> e : candidates.entrySet())
+			{
+				Cell c = e.getKey();
+				if (!Spreadsheet.same(e.getValue(), m_value.get(c.getColumn(), c.getRow())))
+				{
+					modified.add(c);
+				}
+			}
+			return modified;
+		}
+
+		@Override
+		public String toString()
+		{
+			return m_name;
+		}
+	}
+}
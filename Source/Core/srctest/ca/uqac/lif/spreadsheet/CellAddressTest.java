@@ -0,0 +1,144 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2022 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link CellAddress}.
+ */
+public class CellAddressTest
+{
+	@Test
+	public void testParse()
+	{
+		assertEquals(Cell.get(0, 0), CellAddress.parse("A1"));
+		assertEquals(Cell.get(25, 9), CellAddress.parse("Z10"));
+		assertEquals(Cell.get(26, 0), CellAddress.parse("AA1"));
+		assertEquals(Cell.get(733, 1233), CellAddress.parse("ABF1234"));
+		assertEquals(Cell.get(27, 1233), CellAddress.parse("ab1234"));
+		assertEquals(Cell.get(1, 2), CellAddress.parse("$B$3"));
+		assertEquals(Cell.get(1, 2), CellAddress.parse("B:3"));
+		assertEquals(Cell.get(1, 2), CellAddress.parse(" B3 "));
+	}
+	
+	@Test
+	public void testParseR1C1()
+	{
+		assertEquals(Cell.get(1, 2), CellAddress.parse("R3C2"));
+		assertEquals(Cell.get(99, 9999), CellAddress.parse("r10000c100"));
+		assertEquals("R3C2", CellAddress.formatR1C1(1, 2));
+	}
+	
+	@Test
+	public void testCache()
+	{
+		CellAddress.clearCache();
+		Cell c = CellAddress.parse("C7");
+		assertSame(c, CellAddress.parse("C7"));
+		assertSame(c, Cell.get("C7"));
+		CellAddress.clearCache();
+		assertEquals(c, CellAddress.parse("C7"));
+	}
+	
+	@Test
+	public void testRange()
+	{
+		assertEquals(new CellRange(0, 0, 2, 9), CellAddress.parseRange("A1:C10"));
+		assertEquals(new CellRange(0, 0, 2, 9), CellAddress.parseRange("C10:A1"));
+		assertEquals(new CellRange(1, 1, 1, 1), CellAddress.parseRange("B2"));
+		assertEquals(new CellRange(1, 2, 3, 4), CellAddress.parseRange("R3C2:R5C4"));
+		assertEquals("A1:C10", CellAddress.format(new CellRange(0, 0, 2, 9)));
+	}
+	
+	@Test
+	public void testFormat()
+	{
+		assertEquals("A", CellAddress.formatColumn(0));
+		assertEquals("Z", CellAddress.formatColumn(25));
+		assertEquals("AA", CellAddress.formatColumn(26));
+		assertEquals("ABF", CellAddress.formatColumn(733));
+		assertEquals("B3", CellAddress.format(Cell.get(1, 2)));
+	}
+	
+	@Test
+	public void testInvalid()
+	{
+		String[] names = {"", "B", "12", "B0", "$$B3", "B3C", "B-3", "B99999999999", "R0C1", "é3"};
+		for (String name : names)
+		{
+			try
+			{
+				CellAddress.parse(name);
+				fail("Accepted " + name);
+			}
+			catch (SpreadsheetCellNameException e)
+			{
+				// Expected
+			}
+		}
+	}
+	
+	@Test
+	public void testRoundTrip()
+	{
+		Random r = new Random(0);
+		for (int i = 0; i < 10000; i++)
+		{
+			int col = i < 1000 ? i : r.nextInt(20000000);
+			int row = r.nextInt(i < 1000 ? 100 : Integer.MAX_VALUE - 1);
+			String a1 = CellAddress.format(col, row);
+			assertEquals(Cell.get(col, row), CellAddress.parse(a1));
+			assertEquals(Cell.get(col, row), CellAddress.parse(a1.toLowerCase()));
+			assertEquals(Cell.get(col, row), CellAddress.parse(CellAddress.formatR1C1(col, row)));
+		}
+	}
+	
+	@Test
+	public void testFuzz()
+	{
+		// Random strings are either rejected or parsed into a cell whose
+		// address designates the same cell
+		Random r = new Random(0);
+		String alphabet = "AbZz09$: R";
+		for (int i = 0; i < 20000; i++)
+		{
+			StringBuilder s = new StringBuilder();
+			int len = r.nextInt(8);
+			for (int j = 0; j < len; j++)
+			{
+				s.append(alphabet.charAt(r.nextInt(alphabet.length())));
+			}
+			Cell c;
+			try
+			{
+				c = CellAddress.parse(s.toString());
+			}
+			catch (SpreadsheetCellNameException e)
+			{
+				continue;
+			}
+			assertTrue(c.getColumn() >= 0 && c.getRow() >= 0);
+			assertEquals(c, CellAddress.parse(CellAddress.format(c)));
+		}
+	}
+}
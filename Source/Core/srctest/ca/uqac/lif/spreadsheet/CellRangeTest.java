@@ -0,0 +1,107 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2022 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+
+/**
+ * Unit tests for {@link CellRange}.
+ */
+public class CellRangeTest
+{
+	@Test
+	public void testCorners()
+	{
+		CellRange r = new CellRange(3, 5, 1, 2);
+		assertEquals(1, r.getFirstColumn());
+		assertEquals(2, r.getFirstRow());
+		assertEquals(3, r.getLastColumn());
+		assertEquals(5, r.getLastRow());
+		assertEquals(12, r.size());
+		assertTrue(r.contains(2, 4));
+		assertFalse(r.contains(0, 4));
+		assertFalse(r.contains(2, 6));
+	}
+	
+	@Test
+	public void testLargeSize()
+	{
+		// The number of cells does not fit in an int
+		CellRange r = new CellRange(0, 0, 99999, 99999);
+		assertEquals(10000000000L, r.size());
+		assertEquals(Cell.get(99999, 99999), r.getCell(r.size() - 1));
+		assertEquals(Cell.get(50000, 0), r.getCell(5000000000L));
+	}
+	
+	@Test
+	public void testIntersect()
+	{
+		CellRange r1 = new CellRange(0, 0, 3, 9);
+		CellRange r2 = new CellRange(2, 5, 6, 20);
+		assertEquals(new CellRange(2, 5, 3, 9), r1.intersect(r2));
+		assertEquals(new CellRange(2, 5, 3, 9), r2.intersect(r1));
+		assertNull(r1.intersect(new CellRange(4, 0, 5, 9)));
+		assertTrue(r1.contains(new CellRange(1, 1, 2, 2)));
+		assertFalse(r1.contains(r2));
+	}
+	
+	@Test
+	public void testIteration()
+	{
+		CellRange r = new CellRange(1, 1, 2, 3);
+		Cell[] cells = r.getCells();
+		int i = 0;
+		for (Cell c : r)
+		{
+			assertEquals(cells[i++], c);
+		}
+		assertEquals(cells.length, i);
+		final List<Cell> visited = new ArrayList<Cell>();
+		r.forEach(new CellRange.Visitor()
+		{
+			@Override
+			public void visit(int col, int row)
+			{
+				visited.add(Cell.get(col, row));
+			}
+		});
+		assertEquals(6, visited.size());
+		for (i = 0; i < cells.length; i++)
+		{
+			assertEquals(cells[i], visited.get(i));
+		}
+	}
+	
+	@Test
+	public void testMentionedRange()
+	{
+		CellRange r = new CellRange(0, 1, 0, 8);
+		assertTrue(r.appliesTo(new Spreadsheet(1, 1)));
+		assertEquals(r, CellRange.mentionedRange(ComposedPart.compose(r, NthInput.FIRST)));
+		assertEquals(new CellRange(2, 3, 2, 3), CellRange.mentionedRange(ComposedPart.compose(Cell.get(2, 3), NthInput.FIRST)));
+		assertNull(CellRange.mentionedRange(NthInput.FIRST));
+	}
+}
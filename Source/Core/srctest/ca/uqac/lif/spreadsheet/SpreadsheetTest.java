@@ -162,4 +162,30 @@ public class SpreadsheetTest
 		assertEquals(ComposedPart.compose(new PositionRange(new Position(3, 2), new Position(3, 2)), NthInput.FIRST), mapping.get(Cell.get(0, 2)));
 		assertEquals(ComposedPart.compose(new PositionRange(new Position(3, 8), new Position(3, 11)), NthInput.FIRST), mapping.get(Cell.get(2, 2)));
 	}
+
+	@Test
+	public void testTranspose()
+	{
+		// Dimensions that are not multiples of the block size
+		int width = Spreadsheet.BLOCK_SIZE * 2 + 3, height = Spreadsheet.BLOCK_SIZE + 7;
+		Spreadsheet s = new Spreadsheet(width, height);
+		for (int row = 0; row < height; row++)
+		{
+			for (int col = 0; col < width; col++)
+			{
+				s.set(col, row, row * width + col);
+			}
+		}
+		Spreadsheet t = s.transpose();
+		assertEquals(height, t.getWidth());
+		assertEquals(width, t.getHeight());
+		for (int row = 0; row < height; row++)
+		{
+			for (int col = 0; col < width; col++)
+			{
+				assertEquals(row * width + col, t.get(row, col));
+			}
+		}
+		assertEquals(s, t.transpose());
+	}
 }
@@ -0,0 +1,80 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2022 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link TransposedView}.
+ */
+public class TransposedViewTest
+{
+	@Test
+	public void testRead()
+	{
+		Spreadsheet s = getSpreadsheet();
+		Spreadsheet v = s.transposedView();
+		assertEquals(4, v.getWidth());
+		assertEquals(3, v.getHeight());
+		assertEquals(Spreadsheet.read(4, 3,
+				"A", 1, 4, 7,
+				"B", 2, 5, 8,
+				"C", 3, 6, 9), v);
+		assertArrayEquals(new Object[] {"B", 2, 5, 8}, v.getRow(1));
+		assertArrayEquals(new Object[] {1, 2, 3}, v.getColumn(1));
+		assertEquals(s.transpose(), v);
+		assertEquals(s, v.transpose());
+	}
+
+	@Test
+	public void testLive()
+	{
+		Spreadsheet s = getSpreadsheet();
+		Spreadsheet v = s.transposedView();
+		Spreadsheet copy = v.duplicate();
+		s.set(2, 1, 30);
+		assertEquals(30, v.get(1, 2));
+		// The copy does not change
+		assertEquals(3, copy.get(1, 2));
+		copy.set(1, 2, 0);
+		assertEquals(30, s.get(2, 1));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testReadOnly()
+	{
+		getSpreadsheet().transposedView().set(0, 0, "foo");
+	}
+
+	@Test(expected = SpreadsheetOutOfBoundsException.class)
+	public void testOutOfBounds()
+	{
+		getSpreadsheet().transposedView().get(4, 0);
+	}
+
+	protected static Spreadsheet getSpreadsheet()
+	{
+		return Spreadsheet.read(3, 4, 
+				"A", "B", "C",
+				1,   2,   3,
+				4,   5,   6,
+				7,   8,   9);
+	}
+}
@@ -19,6 +19,10 @@ package ca.uqac.lif.spreadsheet.functions;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import org.junit.Test;
 
 import static ca.uqac.lif.dag.NodeConnector.connect;
@@ -30,10 +34,12 @@ import ca.uqac.lif.petitpoucet.PartNode;
 import ca.uqac.lif.petitpoucet.function.Circuit;
 import ca.uqac.lif.petitpoucet.function.Constant;
 import ca.uqac.lif.petitpoucet.function.Fork;
+import ca.uqac.lif.petitpoucet.function.FunctionException;
 import ca.uqac.lif.petitpoucet.function.NthInput;
 import ca.uqac.lif.petitpoucet.function.NthOutput;
 import ca.uqac.lif.petitpoucet.function.number.Addition;
 import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
 
 public class ApplyFormulaTest
@@ -274,4 +280,154 @@ public class ApplyFormulaTest
 			assertEquals(ComposedPart.compose(Cell.get(1, 0), NthInput.FIRST), child_part3);
 		}
 	}
+
+	@Test
+	public void testOrder()
+	{
+		// Formulas are added in the reverse order of their dependencies
+		Spreadsheet s = new Spreadsheet(1, 4);
+		s.set(0, 0, 5);
+		ApplyFormula af = new ApplyFormula(1);
+		af.add(Cell.get(0, 3), new ValueOf(Cell.get(0, 2)));
+		af.add(Cell.get(0, 2), new ValueOf(Cell.get(0, 1)));
+		af.add(Cell.get(0, 1), new ValueOf(Cell.get(0, 0)));
+		Spreadsheet out_s = (Spreadsheet) af.evaluate(s)[0];
+		assertEquals(5, out_s.get(0, 1));
+		assertEquals(5, out_s.get(0, 2));
+		assertEquals(5, out_s.get(0, 3));
+	}
+	
+	@Test(expected = FunctionException.class)
+	public void testCycle()
+	{
+		Spreadsheet s = new Spreadsheet(1, 3);
+		ApplyFormula af = new ApplyFormula(1);
+		af.add(Cell.get(0, 1), new ValueOf(Cell.get(0, 2)));
+		af.add(Cell.get(0, 2), new ValueOf(Cell.get(0, 1)));
+		af.evaluate(s);
+	}
+	
+	@Test
+	public void testTwoVolatile()
+	{
+		// Two formulas reading the whole spreadsheet are not a cycle
+		Spreadsheet s = new Spreadsheet(3, 2);
+		s.set(0, 0, "A");
+		s.set(0, 1, 2);
+		ApplyFormula af = new ApplyFormula(1);
+		af.add(Cell.get(1, 0), new ColumnSum());
+		af.add(Cell.get(2, 0), new ColumnSum());
+		af.add(Cell.get(1, 1), new ValueOf(Cell.get(0, 1)));
+		Spreadsheet out_s = (Spreadsheet) af.evaluate(s)[0];
+		assertEquals(2, out_s.get(1, 1));
+		Spreadsheet sum1 = (Spreadsheet) out_s.get(1, 0);
+		assertEquals(2d, sum1.get(0, 1));
+		// The volatile formulas are evaluated after the others, in the order
+		// they were added
+		assertEquals(2d, sum1.get(1, 1));
+		assertTrue(((Spreadsheet) out_s.get(2, 0)).get(1, 0) instanceof Spreadsheet);
+	}
+	
+	@Test
+	public void testUpdate()
+	{
+		// Column 0 is copied into column 1, and 1:0 is copied into 2:0
+		Spreadsheet s = new Spreadsheet(3, 2);
+		s.set(0, 0, 1);
+		s.set(0, 1, 2);
+		ApplyFormula af = new ApplyFormula(1);
+		af.add(Cell.get(2, 0), new ValueOf(Cell.get(1, 0)));
+		af.add(Cell.get(1, 0), new ValueOf(Cell.get(0, 0)));
+		af.add(Cell.get(1, 1), new ValueOf(Cell.get(0, 1)));
+		Spreadsheet out_s = (Spreadsheet) af.evaluate(s)[0];
+		// Tamper with a computed cell that does not depend on the change, to
+		// check that it is not computed again
+		out_s.set(1, 1, 42);
+		Spreadsheet s2 = s.duplicate();
+		s2.set(0, 0, 7);
+		Spreadsheet updated = af.update(out_s, Arrays.asList(Cell.get(0, 0)), s2);
+		assertEquals(7, updated.get(0, 0));
+		assertEquals(7, updated.get(1, 0));
+		assertEquals(7, updated.get(2, 0));
+		assertEquals(42, updated.get(1, 1));
+		// The previous output is left unchanged
+		assertEquals(1, out_s.get(2, 0));
+	}
+	
+	@Test
+	public void testUpdateVolatile()
+	{
+		// 0:1 is read from the second input, and 1:0 sums column 0
+		Spreadsheet s = new Spreadsheet(2, 3);
+		s.set(0, 0, "A");
+		s.set(0, 2, 2);
+		ApplyFormula af = new ApplyFormula(2);
+		af.add(new CellFormula(Cell.get(0, 1), new ValueOf(0, 0)).associate(1, 0));
+		af.add(Cell.get(1, 0), new ColumnSum());
+		Spreadsheet out_s = (Spreadsheet) af.evaluate(s, Spreadsheet.read(1, 1, 1))[0];
+		assertEquals(3d, ((Spreadsheet) out_s.get(1, 0)).get(0, 1));
+		// The volatile formula reads a cell computed again after the change
+		Spreadsheet updated = af.update(out_s, 1, Arrays.asList(Cell.get(0, 0)), s, Spreadsheet.read(1, 1, 5));
+		assertEquals(5, updated.get(0, 1));
+		assertEquals(7d, ((Spreadsheet) updated.get(1, 0)).get(0, 1));
+	}
+	
+	@Test
+	public void testSplitRange()
+	{
+		// 0:1 and 1:2 are computed by formulas
+		ApplyFormula af = new ApplyFormula(1);
+		af.add(Cell.get(0, 1), new ValueOf(Cell.get(0, 0)));
+		af.add(Cell.get(1, 2), new ValueOf(Cell.get(0, 0)));
+		List<Cell> computed = new ArrayList<Cell>();
+		List<Part> remaining = new ArrayList<Part>();
+		af.splitRange(new CellRange(0, 0, 1, 3), computed, remaining);
+		assertEquals(Arrays.asList(Cell.get(0, 1), Cell.get(1, 2)), computed);
+		assertEquals(Arrays.asList(Cell.get(0, 0), new CellRange(0, 2, 0, 3), new CellRange(1, 0, 1, 1), Cell.get(1, 3)), remaining);
+		// A range without computed cells is kept as is
+		computed.clear();
+		remaining.clear();
+		af.splitRange(new CellRange(2, 0, 3, 3), computed, remaining);
+		assertTrue(computed.isEmpty());
+		assertEquals(Arrays.asList(new CellRange(2, 0, 3, 3)), remaining);
+	}
+	
+	@Test
+	public void testDuplicate()
+	{
+		ApplyFormula af = new ApplyFormula(1).setThreads(4).setCompiled(false);
+		af.add(Cell.get(1, 0), new ValueOf(Cell.get(0, 0)));
+		ApplyFormula copy = af.duplicate(false);
+		assertEquals(4, copy.m_numThreads);
+		assertFalse(copy.m_compile);
+		assertEquals(af.getConfiguration(), copy.getConfiguration());
+		assertNotEquals(af.getConfiguration(), new ApplyFormula(1, af.m_formulas).getConfiguration());
+	}
+	
+	@Test
+	public void testParallel()
+	{
+		int height = 2000;
+		Spreadsheet s = new Spreadsheet(4, height);
+		for (int row = 0; row < height; row++)
+		{
+			s.set(0, row, row);
+		}
+		ApplyFormula af = new ApplyFormula(1).setThreads(4);
+		// The same function instance is used by every formula of column 3
+		ValueOf shared = new ValueOf(Cell.get(0, 0));
+		for (int row = 0; row < height; row++)
+		{
+			af.add(Cell.get(2, row), new ValueOf(Cell.get(1, row)));
+			af.add(Cell.get(1, row), new ValueOf(Cell.get(0, row)));
+			af.add(Cell.get(3, row), shared);
+		}
+		Spreadsheet out_s = (Spreadsheet) af.evaluate(s)[0];
+		for (int row = 0; row < height; row++)
+		{
+			assertEquals(row, out_s.get(1, row));
+			assertEquals(row, out_s.get(2, row));
+			assertEquals(0, out_s.get(3, row));
+		}
+	}
 }
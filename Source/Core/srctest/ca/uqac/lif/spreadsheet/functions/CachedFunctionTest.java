@@ -0,0 +1,88 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Unit tests for {@link CachedFunction}.
+ */
+public class CachedFunctionTest
+{
+	@Test
+	public void testHit()
+	{
+		ResultCache cache = new ResultCache();
+		CachedFunction f = new CachedFunction(new Sort().by(0).excludeFirst(), cache);
+		Spreadsheet s = Spreadsheet.read(2, 4,
+				"A", "B",
+				3, "a",
+				1, "b",
+				2, "c");
+		Spreadsheet out1 = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(1, cache.getMisses());
+		assertEquals(0, cache.getHits());
+		assertEquals(Spreadsheet.read(2, 4, "A", "B", 1, "b", 2, "c", 3, "a"), out1);
+		// Same contents in a different object
+		Spreadsheet out2 = (Spreadsheet) f.evaluate(s.duplicate())[0];
+		assertSame(out1, out2);
+		assertEquals(1, cache.getHits());
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 2), NthInput.FIRST));
+		// Modified contents
+		s.set(0, 1, 0);
+		Spreadsheet out3 = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(2, cache.getMisses());
+		assertEquals(Spreadsheet.read(2, 4, "A", "B", 0, "a", 1, "b", 2, "c"), out3);
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 1), NthInput.FIRST));
+		// Going back to the first contents gives back the first explanation
+		s.set(0, 1, 3);
+		assertSame(out1, f.evaluate(s)[0]);
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 2), NthInput.FIRST));
+	}
+
+	@Test
+	public void testKeys()
+	{
+		ResultCache cache = new ResultCache();
+		Spreadsheet s = Spreadsheet.read(1, 3, "A", 2, 1);
+		CachedFunction f1 = new CachedFunction(new Sort().by(0).excludeFirst(), cache);
+		CachedFunction f2 = new CachedFunction(new Sort().by(0).excludeFirst(), cache);
+		f1.evaluate(s);
+		f2.evaluate(s);
+		assertEquals(0, cache.getHits());
+		f1.duplicate(false).evaluate(s);
+		assertEquals(1, cache.getHits());
+		CachedFunction f3 = new CachedFunction(new Sort().by(0).excludeFirst(), cache, "sort-0");
+		CachedFunction f4 = new CachedFunction(new Sort().by(0).excludeFirst(), cache, "sort-0");
+		f3.evaluate(s);
+		f4.evaluate(s);
+		assertEquals(2, cache.getHits());
+		f4.setKey("other");
+		f4.evaluate(s);
+		assertEquals(2, cache.getHits());
+	}
+}
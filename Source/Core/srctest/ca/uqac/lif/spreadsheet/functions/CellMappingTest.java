@@ -0,0 +1,173 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.functions.SpreadsheetFunction.InputCell;
+
+/**
+ * Unit tests for {@link CellMapping} and its implementations.
+ */
+public class CellMappingTest
+{
+	@Test
+	public void testEncode()
+	{
+		assertEquals(InputCell.get(3, 5, 2), InputCell.decode(InputCell.encode(3, 5, 2)));
+		assertEquals(InputCell.get(0, 0), InputCell.decode(InputCell.encode(0, 0)));
+		assertEquals(InputCell.get(16000000, Integer.MAX_VALUE, 127), InputCell.decode(InputCell.encode(16000000, Integer.MAX_VALUE, 127)));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testEncodeIndexOutOfRange()
+	{
+		InputCell.encode(0, 0, 256);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testEncodeColumnOutOfRange()
+	{
+		InputCell.encode(1 << 24, 0, 0);
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testEncodeNegativeColumn()
+	{
+		InputCell.encode(-1, 0);
+	}
+	
+	@Test
+	public void testPacked()
+	{
+		CellMapping.Packed m = new CellMapping.Packed(3, 2);
+		m.add(0, 0, InputCell.encode(0, 0));
+		m.add(2, 0, InputCell.encode(1, 0), InputCell.encode(2, 0, 1));
+		m.add(1, 1, InputCell.encode(4, 7));
+		m.compact();
+		assertEquals(4, m.getReferenceCount());
+		assertArrayEquals(new InputCell[] {InputCell.get(0, 0)}, m.getInputCells(0, 0));
+		assertNull(m.getInputCells(1, 0));
+		assertArrayEquals(new InputCell[] {InputCell.get(1, 0), InputCell.get(2, 0, 1)}, m.getInputCells(2, 0));
+		assertNull(m.getInputCells(0, 1));
+		assertArrayEquals(new InputCell[] {InputCell.get(4, 7)}, m.getInputCells(1, 1));
+		assertNull(m.getInputCells(2, 1));
+		assertNull(m.getInputCells(3, 0));
+		assertNull(m.getInputCells(0, 2));
+	}
+	
+	@Test
+	public void testPackedGrow()
+	{
+		CellMapping.Packed m = new CellMapping.Packed(1, 2);
+		long[] refs = new long[100];
+		for (int i = 0; i < refs.length; i++)
+		{
+			refs[i] = InputCell.encode(0, i);
+		}
+		m.add(0, 0, refs);
+		m.add(0, 1, InputCell.encode(1, 1));
+		assertEquals(100, m.getInputCells(0, 0).length);
+		assertEquals(InputCell.get(0, 99), m.getInputCells(0, 0)[99]);
+		assertArrayEquals(new InputCell[] {InputCell.get(1, 1)}, m.getInputCells(0, 1));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testPackedOrder()
+	{
+		CellMapping.Packed m = new CellMapping.Packed(2, 2);
+		m.add(1, 0, InputCell.encode(0, 0));
+		m.add(0, 0, InputCell.encode(0, 0));
+	}
+	
+	@Test
+	public void testPackedInverse()
+	{
+		CellMapping.Packed m = new CellMapping.Packed(3, 2);
+		m.add(0, 0, InputCell.encode(0, 0));
+		m.add(2, 0, InputCell.encode(1, 0), InputCell.encode(0, 0), InputCell.encode(0, 0));
+		m.add(1, 1, InputCell.encode(4, 7), InputCell.encode(1, 0));
+		assertArrayEquals(new Cell[] {Cell.get(0, 0), Cell.get(2, 0)}, m.getOutputCells(0, 0, 0));
+		assertArrayEquals(new Cell[] {Cell.get(2, 0), Cell.get(1, 1)}, m.getOutputCells(0, 1, 0));
+		assertEquals(0, m.getOutputCells(1, 1, 0).length);
+		assertEquals(0, m.getOutputCells(0, 5, 5).length);
+	}
+	
+	@Test
+	public void testPackedWindow()
+	{
+		// Only the first row and the rows from 3 on are stored
+		CellMapping.Packed m = new CellMapping.Packed(2, 5, 3);
+		assertEquals(2 * 3 + 1, m.m_offsets.length);
+		m.add(0, 0, InputCell.encode(0, 0));
+		m.add(1, 3, InputCell.encode(1, 2));
+		m.add(0, 4, InputCell.encode(1, 2), InputCell.encode(0, 4));
+		assertNull(m.getInputCells(1, 1));
+		assertNull(m.getInputCells(0, 3));
+		assertEquals(InputCell.get(1, 2), m.getInputCells(1, 3)[0]);
+		assertEquals(2, m.getInputCells(0, 4).length);
+		assertArrayEquals(new Cell[] {Cell.get(0, 0)}, m.getOutputCells(0, 0, 0));
+		assertArrayEquals(new Cell[] {Cell.get(1, 3), Cell.get(0, 4)}, m.getOutputCells(0, 1, 2));
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testPackedOutsideWindow()
+	{
+		new CellMapping.Packed(2, 5, 3).add(0, 1, InputCell.encode(0, 0));
+	}
+	
+	@Test
+	public void testExplicitInverse()
+	{
+		CellMapping.Explicit m = new CellMapping.Explicit(2, 2);
+		m.set(0, 0, InputCell.get(0, 0, 1));
+		m.set(1, 1, InputCell.get(0, 0, 1), InputCell.get(3, 3));
+		assertArrayEquals(new Cell[] {Cell.get(0, 0), Cell.get(1, 1)}, m.getOutputCells(1, 0, 0));
+		assertArrayEquals(new Cell[] {Cell.get(1, 1)}, m.getOutputCells(0, 3, 3));
+		assertEquals(0, m.getOutputCells(0, 0, 0).length);
+	}
+	
+	@Test
+	public void testImplicitInverse()
+	{
+		assertArrayEquals(new Cell[] {Cell.get(1, 2)}, new CellMapping.Identity(2, 3).getOutputCells(0, 1, 2));
+		assertEquals(0, new CellMapping.Identity(2, 3).getOutputCells(1, 1, 2).length);
+		assertArrayEquals(new Cell[] {Cell.get(2, 1)}, new CellMapping.Transposition(3, 2).getOutputCells(0, 1, 2));
+		assertArrayEquals(new Cell[] {Cell.get(1, 1)}, new CellMapping.RowPermutation(new int[] {0, 2, 1}, 2).getOutputCells(0, 1, 2));
+		CellMapping.RowOffsets m = new CellMapping.RowOffsets(new int[] {3, 2}, new int[] {2, 2}, true, 0);
+		assertArrayEquals(new Cell[] {Cell.get(1, 0)}, m.getOutputCells(0, 1, 0));
+		assertEquals(0, m.getOutputCells(1, 1, 0).length);
+		assertArrayEquals(new Cell[] {Cell.get(1, 3)}, m.getOutputCells(1, 1, 1));
+		for (int row = 0; row < m.getHeight(); row++)
+		{
+			for (InputCell c : m.getInputCells(0, row))
+			{
+				assertArrayEquals(new Cell[] {Cell.get(0, row)}, m.getOutputCells(c.m_index, c.getColumn(), c.getRow()));
+			}
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testStencilNegativeColumn()
+	{
+		new CellMapping.Stencil(2, 3, 1, 1, 3, new int[] {0, -1}, new int[] {0, 0});
+	}
+}
@@ -0,0 +1,185 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.AndNode;
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.Part;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.functions.ColumnAggregate.Aggregate;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+
+/**
+ * Unit tests for {@link ColumnAggregate}.
+ */
+public class ColumnAggregateTest
+{
+	@Test
+	public void test1()
+	{
+		Spreadsheet s = Spreadsheet.read(2, 4,
+				"A", "B",
+				3,   1,
+				1,   null,
+				5,   9);
+		ColumnAggregate f = new ColumnAggregate(Aggregate.SUM, Aggregate.MAX, Aggregate.NULL_COUNT);
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(Spreadsheet.read(2, 4,
+				"A", "B",
+				9,   10,
+				5,   9,
+				0,   1), out);
+	}
+
+	@Test
+	public void testAllAggregates()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 6, "A", 2, 4, "foo", 4, 6);
+		ColumnAggregate f = new ColumnAggregate(Aggregate.values());
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(Spreadsheet.read(1, 8, "A", 16, 2, 6, 4, 4, 8d / 3, 0), out);
+	}
+
+	@Test
+	public void testCount()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 4, "A", 2, null, 4);
+		ColumnAggregate f = new ColumnAggregate(Aggregate.COUNT, Aggregate.NULL_COUNT);
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(Long.valueOf(2), out.get(0, 1));
+		assertEquals(Long.valueOf(1), out.get(0, 2));
+		ColumnAggregate.Accumulator acc = new ColumnAggregate.Accumulator();
+		acc.m_count = Integer.MAX_VALUE + 1L;
+		assertEquals(Long.valueOf(Integer.MAX_VALUE + 1L), acc.get(Aggregate.COUNT));
+	}
+
+	@Test
+	public void testEmpty()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 2, "A", null);
+		ColumnAggregate f = new ColumnAggregate(Aggregate.SUM, Aggregate.MIN, Aggregate.MEAN, Aggregate.VARIANCE, Aggregate.NULL_COUNT);
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(Spreadsheet.read(1, 6, "A", 0, null, null, null, 1), out);
+	}
+
+	@Test
+	public void testExplanation()
+	{
+		Spreadsheet s = Spreadsheet.read(2, 4,
+				"A", "B",
+				3,   1,
+				1,   7,
+				5,   9);
+		ColumnAggregate f = new ColumnAggregate(Aggregate.MIN, Aggregate.MEAN);
+		// One part per cell of the column
+		f.compactRanges(false);
+		f.evaluate(s);
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 0), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 0), NthInput.FIRST));
+		assertExplains(f, ComposedPart.compose(Cell.get(0, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(0, 2), NthInput.FIRST));
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(1, 2), NthOutput.FIRST));
+		AndNode and = (AndNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(3, and.getOutputLinks(0).size());
+		for (int i = 0; i < 3; i++)
+		{
+			assertEquals(ComposedPart.compose(Cell.get(1, i + 1), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(i).getNode()).getPart());
+		}
+	}
+
+	@Test
+	public void testCompactRanges()
+	{
+		Spreadsheet s = Spreadsheet.read(2, 4,
+				"A", "B",
+				3,   1,
+				1,   7,
+				5,   9);
+		// Ranges are compacted by default
+		ColumnAggregate f = new ColumnAggregate(Aggregate.MIN, Aggregate.MEAN);
+		f.evaluate(s);
+		assertExplains(f, ComposedPart.compose(Cell.get(0, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(0, 2), NthInput.FIRST));
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(1, 2), NthOutput.FIRST));
+		assertEquals(1, root.getOutputLinks(0).size());
+		assertEquals(ComposedPart.compose(new CellRange(1, 1, 1, 3), NthInput.FIRST), ((PartNode) root.getOutputLinks(0).get(0).getNode()).getPart());
+		// A range of the output is explained by the cells of a function upstream
+		Transpose t = new Transpose();
+		t.evaluate(s);
+		root = t.getExplanation(ComposedPart.compose(new CellRange(1, 0, 2, 0), NthOutput.FIRST));
+		AndNode and = (AndNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(2, and.getOutputLinks(0).size());
+		assertEquals(ComposedPart.compose(Cell.get(0, 1), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(0).getNode()).getPart());
+		assertEquals(ComposedPart.compose(Cell.get(0, 2), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(1).getNode()).getPart());
+	}
+
+	@Test
+	public void testReadExplanation()
+	{
+		ReadSpreadsheet rs = new ReadSpreadsheet();
+		Spreadsheet s = (Spreadsheet) rs.evaluate("A B\n3 1\n1 7\n5 9")[0];
+		ColumnSum f = new ColumnSum();
+		f.evaluate(s);
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST));
+		assertEquals(ComposedPart.compose(new CellRange(1, 1, 1, 3), NthInput.FIRST), ((PartNode) root.getOutputLinks(0).get(0).getNode()).getPart());
+		// The range is explained by the position of each of its cells in the string
+		root = rs.getExplanation(ComposedPart.compose(new CellRange(1, 1, 1, 3), NthOutput.FIRST));
+		AndNode and = (AndNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(3, and.getOutputLinks(0).size());
+		for (int i = 0; i < 3; i++)
+		{
+			Part p = ((PartNode) and.getOutputLinks(0).get(i).getNode()).getPart();
+			assertNotEquals(Part.all, p);
+			PartNode cell_root = rs.getExplanation(ComposedPart.compose(Cell.get(1, i + 1), NthOutput.FIRST));
+			assertEquals(((PartNode) cell_root.getOutputLinks(0).get(0).getNode()).getPart(), p);
+		}
+	}
+
+	@Test
+	public void testParallel()
+	{
+		Random r = new Random(0);
+		Spreadsheet s = new Spreadsheet(3, 40001);
+		s.set(0, 0, "A");
+		s.set(1, 0, "B");
+		s.set(2, 0, "C");
+		for (int row = 1; row < s.getHeight(); row++)
+		{
+			s.set(0, row, r.nextGaussian());
+			s.set(1, row, r.nextInt(100));
+			s.set(2, row, r.nextBoolean() ? null : 1);
+		}
+		Spreadsheet out1 = (Spreadsheet) new ColumnAggregate(Aggregate.values()).evaluate(s)[0];
+		Spreadsheet out2 = (Spreadsheet) new ColumnAggregate(Aggregate.values()).setThreads(4).evaluate(s)[0];
+		for (int col = 0; col < 3; col++)
+		{
+			for (int row = 1; row < out1.getHeight(); row++)
+			{
+				assertEquals(((Number) out1.get(col, row)).doubleValue(), ((Number) out2.get(col, row)).doubleValue(), 1e-9);
+			}
+		}
+	}
+}
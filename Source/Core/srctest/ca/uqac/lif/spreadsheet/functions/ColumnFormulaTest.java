@@ -0,0 +1,150 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+import static ca.uqac.lif.spreadsheet.functions.ColumnFormula.*;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.functions.SpreadsheetFunction.InputCell;
+
+/**
+ * Unit tests for {@link ColumnFormula}.
+ */
+public class ColumnFormulaTest
+{
+	@Test
+	public void testDivide()
+	{
+		Spreadsheet s = Spreadsheet.read(2, 4,
+				"A", "B",
+				6, 3,
+				"x", 2,
+				1, 0);
+		ColumnFormula f = new ColumnFormula(2, divide(ref(0), ref(1)));
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(3, out.getWidth());
+		assertEquals(4, out.getHeight());
+		assertEquals("A", out.get(0, 0));
+		assertNull(out.get(2, 0));
+		assertEquals(2d, out.get(2, 1));
+		// Not a number: computed again on objects
+		assertNull(out.get(2, 2));
+		assertEquals(Double.POSITIVE_INFINITY, out.get(2, 3));
+		// The input is not modified
+		assertEquals(2, s.getWidth());
+	}
+	
+	@Test
+	public void testRelative()
+	{
+		Spreadsheet s = Spreadsheet.read(2, 4,
+				"A", "B",
+				1, null,
+				2, null,
+				4, null);
+		// Difference with the previous row, from the second row of values
+		ColumnFormula f = new ColumnFormula(1, subtract(ref(0), ref(0, -1))).setRows(2, -1);
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(2, out.getWidth());
+		assertNull(out.get(1, 1));
+		assertEquals(1d, out.get(1, 2));
+		assertEquals(2d, out.get(1, 3));
+		assertArrayEquals(new InputCell[] {InputCell.get(0, 3), InputCell.get(0, 2)}, f.trackToInput(1, 3));
+		assertArrayEquals(new Cell[] {Cell.get(0, 2), Cell.get(1, 2), Cell.get(1, 3)}, f.dependents(0, Cell.get(0, 2)));
+		// Cells outside of the range are copied from the input
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 1), NthInput.FIRST));
+		assertEquals(0, f.dependents(0, Cell.get(1, 2)).length);
+	}
+	
+	@Test
+	public void testObjects()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 3,
+				"A",
+				1,
+				2);
+		// A non-numerical constant prevents the formula from being computed on
+		// primitive values
+		ColumnFormula f = new ColumnFormula(1, add(ref(0), constant("x")));
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertNull(out.get(1, 1));
+		f = new ColumnFormula(1, multiply(ref(0), constant(10))).setRows(0, -1);
+		out = (Spreadsheet) f.evaluate(s)[0];
+		assertNull(out.get(1, 0));
+		assertEquals(20d, out.get(1, 2));
+	}
+	
+	@Test
+	public void testBlocks()
+	{
+		int height = 3 * ColumnFormula.BLOCK_SIZE + 7;
+		Spreadsheet s = new Spreadsheet(2, height);
+		for (int row = 1; row < height; row++)
+		{
+			s.set(0, row, row);
+			s.set(1, row, row % 5 == 0 ? null : 2);
+		}
+		ColumnFormula f = new ColumnFormula(0, multiply(ref(0), ref(1)));
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		for (int row = 1; row < height; row++)
+		{
+			assertEquals(row % 5 == 0 ? null : (Object) (2d * row), out.get(0, row));
+		}
+		ColumnFormula f2 = f.duplicate(false);
+		assertEquals(out, f2.evaluate(s)[0]);
+	}
+	
+	@Test
+	public void testRefBlock()
+	{
+		Spreadsheet s = Spreadsheet.read(2, 5,
+				"A", "B",
+				1, 3,
+				"x", 2,
+				4, 5,
+				5, 1);
+		for (int offset = -5; offset <= 5; offset++)
+		{
+			for (int col = 0; col < 3; col++)
+			{
+				Ref r = ref(col, offset);
+				double[] values = new double[4];
+				r.evaluate(s, 1, 5, values);
+				for (int row = 1; row < 5; row++)
+				{
+					Object o = r.evaluate(s, row);
+					assertEquals(o instanceof Number ? ((Number) o).doubleValue() : Double.NaN, values[row - 1], 0);
+				}
+			}
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeRef()
+	{
+		ref(-1);
+	}
+}
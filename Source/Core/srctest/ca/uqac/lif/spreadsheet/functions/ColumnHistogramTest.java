@@ -0,0 +1,165 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.AndNode;
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.Part;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertNotExplains;
+
+/**
+ * Unit tests for {@link ColumnHistogram}.
+ */
+public class ColumnHistogramTest
+{
+	@Test
+	public void testFixed()
+	{
+		Spreadsheet s = Spreadsheet.read(2, 5,
+				"A", "B",
+				3,   "x",
+				1,   "y",
+				7,   "z",
+				2,   "t");
+		ColumnHistogram f = new ColumnHistogram(0, 0, 8, 4);
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(Spreadsheet.read(2, 5,
+				"x", "A",
+				0,   1,
+				2,   2,
+				4,   0,
+				6,   1), out);
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 0), NthOutput.FIRST), ComposedPart.compose(Cell.get(0, 0), NthInput.FIRST));
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(0, 2), NthInput.FIRST));
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 3), NthOutput.FIRST), ComposedPart.compose(Part.nothing, NthInput.FIRST));
+		assertNotExplains(f, ComposedPart.compose(Cell.get(0, 1), NthOutput.FIRST));
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(1, 2), NthOutput.FIRST));
+		AndNode and = (AndNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(2, and.getOutputLinks(0).size());
+		assertEquals(ComposedPart.compose(Cell.get(0, 1), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(0).getNode()).getPart());
+		assertEquals(ComposedPart.compose(Cell.get(0, 4), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(1).getNode()).getPart());
+	}
+
+	@Test
+	public void testCompactRanges()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 6, "A", 1, 1, 9, 1, 9);
+		ColumnHistogram f = new ColumnHistogram(0, 0, 10, 2);
+		f.compactRanges(true);
+		f.evaluate(s);
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST));
+		AndNode and = (AndNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(2, and.getOutputLinks(0).size());
+		assertEquals(ComposedPart.compose(new CellRange(0, 1, 0, 2), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(0).getNode()).getPart());
+		assertEquals(ComposedPart.compose(Cell.get(0, 4), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(1).getNode()).getPart());
+	}
+
+	@Test
+	public void testRanges()
+	{
+		Spreadsheet s = new Spreadsheet(1, 101);
+		s.set(0, 0, "A");
+		for (int row = 1; row <= 100; row++)
+		{
+			s.set(0, row, row <= 50 ? 1 : 9);
+		}
+		ColumnHistogram f = new ColumnHistogram(0, 0, 10, 2);
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(50, out.get(1, 1));
+		assertEquals(50, out.get(1, 2));
+		assertEquals(3, f.m_offsets.length);
+		assertEquals(2, f.m_rangeStarts.length);
+		assertEquals(51, f.m_rangeStarts[1]);
+		assertEquals(100, f.m_rangeEnds[1]);
+	}
+
+	@Test
+	public void testLog()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 6, "A", 1, 5, 50, 500, -3);
+		ColumnHistogram f = new ColumnHistogram(0, 1, 1000, 3).logScale();
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(4, out.getHeight());
+		assertEquals(1, ((Number) out.get(0, 1)).doubleValue(), 1e-9);
+		assertEquals(10, ((Number) out.get(0, 2)).doubleValue(), 1e-9);
+		assertEquals(100, ((Number) out.get(0, 3)).doubleValue(), 1e-9);
+		assertEquals(2, out.get(1, 1));
+		assertEquals(1, out.get(1, 2));
+		assertEquals(1, out.get(1, 3));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoBuckets()
+	{
+		new ColumnHistogram(0, 0, 10, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testEmptyRange()
+	{
+		new ColumnHistogram(0, 10, 10, 4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testReversedRange()
+	{
+		new ColumnHistogram(0, 10, 0, 4);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLogNonPositiveMin()
+	{
+		// The bounds of the buckets would be NaN
+		new ColumnHistogram(0, 0, 10, 4).logScale();
+	}
+
+	@Test
+	public void testAutoParallel()
+	{
+		Random r = new Random(0);
+		Spreadsheet s = new Spreadsheet(1, 50001);
+		s.set(0, 0, "A");
+		for (int row = 1; row < s.getHeight(); row++)
+		{
+			s.set(0, row, r.nextGaussian());
+		}
+		Spreadsheet out1 = (Spreadsheet) new ColumnHistogram(0).evaluate(s)[0];
+		Spreadsheet out2 = (Spreadsheet) new ColumnHistogram(0).setThreads(4).evaluate(s)[0];
+		assertEquals(out1, out2);
+		assertTrue(out1.getHeight() > 10);
+		int total = 0;
+		for (int row = 1; row < out1.getHeight(); row++)
+		{
+			total += (Integer) out1.get(1, row);
+		}
+		assertEquals(50000, total);
+	}
+}
@@ -0,0 +1,134 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static ca.uqac.lif.dag.NodeConnector.connect;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.function.Circuit;
+import ca.uqac.lif.petitpoucet.function.Fork;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Unit tests for {@link CommonSubexpressions}.
+ */
+public class CommonSubexpressionsTest
+{
+	@Test
+	public void testShared()
+	{
+		Spreadsheet s = getSpreadsheet();
+		Circuit c = new Circuit(1, 2);
+		Fork f = new Fork(2);
+		Sort s1 = new Sort().excludeFirst().by(0), s2 = new Sort().excludeFirst().by(0);
+		Transpose t1 = new Transpose(), t2 = new Transpose();
+		connect(f, 0, s1, 0);
+		connect(f, 1, s2, 0);
+		connect(s1, 0, t1, 0);
+		connect(s2, 0, t2, 0);
+		c.associateInput(0, f.getInputPin(0));
+		c.associateOutput(0, t1.getOutputPin(0));
+		c.associateOutput(1, t2.getOutputPin(0));
+		c.addNodes(f, s1, s2, t1, t2);
+		Object[] expected = c.evaluate(s);
+		// Both the sort and the transposition are shared
+		assertEquals(2, CommonSubexpressions.eliminate(c));
+		assertTrue(s2.getInputLinks(0).isEmpty());
+		assertTrue(t2.getInputLinks(0).isEmpty());
+		assertEquals(t1, c.getAssociatedOutput(1).getNode());
+		Object[] out = c.evaluate(s);
+		assertEquals(expected[0], out[0]);
+		assertEquals(expected[1], out[1]);
+		// A second pass has nothing left to remove
+		assertEquals(0, CommonSubexpressions.eliminate(c));
+	}
+
+	@Test
+	public void testDifferentConfiguration()
+	{
+		Circuit c = new Circuit(1, 2);
+		Fork f = new Fork(2);
+		Sort s1 = new Sort().excludeFirst().by(0), s2 = new Sort().excludeFirst().by(0, false);
+		connect(f, 0, s1, 0);
+		connect(f, 1, s2, 0);
+		c.associateInput(0, f.getInputPin(0));
+		c.associateOutput(0, s1.getOutputPin(0));
+		c.associateOutput(1, s2.getOutputPin(0));
+		c.addNodes(f, s1, s2);
+		assertEquals(0, CommonSubexpressions.eliminate(c));
+	}
+
+	@Test
+	public void testDifferentUpstream()
+	{
+		// Same configuration, but not the same inputs
+		Circuit c = new Circuit(2, 2);
+		CopyFrom c1 = new CopyFrom(Cell.get(0, 0), Cell.get(1, 1)), c2 = new CopyFrom(Cell.get(0, 0), Cell.get(1, 1));
+		c.associateInput(0, c1.getInputPin(0));
+		c.associateInput(1, c2.getInputPin(0));
+		c.associateOutput(0, c1.getOutputPin(0));
+		c.associateOutput(1, c2.getOutputPin(0));
+		c.addNodes(c1, c2);
+		assertEquals(0, CommonSubexpressions.eliminate(c));
+	}
+
+	@Test
+	public void testSharedOutput()
+	{
+		// The shared function feeds several downstream functions through a new
+		// fork, which makes them equivalent in turn
+		Spreadsheet s = getSpreadsheet();
+		Circuit c = new Circuit(1, 3);
+		Fork f = new Fork(3);
+		Resize r1 = new Resize(2, 2), r2 = new Resize(2, 2), r3 = new Resize(2, 3);
+		Transpose t1 = new Transpose(), t2 = new Transpose();
+		RenameColumn n = new RenameColumn("A", "Z");
+		connect(f, 0, r1, 0);
+		connect(f, 1, r2, 0);
+		connect(f, 2, r3, 0);
+		connect(r1, 0, t1, 0);
+		connect(r2, 0, t2, 0);
+		connect(r3, 0, n, 0);
+		c.associateInput(0, f.getInputPin(0));
+		c.associateOutput(0, t1.getOutputPin(0));
+		c.associateOutput(1, t2.getOutputPin(0));
+		c.associateOutput(2, n.getOutputPin(0));
+		c.addNodes(f, r1, r2, r3, t1, t2, n);
+		Object[] expected = c.evaluate(s);
+		assertEquals(2, CommonSubexpressions.eliminate(c));
+		assertEquals(t1, c.getAssociatedOutput(1).getNode());
+		assertEquals(n, c.getAssociatedOutput(2).getNode());
+		Object[] out = c.evaluate(s);
+		for (int i = 0; i < expected.length; i++)
+		{
+			assertEquals(expected[i], out[i]);
+		}
+	}
+
+	protected static Spreadsheet getSpreadsheet()
+	{
+		return Spreadsheet.read(2, 4,
+				"A", "B",
+				3,   "x",
+				1,   "y",
+				2,   "z");
+	}
+}
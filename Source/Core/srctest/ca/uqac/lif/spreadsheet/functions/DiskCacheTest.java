@@ -0,0 +1,237 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Unit tests for {@link DiskCache}.
+ */
+public class DiskCacheTest
+{
+	/**
+	 * Creates an empty temporary directory.
+	 * @return The directory
+	 */
+	protected static File createDirectory() throws IOException
+	{
+		return Files.createTempDirectory("diskcache").toFile();
+	}
+
+	/**
+	 * Deletes a directory and its files.
+	 * @param directory The directory
+	 */
+	protected static void deleteDirectory(File directory)
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File f : files)
+			{
+				f.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		File dir = createDirectory();
+		try
+		{
+			DiskCache cache = new DiskCache(dir, 1000000);
+			Spreadsheet s = Spreadsheet.read(3, 2,
+					"A", "B", "C",
+					1, 2.5, null);
+			s.set(2, 1, true);
+			assertNull(cache.get("f", new long[] {1, 2}));
+			assertTrue(cache.put("f", new long[] {1, 2}, s, null));
+			DiskCache.Result r = cache.get("f", new long[] {1, 2});
+			assertNotNull(r);
+			assertEquals(s, r.getOutput());
+			assertEquals(Integer.valueOf(1), r.getOutput().get(0, 1));
+			assertEquals(Boolean.TRUE, r.getOutput().get(2, 1));
+			assertNull(cache.get("f", new long[] {1, 3}));
+			assertNull(cache.get("g", new long[] {1, 2}));
+			assertEquals(1, cache.getHits());
+			assertEquals(3, cache.getMisses());
+			// Cells that cannot be serialized
+			s.set(0, 0, new Object());
+			assertFalse(cache.put("f", new long[] {4}, s, null));
+		}
+		finally
+		{
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testAcrossRuns() throws IOException
+	{
+		File dir = createDirectory();
+		try
+		{
+			DiskCache cache = new DiskCache(dir, 1000000);
+			Spreadsheet s = Spreadsheet.read(2, 4,
+					"A", "B",
+					3, "a",
+					1, "b",
+					2, "c");
+			CachedFunction f1 = new CachedFunction(new Sort().by(0).excludeFirst(), new ResultCache(), "sort-0");
+			f1.setDiskCache(cache, true);
+			Spreadsheet out = (Spreadsheet) f1.evaluate(s)[0];
+			// A new function with an empty memory cache, as in another run
+			CachedFunction f2 = new CachedFunction(new Sort().by(0).excludeFirst(), new ResultCache(), "sort-0");
+			f2.setDiskCache(new DiskCache(dir, 1000000), true);
+			assertEquals(out, f2.evaluate(s)[0]);
+			assertEquals(1, f2.getCache().getMisses());
+			assertEquals(1, f2.getCache().size());
+			assertExplains(f2, ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 2), NthInput.FIRST));
+		}
+		finally
+		{
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testCorruption() throws IOException
+	{
+		File dir = createDirectory();
+		try
+		{
+			DiskCache cache = new DiskCache(dir, 1000000);
+			cache.put("f", new long[] {1}, Spreadsheet.read(1, 2, "A", 42), null);
+			File f = dir.listFiles()[0];
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			raf.seek(raf.length() - 12);
+			raf.write(7);
+			raf.close();
+			assertNull(cache.get("f", new long[] {1}));
+			assertEquals(1, cache.getCorrupted());
+			assertFalse(f.exists());
+			// Truncated file
+			cache.put("f", new long[] {1}, Spreadsheet.read(1, 2, "A", 42), null);
+			raf = new RandomAccessFile(f, "rw");
+			raf.setLength(5);
+			raf.close();
+			assertNull(cache.get("f", new long[] {1}));
+			assertEquals(2, cache.getCorrupted());
+		}
+		finally
+		{
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testEviction() throws IOException
+	{
+		File dir = createDirectory();
+		try
+		{
+			DiskCache cache = new DiskCache(dir, 1000000);
+			Spreadsheet s = new Spreadsheet(10, 10, 0d);
+			cache.put("f", new long[] {0}, s, null);
+			long size = cache.getSize();
+			cache = new DiskCache(dir, size * 2 + size / 2);
+			new File(dir, dir.list()[0]).setLastModified(System.currentTimeMillis() - 10000);
+			cache.put("f", new long[] {1}, s, null);
+			assertEquals(0, cache.getEvictions());
+			cache.put("f", new long[] {2}, s, null);
+			assertEquals(1, cache.getEvictions());
+			assertEquals(2 * size, cache.getSize());
+			assertNull(cache.get("f", new long[] {0}));
+			assertNotNull(cache.get("f", new long[] {2}));
+		}
+		finally
+		{
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testChecksums() throws IOException
+	{
+		File dir = createDirectory();
+		try
+		{
+			DiskCache cache = new DiskCache(dir, 1000000);
+			assertTrue(cache.put("f", new long[] {1}, new long[] {10}, Spreadsheet.read(1, 2, "A", 42), null));
+			assertNotNull(cache.get("f", new long[] {1}, new long[] {10}));
+			// Same fingerprint, different checksum
+			assertNull(cache.get("f", new long[] {1}, new long[] {11}));
+			assertNull(cache.get("f", new long[] {1}));
+		}
+		finally
+		{
+			deleteDirectory(dir);
+		}
+	}
+
+	@Test
+	public void testWriteError() throws IOException
+	{
+		File dir = createDirectory();
+		DiskCache cache = new DiskCache(dir, 1000000);
+		// The directory disappears: the result is simply not stored
+		deleteDirectory(dir);
+		assertFalse(cache.put("f", new long[] {1}, Spreadsheet.read(1, 2, "A", 42), null));
+		assertEquals(1, cache.getWriteErrors());
+		assertEquals(0, cache.getSize());
+		assertNull(cache.get("f", new long[] {1}));
+	}
+
+	@Test
+	public void testStaleTemporaryFiles() throws IOException
+	{
+		File dir = createDirectory();
+		try
+		{
+			File stale = new File(dir, "0123" + DiskCache.EXTENSION + "42" + DiskCache.TEMP_EXTENSION);
+			File recent = new File(dir, "4567" + DiskCache.EXTENSION + "42" + DiskCache.TEMP_EXTENSION);
+			assertTrue(stale.createNewFile());
+			assertTrue(recent.createNewFile());
+			stale.setLastModified(System.currentTimeMillis() - 2 * DiskCache.STALE_TEMP_AGE);
+			new DiskCache(dir, 1000000);
+			assertFalse(stale.exists());
+			// May still be written by another process
+			assertTrue(recent.exists());
+		}
+		finally
+		{
+			deleteDirectory(dir);
+		}
+	}
+}
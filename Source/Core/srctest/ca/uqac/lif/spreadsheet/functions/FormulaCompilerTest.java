@@ -0,0 +1,221 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+
+import static ca.uqac.lif.dag.NodeConnector.connect;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.Part;
+import ca.uqac.lif.petitpoucet.function.Circuit;
+import ca.uqac.lif.petitpoucet.function.Constant;
+import ca.uqac.lif.petitpoucet.function.Fork;
+import ca.uqac.lif.petitpoucet.function.Function;
+import ca.uqac.lif.petitpoucet.function.FunctionException;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.petitpoucet.function.number.Addition;
+import ca.uqac.lif.petitpoucet.function.number.Division;
+import ca.uqac.lif.petitpoucet.function.number.IsGreaterThan;
+import ca.uqac.lif.petitpoucet.function.number.IsLessThan;
+import ca.uqac.lif.petitpoucet.function.number.Multiplication;
+import ca.uqac.lif.petitpoucet.function.number.Subtraction;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.functions.FormulaCompiler.Evaluator;
+
+/**
+ * Unit tests for {@link FormulaCompiler}.
+ */
+public class FormulaCompilerTest
+{
+	@Test
+	public void testValueOf()
+	{
+		Evaluator e = FormulaCompiler.compile(new ValueOf(1, 2));
+		assertNotNull(e);
+		assertEquals(6, e.evaluate(new Object[] {getSpreadsheet()}));
+	}
+	
+	@Test(expected = FunctionException.class)
+	public void testOutOfBounds()
+	{
+		Evaluator e = FormulaCompiler.compile(new ValueOf(5, 2));
+		e.evaluate(new Object[] {getSpreadsheet()});
+	}
+	
+	@Test
+	public void testSum()
+	{
+		// Same circuit as the one built by ApplyFormula.add
+		Function f = ApplyFormula.getFunction(new Addition(3), Cell.get(0, 1), Cell.get(1, 1), Cell.get(0, 2));
+		Evaluator e = FormulaCompiler.compile(f);
+		assertNotNull(e);
+		assertEquals(9f, e.evaluate(new Object[] {getSpreadsheet()}));
+	}
+	
+	@Test
+	public void testIntrinsics()
+	{
+		Function[] functions = new Function[] {new Subtraction(2), new Multiplication(2),
+				new Division(2), new IsGreaterThan(), new IsLessThan()};
+		for (Function f : functions)
+		{
+			Function compiled = ApplyFormula.getFunction(f, Cell.get(1, 2), Cell.get(0, 2));
+			Function interpreted = ApplyFormula.getFunction(f.duplicate(false), Cell.get(1, 2), Cell.get(0, 2));
+			Evaluator e = FormulaCompiler.compile(compiled);
+			assertTrue(e instanceof FormulaCompiler.Arithmetic);
+			assertEquals(interpreted.evaluate(getSpreadsheet())[0], e.evaluate(new Object[] {getSpreadsheet()}));
+		}
+	}
+	
+	@Test
+	public void testCall()
+	{
+		// (0:1 + 1) > 1:1
+		Circuit c = new Circuit(1, 1);
+		{
+			Fork fork = new Fork(2);
+			ValueOf v1 = new ValueOf(0, 1);
+			ValueOf v2 = new ValueOf(1, 1);
+			Constant one = new Constant(1);
+			Addition add = new Addition(2);
+			IsGreaterThan gt = new IsGreaterThan();
+			connect(fork, 0, v1, 0);
+			connect(fork, 1, v2, 0);
+			connect(v1, 0, add, 0);
+			connect(one, 0, add, 1);
+			connect(add, 0, gt, 0);
+			connect(v2, 0, gt, 1);
+			c.associateInput(0, fork.getInputPin(0));
+			c.associateOutput(0, gt.getOutputPin(0));
+		}
+		Evaluator e = FormulaCompiler.compile(c);
+		assertNotNull(e);
+		assertEquals(true, e.evaluate(new Object[] {getSpreadsheet()}));
+	}
+	
+	@Test
+	public void testUnsupported()
+	{
+		// The output of the addition is used twice
+		Circuit c = new Circuit(1, 1);
+		{
+			ValueOf v = new ValueOf(0, 1);
+			Addition add = new Addition(1);
+			Addition add2 = new Addition(2);
+			connect(v, 0, add, 0);
+			connect(add, 0, add2, 0);
+			connect(add, 0, add2, 1);
+			c.associateInput(0, v.getInputPin(0));
+			c.associateOutput(0, add2.getOutputPin(0));
+		}
+		assertNull(FormulaCompiler.compile(c));
+	}
+	
+	@Test
+	public void testApplyFormula()
+	{
+		Spreadsheet s = Spreadsheet.read(3, 3,
+				"A", "B", "C",
+				3, 1, null,
+				5, 6, null);
+		ApplyFormula compiled = new ApplyFormula(1);
+		ApplyFormula interpreted = new ApplyFormula(1).setCompiled(false);
+		for (ApplyFormula af : new ApplyFormula[] {compiled, interpreted})
+		{
+			af.add(Cell.get(2, 1), new ValueOf(0, 1));
+			af.add(Cell.get(2, 2), new ValueOf(Cell.get(2, 1)));
+		}
+		assertEquals(interpreted.evaluate(s)[0], compiled.evaluate(s)[0]);
+		assertTrue(compiled.m_formulas.get(0).getEvaluator() != null);
+		assertNull(interpreted.m_formulas.get(0).m_evaluator);
+		// No function defers its lineage, so nothing is kept for a replay
+		assertNull(compiled.m_formulas.get(1).m_replayArguments);
+		Part p = ComposedPart.compose(Cell.get(2, 2), NthOutput.FIRST);
+		assertEquals(interpreted.getExplanation(p).getOutputLinks(0).size(), compiled.getExplanation(p).getOutputLinks(0).size());
+	}
+	
+	@Test
+	public void testReplaySnapshot()
+	{
+		Spreadsheet s = getSpreadsheet();
+		CellFormula cf = new CellFormula(Cell.get(1, 2), new ColumnSum().setProvenance(ProvenanceMode.LAZY));
+		assertNotNull(cf.getEvaluator());
+		cf.compute(cf.getFunction(), s);
+		// The caller modifies the spreadsheet after the evaluation
+		s.set(0, 1, 100);
+		Spreadsheet copy = cf.m_replayArguments[0].restore();
+		assertNotSame(s, copy);
+		assertEquals(3, copy.get(0, 1));
+		// The function is evaluated again on the copy before the explanation
+		cf.getExplainedFunction();
+		assertNull(cf.m_replayArguments);
+	}
+	
+	@Test
+	public void testNoSnapshot()
+	{
+		Spreadsheet s = getSpreadsheet();
+		CellFormula arithmetic = new CellFormula(Cell.get(1, 2), ApplyFormula.getFunction(new Addition(2), Cell.get(0, 1), Cell.get(1, 1)));
+		assertEquals(4f, arithmetic.compute(arithmetic.getFunction(), s));
+		assertNull(arithmetic.m_replayArguments);
+		// A function recording its lineage during the evaluation needs no copy
+		CellFormula full = new CellFormula(Cell.get(1, 2), new ColumnSum().setProvenance(ProvenanceMode.FULL));
+		full.compute(full.getFunction(), s);
+		assertNull(full.m_replayArguments);
+		// Neither does an evaluation that does not use the compiled evaluator
+		CellFormula lazy = new CellFormula(Cell.get(1, 2), new ColumnSum().setProvenance(ProvenanceMode.LAZY));
+		lazy.compute(lazy.getFunction(), s);
+		assertNotNull(lazy.m_replayArguments);
+		lazy.setCompiled(false);
+		lazy.compute(lazy.getFunction(), s);
+		assertNull(lazy.m_replayArguments);
+	}
+	
+	@Test
+	public void testSnapshotRanges()
+	{
+		Spreadsheet s = getSpreadsheet();
+		CellFormula.Snapshot snapshot = new CellFormula.Snapshot(s, new CellRange[] {new CellRange(0, 1, 1, 1)});
+		s.set(0, 1, 100);
+		Spreadsheet copy = snapshot.restore();
+		assertEquals(3, copy.get(0, 1));
+		assertEquals(1, copy.get(1, 1));
+		// Cells outside the ranges are not copied
+		assertNull(copy.get(0, 2));
+		// Only the part of a range that lies inside the spreadsheet is copied
+		snapshot = new CellFormula.Snapshot(s, new CellRange[] {new CellRange(1, 0, 1, Integer.MAX_VALUE), new CellRange(5, 0, 6, 1)});
+		copy = snapshot.restore();
+		assertEquals(2, copy.getWidth());
+		assertEquals(3, copy.getHeight());
+		assertEquals(6, copy.get(1, 2));
+		assertNull(copy.get(0, 1));
+	}
+	
+	protected static Spreadsheet getSpreadsheet()
+	{
+		return Spreadsheet.read(2, 3,
+				"A", "B",
+				3, 1,
+				5, 6);
+	}
+}
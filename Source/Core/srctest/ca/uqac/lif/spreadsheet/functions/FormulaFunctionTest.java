@@ -0,0 +1,100 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Unit tests for {@link FormulaFunction}.
+ */
+public class FormulaFunctionTest
+{
+	@Test
+	public void testExplanation()
+	{
+		FormulaFunction f = new FormulaFunction("=A2*2", Cell.get(1, 1));
+		assertEquals(4d, f.evaluate(getSpreadsheet())[0]);
+		assertExplains(f, NthOutput.FIRST, ComposedPart.compose(Cell.get(0, 1), NthInput.FIRST));
+		FormulaFunction g = new FormulaFunction("=SUM(A2:A3)", Cell.get(1, 3));
+		g.evaluate(getSpreadsheet());
+		// The range is explained as a whole, not cell by cell
+		PartNode root = g.getExplanation(NthOutput.FIRST);
+		assertEquals(1, root.getOutputLinks(0).size());
+		assertExplains(g, NthOutput.FIRST, ComposedPart.compose(new CellRange(0, 1, 0, 2), NthInput.FIRST));
+	}
+	
+	@Test
+	public void testLargeRange()
+	{
+		// A formula reading a large range is ordered after the formulas it
+		// reads, without enumerating the cells of the range
+		ApplyFormula af = new ApplyFormula(1);
+		af.add(Cell.get(1, 0), "=SUM(A1:A1000000)");
+		af.add(Cell.get(0, 500000), "=1");
+		int[] order = af.getOrder();
+		assertEquals(1, order[0]);
+		assertEquals(0, order[1]);
+		assertEquals(1, af.m_readers.m_ranges.size());
+		assertTrue(af.m_readers.m_cells.isEmpty());
+	}
+	
+	@Test
+	public void testApplyFormula()
+	{
+		// Column B holds a running total of column A, filled down
+		ApplyFormula af = new ApplyFormula(1);
+		af.add(Cell.get(1, 1), "=A2");
+		af.add(Cell.get(1, 3), "=B3+A4");
+		af.add(Cell.get(1, 2), "=B2+A3");
+		Spreadsheet out = (Spreadsheet) af.evaluate(getSpreadsheet())[0];
+		assertEquals(2, out.get(1, 1));
+		assertEquals(7d, out.get(1, 2));
+		assertEquals(8d, out.get(1, 3));
+		// The two filled-down formulas share the same parsed formula
+		FormulaFunction f1 = (FormulaFunction) af.m_formulas.get(1).getFunction();
+		FormulaFunction f2 = (FormulaFunction) af.m_formulas.get(2).getFunction();
+		assertSame(f1.getFormula(), f2.getFormula());
+		Set<Cell> deps = new HashSet<Cell>();
+		deps.add(Cell.get(1, 2));
+		deps.add(Cell.get(0, 3));
+		assertEquals(deps, af.m_formulas.get(1).getDependencies());
+	}
+	
+	protected static Spreadsheet getSpreadsheet()
+	{
+		return Spreadsheet.read(2, 4,
+				"A", "B",
+				2, null,
+				5, null,
+				1, null);
+	}
+}
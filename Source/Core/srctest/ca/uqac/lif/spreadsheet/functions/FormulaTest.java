@@ -0,0 +1,168 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import ca.uqac.lif.spreadsheet.CellRange;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Unit tests for {@link Formula}.
+ */
+public class FormulaTest
+{
+	@Test
+	public void testArithmetic()
+	{
+		Spreadsheet s = getSpreadsheet();
+		assertEquals(5d, eval("=A2+B2*2", s));
+		assertEquals(-1d, eval("=-(A2 - B2) ^ 2", s));
+		assertEquals(2.5d, eval("= 5 / 2", s));
+		// Not a number
+		assertNull(eval("=A1+1", s));
+		assertNull(eval("=0/0", s));
+		// Out of the spreadsheet
+		assertNull(eval("=Z99", s));
+	}
+	
+	@Test
+	public void testFunctions()
+	{
+		Spreadsheet s = getSpreadsheet();
+		assertEquals(12d, eval("=SUM(A2:B4)", s));
+		assertEquals(3d, eval("=SUM(A2:A4)/B2", s));
+		assertEquals(2d, eval("=AVERAGE(A2:A4)", s));
+		assertEquals(1d, eval("=MIN(A2:B4)", s));
+		assertEquals(3d, eval("=max(a2:a4)", s));
+		assertEquals(7d, eval("=COUNT(A1:B4, 7)", s));
+		assertEquals("big", eval("=IF(SUM(A2:A4)>5, \"big\", \"small\")", s));
+		assertEquals(Boolean.TRUE, eval("=A1=\"A\"", s));
+		assertEquals(Boolean.TRUE, eval("=A2<>B2", s));
+		assertNull(eval("=IF(FALSE, 1)", s));
+		// Ranges beyond the spreadsheet are truncated
+		assertEquals(12d, eval("=SUM(A1:Z100)", s));
+	}
+	
+	@Test
+	public void testRelative()
+	{
+		Spreadsheet s = getSpreadsheet();
+		Formula.clearCache();
+		Formula f1 = Formula.parse("=A2+B2", 2, 1);
+		Formula f2 = Formula.parse("=A3 + B3", 2, 2);
+		Formula f3 = Formula.parse("=$A$2+B3", 2, 2);
+		assertSame(f1, f2);
+		assertNotSame(f1, f3);
+		assertEquals(2, Formula.getCacheSize());
+		assertEquals(3d, f1.evaluate(s, 2, 1));
+		assertEquals(5d, f1.evaluate(s, 2, 2));
+		assertEquals(4d, f3.evaluate(s, 2, 2));
+		assertEquals(2d, f3.evaluate(s, 2, 3));
+	}
+	
+	@Test
+	public void testRanges()
+	{
+		Formula f = Formula.parse("=SUM(A2:B$4)+C1", 3, 0);
+		List<CellRange> ranges = f.getRanges(3, 1);
+		assertEquals(2, ranges.size());
+		assertEquals(new CellRange(0, 2, 1, 3), ranges.get(0));
+		assertEquals(4, ranges.get(0).size());
+		assertEquals(new CellRange(2, 1, 2, 1), ranges.get(1));
+	}
+	
+	@Test(expected = FormulaSyntaxException.class)
+	public void testSyntax1()
+	{
+		Formula.parse("=A1+", 0, 0);
+	}
+	
+	@Test(expected = FormulaSyntaxException.class)
+	public void testSyntax2()
+	{
+		Formula.parse("=FOO(A1)", 0, 0);
+	}
+	
+	@Test(expected = FormulaSyntaxException.class)
+	public void testSyntax3()
+	{
+		Formula.parse("=(A1", 0, 0);
+	}
+	
+	@Test(expected = FormulaSyntaxException.class)
+	public void testSyntaxRowZero()
+	{
+		Formula.parse("=A0+1", 0, 0);
+	}
+	
+	@Test(expected = FormulaSyntaxException.class)
+	public void testSyntaxRowOverflow()
+	{
+		Formula.parse("=A99999999999", 0, 0);
+	}
+	
+	@Test(expected = FormulaSyntaxException.class)
+	public void testSyntaxColumnOverflow()
+	{
+		Formula.parse("=SUM(AAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAAA1)", 0, 0);
+	}
+	
+	@Test(expected = FormulaSyntaxException.class)
+	public void testSyntaxRangeOperand()
+	{
+		Formula.parse("=A1:A3+1", 0, 0);
+	}
+	
+	@Test(expected = FormulaSyntaxException.class)
+	public void testSyntaxRangeAlone()
+	{
+		Formula.parse("=(A1:A3)", 0, 0);
+	}
+	
+	@Test(expected = FormulaSyntaxException.class)
+	public void testSyntaxRangeCondition()
+	{
+		Formula.parse("=IF(A1:A3,1,2)", 0, 0);
+	}
+	
+	@Test
+	public void testRangeInAggregate()
+	{
+		// A range between parentheses is still a range
+		assertEquals(5d, eval("=SUM((A1:A2))+MAX(A1:A2)", Spreadsheet.read(1, 2, 1, 2)));
+	}
+	
+	protected static Object eval(String text, Spreadsheet s)
+	{
+		return Formula.parse(text, 2, 1).evaluate(s, 2, 1);
+	}
+	
+	protected static Spreadsheet getSpreadsheet()
+	{
+		return Spreadsheet.read(3, 4,
+				"A", "B", null,
+				1, 2, null,
+				2, 3, null,
+				3, 1, null);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import ca.uqac.lif.dag.Node;
+import ca.uqac.lif.dag.NodeConnector;
+import ca.uqac.lif.petitpoucet.function.Fork;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.functions.ColumnAggregate.Aggregate;
+import ca.uqac.lif.spreadsheet.functions.SpreadsheetFunction.InputCell;
+
+/**
+ * Unit tests for {@link ForwardLineage} and the implementations of
+ * {@link ForwardLineage.Traceable}.
+ */
+public class ForwardLineageTest
+{
+	@Test
+	public void testSort()
+	{
+		Sort f = new Sort().by(0).excludeFirst();
+		f.evaluate(getSpreadsheet());
+		assertArrayEquals(new Cell[] {Cell.get(1, 1)}, f.dependents(0, Cell.get(1, 2)));
+		assertArrayEquals(new Cell[] {Cell.get(0, 0)}, f.dependents(0, Cell.get(0, 0)));
+		assertEquals(0, f.dependents(0, Cell.get(0, 7)).length);
+		assertEquals(0, f.dependents(1, Cell.get(0, 1)).length);
+	}
+	
+	@Test
+	public void testMerge()
+	{
+		Spreadsheet s1 = Spreadsheet.read(3, 3,
+				"A", "B", "C",
+				3, 1, 4,
+				1, 5, 9);
+		Spreadsheet s2 = Spreadsheet.read(3, 3,
+				"A", "D", "E",
+				3, 2, 7,
+				1, 1, 8);
+		Merge f = new Merge();
+		f.evaluate(s1, s2);
+		// Each output cell is explained by its input cell, and the inverse holds
+		for (InputCell c : new InputCell[] {InputCell.get(1, 1, 1), InputCell.get(2, 2, 0)})
+		{
+			for (Cell out : f.dependents(c.m_index, c))
+			{
+				assertTrue(Arrays.asList(f.trackToInput(out.getColumn(), out.getRow())).contains(c));
+			}
+		}
+		assertArrayEquals(new Cell[] {Cell.get(3, 1)}, f.dependents(1, Cell.get(1, 1)));
+	}
+	
+	@Test
+	public void testAggregate()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 4,
+				"A",
+				3,
+				1,
+				2);
+		ColumnAggregate f = new ColumnAggregate(Aggregate.SUM, Aggregate.MIN, Aggregate.MAX);
+		f.evaluate(s);
+		assertArrayEquals(new Cell[] {Cell.get(0, 1), Cell.get(0, 2)}, f.dependents(0, Cell.get(0, 2)));
+		assertArrayEquals(new Cell[] {Cell.get(0, 1), Cell.get(0, 3)}, f.dependents(0, Cell.get(0, 1)));
+		assertArrayEquals(new Cell[] {Cell.get(0, 1)}, f.dependents(0, Cell.get(0, 3)));
+		assertArrayEquals(new Cell[] {Cell.get(0, 0)}, f.dependents(0, Cell.get(0, 0)));
+	}
+	
+	@Test
+	public void testHistogram()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 6,
+				"A",
+				1,
+				3,
+				1,
+				3,
+				"x");
+		ColumnHistogram f = new ColumnHistogram(0, 0, 4, 2);
+		f.evaluate(s);
+		assertArrayEquals(new Cell[] {Cell.get(1, 1)}, f.dependents(0, Cell.get(0, 3)));
+		assertArrayEquals(new Cell[] {Cell.get(1, 2)}, f.dependents(0, Cell.get(0, 4)));
+		assertArrayEquals(new Cell[] {Cell.get(1, 0)}, f.dependents(0, Cell.get(0, 0)));
+		assertEquals(0, f.dependents(0, Cell.get(0, 5)).length);
+	}
+	
+	@Test
+	public void testNone()
+	{
+		Sort f = new Sort().by(0).excludeFirst();
+		f.setProvenance(ProvenanceMode.NONE);
+		f.evaluate(getSpreadsheet());
+		assertEquals(0, f.dependents(0, Cell.get(1, 2)).length);
+		f.setProvenance(ProvenanceMode.LAZY);
+		f.evaluate(getSpreadsheet());
+		assertArrayEquals(new Cell[] {Cell.get(1, 1)}, f.dependents(0, Cell.get(1, 2)));
+	}
+	
+	@Test
+	public void testTrace()
+	{
+		Sort sort = new Sort().by(0).excludeFirst();
+		Fork fork = new Fork(2);
+		Transpose t1 = new Transpose();
+		ColumnAggregate t2 = new ColumnAggregate(Aggregate.SUM);
+		NodeConnector.connect(sort, 0, fork, 0);
+		NodeConnector.connect(fork, 0, t1, 0);
+		NodeConnector.connect(fork, 1, t2, 0);
+		Spreadsheet sorted = (Spreadsheet) sort.evaluate(getSpreadsheet())[0];
+		t1.evaluate(sorted);
+		t2.evaluate(sorted);
+		Map<Node,Set<Cell>> affected = ForwardLineage.trace(sort, 0, Cell.get(0, 2));
+		assertEquals(2, affected.size());
+		assertEquals(1, affected.get(t1).size());
+		assertTrue(affected.get(t1).contains(Cell.get(1, 0)));
+		assertEquals(1, affected.get(t2).size());
+		assertTrue(affected.get(t2).contains(Cell.get(0, 1)));
+	}
+	
+	protected static Spreadsheet getSpreadsheet()
+	{
+		return Spreadsheet.read(2, 5,
+				"A", "B",
+				3, "a",
+				1, "b",
+				4, "c",
+				2, "d");
+	}
+}
@@ -0,0 +1,189 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static ca.uqac.lif.dag.NodeConnector.connect;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertNotExplains;
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ca.uqac.lif.dag.Node;
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.function.AtomicFunction;
+import ca.uqac.lif.petitpoucet.function.Circuit;
+import ca.uqac.lif.petitpoucet.function.FunctionException;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Unit tests for {@link FusedRemap}.
+ */
+public class FusedRemapTest
+{
+	@Test
+	public void testChain()
+	{
+		Spreadsheet s = Spreadsheet.read(4, 4,
+				"x", "A", "B", "C",
+				"y", 3,   1,   2,
+				"z", 6,   5,   4,
+				"t", 0,   0,   0);
+		// Keep rows y and z, put the columns as rows, add an empty row, then
+		// sort on column 1 (where the empty cell comes first)
+		FusedRemap f = new FusedRemap(new CopyFrom(Cell.get(0, 0), Cell.get(3, 2)), new Transpose(), new Resize(3, 5), new Sort().by(1).excludeFirst());
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(Spreadsheet.read(3, 5,
+				"x",  "y",  "z",
+				null, null, null,
+				"B",  1,    5,
+				"C",  2,    4,
+				"A",  3,    6), out);
+		assertEquals(out, evaluateChain(s, f.m_chain.toArray(new AtomicFunction[0])));
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 2), NthOutput.FIRST), ComposedPart.compose(Cell.get(2, 1), NthInput.FIRST));
+		assertExplains(f, ComposedPart.compose(Cell.get(0, 4), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 0), NthInput.FIRST));
+		assertExplains(f, ComposedPart.compose(Cell.get(2, 3), NthOutput.FIRST), ComposedPart.compose(Cell.get(3, 2), NthInput.FIRST));
+		assertNotExplains(f, ComposedPart.compose(Cell.get(0, 1), NthOutput.FIRST));
+		Cell[] deps = f.dependents(0, Cell.get(3, 2));
+		assertEquals(1, deps.length);
+		assertEquals(Cell.get(2, 3), deps[0]);
+		assertEquals(0, f.dependents(0, Cell.get(1, 3)).length);
+	}
+
+	@Test
+	public void testRandom()
+	{
+		Random r = new Random(0);
+		for (int i = 0; i < 50; i++)
+		{
+			int width = 1 + r.nextInt(6), height = 1 + r.nextInt(8);
+			Spreadsheet s = new Spreadsheet(width, height);
+			for (int row = 0; row < height; row++)
+			{
+				for (int col = 0; col < width; col++)
+				{
+					s.set(col, row, r.nextInt(5));
+				}
+			}
+			FusedRemap f = new FusedRemap(new Sort().by(0), new Transpose(), new Resize(1 + r.nextInt(8), 1 + r.nextInt(8)), new Sort().by(0, false).excludeFirst(), new Transpose(), new CopyFrom(Cell.get(r.nextInt(2), r.nextInt(2)), Cell.get(2 + r.nextInt(4), 2 + r.nextInt(4))));
+			Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+			assertEquals(evaluateChain(s, f.m_chain.toArray(new AtomicFunction[0])), out);
+			// Every explained output cell is a copy of its input cell
+			for (int row = 0; row < out.getHeight(); row++)
+			{
+				for (int col = 0; col < out.getWidth(); col++)
+				{
+					SpreadsheetFunction.InputCell[] cells = f.trackToInput(col, row);
+					if (cells.length == 1)
+					{
+						assertEquals(s.get(cells[0].getColumn(), cells[0].getRow()), out.get(col, row));
+						Cell[] deps = f.dependents(0, cells[0]);
+						assertEquals(1, deps.length);
+						assertEquals(Cell.get(col, row), deps[0]);
+					}
+					else
+					{
+						assertNull(out.get(col, row));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFuseCircuit()
+	{
+		Circuit c = new Circuit(1, 1);
+		{
+			Transpose t = new Transpose();
+			Sort s = new Sort().by(0);
+			connect(t, 0, s, 0);
+			c.associateInput(0, t.getInputPin(0));
+			c.associateOutput(0, s.getOutputPin(0));
+		}
+		assertEquals(1, FusedRemap.fuse(c));
+		FusedRemap f = (FusedRemap) c.getAssociatedOutput(0).getNode();
+		assertSame(f, c.getAssociatedInput(0).getNode());
+		assertEquals(2, f.m_chain.size());
+		Spreadsheet s = Spreadsheet.read(2, 2, 2, 1, 0, 3);
+		assertEquals(Spreadsheet.read(2, 2, 1, 3, 2, 0), c.evaluate(s)[0]);
+		Circuit c2 = new Circuit(1, 1);
+		{
+			Transpose t = new Transpose();
+			RenameColumn rc = new RenameColumn("x", "A");
+			connect(t, 0, rc, 0);
+			c2.associateInput(0, t.getInputPin(0));
+			c2.associateOutput(0, rc.getOutputPin(0));
+		}
+		assertEquals(0, FusedRemap.fuse(c2));
+		assertTrue(c2.getAssociatedOutput(0).getNode() instanceof RenameColumn);
+	}
+
+	@Test
+	public void testFuseSubChains()
+	{
+		// sort, resize | rename | transpose, transpose
+		Circuit c = new Circuit(1, 1);
+		Resize r = new Resize(2, 3);
+		RenameColumn rc = new RenameColumn("x", "z");
+		{
+			Sort s = new Sort().by(0);
+			Transpose t1 = new Transpose();
+			Transpose t2 = new Transpose();
+			connect(s, 0, r, 0);
+			connect(r, 0, rc, 0);
+			connect(rc, 0, t1, 0);
+			connect(t1, 0, t2, 0);
+			c.associateInput(0, s.getInputPin(0));
+			c.associateOutput(0, t2.getOutputPin(0));
+		}
+		Spreadsheet s = Spreadsheet.read(2, 4, "x", "y", 2, 1, 0, 3, 1, 5);
+		Object expected = c.evaluate(s)[0];
+		assertEquals(2, FusedRemap.fuse(c));
+		Node first = c.getAssociatedInput(0).getNode();
+		Node last = c.getAssociatedOutput(0).getNode();
+		assertTrue(first instanceof FusedRemap);
+		assertTrue(last instanceof FusedRemap);
+		assertSame(rc, first.getOutputLinks(0).get(0).getNode());
+		assertSame(last, rc.getOutputLinks(0).get(0).getNode());
+		// The replaced functions are disconnected
+		assertTrue(r.getOutputLinks(0).isEmpty());
+		assertEquals(expected, c.evaluate(s)[0]);
+	}
+
+	@Test(expected = FunctionException.class)
+	public void testNotFusable()
+	{
+		new FusedRemap(new Transpose(), new RenameColumn("x", "A"));
+	}
+
+	protected static Spreadsheet evaluateChain(Spreadsheet s, AtomicFunction ... chain)
+	{
+		Object o = s;
+		for (AtomicFunction f : chain)
+		{
+			o = f.duplicate(false).evaluate(o)[0];
+		}
+		return (Spreadsheet) o;
+	}
+}
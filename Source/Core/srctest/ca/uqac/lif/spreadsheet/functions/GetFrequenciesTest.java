@@ -19,8 +19,10 @@ package ca.uqac.lif.spreadsheet.functions;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -28,6 +30,7 @@ import ca.uqac.lif.petitpoucet.AndNode;
 import ca.uqac.lif.petitpoucet.ComposedPart;
 import ca.uqac.lif.petitpoucet.Part;
 import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
 import ca.uqac.lif.petitpoucet.function.NthInput;
 import ca.uqac.lif.petitpoucet.function.NthOutput;
 import ca.uqac.lif.petitpoucet.function.vector.NthElement;
@@ -119,4 +122,51 @@ public class GetFrequenciesTest
 			assertEquals(ComposedPart.compose(new NthElement(2), NthInput.FIRST), child.getPart());	
 		}
 	}
+	
+	@Test
+	public void testParallel()
+	{
+		List<Double[]> list = new ArrayList<Double[]>();
+		Random r = new Random(0);
+		for (int i = 0; i < 100000; i++)
+		{
+			list.add(createPair(r.nextDouble() * 12, r.nextDouble() * 6));
+		}
+		GetFrequencies f1 = new GetFrequencies(0, 12, 4, 0, 6, 3);
+		GetFrequencies f2 = new GetFrequencies(0, 12, 4, 0, 6, 3).setThreads(4);
+		Spreadsheet out1 = (Spreadsheet) f1.evaluate(list)[0];
+		Spreadsheet out2 = (Spreadsheet) f2.evaluate(list)[0];
+		assertEquals(out1, out2);
+		PartNode root1 = f1.getExplanation(ComposedPart.compose(Cell.get(2, 3), NthOutput.FIRST));
+		PartNode root2 = f2.getExplanation(ComposedPart.compose(Cell.get(2, 3), NthOutput.FIRST));
+		AndNode and1 = (AndNode) root1.getOutputLinks(0).get(0).getNode();
+		AndNode and2 = (AndNode) root2.getOutputLinks(0).get(0).getNode();
+		assertEquals(((Number) out1.get(2, 3)).intValue(), and1.getOutputLinks(0).size());
+		for (int i = 0; i < and1.getOutputLinks(0).size(); i++)
+		{
+			PartNode child1 = (PartNode) and1.getOutputLinks(0).get(i).getNode();
+			PartNode child2 = (PartNode) and2.getOutputLinks(0).get(i).getNode();
+			assertEquals(child1.getPart(), child2.getPart());
+		}
+	}
+	
+	@Test
+	public void testMixedPairs()
+	{
+		GetFrequencies f = new GetFrequencies(0, 12, 4, 0, 6, 3);
+		List<Object> list = Arrays.asList(
+				Arrays.asList(1, 1),
+				new Object[] {"3", 5f},
+				new double[] {2, 1});
+		Spreadsheet out = (Spreadsheet) f.evaluate(list)[0];
+		assertEquals(2, ((Number) out.get(1, 1)).intValue());
+		assertEquals(1, ((Number) out.get(2, 3)).intValue());
+	}
+	
+	@Test(expected = InvalidArgumentTypeException.class)
+	public void testInvalidPair()
+	{
+		GetFrequencies f = new GetFrequencies(0, 12, 4, 0, 6, 3);
+		f.evaluate(Arrays.asList(createPair(1, 1), "foo"));
+	}
 }
@@ -0,0 +1,192 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.AndNode;
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.FunctionException;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.functions.ColumnAggregate.Aggregate;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+
+/**
+ * Unit tests for {@link GroupBy}.
+ */
+public class GroupByTest
+{
+	@Test
+	public void test1()
+	{
+		GroupBy f = new GroupBy("Algorithm", "Size").aggregate("Time", Aggregate.MEAN);
+		Spreadsheet out = (Spreadsheet) f.evaluate(getSpreadsheet())[0];
+		assertEquals(Spreadsheet.read(3, 5,
+				"Algorithm", "Size", "MEAN(Time)",
+				"A",         10,     4d,
+				"B",         10,     8d,
+				"A",         20,     7d,
+				"B",         20,     null), out);
+	}
+
+	@Test
+	public void testAllAggregates()
+	{
+		GroupBy f = new GroupBy("Algorithm")
+				.aggregate("Time", Aggregate.COUNT, "n")
+				.aggregate("Time", Aggregate.SUM, "sum")
+				.aggregate("Time", Aggregate.MIN, "min")
+				.aggregate("Time", Aggregate.MAX, "max")
+				.aggregate("Time", Aggregate.VARIANCE, "var")
+				.aggregate("Time", Aggregate.NULL_COUNT, "nulls")
+				.quantile("Time", 0.5, "median");
+		// With few values, quantiles are exact and rounded down
+		Spreadsheet out = (Spreadsheet) f.evaluate(getSpreadsheet())[0];
+		assertEquals(Spreadsheet.read(8, 3,
+				"Algorithm", "n", "sum", "min", "max", "var", "nulls", "median",
+				"A",         3,   15d,   3d,    7d,    4d,    0,       3d,
+				"B",         1,   8d,    8d,    8d,    null,  1,       8d), out);
+	}
+
+	@Test(expected = FunctionException.class)
+	public void testMissingColumn()
+	{
+		new GroupBy("Foo").evaluate(getSpreadsheet());
+	}
+
+	@Test
+	public void testNumericKeys()
+	{
+		// Numbers with the same value are in the same group
+		Spreadsheet s = Spreadsheet.read(2, 5,
+				"K", "V",
+				1,   2,
+				1d,  4,
+				null, 1,
+				2,   3);
+		Spreadsheet out = (Spreadsheet) new GroupBy("K").aggregate("V", Aggregate.SUM, "S").evaluate(s)[0];
+		assertEquals(Spreadsheet.read(2, 4,
+				"K",  "S",
+				1,    6d,
+				null, 1d,
+				2,    3d), out);
+	}
+
+	@Test
+	public void testExplanation()
+	{
+		GroupBy f = new GroupBy("Algorithm").aggregate("Time", Aggregate.MAX).aggregate("Time", Aggregate.MEAN);
+		f.evaluate(getSpreadsheet());
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 0), NthOutput.FIRST), ComposedPart.compose(Cell.get(2, 0), NthInput.FIRST));
+		assertExplains(f, ComposedPart.compose(Cell.get(0, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(0, 1), NthInput.FIRST));
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(2, 4), NthInput.FIRST));
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(2, 1), NthOutput.FIRST));
+		AndNode and = (AndNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(3, and.getOutputLinks(0).size());
+		assertEquals(ComposedPart.compose(Cell.get(2, 1), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(0).getNode()).getPart());
+		assertEquals(ComposedPart.compose(Cell.get(2, 3), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(1).getNode()).getPart());
+		assertEquals(ComposedPart.compose(Cell.get(2, 4), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(2).getNode()).getPart());
+		// Empty cells are part of the group
+		root = f.getExplanation(ComposedPart.compose(Cell.get(2, 2), NthOutput.FIRST));
+		and = (AndNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(2, and.getOutputLinks(0).size());
+		assertEquals(ComposedPart.compose(Cell.get(2, 5), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(1).getNode()).getPart());
+	}
+
+	@Test
+	public void testCompactRanges()
+	{
+		GroupBy f = new GroupBy("Algorithm").aggregate("Time", Aggregate.SUM);
+		f.compactRanges(true);
+		f.evaluate(getSpreadsheet());
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST));
+		AndNode and = (AndNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(2, and.getOutputLinks(0).size());
+		assertEquals(ComposedPart.compose(Cell.get(2, 1), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(0).getNode()).getPart());
+		assertEquals(ComposedPart.compose(new CellRange(2, 3, 2, 4), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(1).getNode()).getPart());
+	}
+
+	@Test
+	public void testDependents()
+	{
+		GroupBy f = new GroupBy("Algorithm").aggregate("Time", Aggregate.MAX).aggregate("Time", Aggregate.MEAN);
+		f.evaluate(getSpreadsheet());
+		assertArrayEquals(new Cell[] {Cell.get(0, 1)}, f.dependents(0, Cell.get(0, 1)));
+		assertEquals(0, f.dependents(0, Cell.get(0, 3)).length);
+		assertArrayEquals(new Cell[] {Cell.get(2, 1)}, f.dependents(0, Cell.get(2, 3)));
+		assertArrayEquals(new Cell[] {Cell.get(1, 1), Cell.get(2, 1)}, f.dependents(0, Cell.get(2, 4)));
+		assertEquals(0, f.dependents(0, Cell.get(1, 4)).length);
+	}
+
+	@Test
+	public void testParallel()
+	{
+		Random r = new Random(0);
+		Spreadsheet s = new Spreadsheet(3, 40001);
+		s.set(0, 0, "K");
+		s.set(1, 0, "L");
+		s.set(2, 0, "V");
+		for (int row = 1; row < s.getHeight(); row++)
+		{
+			s.set(0, row, r.nextInt(50));
+			s.set(1, row, r.nextBoolean() ? "x" : "y");
+			s.set(2, row, r.nextGaussian());
+		}
+		GroupBy f1 = new GroupBy("K", "L").aggregate("V", Aggregate.MEAN).aggregate("V", Aggregate.MIN).aggregate("V", Aggregate.COUNT);
+		GroupBy f2 = f1.duplicate(false).setThreads(4);
+		Spreadsheet out1 = (Spreadsheet) f1.evaluate(s)[0];
+		Spreadsheet out2 = (Spreadsheet) f2.evaluate(s)[0];
+		assertEquals(101, out1.getHeight());
+		assertEquals(out1.getHeight(), out2.getHeight());
+		for (int row = 0; row < out1.getHeight(); row++)
+		{
+			assertEquals(out1.get(0, row), out2.get(0, row));
+			assertEquals(out1.get(1, row), out2.get(1, row));
+			assertEquals(out1.get(4, row), out2.get(4, row));
+			if (row > 0)
+			{
+				assertEquals(((Number) out1.get(2, row)).doubleValue(), ((Number) out2.get(2, row)).doubleValue(), 1e-9);
+				assertEquals(out1.get(3, row), out2.get(3, row));
+			}
+		}
+		// The minimum of a group is explained by the same cell
+		PartNode root1 = f1.getExplanation(ComposedPart.compose(Cell.get(3, 10), NthOutput.FIRST));
+		PartNode root2 = f2.getExplanation(ComposedPart.compose(Cell.get(3, 10), NthOutput.FIRST));
+		assertEquals(((PartNode) root1.getOutputLinks(0).get(0).getNode()).getPart(), ((PartNode) root2.getOutputLinks(0).get(0).getNode()).getPart());
+	}
+
+	protected static Spreadsheet getSpreadsheet()
+	{
+		return Spreadsheet.read(3, 6,
+				"Algorithm", "Size", "Time",
+				"A",         10,     3,
+				"B",         10,     8,
+				"A",         10,     5,
+				"A",         20,     7,
+				"B",         20,     null);
+	}
+}
@@ -0,0 +1,263 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import ca.uqac.lif.dag.Node;
+import ca.uqac.lif.petitpoucet.AndNode;
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.UnknownNode;
+import ca.uqac.lif.petitpoucet.function.AtomicFunction;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.petitpoucet.function.vector.NthElement;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Unit tests for {@link ProvenanceMode}.
+ */
+public class ProvenanceModeTest
+{
+	@Test
+	public void testSortNone()
+	{
+		Spreadsheet s = Spreadsheet.read(2, 5,
+				"A", "B",
+				3, "a",
+				1, "b",
+				4, "c",
+				2, "d");
+		Sort full = new Sort().by(0).excludeFirst();
+		Sort none = (Sort) new Sort().by(0).excludeFirst().setProvenance(ProvenanceMode.NONE);
+		assertEquals(full.evaluate(s)[0], none.evaluate(s)[0]);
+		assertNull(none.m_mapping);
+		assertUnknown(none, 1, 1);
+		assertEquals(0, none.trackToInput(1, 1).length);
+		assertEquals(1, full.trackToInput(1, 1).length);
+	}
+	
+	@Test
+	public void testMergeNone()
+	{
+		Spreadsheet s1 = Spreadsheet.read(2, 3,
+				"A", "B",
+				0, 1,
+				1, 2);
+		Spreadsheet s2 = Spreadsheet.read(2, 3,
+				"A", "C",
+				0, 3,
+				1, 4);
+		Merge full = new Merge();
+		Merge none = new Merge();
+		none.setProvenance(ProvenanceMode.NONE);
+		assertEquals(full.evaluate(s1, s2)[0], none.evaluate(s1, s2)[0]);
+		assertNull(none.m_mapping);
+		assertUnknown(none, 2, 1);
+	}
+	
+	@Test
+	public void testRowNone()
+	{
+		Spreadsheet s = Spreadsheet.read(2, 2,
+				"A", "B",
+				0, 1);
+		// Rows built without lineage do not store the origin of their cells
+		Merge none = new Merge();
+		none.setProvenance(ProvenanceMode.NONE);
+		none.evaluate(s, s);
+		SpreadsheetFunction.Row r = none.new Row(new Object[] {0, 1, 2}, 1);
+		r.add("C", 3, null);
+		assertNull(r.m_staticOrigins);
+		assertNull(r.m_otherOrigins);
+		Merge full = new Merge();
+		full.evaluate(s, s);
+		r = full.new Row(new Object[] {0, 1, 2}, 1);
+		assertEquals(1, r.m_staticOrigins.length);
+		assertNotNull(r.m_otherOrigins);
+	}
+	
+	@Test
+	public void testHistogramNone()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 5,
+				"A",
+				1,
+				2,
+				3,
+				4);
+		ColumnHistogram full = new ColumnHistogram(0, 0, 4, 2);
+		ColumnHistogram none = new ColumnHistogram(0, 0, 4, 2);
+		none.setProvenance(ProvenanceMode.NONE);
+		assertEquals(full.evaluate(s)[0], none.evaluate(s)[0]);
+		assertUnknown(none, 1, 1);
+	}
+	
+	@Test
+	public void testFrequenciesNone()
+	{
+		List<Object> pairs = new ArrayList<Object>();
+		pairs.add(new double[] {0.5, 0.5});
+		pairs.add(new double[] {1.5, 0.5});
+		pairs.add(new double[] {0.5, 0.5});
+		GetFrequencies full = new GetFrequencies(0, 2, 2, 0, 2, 2);
+		GetFrequencies none = new GetFrequencies(0, 2, 2, 0, 2, 2);
+		none.setProvenance(ProvenanceMode.NONE);
+		assertEquals(full.evaluate(pairs)[0], none.evaluate(pairs)[0]);
+		assertNull(none.m_indices);
+		assertUnknown(none, 1, 1);
+	}
+	
+	@Test
+	public void testDefault()
+	{
+		Spreadsheet s = Spreadsheet.read(2, 3,
+				"A", "B",
+				0, 1,
+				1, 2);
+		Transpose t1 = new Transpose();
+		Transpose t2 = new Transpose();
+		t2.setProvenance(ProvenanceMode.FULL);
+		assertEquals(ProvenanceMode.FULL, t1.getProvenance());
+		try
+		{
+			ProvenanceMode.setDefault(ProvenanceMode.NONE);
+			assertEquals(ProvenanceMode.NONE, t1.getProvenance());
+			t1.evaluate(s);
+			t2.evaluate(s);
+			assertNull(t1.m_mapping);
+			assertNotNull(t2.m_mapping);
+			assertEquals(ProvenanceMode.NONE, t1.duplicate(false).getProvenance());
+			assertEquals(ProvenanceMode.FULL, t2.duplicate(false).getProvenance());
+		}
+		finally
+		{
+			ProvenanceMode.setDefault(ProvenanceMode.FULL);
+		}
+		t1.evaluate(s);
+		assertNotNull(t1.m_mapping);
+	}
+	
+	@Test
+	public void testSetGroup()
+	{
+		Sort f1 = new Sort();
+		Transpose f2 = new Transpose();
+		ProvenanceMode.set(ProvenanceMode.NONE, f1, f2, "not a function");
+		assertEquals(ProvenanceMode.NONE, f1.getProvenance());
+		assertEquals(ProvenanceMode.NONE, f2.getProvenance());
+		ProvenanceMode.set(null, f1, f2);
+		assertEquals(ProvenanceMode.FULL, f1.getProvenance());
+		assertEquals(ProvenanceMode.FULL, f2.getProvenance());
+	}
+	
+	@Test
+	public void testSortLazy()
+	{
+		Spreadsheet s = Spreadsheet.read(2, 5,
+				"A", "B",
+				3, "a",
+				1, "b",
+				4, "c",
+				2, "d");
+		Sort f = new Sort().by(0).excludeFirst();
+		f.setProvenance(ProvenanceMode.LAZY);
+		f.evaluate(s);
+		assertNull(f.m_mapping);
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 2), NthInput.FIRST));
+		assertNotNull(f.m_mapping);
+		assertExplains(f, ComposedPart.compose(Cell.get(0, 4), NthOutput.FIRST), ComposedPart.compose(Cell.get(0, 3), NthInput.FIRST));
+		// A new evaluation discards the mapping of the previous one
+		f.evaluate(s);
+		assertNull(f.m_mapping);
+		assertEquals(1, f.trackToInput(1, 1).length);
+	}
+	
+	@Test
+	public void testMergeLazy()
+	{
+		Spreadsheet s1 = Spreadsheet.read(3, 3,
+				"A", "B", "C",
+				3, 1, 4,
+				1, 5, 9);
+		Spreadsheet s2 = Spreadsheet.read(3, 3,
+				"A", "D", "E",
+				3, 2, 7,
+				1, 1, 8);
+		Merge f = new Merge();
+		f.setProvenance(ProvenanceMode.LAZY);
+		f.evaluate(s1, s2);
+		assertNull(f.m_mapping);
+		assertExplains(f, ComposedPart.compose(Cell.get(3, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 1), NthInput.SECOND));
+	}
+	
+	@Test
+	public void testStreamingLazy()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 3,
+				"A",
+				1,
+				2);
+		StreamingBoxStats f = new StreamingBoxStats();
+		f.setProvenance(ProvenanceMode.LAZY);
+		f.evaluate(s);
+		assertExplains(f, ComposedPart.compose(Cell.get(6, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(0, 0), NthInput.FIRST));
+		// Answering the query must not add the chunk a second time
+		assertEquals(2, f.getSketch(0).getCount());
+	}
+	
+	@Test
+	public void testFrequenciesLazy()
+	{
+		List<Object> pairs = new ArrayList<Object>();
+		pairs.add(new double[] {0.5, 0.5});
+		pairs.add(new double[] {1.5, 0.5});
+		pairs.add(new double[] {0.5, 0.5});
+		GetFrequencies f = new GetFrequencies(0, 2, 2, 0, 2, 2);
+		f.setProvenance(ProvenanceMode.LAZY);
+		f.evaluate(pairs);
+		assertNull(f.m_indices);
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST));
+		AndNode and = (AndNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(2, and.getOutputLinks(0).size());
+		assertEquals(ComposedPart.compose(new NthElement(2), NthInput.FIRST), ((PartNode) and.getOutputLinks(0).get(1).getNode()).getPart());
+	}
+	
+	/**
+	 * Asserts that the explanation of a cell of the output of a function only
+	 * contains an unknown node.
+	 * @param f The function
+	 * @param col The column of the cell
+	 * @param row The row of the cell
+	 */
+	public static void assertUnknown(AtomicFunction f, int col, int row)
+	{
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(col, row), NthOutput.FIRST));
+		assertEquals(1, root.getOutputLinks(0).size());
+		Node n = root.getOutputLinks(0).get(0).getNode();
+		assertTrue(n instanceof UnknownNode);
+	}
+}
@@ -0,0 +1,188 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ca.uqac.lif.dag.Node;
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.UnknownNode;
+import ca.uqac.lif.petitpoucet.function.AtomicFunction;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Unit tests for {@link ProvenanceRetention}.
+ */
+public class ProvenanceRetentionTest
+{
+	@Test
+	public void testEvaluations()
+	{
+		ProvenanceRetention policy = new ProvenanceRetention().keepEvaluations(1);
+		Sort f1 = getSort(policy);
+		Sort f2 = getSort(policy);
+		// Both functions are evaluated during the same run
+		f1.evaluate(getSpreadsheet());
+		f2.evaluate(getSpreadsheet());
+		assertExplains(f1, ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 2), NthInput.FIRST));
+		assertExplains(f2, ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 2), NthInput.FIRST));
+		// Evaluating f1 again starts a new run, which discards the lineage of f2
+		f1.evaluate(getSpreadsheet());
+		assertExplains(f1, ComposedPart.compose(Cell.get(1, 1), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 2), NthInput.FIRST));
+		assertExpired(f2, 1, 1);
+		assertNull(f2.m_mapping);
+		assertEquals(0, f2.trackToInput(1, 1).length);
+		// f2 is evaluated again during the same run as f1
+		f2.evaluate(getSpreadsheet());
+		assertNotNull(f1.m_mapping);
+		assertNotNull(f2.m_mapping);
+	}
+	
+	@Test
+	public void testBytes()
+	{
+		// The lineage of each function takes 60 bytes
+		ProvenanceRetention policy = new ProvenanceRetention().keepBytes(130);
+		Sort f1 = getSort(policy);
+		Sort f2 = getSort(policy);
+		Sort f3 = getSort(policy);
+		f1.evaluate(getSpreadsheet());
+		f2.evaluate(getSpreadsheet());
+		f3.evaluate(getSpreadsheet());
+		// Only the least recently evaluated function loses its lineage
+		assertExpired(f1, 1, 1);
+		assertNotNull(f2.m_mapping);
+		assertNotNull(f3.m_mapping);
+		assertEquals(f2.getLineageSize() + f3.getLineageSize(), policy.getRetainedSize());
+		assertTrue(policy.getRetainedSize() <= 130);
+	}
+	
+	@Test
+	public void testBytesAfterEvaluation()
+	{
+		// The lineage of a single evaluation already exceeds the limit, and is
+		// discarded as soon as it is produced
+		ProvenanceRetention policy = new ProvenanceRetention().keepBytes(50);
+		Sort f = getSort(policy);
+		f.evaluate(getSpreadsheet());
+		assertExpired(f, 1, 1);
+		assertEquals(0, policy.getRetainedSize());
+	}
+	
+	@Test
+	public void testRows()
+	{
+		ProvenanceRetention policy = new ProvenanceRetention().keepRows(2);
+		Sort f = getSort(policy);
+		f.evaluate(getSpreadsheet());
+		// The window is the one in effect during the evaluation
+		policy.keepRows(0);
+		assertExpired(f, 1, 1);
+		assertExpired(f, 0, 2);
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 3), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 1), NthInput.FIRST));
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 0), NthOutput.FIRST), ComposedPart.compose(Cell.get(1, 0), NthInput.FIRST));
+	}
+	
+	@Test
+	public void testHistogram()
+	{
+		ProvenanceRetention policy = new ProvenanceRetention().keepEvaluations(1);
+		Spreadsheet s = Spreadsheet.read(1, 5,
+				"A",
+				1,
+				2,
+				3,
+				4);
+		ColumnHistogram h = new ColumnHistogram(0, 0, 4, 2);
+		h.setRetention(policy);
+		Sort f = getSort(policy);
+		f.evaluate(getSpreadsheet());
+		h.evaluate(s);
+		assertTrue(h.getLineageSize() > 0);
+		// A new run starts and leaves out the histogram
+		f.evaluate(getSpreadsheet());
+		assertEquals(0, h.getLineageSize());
+		assertExpired(h, 1, 1);
+	}
+	
+	@Test
+	public void testDefault()
+	{
+		ProvenanceRetention policy = new ProvenanceRetention().keepEvaluations(1);
+		ProvenanceRetention.setDefault(policy);
+		try
+		{
+			Sort f1 = new Sort().by(0).excludeFirst();
+			Sort f2 = new Sort().by(0).excludeFirst();
+			assertSame(policy, f1.getRetention());
+			f1.evaluate(getSpreadsheet());
+			f2.evaluate(getSpreadsheet());
+			f2.evaluate(getSpreadsheet());
+			assertExpired(f1, 1, 1);
+			// A duplicate keeps the policy of the original
+			Sort f3 = f2.duplicate(false);
+			f3.setRetention(new ProvenanceRetention());
+			assertNotSame(policy, f3.duplicate(false).getRetention());
+		}
+		finally
+		{
+			ProvenanceRetention.setDefault(null);
+		}
+	}
+	
+	/**
+	 * Asserts that the explanation of a cell of the output of a function
+	 * reports its lineage as expired.
+	 * @param f The function
+	 * @param col The column of the cell
+	 * @param row The row of the cell
+	 */
+	public static void assertExpired(AtomicFunction f, int col, int row)
+	{
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(col, row), NthOutput.FIRST));
+		assertEquals(1, root.getOutputLinks(0).size());
+		PartNode expired = (PartNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(ProvenanceRetention.EXPIRED, expired.getSubject());
+		Node n = expired.getOutputLinks(0).get(0).getNode();
+		assertTrue(n instanceof UnknownNode);
+	}
+	
+	protected static Sort getSort(ProvenanceRetention policy)
+	{
+		Sort f = new Sort().by(0).excludeFirst();
+		f.setRetention(policy);
+		return f;
+	}
+	
+	protected static Spreadsheet getSpreadsheet()
+	{
+		return Spreadsheet.read(2, 5,
+				"A", "B",
+				3, "a",
+				1, "b",
+				4, "c",
+				2, "d");
+	}
+}
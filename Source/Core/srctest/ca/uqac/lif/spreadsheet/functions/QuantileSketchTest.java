@@ -0,0 +1,95 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link QuantileSketch}.
+ */
+public class QuantileSketchTest
+{
+	@Test
+	public void testEmpty()
+	{
+		QuantileSketch qs = new QuantileSketch();
+		assertEquals(0, qs.getCount());
+		assertTrue(Double.isNaN(qs.quantile(0.5)));
+		assertTrue(Double.isNaN(qs.getMin()));
+	}
+
+	@Test
+	public void testExact()
+	{
+		QuantileSketch qs = new QuantileSketch();
+		for (int x : new int[] {3, 1, 2, 5, 3, 6})
+		{
+			qs.add(x);
+		}
+		assertEquals(6, qs.getCount());
+		assertEquals(1, qs.getMin(), 0);
+		assertEquals(1, qs.quantile(0.25), 0);
+		assertEquals(3, qs.quantile(0.5), 0);
+		assertEquals(3, qs.quantile(0.75), 0);
+		assertEquals(6, qs.getMax(), 0);
+	}
+
+	@Test
+	public void testBoundedMemory()
+	{
+		QuantileSketch qs = new QuantileSketch(50);
+		Random r = new Random(0);
+		double[] values = new double[200000];
+		for (int i = 0; i < values.length; i++)
+		{
+			values[i] = r.nextGaussian();
+			qs.add(values[i]);
+		}
+		Arrays.sort(values);
+		assertTrue(qs.getCentroidCount() <= 100);
+		assertEquals(values[0], qs.getMin(), 0);
+		assertEquals(values[values.length - 1], qs.getMax(), 0);
+		for (double q : new double[] {0.01, 0.25, 0.5, 0.75, 0.99})
+		{
+			assertEquals(values[(int) (q * values.length)], qs.quantile(q), 0.05);
+		}
+	}
+
+	@Test
+	public void testMerge()
+	{
+		QuantileSketch qs1 = new QuantileSketch(), qs2 = new QuantileSketch();
+		for (int i = 0; i < 50000; i++)
+		{
+			qs1.add(i);
+			qs2.add(50000 + i);
+		}
+		qs1.merge(qs2);
+		assertEquals(100000, qs1.getCount());
+		assertEquals(50000, qs2.getCount());
+		assertEquals(0, qs1.getMin(), 0);
+		assertEquals(99999, qs1.getMax(), 0);
+		assertEquals(50000, qs1.quantile(0.5), 500);
+		assertEquals(25000, qs1.quantile(0.25), 500);
+	}
+}
@@ -0,0 +1,97 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Unit tests for {@link ResultCache}.
+ */
+public class ResultCacheTest
+{
+	@Test
+	public void testFingerprint()
+	{
+		Spreadsheet s1 = Spreadsheet.read(2, 2, "A", 1, "B", 2.5);
+		Spreadsheet s2 = Spreadsheet.read(2, 2, "A", 1, "B", 2.5);
+		assertEquals(ResultCache.fingerprint(s1), ResultCache.fingerprint(s2));
+		assertEquals(ResultCache.checksum(s1), ResultCache.checksum(s2));
+		// Same values, different types
+		assertNotEquals(ResultCache.fingerprint(s1), ResultCache.fingerprint(Spreadsheet.read(2, 2, "A", 1d, "B", 2.5f)));
+		assertNotEquals(ResultCache.fingerprint(1), ResultCache.fingerprint(1d));
+		assertNotEquals(ResultCache.fingerprint(s1), ResultCache.checksum(s1));
+		assertNotEquals(ResultCache.fingerprint(s1), ResultCache.fingerprint(Spreadsheet.read(2, 2, "A", 1, "B", 3)));
+		// Same contents, different shape
+		assertNotEquals(ResultCache.fingerprint(s1), ResultCache.fingerprint(Spreadsheet.read(4, 1, "A", 1, "B", 2.5)));
+		assertNotEquals(ResultCache.fingerprint(Spreadsheet.read(2, 1, "A", null)), ResultCache.fingerprint(Spreadsheet.read(2, 1, null, "A")));
+	}
+
+	@Test
+	public void testCollision()
+	{
+		ResultCache cache = new ResultCache();
+		Sort f = new Sort();
+		// Two inputs with the same fingerprint but different checksums
+		cache.put("f", new long[] {1}, new long[] {10}, new Object[] {new Spreadsheet(2, 2)}, f);
+		assertNotNull(cache.get("f", new long[] {1}, new long[] {10}));
+		assertNull(cache.get("f", new long[] {1}, new long[] {11}));
+		assertEquals(1, cache.getCollisions());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void testEvictEntries()
+	{
+		ResultCache cache = new ResultCache(2, 1000);
+		Sort f = new Sort();
+		cache.put("f", new long[] {1}, new Object[] {new Spreadsheet(2, 2)}, f);
+		cache.put("f", new long[] {2}, new Object[] {new Spreadsheet(2, 2)}, f);
+		// Makes entry 1 the most recently used
+		assertNotNull(cache.get("f", new long[] {1}));
+		cache.put("f", new long[] {3}, new Object[] {new Spreadsheet(2, 2)}, f);
+		assertEquals(2, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertNull(cache.get("f", new long[] {2}));
+		assertNotNull(cache.get("f", new long[] {1}));
+		assertNotNull(cache.get("f", new long[] {3}));
+		assertNull(cache.get("g", new long[] {3}));
+		assertEquals(3, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	public void testEvictCells()
+	{
+		ResultCache cache = new ResultCache(10, 10);
+		Sort f = new Sort();
+		cache.put("f", new long[] {1}, new Object[] {new Spreadsheet(2, 3)}, f);
+		assertEquals(6, cache.getCellCount());
+		cache.put("f", new long[] {2}, new Object[] {new Spreadsheet(2, 3)}, f);
+		assertEquals(1, cache.size());
+		assertEquals(6, cache.getCellCount());
+		assertNotNull(cache.get("f", new long[] {2}));
+		// Too large to be kept at all
+		cache.put("f", new long[] {3}, new Object[] {new Spreadsheet(4, 4)}, f);
+		assertEquals(1, cache.size());
+		assertNull(cache.get("f", new long[] {3}));
+	}
+}
@@ -0,0 +1,86 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertNotExplains;
+
+/**
+ * Unit tests for {@link StreamingBoxStats}.
+ */
+public class StreamingBoxStatsTest
+{
+	@Test
+	public void test1()
+	{
+		StreamingBoxStats f = new StreamingBoxStats();
+		f.evaluate(Spreadsheet.read(3, 4,
+				"A", "B", "C",
+				3, 1, 4,
+				1, 5, 9,
+				2, 6, 5));
+		Spreadsheet out = (Spreadsheet) f.evaluate(Spreadsheet.read(3, 4,
+				"A", "B", "C",
+				5, 2, 7,
+				3, 7, 12,
+				6, 8, 9))[0];
+		assertEquals(Spreadsheet.read(7, 4, 
+				"x", "Min", "Q1", "Q2", "Q3", "Max", "Label",
+				0,   1,     1,    3,    3,    6,     "A",
+				1,   1,     1,    5,    6,    8,     "B",
+				2,   4,     4,    7,    9,    12,    "C"), out);
+		assertExplains(f, ComposedPart.compose(Cell.get(6, 3), NthOutput.FIRST), ComposedPart.compose(Cell.get(2, 0), NthInput.FIRST));
+		assertNotExplains(f, ComposedPart.compose(Cell.get(2, 1), NthOutput.FIRST));
+	}
+
+	@Test
+	public void testMerge()
+	{
+		StreamingBoxStats f1 = new StreamingBoxStats(), f2 = new StreamingBoxStats();
+		f1.add(Spreadsheet.read(1, 3, "A", 1, 2));
+		f2.add(Spreadsheet.read(2, 3, "A", "B", 3, 10, 4, 20));
+		f1.merge(f2);
+		Spreadsheet out = f1.getStatistics();
+		assertEquals(3, out.getHeight());
+		assertEquals(4, f1.getSketch(0).getCount());
+		assertEquals(1d, out.get(1, 1));
+		assertEquals(4d, out.get(5, 1));
+		assertEquals("B", out.get(6, 2));
+		assertEquals(20d, out.get(5, 2));
+	}
+
+	@Test
+	public void testReset()
+	{
+		StreamingBoxStats f = new StreamingBoxStats();
+		f.evaluate(Spreadsheet.read(1, 3, "A", 1, 2));
+		f.reset();
+		Spreadsheet out = (Spreadsheet) f.evaluate(Spreadsheet.read(1, 2, "A", 7))[0];
+		assertEquals(7d, out.get(1, 1));
+		assertEquals(7d, out.get(5, 1));
+	}
+}
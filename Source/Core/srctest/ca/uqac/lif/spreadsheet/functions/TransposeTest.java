@@ -21,7 +21,14 @@ import static org.junit.Assert.*;
 
 import org.junit.Test;
 
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.spreadsheet.Cell;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.TransposedView;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertExplains;
+import static ca.uqac.lif.spreadsheet.functions.SpreadsheetFunctionTest.assertNotExplains;
 
 /**
  * Unit tests for {@link Transpose}.
@@ -44,4 +51,38 @@ public class TransposeTest
 				"B", 2, 5, 8,
 				"C", 3, 6, 9), out);
 	}
+	
+	@Test
+	public void testExplain()
+	{
+		Spreadsheet s = Spreadsheet.read(3, 4, 
+				"A", "B", "C",
+				1,   2,   3,
+				4,   5,   6,
+				7,   8,   9);
+		Transpose f = new Transpose();
+		f.evaluate(s);
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 2), NthOutput.FIRST), ComposedPart.compose(Cell.get(2, 1), NthInput.FIRST));
+		assertExplains(f, ComposedPart.compose(Cell.get(3, 0), NthOutput.FIRST), ComposedPart.compose(Cell.get(0, 3), NthInput.FIRST));
+		assertNotExplains(f, ComposedPart.compose(Cell.get(0, 3), NthOutput.FIRST));
+		Transpose f2 = f.duplicate(true);
+		assertExplains(f2, ComposedPart.compose(Cell.get(1, 2), NthOutput.FIRST), ComposedPart.compose(Cell.get(2, 1), NthInput.FIRST));
+	}
+
+	@Test
+	public void testView()
+	{
+		Spreadsheet s = Spreadsheet.read(3, 4, 
+				"A", "B", "C",
+				1,   2,   3,
+				4,   5,   6,
+				7,   8,   9);
+		Transpose f = new Transpose().view(true);
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertTrue(out instanceof TransposedView);
+		assertEquals(new Transpose().evaluate(s)[0], out);
+		assertExplains(f, ComposedPart.compose(Cell.get(1, 2), NthOutput.FIRST), ComposedPart.compose(Cell.get(2, 1), NthInput.FIRST));
+		Transpose f2 = f.duplicate(false);
+		assertTrue(f2.evaluate(s)[0] instanceof TransposedView);
+	}
 }
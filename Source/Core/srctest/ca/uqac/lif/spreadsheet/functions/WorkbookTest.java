@@ -0,0 +1,152 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.functions;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import ca.uqac.lif.petitpoucet.function.FunctionException;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * Unit tests for {@link Workbook}.
+ */
+public class WorkbookTest
+{
+	@Test
+	public void testCrossSheet()
+	{
+		Workbook wb = getWorkbook();
+		Spreadsheet total = wb.get("Total");
+		assertEquals(1, total.get(0, 0));
+		assertEquals(10, total.get(1, 0));
+		assertEquals(11d, total.get(2, 0));
+		Spreadsheet copy = wb.get("Copy");
+		assertEquals(10, copy.get(0, 0));
+		// A change in sheet A only affects Total
+		wb.set("A", 0, 0, 5);
+		assertEquals(15d, wb.get("Total").get(2, 0));
+		assertEquals(5, wb.get("Total").get(0, 0));
+		assertSame(copy, wb.get("Copy"));
+		assertEquals(10, copy.get(0, 0));
+		// The value of the sheet is updated in place
+		assertSame(total, wb.get("Total"));
+		assertEquals(15d, total.get(2, 0));
+		// A change in a cell of B that no formula reads
+		total = wb.get("Total");
+		wb.set("B", 1, 0, 99);
+		assertEquals(15d, wb.get("Total").get(2, 0));
+		assertSame(total, wb.get("Total"));
+		// A change in B that affects both sheets
+		wb.set("B", 0, 0, 20);
+		assertEquals(25d, wb.get("Total").get(2, 0));
+		assertEquals(20, wb.get("Copy").get(0, 0));
+	}
+	
+	@Test
+	public void testPrivateData()
+	{
+		Spreadsheet a = Spreadsheet.read(1, 1, 1);
+		Workbook wb = getWorkbook();
+		wb.add("A", a);
+		assertEquals(11d, wb.get("Total").get(2, 0));
+		wb.set("A", 0, 0, 5);
+		assertEquals(15d, wb.get("Total").get(2, 0));
+		// The spreadsheet given by the caller is left untouched
+		assertEquals(1, a.get(0, 0));
+		Spreadsheet b = Spreadsheet.read(2, 1, 3, 4);
+		wb.set("B", b);
+		wb.set("B", 0, 0, 7);
+		assertEquals(12d, wb.get("Total").get(2, 0));
+		assertEquals(3, b.get(0, 0));
+	}
+	
+	@Test
+	public void testReplace()
+	{
+		Workbook wb = getWorkbook();
+		wb.get("Total");
+		wb.set("B", Spreadsheet.read(2, 1, 3, 4));
+		assertEquals(3, wb.get("Copy").get(0, 0));
+		assertEquals(4d, wb.get("Total").get(2, 0));
+	}
+	
+	@Test
+	public void testParallel()
+	{
+		Workbook wb = new Workbook().setThreads(4);
+		wb.add("In", Spreadsheet.read(1, 1, 7));
+		for (int i = 0; i < 8; i++)
+		{
+			ApplyFormula af = new ApplyFormula(2);
+			af.add(new CellFormula(Cell.get(0, 0), new ValueOf(0, 0)).associate(1, 0));
+			af.add(Cell.get(1, 0), "=A1*" + i);
+			wb.add("S" + i, new Spreadsheet(2, 1), af, "In");
+		}
+		for (int i = 0; i < 8; i++)
+		{
+			assertEquals(7d * i, wb.get("S" + i).get(1, 0));
+		}
+		wb.set("In", 0, 0, 2);
+		for (int i = 0; i < 8; i++)
+		{
+			assertEquals(2d * i, wb.get("S" + i).get(1, 0));
+		}
+	}
+	
+	@Test(expected = FunctionException.class)
+	public void testCycle()
+	{
+		Workbook wb = new Workbook();
+		wb.add("X", new Spreadsheet(1, 1), new ApplyFormula(2), "Y");
+		wb.add("Y", new Spreadsheet(1, 1), new ApplyFormula(2), "X");
+		wb.get("X");
+	}
+	
+	@Test(expected = FunctionException.class)
+	public void testUnknown()
+	{
+		Workbook wb = new Workbook();
+		wb.add("X", new Spreadsheet(1, 1), new ApplyFormula(2), "Y");
+		wb.get("X");
+	}
+	
+	/**
+	 * Creates a workbook with two data sheets A and B, a sheet Total whose
+	 * cell C1 is the sum of A1 and B1, and a sheet Copy whose cell A1 is a
+	 * copy of B1.
+	 * @return The workbook
+	 */
+	protected static Workbook getWorkbook()
+	{
+		Workbook wb = new Workbook();
+		wb.add("A", Spreadsheet.read(1, 1, 1));
+		wb.add("B", Spreadsheet.read(2, 1, 10, 0));
+		ApplyFormula total = new ApplyFormula(3);
+		total.add(new CellFormula(Cell.get(0, 0), new ValueOf(0, 0)).associate(1, 0));
+		total.add(new CellFormula(Cell.get(1, 0), new ValueOf(0, 0)).associate(2, 0));
+		total.add(Cell.get(2, 0), "=A1+B1");
+		wb.add("Total", new Spreadsheet(3, 1), total, "A", "B");
+		ApplyFormula copy = new ApplyFormula(2);
+		copy.add(new CellFormula(Cell.get(0, 0), new ValueOf(0, 0)).associate(1, 0));
+		wb.add("Copy", new Spreadsheet(1, 1), copy, "B");
+		return wb;
+	}
+}
@@ -0,0 +1,131 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2023 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package examples.spreadsheet;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import ca.uqac.lif.petitpoucet.function.AtomicFunction;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.functions.BoxStats;
+import ca.uqac.lif.spreadsheet.functions.ColumnHistogram;
+import ca.uqac.lif.spreadsheet.functions.ProvenanceMode;
+import ca.uqac.lif.spreadsheet.functions.Sort;
+import ca.uqac.lif.spreadsheet.functions.Transpose;
+import ca.uqac.lif.spreadsheet.functions.Union;
+
+/**
+ * Measures the overhead of recording lineage in a few spreadsheet functions.
+ * Each function is evaluated repeatedly on the same randomly generated
+ * spreadsheet in each {@link ProvenanceMode}, and the program prints the
+ * average running time of an evaluation, as well as the number of garbage
+ * collections and the time spent in them.
+ */
+public class ProvenanceOverhead
+{
+	/**
+	 * The number of rows of the spreadsheet given to the functions.
+	 */
+	protected static final int NUM_ROWS = 20000;
+
+	/**
+	 * The number of evaluations of each function.
+	 */
+	protected static final int NUM_RUNS = 20;
+
+	public static void main(String[] args)
+	{
+		/* Generate a spreadsheet of random values, with a header row. */
+		Random r = new Random(0);
+		Spreadsheet s = new Spreadsheet(4, NUM_ROWS + 1);
+		s.set(0, 0, "K");
+		s.set(1, 0, "A");
+		s.set(2, 0, "B");
+		s.set(3, 0, "C");
+		for (int row = 1; row <= NUM_ROWS; row++)
+		{
+			s.set(0, row, row);
+			s.set(1, row, r.nextInt(1000));
+			s.set(2, row, r.nextDouble());
+			s.set(3, row, r.nextGaussian());
+		}
+		System.out.println("Function            Mode    ms/eval  GC count  GC ms");
+		measure("Sort", new Sort().by(1).excludeFirst(), s);
+		measure("Transpose", new Transpose(), s);
+		measure("BoxStats", new BoxStats(), s);
+		measure("ColumnHistogram", new ColumnHistogram(3), s);
+		measure("Union", new Union(2).excludeFirst(), s, s);
+	}
+
+	/**
+	 * Evaluates a function in each provenance mode and prints the
+	 * measurements.
+	 * @param name The name of the function
+	 * @param f The function
+	 * @param inputs The arguments given to the function
+	 */
+	protected static void measure(String name, AtomicFunction f, Object ... inputs)
+	{
+		for (ProvenanceMode mode : ProvenanceMode.values())
+		{
+			ProvenanceMode.set(mode, f);
+			// Warm up the JIT before taking measurements
+			f.evaluate(inputs);
+			System.gc();
+			long gc_count = getGcCount(), gc_time = getGcTime();
+			long start = System.nanoTime();
+			for (int i = 0; i < NUM_RUNS; i++)
+			{
+				f.evaluate(inputs);
+			}
+			long duration = System.nanoTime() - start;
+			System.out.println(String.format("%-20s%-8s%7.2f  %8d  %5d", name, mode, duration / 1e6 / NUM_RUNS, getGcCount() - gc_count, getGcTime() - gc_time));
+		}
+	}
+
+	/**
+	 * Gets the total number of garbage collections since the start of the
+	 * virtual machine.
+	 * @return The number of collections
+	 */
+	protected static long getGcCount()
+	{
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			total += Math.max(0, gc.getCollectionCount());
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the total time spent in garbage collection since the start of the
+	 * virtual machine.
+	 * @return The time, in milliseconds
+	 */
+	protected static long getGcTime()
+	{
+		long total = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+		{
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+}
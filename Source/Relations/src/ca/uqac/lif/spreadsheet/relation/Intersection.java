@@ -134,11 +134,16 @@ public class Intersection extends RelationalOperator
 			}
 		}
 		List<Row> row_list = new ArrayList<Row>();
+		boolean track = startLineage(inputs);
 		for (int row = 1; row < s_inputs[0].getHeight(); row++)
 		{
 			Row r = new Row(s_inputs[0].getRow(row));
-			List<Integer[]> tuples = new ArrayList<Integer[]>(s_inputs.length);
-			tuples.add(new Integer[] {0, row});
+			List<Integer[]> tuples = null;
+			if (track)
+			{
+				tuples = new ArrayList<Integer[]>(s_inputs.length);
+				tuples.add(new Integer[] {0, row});
+			}
 			boolean all_present = true;
 			for (int s_index = 1; s_index < s_inputs.length && all_present; s_index++)
 			{
@@ -148,12 +153,18 @@ public class Intersection extends RelationalOperator
 					all_present = false;
 					continue;
 				}
-				tuples.add(new Integer[] {s_index, row_index});
+				if (tuples != null)
+				{
+					tuples.add(new Integer[] {s_index, row_index});
+				}
 			}
 			if (all_present)
 			{
 				row_list.add(r);
-				m_mapping.add(tuples);
+				if (tuples != null)
+				{
+					m_mapping.add(tuples);
+				}
 			}
 		}
 		return new Object[] {createOutput(s_inputs[0].getRow(0), row_list)};
@@ -18,6 +18,7 @@
 package ca.uqac.lif.spreadsheet.relation;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -26,6 +27,7 @@ import ca.uqac.lif.dag.LabelledNode;
 import ca.uqac.lif.petitpoucet.NodeFactory;
 import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.functions.CommonSubexpressions;
 
 /**
  * Calculates the projection of a relation, by retaining only specific
@@ -87,7 +89,7 @@ import ca.uqac.lif.spreadsheet.Spreadsheet;
  * 
  * @author Sylvain Hallé
  */
-public class Projection extends RelationalOperator
+public class Projection extends RelationalOperator implements CommonSubexpressions.Configured
 {
 	/**
 	 * The names of the columns to retain in the output spreadsheet.
@@ -148,6 +150,7 @@ public class Projection extends RelationalOperator
 		Set<Row> row_set = new HashSet<Row>();
 		List<Row> row_list = new ArrayList<Row>();
 		Object[] headers = null;
+		boolean track = startLineage(inputs);
 		for (int s_row = 0; s_row < s.getHeight(); s_row++)
 		{
 			Object[] contents = new Object[m_columnNames.length];
@@ -161,7 +164,14 @@ public class Projection extends RelationalOperator
 				continue;
 			}
 			Row r = new Row(contents);
-			if (row_set.contains(r))
+			if (!track)
+			{
+				if (row_set.add(r))
+				{
+					row_list.add(r);
+				}
+			}
+			else if (row_set.contains(r))
 			{
 				// Duplicate of existing row in the output
 				int index = row_list.indexOf(r);
@@ -210,6 +220,12 @@ public class Projection extends RelationalOperator
 		return m_originalIndices[col];
 	}
 	
+	@Override
+	public Object getConfiguration()
+	{
+		return Arrays.asList(m_sortOutput, Arrays.asList(m_columnNames));
+	}
+
 	@Override
 	public Projection duplicate(boolean with_state)
 	{
@@ -0,0 +1,1268 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2022 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.relation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ca.uqac.lif.dag.LabelledNode;
+import ca.uqac.lif.petitpoucet.OrNode;
+import ca.uqac.lif.petitpoucet.Part;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.AtomicFunction;
+import ca.uqac.lif.petitpoucet.function.Function;
+import ca.uqac.lif.petitpoucet.function.InvalidArgumentTypeException;
+import ca.uqac.lif.petitpoucet.function.InvalidNumberOfArgumentsException;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.petitpoucet.function.RelationNodeFactory;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+
+/**
+ * A function evaluating a tree of operators that pull the rows of their
+ * input on demand, in the style of the <em>Volcano</em> iterator model.
+ * Contrary to the other functions of this library, which consume and produce
+ * whole spreadsheets, each operator of a plan asks its children for a batch
+ * of rows at a time, and only when it needs them. Combined with a limit on
+ * the number of rows of the output (see {@link #limit(int)}), or with
+ * operators such as {@link Slice} and {@link Sample}, this means that only
+ * the rows actually needed to produce the output are read and processed.
+ * <p>
+ * The operators available are:
+ * <ul>
+ * <li>{@link Scan}, which reads the rows of one of the inputs of the
+ * plan;</li>
+ * <li>{@link Filter}, which keeps the rows satisfying a condition, like
+ * {@link Selection};</li>
+ * <li>{@link Project}, which keeps some columns, like
+ * {@link Projection} (but without removing duplicates);</li>
+ * <li>{@link Distinct}, which removes duplicate rows;</li>
+ * <li>{@link Concat}, which outputs the rows of its children one after the
+ * other; followed by {@link Distinct}, it computes the same rows as
+ * {@link Union} on inputs whose columns have compatible types (since rows
+ * are pulled one batch at a time, only the column names are checked
+ * beforehand);</li>
+ * <li>{@link OrderBy}, which sorts rows, like
+ * {@link ca.uqac.lif.spreadsheet.functions.Sort Sort};</li>
+ * <li>{@link Slice}, which keeps a range of consecutive rows, like
+ * {@link ca.uqac.lif.spreadsheet.functions.CopyFrom CopyFrom};</li>
+ * <li>{@link Sample}, which keeps one row every <i>n</i> rows.</li>
+ * </ul>
+ * Only {@link OrderBy} needs to read all the rows of its child before
+ * producing its first row.
+ * <p>
+ * As in the relational operators, the first row of each input contains the
+ * column names, and the other rows contain data. Each row flowing through
+ * the plan carries the input rows it comes from, and the column of these
+ * rows corresponding to each of its values; the output of the plan is
+ * therefore explained cell by cell, without having to evaluate the plan
+ * again.
+ *
+ * @author Sylvain Hallé
+ */
+public class QueryPlan extends AtomicFunction
+{
+	/**
+	 * The default number of rows requested at a time by the plan.
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	/**
+	 * The root of the tree of operators.
+	 */
+	/*@ non_null @*/ protected final Operator m_root;
+
+	/**
+	 * The maximum number of data rows in the output, or -1 for no limit.
+	 */
+	protected int m_limit = -1;
+
+	/**
+	 * The number of rows requested at a time by the plan.
+	 */
+	protected int m_batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 * The input rows associated to each data row of the last output, each
+	 * encoded with {@link #encode(int, int)}.
+	 */
+	/*@ null @*/ protected List<long[]> m_lineage;
+
+	/**
+	 * The column of the input rows corresponding to each column of each data
+	 * row of the last output. Rows coming from the same branch of the plan
+	 * share the same array.
+	 */
+	/*@ null @*/ protected List<int[]> m_rowColumns;
+
+	/**
+	 * The column of each input corresponding to each column name of the last
+	 * output, or <tt>null</tt> for inputs that are not read by the plan.
+	 */
+	/*@ null @*/ protected int[][] m_columns;
+
+	/**
+	 * Creates a new query plan.
+	 * @param in_arity The number of input spreadsheets
+	 * @param root The root of the tree of operators
+	 */
+	public QueryPlan(int in_arity, /*@ non_null @*/ Operator root)
+	{
+		super(in_arity, 1);
+		m_root = root;
+	}
+
+	/**
+	 * Sets the maximum number of data rows in the output. Once this number is
+	 * reached, no more rows are requested from the operators.
+	 * @param max_rows The number of rows, or -1 for no limit
+	 * @return This plan
+	 */
+	/*@ non_null @*/ public QueryPlan limit(int max_rows)
+	{
+		m_limit = max_rows;
+		return this;
+	}
+
+	/**
+	 * Sets the number of rows requested at a time by the plan.
+	 * @param size The number of rows
+	 * @return This plan
+	 */
+	/*@ non_null @*/ public QueryPlan setBatchSize(int size)
+	{
+		m_batchSize = Math.max(1, size);
+		return this;
+	}
+
+	@Override
+	protected Object[] getValue(Object ... inputs) throws InvalidNumberOfArgumentsException
+	{
+		m_root.open(inputs);
+		List<long[]> lineage = new ArrayList<long[]>();
+		List<int[]> row_columns = new ArrayList<int[]>();
+		List<Object[]> rows = new ArrayList<Object[]>();
+		Object[] headers;
+		int[][] columns = new int[getInputArity()][];
+		try
+		{
+			headers = m_root.getHeaders();
+			for (int i = 0; i < columns.length; i++)
+			{
+				columns[i] = m_root.getColumns(i);
+			}
+			while (m_limit < 0 || rows.size() < m_limit)
+			{
+				int size = m_limit < 0 ? m_batchSize : Math.min(m_batchSize, m_limit - rows.size());
+				List<PlanRow> batch = m_root.next(size);
+				if (batch == null)
+				{
+					break;
+				}
+				for (PlanRow r : batch)
+				{
+					rows.add(r.m_contents);
+					lineage.add(r.m_lineage);
+					row_columns.add(r.m_columns);
+				}
+			}
+		}
+		finally
+		{
+			m_root.close();
+		}
+		Spreadsheet out = new Spreadsheet(headers.length, rows.size() + 1);
+		for (int col = 0; col < headers.length; col++)
+		{
+			out.set(col, 0, headers[col]);
+		}
+		for (int row = 0; row < rows.size(); row++)
+		{
+			Object[] contents = rows.get(row);
+			for (int col = 0; col < headers.length; col++)
+			{
+				out.set(col, row + 1, contents[col]);
+			}
+		}
+		m_lineage = lineage;
+		m_rowColumns = row_columns;
+		m_columns = columns;
+		return new Object[] {out};
+	}
+
+	@Override
+	public PartNode getExplanation(Part d, RelationNodeFactory f)
+	{
+		Cell c = Cell.mentionedCell(d);
+		if (c == null || NthOutput.mentionedOutput(d) != 0)
+		{
+			return super.getExplanation(d, f);
+		}
+		PartNode root = f.getPartNode(d, this);
+		int c_row = c.getRow(), c_col = c.getColumn();
+		if (m_lineage == null || c_row < 0 || c_row > m_lineage.size() || c_col < 0)
+		{
+			root.addChild(f.getUnknownNode());
+			return root;
+		}
+		List<Part> parts = new ArrayList<Part>();
+		if (c_row == 0)
+		{
+			// The column names come from the first row of each input read
+			for (int i = 0; i < m_columns.length; i++)
+			{
+				if (m_columns[i] != null && c_col < m_columns[i].length)
+				{
+					Part p = NthOutput.replaceOutByIn(d, i);
+					parts.add(Cell.replaceCellBy(p, Cell.get(m_columns[i][c_col], 0)));
+				}
+			}
+		}
+		else
+		{
+			int[] cols = m_rowColumns.get(c_row - 1);
+			for (long code : m_lineage.get(c_row - 1))
+			{
+				if (c_col < cols.length)
+				{
+					Part p = NthOutput.replaceOutByIn(d, getSource(code));
+					parts.add(Cell.replaceCellBy(p, Cell.get(cols[c_col], getRow(code))));
+				}
+			}
+		}
+		LabelledNode to_add = root;
+		if (parts.size() > 1)
+		{
+			OrNode or = f.getOrNode();
+			root.addChild(or);
+			to_add = or;
+		}
+		for (Part p : parts)
+		{
+			to_add.addChild(f.getPartNode(p, this));
+		}
+		return root;
+	}
+
+	@Override
+	public QueryPlan duplicate(boolean with_state)
+	{
+		QueryPlan qp = new QueryPlan(getInputArity(), m_root.duplicate());
+		copyInto(qp, with_state);
+		qp.m_limit = m_limit;
+		qp.m_batchSize = m_batchSize;
+		if (with_state)
+		{
+			// Neither is modified once computed
+			qp.m_lineage = m_lineage;
+			qp.m_rowColumns = m_rowColumns;
+			qp.m_columns = m_columns;
+		}
+		return qp;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "Plan " + m_root;
+	}
+
+	/**
+	 * Encodes a reference to a row of an input into a single primitive value.
+	 * @param source The index of the input
+	 * @param row The row in this input
+	 * @return The encoded reference
+	 */
+	protected static long encode(int source, int row)
+	{
+		return ((long) source << 32) | (row & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * Gets the input of a reference encoded with {@link #encode(int, int)}.
+	 * @param code The encoded reference
+	 * @return The index of the input
+	 */
+	protected static int getSource(long code)
+	{
+		return (int) (code >>> 32);
+	}
+
+	/**
+	 * Gets the row of a reference encoded with {@link #encode(int, int)}.
+	 * @param code The encoded reference
+	 * @return The row
+	 */
+	protected static int getRow(long code)
+	{
+		return (int) code;
+	}
+
+	/**
+	 * A row flowing through a plan, along with the rows of the inputs it comes
+	 * from.
+	 */
+	public static class PlanRow
+	{
+		/**
+		 * The values of the row.
+		 */
+		/*@ non_null @*/ protected final Object[] m_contents;
+
+		/**
+		 * The column of the input rows corresponding to each value of the row.
+		 */
+		/*@ non_null @*/ protected final int[] m_columns;
+
+		/**
+		 * The input rows this row comes from, each encoded with
+		 * {@link QueryPlan#encode(int, int)}.
+		 */
+		/*@ non_null @*/ protected final long[] m_lineage;
+
+		/**
+		 * Creates a new row.
+		 * @param contents The values of the row
+		 * @param columns The column of the input rows corresponding to each
+		 * value of the row
+		 * @param lineage The input rows this row comes from
+		 */
+		public PlanRow(/*@ non_null @*/ Object[] contents, /*@ non_null @*/ int[] columns, /*@ non_null @*/ long ... lineage)
+		{
+			super();
+			m_contents = contents;
+			m_columns = columns;
+			m_lineage = lineage;
+		}
+
+		/**
+		 * Gets the values of the row.
+		 * @return The values
+		 */
+		/*@ pure non_null @*/ public Object[] getContents()
+		{
+			return m_contents;
+		}
+	}
+
+	/**
+	 * A node of a plan, producing rows when requested by its parent.
+	 */
+	public abstract static class Operator
+	{
+		/**
+		 * Prepares the operator for a new evaluation of the plan.
+		 * @param inputs The inputs of the plan
+		 */
+		public abstract void open(/*@ non_null @*/ Object[] inputs);
+
+		/**
+		 * Gets the names of the columns of the rows produced by the operator.
+		 * This method can only be called after {@link #open(Object[])}.
+		 * @return The column names
+		 */
+		/*@ non_null @*/ public abstract Object[] getHeaders();
+
+		/**
+		 * Produces the next rows of the operator.
+		 * @param max The maximum number of rows to produce
+		 * @return A list of at most <tt>max</tt> rows, or <tt>null</tt> if the
+		 * operator has no more rows to produce
+		 */
+		/*@ null @*/ public abstract List<PlanRow> next(int max);
+
+		/**
+		 * Gets the column of an input corresponding to each column of the rows
+		 * produced by the operator.
+		 * @param source The index of the input
+		 * @return The columns, or <tt>null</tt> if the operator does not read
+		 * this input
+		 */
+		/*@ null @*/ public abstract int[] getColumns(int source);
+
+		/**
+		 * Releases the resources used by the operator at the end of an
+		 * evaluation of the plan.
+		 */
+		public void close()
+		{
+			// Nothing to do by default
+		}
+
+		/**
+		 * Creates a copy of the operator and its children.
+		 * @return The copy
+		 */
+		/*@ non_null @*/ public abstract Operator duplicate();
+	}
+
+	/**
+	 * An operator with a single child, whose columns it leaves unchanged.
+	 */
+	protected abstract static class UnaryOperator extends Operator
+	{
+		/**
+		 * The child of this operator.
+		 */
+		/*@ non_null @*/ protected final Operator m_child;
+
+		/**
+		 * Creates a new unary operator.
+		 * @param child The child of this operator
+		 */
+		public UnaryOperator(/*@ non_null @*/ Operator child)
+		{
+			super();
+			m_child = child;
+		}
+
+		@Override
+		public void open(Object[] inputs)
+		{
+			m_child.open(inputs);
+		}
+
+		@Override
+		public Object[] getHeaders()
+		{
+			return m_child.getHeaders();
+		}
+
+		@Override
+		public int[] getColumns(int source)
+		{
+			return m_child.getColumns(source);
+		}
+
+		@Override
+		public void close()
+		{
+			m_child.close();
+		}
+	}
+
+	/**
+	 * Reads the data rows of an input of the plan, in order.
+	 */
+	public static class Scan extends Operator
+	{
+		/**
+		 * The index of the input read by the operator.
+		 */
+		protected final int m_source;
+
+		/**
+		 * The input read by the operator.
+		 */
+		/*@ null @*/ protected Spreadsheet m_input;
+
+		/**
+		 * The next row to read.
+		 */
+		protected int m_next;
+
+		/**
+		 * The column of the input corresponding to each value of the rows,
+		 * shared by all the rows produced.
+		 */
+		/*@ null @*/ protected int[] m_inputColumns;
+
+		/**
+		 * Creates a new scan.
+		 * @param source The index of the input read by the operator
+		 */
+		public Scan(int source)
+		{
+			super();
+			m_source = source;
+		}
+
+		@Override
+		public void open(Object[] inputs)
+		{
+			if (!(inputs[m_source] instanceof Spreadsheet))
+			{
+				throw new InvalidArgumentTypeException("Argument is not a spreadsheet");
+			}
+			m_input = (Spreadsheet) inputs[m_source];
+			m_next = 1;
+			m_inputColumns = new int[m_input.getWidth()];
+			for (int i = 0; i < m_inputColumns.length; i++)
+			{
+				m_inputColumns[i] = i;
+			}
+		}
+
+		@Override
+		public Object[] getHeaders()
+		{
+			return m_input.getHeight() > 0 ? m_input.getRow(0) : new Object[m_input.getWidth()];
+		}
+
+		@Override
+		public List<PlanRow> next(int max)
+		{
+			if (m_next >= m_input.getHeight())
+			{
+				return null;
+			}
+			int to = Math.min(m_input.getHeight(), m_next + max);
+			List<PlanRow> rows = new ArrayList<PlanRow>(to - m_next);
+			for (; m_next < to; m_next++)
+			{
+				rows.add(new PlanRow(m_input.getRow(m_next), m_inputColumns, encode(m_source, m_next)));
+			}
+			return rows;
+		}
+
+		@Override
+		public int[] getColumns(int source)
+		{
+			if (source != m_source)
+			{
+				return null;
+			}
+			return m_inputColumns == null ? new int[0] : m_inputColumns;
+		}
+
+		@Override
+		public void close()
+		{
+			m_input = null;
+		}
+
+		@Override
+		public Scan duplicate()
+		{
+			return new Scan(m_source);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Scan " + m_source;
+		}
+	}
+
+	/**
+	 * Keeps the rows satisfying a condition. As in {@link Selection}, the
+	 * condition is a function evaluated on a {@link NamedRow}.
+	 */
+	public static class Filter extends UnaryOperator
+	{
+		/**
+		 * The condition to evaluate on each row.
+		 */
+		/*@ non_null @*/ protected final Function m_condition;
+
+		/**
+		 * The copy of the condition that is evaluated on the rows. It is
+		 * created once when the operator is opened, and reset before each row.
+		 */
+		/*@ null @*/ protected Function m_rowCondition;
+
+		/**
+		 * Creates a new filter.
+		 * @param child The child of this operator
+		 * @param condition The condition to evaluate on each row
+		 */
+		public Filter(/*@ non_null @*/ Operator child, /*@ non_null @*/ Function condition)
+		{
+			super(child);
+			m_condition = condition;
+		}
+
+		@Override
+		public void open(Object[] inputs)
+		{
+			super.open(inputs);
+			m_rowCondition = m_condition.duplicate();
+		}
+
+		@Override
+		public List<PlanRow> next(int max)
+		{
+			List<PlanRow> kept = new ArrayList<PlanRow>();
+			Object[] headers = getHeaders();
+			while (kept.size() < max)
+			{
+				List<PlanRow> batch = m_child.next(max - kept.size());
+				if (batch == null)
+				{
+					break;
+				}
+				for (PlanRow r : batch)
+				{
+					Function condition = m_rowCondition;
+					condition.reset();
+					Object o;
+					if (condition.getInputArity() == 0)
+					{
+						o = condition.evaluate()[0];
+					}
+					else
+					{
+						o = condition.evaluate(new NamedRow(headers, r.m_contents))[0];
+					}
+					if (Boolean.TRUE.equals(o))
+					{
+						kept.add(r);
+					}
+				}
+			}
+			return kept.isEmpty() ? null : kept;
+		}
+
+		@Override
+		public void close()
+		{
+			super.close();
+			m_rowCondition = null;
+		}
+
+		@Override
+		public Filter duplicate()
+		{
+			return new Filter(m_child.duplicate(), m_condition.duplicate());
+		}
+
+		@Override
+		public String toString()
+		{
+			return "σ [" + m_condition + "] (" + m_child + ")";
+		}
+	}
+
+	/**
+	 * Keeps some columns of the rows, designated by their name. Contrary to
+	 * {@link Projection}, duplicate rows are not removed; this can be done by
+	 * a {@link Distinct} operator.
+	 */
+	public static class Project extends UnaryOperator
+	{
+		/**
+		 * The names of the columns to keep.
+		 */
+		/*@ non_null @*/ protected final Object[] m_columnNames;
+
+		/**
+		 * The position of each kept column in the rows of the child.
+		 */
+		/*@ non_null @*/ protected final int[] m_indices;
+
+		/**
+		 * The input columns of the last row of the child that has been
+		 * projected.
+		 */
+		/*@ null @*/ protected int[] m_lastColumns;
+
+		/**
+		 * The input columns of the kept columns of this row. Consecutive rows
+		 * coming from the same branch of the plan share this array.
+		 */
+		/*@ null @*/ protected int[] m_keptColumns;
+
+		/**
+		 * Creates a new projection.
+		 * @param child The child of this operator
+		 * @param col_names The names of the columns to keep
+		 */
+		public Project(/*@ non_null @*/ Operator child, /*@ non_null @*/ Object ... col_names)
+		{
+			super(child);
+			m_columnNames = col_names;
+			m_indices = new int[col_names.length];
+		}
+
+		@Override
+		public void open(Object[] inputs)
+		{
+			super.open(inputs);
+			m_lastColumns = null;
+			m_keptColumns = null;
+			Object[] headers = m_child.getHeaders();
+			for (int i = 0; i < m_columnNames.length; i++)
+			{
+				m_indices[i] = -1;
+				for (int j = 0; j < headers.length; j++)
+				{
+					if (Spreadsheet.same(m_columnNames[i], headers[j]))
+					{
+						m_indices[i] = j;
+						break;
+					}
+				}
+				if (m_indices[i] < 0)
+				{
+					throw new RelationalException("Attribute " + m_columnNames[i] + " does not exist in input");
+				}
+			}
+		}
+
+		@Override
+		public Object[] getHeaders()
+		{
+			return m_columnNames;
+		}
+
+		@Override
+		public List<PlanRow> next(int max)
+		{
+			List<PlanRow> batch = m_child.next(max);
+			if (batch == null)
+			{
+				return null;
+			}
+			List<PlanRow> out = new ArrayList<PlanRow>(batch.size());
+			for (PlanRow r : batch)
+			{
+				Object[] contents = new Object[m_indices.length];
+				for (int i = 0; i < contents.length; i++)
+				{
+					contents[i] = r.m_contents[m_indices[i]];
+				}
+				if (r.m_columns != m_lastColumns)
+				{
+					m_lastColumns = r.m_columns;
+					m_keptColumns = new int[m_indices.length];
+					for (int i = 0; i < m_indices.length; i++)
+					{
+						m_keptColumns[i] = r.m_columns[m_indices[i]];
+					}
+				}
+				out.add(new PlanRow(contents, m_keptColumns, r.m_lineage));
+			}
+			return out;
+		}
+
+		@Override
+		public int[] getColumns(int source)
+		{
+			int[] cols = m_child.getColumns(source);
+			if (cols == null)
+			{
+				return null;
+			}
+			int[] out = new int[m_indices.length];
+			for (int i = 0; i < out.length; i++)
+			{
+				out[i] = cols[m_indices[i]];
+			}
+			return out;
+		}
+
+		@Override
+		public Project duplicate()
+		{
+			return new Project(m_child.duplicate(), m_columnNames);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "π " + java.util.Arrays.toString(m_columnNames) + " (" + m_child + ")";
+		}
+	}
+
+	/**
+	 * Removes duplicate rows. Since a row is produced as soon as it is first
+	 * seen, it is associated only to the input rows of its first occurrence,
+	 * and not to those of the duplicates that follow.
+	 */
+	public static class Distinct extends UnaryOperator
+	{
+		/**
+		 * The rows produced so far.
+		 */
+		/*@ non_null @*/ protected final Set<Row> m_seen;
+
+		/**
+		 * Creates a new duplicate removal operator.
+		 * @param child The child of this operator
+		 */
+		public Distinct(/*@ non_null @*/ Operator child)
+		{
+			super(child);
+			m_seen = new HashSet<Row>();
+		}
+
+		@Override
+		public void open(Object[] inputs)
+		{
+			super.open(inputs);
+			m_seen.clear();
+		}
+
+		@Override
+		public List<PlanRow> next(int max)
+		{
+			List<PlanRow> kept = new ArrayList<PlanRow>();
+			while (kept.size() < max)
+			{
+				List<PlanRow> batch = m_child.next(max - kept.size());
+				if (batch == null)
+				{
+					break;
+				}
+				for (PlanRow r : batch)
+				{
+					if (m_seen.add(new Row(r.m_contents)))
+					{
+						kept.add(r);
+					}
+				}
+			}
+			return kept.isEmpty() ? null : kept;
+		}
+
+		@Override
+		public void close()
+		{
+			super.close();
+			m_seen.clear();
+		}
+
+		@Override
+		public Distinct duplicate()
+		{
+			return new Distinct(m_child.duplicate());
+		}
+
+		@Override
+		public String toString()
+		{
+			return "δ (" + m_child + ")";
+		}
+	}
+
+	/**
+	 * Produces the rows of each of its children, one child after the other.
+	 * As in {@link Union}, all the children must produce rows with the same
+	 * column names, in the same order.
+	 */
+	public static class Concat extends Operator
+	{
+		/**
+		 * The children of this operator.
+		 */
+		/*@ non_null @*/ protected final Operator[] m_children;
+
+		/**
+		 * The child currently read.
+		 */
+		protected int m_current;
+
+		/**
+		 * Creates a new concatenation.
+		 * @param children The children of this operator
+		 */
+		public Concat(/*@ non_null @*/ Operator ... children)
+		{
+			super();
+			m_children = children;
+		}
+
+		@Override
+		public void open(Object[] inputs)
+		{
+			for (Operator child : m_children)
+			{
+				child.open(inputs);
+				if (!sameHeaders(m_children[0].getHeaders(), child.getHeaders()))
+				{
+					throw new RelationalException("Arguments have incompatible signatures");
+				}
+			}
+			m_current = 0;
+		}
+
+		@Override
+		public Object[] getHeaders()
+		{
+			return m_children[0].getHeaders();
+		}
+
+		/**
+		 * Checks if two rows of column names are identical.
+		 * @param h1 The first row
+		 * @param h2 The second row
+		 * @return <tt>true</tt> if the rows have the same width and the same
+		 * names, <tt>false</tt> otherwise
+		 */
+		protected static boolean sameHeaders(/*@ non_null @*/ Object[] h1, /*@ non_null @*/ Object[] h2)
+		{
+			if (h1.length != h2.length)
+			{
+				return false;
+			}
+			for (int i = 0; i < h1.length; i++)
+			{
+				if (!Spreadsheet.same(h1[i], h2[i]))
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public List<PlanRow> next(int max)
+		{
+			while (m_current < m_children.length)
+			{
+				List<PlanRow> batch = m_children[m_current].next(max);
+				if (batch != null)
+				{
+					return batch;
+				}
+				m_current++;
+			}
+			return null;
+		}
+
+		@Override
+		public int[] getColumns(int source)
+		{
+			for (Operator child : m_children)
+			{
+				int[] cols = child.getColumns(source);
+				if (cols != null)
+				{
+					return cols;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public void close()
+		{
+			for (Operator child : m_children)
+			{
+				child.close();
+			}
+		}
+
+		@Override
+		public Concat duplicate()
+		{
+			Operator[] children = new Operator[m_children.length];
+			for (int i = 0; i < children.length; i++)
+			{
+				children[i] = m_children[i].duplicate();
+			}
+			return new Concat(children);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Concat " + java.util.Arrays.toString(m_children);
+		}
+	}
+
+	/**
+	 * Sorts the rows of its child according to the values of one or more
+	 * columns. This operator reads all the rows of its child before producing
+	 * its first row.
+	 */
+	public static class OrderBy extends UnaryOperator
+	{
+		/**
+		 * The positions of the columns to sort on, in order of priority.
+		 */
+		/*@ non_null @*/ protected final List<Integer> m_columns;
+
+		/**
+		 * Whether the sort on each column is ascending.
+		 */
+		/*@ non_null @*/ protected final List<Boolean> m_ascending;
+
+		/**
+		 * The sorted rows, or <tt>null</tt> if the rows of the child have not
+		 * been read yet.
+		 */
+		/*@ null @*/ protected List<PlanRow> m_sorted;
+
+		/**
+		 * The position of the next sorted row to produce.
+		 */
+		protected int m_next;
+
+		/**
+		 * Creates a new sort.
+		 * @param child The child of this operator
+		 */
+		public OrderBy(/*@ non_null @*/ Operator child)
+		{
+			super(child);
+			m_columns = new ArrayList<Integer>();
+			m_ascending = new ArrayList<Boolean>();
+		}
+
+		/**
+		 * Adds a sorting criterion.
+		 * @param col The position of the column to sort on
+		 * @param ascending Set to {@code true} to sort by increasing values,
+		 * {@code false} otherwise
+		 * @return This operator
+		 */
+		/*@ non_null @*/ public OrderBy by(int col, boolean ascending)
+		{
+			m_columns.add(col);
+			m_ascending.add(ascending);
+			return this;
+		}
+
+		/**
+		 * Adds an ascending sorting criterion.
+		 * @param col The position of the column to sort on
+		 * @return This operator
+		 */
+		/*@ non_null @*/ public OrderBy by(int col)
+		{
+			return by(col, true);
+		}
+
+		@Override
+		public void open(Object[] inputs)
+		{
+			super.open(inputs);
+			m_sorted = null;
+			m_next = 0;
+		}
+
+		@Override
+		public List<PlanRow> next(int max)
+		{
+			if (m_sorted == null)
+			{
+				m_sorted = new ArrayList<PlanRow>();
+				List<PlanRow> batch;
+				while ((batch = m_child.next(DEFAULT_BATCH_SIZE)) != null)
+				{
+					m_sorted.addAll(batch);
+				}
+				Collections.sort(m_sorted, new Comparator<PlanRow>()
+				{
+					@Override
+					public int compare(PlanRow r1, PlanRow r2)
+					{
+						for (int i = 0; i < m_columns.size(); i++)
+						{
+							int col = m_columns.get(i);
+							int v = Spreadsheet.compare(r1.m_contents[col], r2.m_contents[col]);
+							if (v != 0)
+							{
+								return m_ascending.get(i) ? v : -v;
+							}
+						}
+						return 0;
+					}
+				});
+			}
+			if (m_next >= m_sorted.size())
+			{
+				return null;
+			}
+			int to = Math.min(m_sorted.size(), m_next + max);
+			List<PlanRow> out = new ArrayList<PlanRow>(m_sorted.subList(m_next, to));
+			m_next = to;
+			return out;
+		}
+
+		@Override
+		public void close()
+		{
+			super.close();
+			m_sorted = null;
+		}
+
+		@Override
+		public OrderBy duplicate()
+		{
+			OrderBy ob = new OrderBy(m_child.duplicate());
+			ob.m_columns.addAll(m_columns);
+			ob.m_ascending.addAll(m_ascending);
+			return ob;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Order by " + m_columns + " (" + m_child + ")";
+		}
+	}
+
+	/**
+	 * Keeps a range of consecutive rows. Once the last row of the range has
+	 * been produced, no more rows are requested from the child.
+	 */
+	public static class Slice extends UnaryOperator
+	{
+		/**
+		 * The number of rows to skip.
+		 */
+		protected final int m_from;
+
+		/**
+		 * The maximum number of rows to produce.
+		 */
+		protected final int m_count;
+
+		/**
+		 * The number of rows skipped so far.
+		 */
+		protected int m_skipped;
+
+		/**
+		 * The number of rows produced so far.
+		 */
+		protected int m_produced;
+
+		/**
+		 * Creates a new slice.
+		 * @param child The child of this operator
+		 * @param from The number of rows to skip
+		 * @param count The maximum number of rows to produce
+		 */
+		public Slice(/*@ non_null @*/ Operator child, int from, int count)
+		{
+			super(child);
+			m_from = from;
+			m_count = count;
+		}
+
+		@Override
+		public void open(Object[] inputs)
+		{
+			super.open(inputs);
+			m_skipped = 0;
+			m_produced = 0;
+		}
+
+		@Override
+		public List<PlanRow> next(int max)
+		{
+			while (m_skipped < m_from)
+			{
+				List<PlanRow> batch = m_child.next(m_from - m_skipped);
+				if (batch == null)
+				{
+					return null;
+				}
+				m_skipped += batch.size();
+			}
+			if (m_produced >= m_count)
+			{
+				return null;
+			}
+			List<PlanRow> batch = m_child.next(Math.min(max, m_count - m_produced));
+			if (batch != null)
+			{
+				m_produced += batch.size();
+			}
+			return batch;
+		}
+
+		@Override
+		public Slice duplicate()
+		{
+			return new Slice(m_child.duplicate(), m_from, m_count);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Slice " + m_from + "+" + m_count + " (" + m_child + ")";
+		}
+	}
+
+	/**
+	 * Keeps one row out of a fixed number of rows of its child, starting with
+	 * the first one.
+	 */
+	public static class Sample extends UnaryOperator
+	{
+		/**
+		 * The interval between two rows that are kept.
+		 */
+		protected final int m_step;
+
+		/**
+		 * The position of the next row of the child.
+		 */
+		protected long m_position;
+
+		/**
+		 * Creates a new sampling operator.
+		 * @param child The child of this operator
+		 * @param step The interval between two rows that are kept
+		 */
+		public Sample(/*@ non_null @*/ Operator child, int step)
+		{
+			super(child);
+			m_step = Math.max(1, step);
+		}
+
+		@Override
+		public void open(Object[] inputs)
+		{
+			super.open(inputs);
+			m_position = 0;
+		}
+
+		@Override
+		public List<PlanRow> next(int max)
+		{
+			List<PlanRow> kept = new ArrayList<PlanRow>();
+			while (kept.size() < max)
+			{
+				List<PlanRow> batch = m_child.next((max - kept.size()) * m_step);
+				if (batch == null)
+				{
+					break;
+				}
+				for (PlanRow r : batch)
+				{
+					if (m_position++ % m_step == 0)
+					{
+						kept.add(r);
+					}
+				}
+			}
+			return kept.isEmpty() ? null : kept;
+		}
+
+		@Override
+		public Sample duplicate()
+		{
+			return new Sample(m_child.duplicate(), m_step);
+		}
+
+		@Override
+		public String toString()
+		{
+			return "Sample 1/" + m_step + " (" + m_child + ")";
+		}
+	}
+}
@@ -22,6 +22,7 @@ import java.util.Collections;
 import java.util.List;
 
 import ca.uqac.lif.dag.LabelledNode;
+import ca.uqac.lif.petitpoucet.AndNode;
 import ca.uqac.lif.petitpoucet.NodeFactory;
 import ca.uqac.lif.petitpoucet.OrNode;
 import ca.uqac.lif.petitpoucet.Part;
@@ -30,7 +31,12 @@ import ca.uqac.lif.petitpoucet.function.AtomicFunction;
 import ca.uqac.lif.petitpoucet.function.NthOutput;
 import ca.uqac.lif.petitpoucet.function.RelationNodeFactory;
 import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.functions.CellMapping;
+import ca.uqac.lif.spreadsheet.functions.ForwardLineage;
+import ca.uqac.lif.spreadsheet.functions.ProvenanceMode;
+import ca.uqac.lif.spreadsheet.functions.ProvenanceRetention;
 
 /**
  * Common ancestor to functions specific to relational algebra. These functions
@@ -39,9 +45,20 @@ import ca.uqac.lif.spreadsheet.Spreadsheet;
  * A relational operator <strong>assumes</strong> that its input arguments are
  * spreadsheets with no duplicate rows. In turn, it <strong>guarantees</strong>
  * that the spreadsheet it produces as its output contains no duplicate rows.
+ * <p>
+ * When the operator is set to {@link ProvenanceMode#NONE}, the rows of the
+ * input corresponding to each output row are not recorded, and explanations
+ * on the cells of its output only contain an unknown node. When it is set to
+ * {@link ProvenanceMode#LAZY}, the operator only keeps a reference to its
+ * inputs, and is evaluated again to record these rows the first time an
+ * explanation is requested. The lineage kept by the operator can also be
+ * bounded by a {@link ProvenanceRetention} policy.
+ * <p>
+ * The same mapping answers forward queries: {@link #dependents(int, Cell)}
+ * gives the output cells that depend on an input cell.
  * @author Sylvain Hallé
  */
-public abstract class RelationalOperator extends AtomicFunction
+public abstract class RelationalOperator extends AtomicFunction implements ProvenanceMode.Configurable, ProvenanceRetention.Retainer, ForwardLineage.Traceable
 {
 	/**
 	 * A mapping associating each row of the output spreadsheet with the row(s)
@@ -55,6 +72,61 @@ public abstract class RelationalOperator extends AtomicFunction
 	 */
 	protected boolean m_sortOutput = false;
 	
+	/**
+	 * The provenance mode of this operator, or <tt>null</tt> if the operator
+	 * uses the default mode.
+	 */
+	/*@ null @*/ protected ProvenanceMode m_provenance;
+	
+	/**
+	 * The provenance mode in effect during the last evaluation of the
+	 * operator, or <tt>null</tt> if the operator has not been evaluated.
+	 */
+	/*@ null @*/ protected ProvenanceMode m_lineage;
+	
+	/**
+	 * The inputs of the last evaluation, kept to record the lineage of the
+	 * output rows when it is first needed. This field is <tt>null</tt> when
+	 * no such computation is pending.
+	 */
+	/*@ null @*/ protected Object[] m_replayInputs;
+	
+	/**
+	 * A flag indicating that the operator is being re-evaluated to record the
+	 * lineage of its output rows.
+	 */
+	protected boolean m_replaying = false;
+	
+	/**
+	 * The retention policy of this operator, or <tt>null</tt> if the operator
+	 * uses the default policy.
+	 */
+	/*@ null @*/ protected ProvenanceRetention m_retention;
+	
+	/**
+	 * A flag indicating that the lineage of the last evaluation has been
+	 * discarded by the retention policy.
+	 */
+	protected boolean m_expired = false;
+	
+	/**
+	 * The first output row whose lineage is kept, or 0 if the lineage of all
+	 * rows is kept.
+	 */
+	protected int m_windowStart = 0;
+	
+	/**
+	 * The width of the last output spreadsheet produced by the operator.
+	 */
+	protected int m_outputWidth = 0;
+	
+	/**
+	 * An inverted index of {@link #m_mapping}, associating each input row with
+	 * the output rows where it is found. The index is built on the first
+	 * forward query following an evaluation.
+	 */
+	/*@ null @*/ protected CellMapping.Inverse m_inverse;
+	
 	/**
 	 * Creates a new instance of the relational operator, assuming that the rows
 	 * of its output will be unsorted.
@@ -89,17 +161,143 @@ public abstract class RelationalOperator extends AtomicFunction
 		return this;
 	}
 	
+	@Override
+	/*@ non_null @*/ public RelationalOperator setProvenance(/*@ null @*/ ProvenanceMode mode)
+	{
+		m_provenance = mode;
+		return this;
+	}
+	
+	@Override
+	public ProvenanceMode getProvenance()
+	{
+		if (m_provenance == null)
+		{
+			return ProvenanceMode.getDefault();
+		}
+		return m_provenance;
+	}
+	
+	@Override
+	/*@ non_null @*/ public RelationalOperator setRetention(/*@ null @*/ ProvenanceRetention policy)
+	{
+		m_retention = policy;
+		return this;
+	}
+	
+	@Override
+	public ProvenanceRetention getRetention()
+	{
+		if (m_retention == null)
+		{
+			return ProvenanceRetention.getDefault();
+		}
+		return m_retention;
+	}
+	
+	@Override
+	public synchronized long getLineageSize()
+	{
+		// Estimate based on one input tuple per output row
+		return m_mapping.isEmpty() ? 0 : 40 + 88L * m_mapping.size();
+	}
+	
+	@Override
+	public synchronized void expireLineage()
+	{
+		m_mapping.clear();
+		m_replayInputs = null;
+		m_inverse = null;
+		m_expired = true;
+	}
+	
+	/**
+	 * Starts the recording of lineage for an evaluation of the operator.
+	 * Descendants call this method at the beginning of
+	 * {@link #getValue(Object...) getValue()}, and skip the recording of the
+	 * input rows corresponding to each output row when it returns
+	 * <tt>false</tt>.
+	 * @param inputs The inputs of the evaluation
+	 * @return <tt>true</tt> if lineage must be recorded during this
+	 * evaluation, <tt>false</tt> otherwise
+	 */
+	protected boolean startLineage(Object ... inputs)
+	{
+		if (m_replaying)
+		{
+			return true;
+		}
+		m_expired = false;
+		m_windowStart = 0;
+		ProvenanceRetention policy = getRetention();
+		if (policy != null)
+		{
+			policy.touch(this);
+		}
+		m_lineage = getProvenance();
+		m_replayInputs = m_lineage == ProvenanceMode.LAZY ? inputs : null;
+		return m_lineage == ProvenanceMode.FULL;
+	}
+	
+	/**
+	 * Ensures that the lineage of the last evaluation is available, evaluating
+	 * the operator again if its recording has been deferred.
+	 * @return <tt>true</tt> if the lineage is available, <tt>false</tt> if
+	 * it has not been recorded or has expired
+	 */
+	protected boolean hasLineage()
+	{
+		if (m_replayInputs != null)
+		{
+			Object[] inputs = m_replayInputs;
+			m_replayInputs = null;
+			m_replaying = true;
+			try
+			{
+				getValue(inputs);
+			}
+			finally
+			{
+				m_replaying = false;
+			}
+		}
+		return !m_expired && m_lineage != ProvenanceMode.NONE;
+	}
+	
 	@Override
 	public PartNode getExplanation(Part d, RelationNodeFactory f)
 	{
 		Cell c = Cell.mentionedCell(d);
 		if (c == null)
 		{
-			return super.getExplanation(d, f);
+			CellRange range = CellRange.mentionedRange(d);
+			if (range == null)
+			{
+				return super.getExplanation(d, f);
+			}
+			// A range is explained by the explanations of each of its cells
+			PartNode root = f.getPartNode(d, this);
+			AndNode and = f.getAndNode();
+			root.addChild(and);
+			for (Cell r_c : range)
+			{
+				and.addChild(getExplanation(CellRange.replaceRangeBy(d, r_c), f));
+			}
+			return root;
 		}
 		int c_row = c.getRow();
 		int c_col = c.getColumn();
 		PartNode root = f.getPartNode(d, this);
+		if (m_expired || (c_row > 0 && c_row < m_windowStart))
+		{
+			ProvenanceRetention.addExpiredNode(root, f);
+			return root;
+		}
+		if (!hasLineage())
+		{
+			root.addChild(f.getUnknownNode());
+			return root;
+		}
 		if (c_row == 0)
 		{
 			// First row is made of labels
@@ -118,7 +316,7 @@ public abstract class RelationalOperator extends AtomicFunction
 			}
 			return root;
 		}
-		if (c_row < 1 || c_row > m_mapping.size())
+		if (c_row < 1 || c_row > m_mapping.size() || m_mapping.get(c_row - 1) == null)
 		{
 			root.addChild(f.getUnknownNode());
 			return root;
@@ -140,6 +338,81 @@ public abstract class RelationalOperator extends AtomicFunction
 		return root;
 	}
 	
+	@Override
+	public Cell[] dependents(int index, Cell c)
+	{
+		int c_row = c.getRow();
+		if (index < 0 || index >= getInputArity() || c_row < 0 || !hasLineage())
+		{
+			return new Cell[0];
+		}
+		int[] out_rows;
+		if (c_row == 0)
+		{
+			// The first row of each input contains the labels
+			out_rows = new int[] {0};
+		}
+		else
+		{
+			out_rows = getInverse().get(((long) index << 32) | c_row);
+			for (int i = 0; i < out_rows.length; i++)
+			{
+				out_rows[i]++;
+			}
+		}
+		List<Integer> out_cols = new ArrayList<Integer>(1);
+		for (int col = 0; col < m_outputWidth; col++)
+		{
+			if (getColumnOf(col) == c.getColumn())
+			{
+				out_cols.add(col);
+			}
+		}
+		Cell[] cells = new Cell[out_rows.length * out_cols.size()];
+		int pos = 0;
+		for (int row : out_rows)
+		{
+			for (int col : out_cols)
+			{
+				cells[pos++] = Cell.get(col, row);
+			}
+		}
+		return cells;
+	}
+	
+	/**
+	 * Gets the inverted index of {@link #m_mapping}, building it if necessary.
+	 * In this index, each output row is a cell of a single column, and each
+	 * input row is designated by a key made of the index of the input in the
+	 * upper 32 bits and the row in the lower 32 bits.
+	 * @return The index
+	 */
+	/*@ non_null @*/ protected CellMapping.Inverse getInverse()
+	{
+		if (m_inverse == null)
+		{
+			int num_rows = m_mapping.size();
+			int[] offsets = new int[num_rows + 1];
+			for (int i = 0; i < num_rows; i++)
+			{
+				List<Integer[]> positions = m_mapping.get(i);
+				offsets[i + 1] = offsets[i] + (positions == null ? 0 : positions.size());
+			}
+			long[] keys = new long[offsets[num_rows]];
+			for (int i = 0; i < num_rows; i++)
+			{
+				List<Integer[]> positions = m_mapping.get(i);
+				for (int j = 0; positions != null && j < positions.size(); j++)
+				{
+					Integer[] pos = positions.get(j);
+					keys[offsets[i] + j] = ((long) pos[0] << 32) | pos[1];
+				}
+			}
+			m_inverse = new CellMapping.Inverse(offsets, keys, num_rows);
+		}
+		return m_inverse;
+	}
+	
 	/**
 	 * Gets the column index in the input spreadsheet corresponding to a column
 	 * index in the output spreadsheet.
@@ -151,6 +424,27 @@ public abstract class RelationalOperator extends AtomicFunction
 		return col;
 	}
 	
+	/**
+	 * Copies the configuration of this operator into another instance.
+	 * @param ro The other instance
+	 * @param with_state Set to <tt>true</tt> to also copy the state of the
+	 * operator
+	 */
+	protected void copyInto(/*@ non_null @*/ RelationalOperator ro, boolean with_state)
+	{
+		super.copyInto(ro, with_state);
+		ro.m_provenance = m_provenance;
+		ro.m_retention = m_retention;
+		if (with_state)
+		{
+			ro.m_expired = m_expired;
+			ro.m_windowStart = m_windowStart;
+			ro.m_outputWidth = m_outputWidth;
+			ro.m_lineage = m_lineage;
+			ro.m_replayInputs = m_replayInputs;
+		}
+	}
+	
 	/**
 	 * Creates the output spreadsheet out of a list of rows gathered from the
 	 * input spreadsheets. This method is called by {@link #getValue(Object...)}
@@ -161,11 +455,14 @@ public abstract class RelationalOperator extends AtomicFunction
 	 * @param row_list The list of rows to be appended to the output spreadsheet.
 	 * The size of this list determines the height of the output spreadsheet
 	 * (which is size of list + 1).
-	 * @return The output spreadsheet
+	 * @return The output spreadsheet. The lineage of the rows that lie before
+	 * the window of the retention policy, if any, is discarded.
 	 */
 	protected Spreadsheet createOutput(Object[] top_row, List<Row> row_list)
 	{
 		Spreadsheet out = new Spreadsheet(top_row.length, row_list.size() + 1);
+		m_outputWidth = top_row.length;
+		m_inverse = null;
 		for (int col = 0; col < top_row.length; col++)
 		{
 			// First row
@@ -180,6 +477,22 @@ public abstract class RelationalOperator extends AtomicFunction
 			Row r = row_list.get(i);
 			r.set(out, i + 1);
 		}
+		ProvenanceRetention policy = getRetention();
+		if (policy != null && !m_replaying)
+		{
+			m_windowStart = policy.getWindowStart(out.getHeight());
+		}
+		synchronized (this)
+		{
+			for (int i = 0; i < m_windowStart - 1 && i < m_mapping.size(); i++)
+			{
+				m_mapping.set(i, null);
+			}
+		}
+		if (policy != null)
+		{
+			policy.done(this);
+		}
 		return out;
 	}
 	
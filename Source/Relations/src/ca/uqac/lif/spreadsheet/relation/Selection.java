@@ -71,6 +71,7 @@ public class Selection extends RelationalOperator
 		Spreadsheet s = (Spreadsheet) inputs[0];
 		Object[] headers = s.getRow(0);
 		List<Row> row_list = new ArrayList<Row>();
+		boolean track = startLineage(inputs);
 		for (int s_row = 1; s_row < s.getHeight(); s_row++)
 		{
 			Function condition = m_condition.duplicate();
@@ -89,9 +90,12 @@ public class Selection extends RelationalOperator
 			{
 				// Keep row
 				row_list.add(r);
-				List<Integer[]> tuples = new ArrayList<Integer[]>(1);
-				tuples.add(new Integer[] {0, s_row});
-				m_mapping.add(tuples);
+				if (track)
+				{
+					List<Integer[]> tuples = new ArrayList<Integer[]>(1);
+					tuples.add(new Integer[] {0, s_row});
+					m_mapping.add(tuples);
+				}
 			}
 		}
 		return new Object[] {createOutput(headers, row_list)};
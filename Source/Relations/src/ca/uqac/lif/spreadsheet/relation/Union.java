@@ -142,13 +142,21 @@ public class Union extends RelationalOperator
 		// in the list in case the row has never been seen before.
 		Set<Row> row_set = new HashSet<Row>();
 		List<Row> row_list = new ArrayList<Row>();
+		boolean track = startLineage(inputs);
 		for (int s_index = 0; s_index < s_inputs.length; s_index++)
 		{
 			Spreadsheet s = s_inputs[s_index];
 			for (int s_row = 1; s_row < s.getHeight(); s_row++)
 			{
 				Row r = new Row(s.getRow(s_row));
-				if (row_set.contains(r))
+				if (!track)
+				{
+					if (row_set.add(r))
+					{
+						row_list.add(r);
+					}
+				}
+				else if (row_set.contains(r))
 				{
 					// Duplicate of existing row in the output
 					int index = row_list.indexOf(r);
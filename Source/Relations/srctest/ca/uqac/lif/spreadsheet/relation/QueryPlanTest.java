@@ -0,0 +1,299 @@
+/*
+    A provenance-aware spreadsheet library
+    Copyright (C) 2021-2022 Sylvain Hallé
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public License
+    along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package ca.uqac.lif.spreadsheet.relation;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import static ca.uqac.lif.dag.NodeConnector.connect;
+
+import ca.uqac.lif.petitpoucet.ComposedPart;
+import ca.uqac.lif.petitpoucet.OrNode;
+import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.function.AtomicFunction;
+import ca.uqac.lif.petitpoucet.function.Circuit;
+import ca.uqac.lif.petitpoucet.function.Constant;
+import ca.uqac.lif.petitpoucet.function.Function;
+import ca.uqac.lif.petitpoucet.function.NthInput;
+import ca.uqac.lif.petitpoucet.function.NthOutput;
+import ca.uqac.lif.petitpoucet.function.number.IsGreaterThan;
+import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.relation.QueryPlan.Concat;
+import ca.uqac.lif.spreadsheet.relation.QueryPlan.Distinct;
+import ca.uqac.lif.spreadsheet.relation.QueryPlan.Filter;
+import ca.uqac.lif.spreadsheet.relation.QueryPlan.OrderBy;
+import ca.uqac.lif.spreadsheet.relation.QueryPlan.PlanRow;
+import ca.uqac.lif.spreadsheet.relation.QueryPlan.Project;
+import ca.uqac.lif.spreadsheet.relation.QueryPlan.Sample;
+import ca.uqac.lif.spreadsheet.relation.QueryPlan.Scan;
+import ca.uqac.lif.spreadsheet.relation.QueryPlan.Slice;
+
+/**
+ * Unit tests for {@link QueryPlan}.
+ */
+public class QueryPlanTest
+{
+	@Test
+	public void testFilter()
+	{
+		Spreadsheet s = getSpreadsheet1();
+		QueryPlan f = new QueryPlan(1, new Filter(new Scan(0), getCondition(3)));
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(new Selection(getCondition(3)).evaluate(s)[0], out);
+	}
+
+	@Test
+	public void testFilterCondition()
+	{
+		Filter f = new Filter(new Scan(0), getCondition(3));
+		f.open(new Object[] {getSpreadsheet1()});
+		// The condition is copied once for all the rows
+		Function copy = f.m_rowCondition;
+		assertNotNull(copy);
+		List<PlanRow> rows = f.next(1);
+		assertEquals(1, rows.size());
+		rows = f.next(10);
+		assertEquals(2, rows.size());
+		assertSame(copy, f.m_rowCondition);
+		assertNull(f.next(10));
+		f.close();
+		assertNull(f.m_rowCondition);
+	}
+
+	@Test
+	public void testProjectDistinct()
+	{
+		Spreadsheet s = getSpreadsheet1();
+		QueryPlan f = new QueryPlan(1, new Distinct(new Project(new Scan(0), "B")));
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(new Projection("B").evaluate(s)[0], out);
+	}
+
+	@Test(expected = RelationalException.class)
+	public void testProjectInvalid()
+	{
+		QueryPlan f = new QueryPlan(1, new Project(new Scan(0), "Z"));
+		f.evaluate(getSpreadsheet1());
+	}
+
+	@Test
+	public void testUnion()
+	{
+		Spreadsheet s1 = getSpreadsheet1();
+		Spreadsheet s2 = Spreadsheet.read(3, 3,
+				"A", "B", "C",
+				4,   1,   "b",
+				7,   2,   "d");
+		QueryPlan f = new QueryPlan(2, new Distinct(new Concat(new Scan(0), new Scan(1))));
+		Spreadsheet out = (Spreadsheet) f.evaluate(s1, s2)[0];
+		assertEquals(new Union(2).evaluate(s1, s2)[0], out);
+	}
+
+	@Test
+	public void testOrderBy()
+	{
+		Spreadsheet s = getSpreadsheet1();
+		QueryPlan f = new QueryPlan(1, new OrderBy(new Scan(0)).by(1, false).by(0));
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(Spreadsheet.read(3, 5,
+				"A", "B", "C",
+				5,   5,   "c",
+				6,   5,   "a",
+				3,   1,   "a",
+				4,   1,   "b"), out);
+	}
+
+	@Test
+	public void testSliceSample()
+	{
+		Spreadsheet s = getSpreadsheet1();
+		QueryPlan f = new QueryPlan(1, new Slice(new Scan(0), 1, 2));
+		assertEquals(Spreadsheet.read(3, 3,
+				"A", "B", "C",
+				4,   1,   "b",
+				5,   5,   "c"), f.evaluate(s)[0]);
+		f = new QueryPlan(1, new Sample(new Scan(0), 2)).setBatchSize(1);
+		assertEquals(Spreadsheet.read(3, 3,
+				"A", "B", "C",
+				3,   1,   "a",
+				5,   5,   "c"), f.evaluate(s)[0]);
+	}
+
+	@Test
+	public void testLimit()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 1001, getValues(1000));
+		CountingCondition.s_count = 0;
+		QueryPlan f = new QueryPlan(1, new Filter(new Scan(0), new CountingCondition())).setBatchSize(10).limit(5);
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(6, out.getHeight());
+		assertEquals(4, out.get(0, 5));
+		// The plan never asks for more rows than it needs
+		assertEquals(5, CountingCondition.s_count);
+	}
+
+	@Test
+	public void testSliceStopsPulling()
+	{
+		Spreadsheet s = Spreadsheet.read(1, 1001, getValues(1000));
+		CountingCondition.s_count = 0;
+		QueryPlan f = new QueryPlan(1, new Slice(new Filter(new Scan(0), new CountingCondition()), 0, 3));
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals(4, out.getHeight());
+		assertEquals(3, CountingCondition.s_count);
+	}
+
+	@Test
+	public void testExplanation1()
+	{
+		Spreadsheet s = getSpreadsheet1();
+		QueryPlan f = new QueryPlan(1, new Project(new OrderBy(new Filter(new Scan(0), getCondition(3))).by(0, false), "C", "A"));
+		Spreadsheet out = (Spreadsheet) f.evaluate(s)[0];
+		assertEquals("c", out.get(0, 2));
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(0, 2), NthOutput.FIRST));
+		assertEquals(1, root.getOutputLinks(0).size());
+		PartNode child = (PartNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(ComposedPart.compose(Cell.get(2, 3), NthInput.FIRST), child.getPart());
+		root = f.getExplanation(ComposedPart.compose(Cell.get(1, 0), NthOutput.FIRST));
+		child = (PartNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(ComposedPart.compose(Cell.get(0, 0), NthInput.FIRST), child.getPart());
+	}
+
+	@Test
+	public void testExplanation2()
+	{
+		Spreadsheet s1 = getSpreadsheet1();
+		Spreadsheet s2 = Spreadsheet.read(3, 2,
+				"A", "B", "C",
+				7,   2,   "d");
+		QueryPlan f = new QueryPlan(2, new Concat(new Scan(0), new Scan(1)));
+		f.evaluate(s1, s2);
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(2, 5), NthOutput.FIRST));
+		PartNode child = (PartNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(ComposedPart.compose(Cell.get(2, 1), new NthInput(1)), child.getPart());
+		// Column names come from both inputs
+		root = f.getExplanation(ComposedPart.compose(Cell.get(2, 0), NthOutput.FIRST));
+		assertTrue(root.getOutputLinks(0).get(0).getNode() instanceof OrNode);
+		assertEquals(2, ((OrNode) root.getOutputLinks(0).get(0).getNode()).getOutputLinks(0).size());
+	}
+
+	@Test(expected = RelationalException.class)
+	public void testConcatSignature()
+	{
+		// Rows of the same width but with different column names
+		QueryPlan f = new QueryPlan(1, new Concat(new Project(new Scan(0), "A"), new Project(new Scan(0), "B")));
+		f.evaluate(getSpreadsheet1());
+	}
+
+	@Test
+	public void testConcatColumns()
+	{
+		Spreadsheet s1 = Spreadsheet.read(2, 2,
+				"A", "B",
+				1,   2);
+		Spreadsheet s2 = Spreadsheet.read(2, 2,
+				"B", "A",
+				3,   4);
+		// Each row is explained by the columns of the branch it comes from
+		QueryPlan f = new QueryPlan(2, new Concat(new Scan(0), new Project(new Scan(1), "A", "B")));
+		Spreadsheet out = (Spreadsheet) f.evaluate(s1, s2)[0];
+		assertEquals(4, out.get(0, 2));
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(0, 2), NthOutput.FIRST));
+		PartNode child = (PartNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(ComposedPart.compose(Cell.get(1, 1), new NthInput(1)), child.getPart());
+		root = f.getExplanation(ComposedPart.compose(Cell.get(0, 1), NthOutput.FIRST));
+		child = (PartNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(ComposedPart.compose(Cell.get(0, 1), NthInput.FIRST), child.getPart());
+	}
+
+	@Test
+	public void testDuplicate()
+	{
+		Spreadsheet s = getSpreadsheet1();
+		QueryPlan f = new QueryPlan(1, new Filter(new Scan(0), getCondition(3))).limit(1);
+		QueryPlan f2 = f.duplicate(false);
+		assertEquals(f.evaluate(s)[0], f2.evaluate(s)[0]);
+		assertEquals(2, ((Spreadsheet) f2.evaluate(s)[0]).getHeight());
+	}
+
+	protected static Spreadsheet getSpreadsheet1()
+	{
+		return Spreadsheet.read(3, 5,
+				"A", "B", "C",
+				3,   1,   "a",
+				4,   1,   "b",
+				5,   5,   "c",
+				6,   5,   "a");
+	}
+
+	protected static Object[] getValues(int n)
+	{
+		Object[] values = new Object[n + 1];
+		values[0] = "A";
+		for (int i = 0; i < n; i++)
+		{
+			values[i + 1] = i;
+		}
+		return values;
+	}
+
+	protected static Circuit getCondition(int threshold)
+	{
+		Circuit c = new Circuit(1, 1, "> " + threshold);
+		AttributeValue a = AttributeValue.get("A");
+		IsGreaterThan gt = new IsGreaterThan();
+		Constant k = new Constant(threshold);
+		connect(a, 0, gt, 0);
+		connect(k, 0, gt, 1);
+		c.associateInput(0, a.getInputPin(0));
+		c.associateOutput(0, gt.getOutputPin(0));
+		c.addNodes(a, gt, k);
+		return c;
+	}
+
+	/**
+	 * A condition that is always true, and counts the number of times it is
+	 * evaluated.
+	 */
+	protected static class CountingCondition extends AtomicFunction
+	{
+		protected static int s_count = 0;
+
+		public CountingCondition()
+		{
+			super(1, 1);
+		}
+
+		@Override
+		protected Object[] getValue(Object ... inputs)
+		{
+			s_count++;
+			return new Object[] {true};
+		}
+
+		@Override
+		public CountingCondition duplicate(boolean with_state)
+		{
+			return new CountingCondition();
+		}
+	}
+}
@@ -23,6 +23,7 @@ import org.junit.Test;
 
 import static ca.uqac.lif.dag.NodeConnector.connect;
 
+import ca.uqac.lif.petitpoucet.AndNode;
 import ca.uqac.lif.petitpoucet.ComposedPart;
 import ca.uqac.lif.petitpoucet.PartNode;
 import ca.uqac.lif.petitpoucet.function.Circuit;
@@ -31,6 +32,7 @@ import ca.uqac.lif.petitpoucet.function.NthInput;
 import ca.uqac.lif.petitpoucet.function.NthOutput;
 import ca.uqac.lif.petitpoucet.function.number.IsGreaterThan;
 import ca.uqac.lif.spreadsheet.Cell;
+import ca.uqac.lif.spreadsheet.CellRange;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
 
 /**
@@ -104,4 +106,27 @@ public class SelectionTest
 		PartNode child = (PartNode) root.getOutputLinks(0).get(0).getNode();
 		assertEquals(ComposedPart.compose(Cell.get(1, 2), NthInput.FIRST), child.getPart());
 	}
+	
+	@Test
+	public void testExplanationRange()
+	{
+		Spreadsheet s = Spreadsheet.read(3, 4,
+				"A", "B", "C",
+				3,   1,   "a",
+				4,   1,   "b",
+				5,   5,   "c");
+		Selection f = new Selection(new Constant(true));
+		f.evaluate(s);
+		// Each cell of the range is explained separately
+		PartNode root = f.getExplanation(ComposedPart.compose(new CellRange(1, 1, 1, 2), NthOutput.FIRST));
+		AndNode and = (AndNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(2, and.getOutputLinks(0).size());
+		for (int i = 0; i < 2; i++)
+		{
+			PartNode cell_root = (PartNode) and.getOutputLinks(0).get(i).getNode();
+			assertEquals(ComposedPart.compose(Cell.get(1, i + 1), NthOutput.FIRST), cell_root.getPart());
+			PartNode child = (PartNode) cell_root.getOutputLinks(0).get(0).getNode();
+			assertEquals(ComposedPart.compose(Cell.get(1, i + 1), NthInput.FIRST), child.getPart());
+		}
+	}
 }
@@ -25,10 +25,13 @@ import ca.uqac.lif.petitpoucet.AndNode;
 import ca.uqac.lif.petitpoucet.ComposedPart;
 import ca.uqac.lif.petitpoucet.OrNode;
 import ca.uqac.lif.petitpoucet.PartNode;
+import ca.uqac.lif.petitpoucet.UnknownNode;
 import ca.uqac.lif.petitpoucet.function.NthInput;
 import ca.uqac.lif.petitpoucet.function.NthOutput;
 import ca.uqac.lif.spreadsheet.Cell;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.functions.ProvenanceMode;
+import ca.uqac.lif.spreadsheet.functions.ProvenanceRetention;
 
 /**
  * Unit tests for {@link Union}.
@@ -220,4 +223,96 @@ public class UnionTest
 		PartNode child = (PartNode) root.getOutputLinks(0).get(0).getNode();
 		assertEquals(ComposedPart.compose(Cell.get(0, 3), NthInput.SECOND), child.getPart());
 	}
+	
+	@Test
+	public void testNoProvenance()
+	{
+		Spreadsheet s1 = Spreadsheet.read(2, 3,
+				"A", "B",
+				3,   "f",
+				1,   "o");
+		Spreadsheet s2 = Spreadsheet.read(2, 3,
+				"A", "B",
+				1,   "o",
+				5,   "f");
+		Union full = new Union(2);
+		Union none = new Union(2);
+		none.setProvenance(ProvenanceMode.NONE);
+		assertEquals(full.evaluate(s1, s2)[0], none.evaluate(s1, s2)[0]);
+		assertTrue(none.m_mapping.isEmpty());
+		PartNode root = none.getExplanation(ComposedPart.compose(Cell.get(0, 2), NthOutput.FIRST));
+		assertEquals(1, root.getOutputLinks(0).size());
+		assertTrue(root.getOutputLinks(0).get(0).getNode() instanceof UnknownNode);
+	}
+	
+	@Test
+	public void testLazyProvenance()
+	{
+		Spreadsheet s1 = Spreadsheet.read(2, 3,
+				"A", "B",
+				3,   "f",
+				1,   "o");
+		Spreadsheet s2 = Spreadsheet.read(2, 3,
+				"A", "B",
+				1,   "o",
+				5,   "f");
+		Union f = new Union(2);
+		f.setProvenance(ProvenanceMode.LAZY);
+		f.evaluate(s1, s2);
+		assertTrue(f.m_mapping.isEmpty());
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(0, 3), NthOutput.FIRST));
+		assertEquals(3, f.m_mapping.size());
+		assertEquals(1, root.getOutputLinks(0).size());
+		PartNode child = (PartNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(ComposedPart.compose(Cell.get(0, 2), NthInput.SECOND), child.getPart());
+	}
+	
+	@Test
+	public void testRetention()
+	{
+		Spreadsheet s1 = Spreadsheet.read(2, 3,
+				"A", "B",
+				3,   "f",
+				1,   "o");
+		Spreadsheet s2 = Spreadsheet.read(2, 3,
+				"A", "B",
+				1,   "o",
+				5,   "f");
+		Union f = new Union(2);
+		f.setRetention(new ProvenanceRetention().keepRows(1));
+		f.evaluate(s1, s2);
+		assertNull(f.m_mapping.get(0));
+		PartNode root = f.getExplanation(ComposedPart.compose(Cell.get(0, 1), NthOutput.FIRST));
+		PartNode expired = (PartNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(ProvenanceRetention.EXPIRED, expired.getSubject());
+		root = f.getExplanation(ComposedPart.compose(Cell.get(0, 3), NthOutput.FIRST));
+		PartNode child = (PartNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(ComposedPart.compose(Cell.get(0, 2), NthInput.SECOND), child.getPart());
+		// Expiring the operator discards the lineage of all its rows
+		f.expireLineage();
+		assertEquals(0, f.getLineageSize());
+		root = f.getExplanation(ComposedPart.compose(Cell.get(0, 3), NthOutput.FIRST));
+		expired = (PartNode) root.getOutputLinks(0).get(0).getNode();
+		assertEquals(ProvenanceRetention.EXPIRED, expired.getSubject());
+	}
+	
+	@Test
+	public void testDependents()
+	{
+		Spreadsheet s1 = Spreadsheet.read(2, 3,
+				"A", "B",
+				3,   "f",
+				1,   "o");
+		Spreadsheet s2 = Spreadsheet.read(2, 3,
+				"A", "B",
+				1,   "o",
+				5,   "f");
+		Union f = new Union(2);
+		f.evaluate(s1, s2);
+		assertArrayEquals(new Cell[] {Cell.get(1, 2)}, f.dependents(1, Cell.get(1, 1)));
+		assertArrayEquals(new Cell[] {Cell.get(1, 2)}, f.dependents(0, Cell.get(1, 2)));
+		assertArrayEquals(new Cell[] {Cell.get(0, 3)}, f.dependents(1, Cell.get(0, 2)));
+		assertArrayEquals(new Cell[] {Cell.get(0, 0)}, f.dependents(1, Cell.get(0, 0)));
+		assertEquals(0, f.dependents(2, Cell.get(0, 1)).length);
+	}
 }
@@ -35,6 +35,7 @@ import ca.uqac.lif.petitpoucet.function.strings.Range;
 import ca.uqac.lif.petitpoucet.function.strings.RangeMapping;
 import ca.uqac.lif.spreadsheet.Cell;
 import ca.uqac.lif.spreadsheet.Spreadsheet;
+import ca.uqac.lif.spreadsheet.functions.CellMapping;
 import ca.uqac.lif.spreadsheet.functions.SpreadsheetFunction;
 import ca.uqac.lif.units.DimensionValue;
 import ca.uqac.lif.units.DimensionValuePart;
@@ -116,7 +117,7 @@ public class MoveUnitsToHeader extends SpreadsheetFunction
 		}
 		Spreadsheet table = (Spreadsheet) inputs[0];
 		Spreadsheet out = new Spreadsheet(table.getWidth(), table.getHeight());
-		m_mapping = new InputCell[table.getHeight()][table.getWidth()][];
+		m_mapping = startLineage(inputs) ? new CellMapping.Identity(table.getWidth(), table.getHeight()) : null;
 		m_unitRows = new int[table.getWidth()];
 		m_lastHeaders = new String[table.getWidth()];
 		for (int col = 0; col < table.getWidth(); col++)
@@ -128,7 +129,6 @@ public class MoveUnitsToHeader extends SpreadsheetFunction
 				for (int row = 0; row < table.getHeight(); row++)
 				{
 					out.set(col, row, table.get(col, row));
-					m_mapping[row][col] = new InputCell[] {InputCell.get(col, row)};
 					if (row == 0)
 					{
 						m_lastHeaders[col] = table.getString(col, row);
@@ -159,7 +159,6 @@ public class MoveUnitsToHeader extends SpreadsheetFunction
 					{
 						out.set(col, row, o);
 					}
-					m_mapping[row][col] = new InputCell[] {InputCell.get(col, row)};
 				}
 			}
 		}